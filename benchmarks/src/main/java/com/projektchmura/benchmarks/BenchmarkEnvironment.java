@@ -0,0 +1,39 @@
+package com.projektchmura.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Wspólne przygotowanie środowiska: osobny katalog tymczasowy na bazę H2 i magazyn blobów,
+ * żeby benchmarki nie dotykały danych serwera.
+ */
+final class BenchmarkEnvironment {
+
+    private BenchmarkEnvironment() {
+    }
+
+    /**
+     * Tworzy katalog roboczy i kieruje do niego ServerConfig (chmurka.db.path, chmurka.storage.dir).
+     */
+    static Path prepare(String name) throws IOException {
+        Path dir = Files.createTempDirectory("chmurka-bench-" + name);
+        System.setProperty("chmurka.db.path", dir.resolve("db").toAbsolutePath().toString());
+        System.setProperty("chmurka.storage.dir", dir.resolve("uploads").toAbsolutePath().toString());
+        return dir;
+    }
+
+    /**
+     * Usuwa katalog roboczy razem z zawartością.
+     */
+    static void cleanup(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.projektchmura.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Uruchamia benchmarki i zapisuje wyniki w formacie JSON (do porównywania między wersjami).
+ * Argumenty: [wzorzec nazw benchmarków] [plik wyników], domyślnie ".*" i "jmh-result.json".
+ * Pełna linia poleceń JMH: java -cp benchmarks.jar org.openjdk.jmh.Main -h
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*";
+        String resultFile = args.length > 1 ? args[1] : "jmh-result.json";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+        System.out.println("Wyniki zapisano w: " + resultFile);
+    }
+}
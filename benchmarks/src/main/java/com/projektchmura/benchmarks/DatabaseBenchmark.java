@@ -0,0 +1,102 @@
+package com.projektchmura.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.server.DatabaseManager;
+import com.projektchmura.server.FileStorageManager;
+
+/**
+ * Operacje DatabaseManager na wbudowanej bazie H2 (plikowej, w katalogu tymczasowym)
+ * z wcześniej wypełnionym katalogiem plików jednego użytkownika.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final String OWNER = "bench";
+
+    @Param({"1000"})
+    public int fileCount;
+
+    @Param({"4096"})
+    public int fileSize;
+
+    private Path workDir;
+    private byte[] data;
+    private long counter;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        workDir = BenchmarkEnvironment.prepare("db");
+        FileStorageManager.init();
+        DatabaseManager.init();
+        DatabaseManager.registerUser(OWNER, "bench");
+
+        data = new byte[fileSize];
+        new Random(1).nextBytes(data);
+        for (int i = 0; i < fileCount; i++) {
+            ByteBuffer.wrap(data).putLong(counter++);
+            DatabaseManager.saveFile(OWNER, fileName(i), data);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        DatabaseManager.close();
+        BenchmarkEnvironment.cleanup(workDir);
+    }
+
+    private static String fileName(int i) {
+        return String.format("plik-%06d.bin", i);
+    }
+
+    /**
+     * Nadpisanie pliku nową treścią: nowy blob + zwolnienie poprzedniego.
+     */
+    @Benchmark
+    public void saveFile() throws SQLException {
+        ByteBuffer.wrap(data).putLong(counter++);
+        DatabaseManager.saveFile(OWNER, "nadpisywany.bin", data);
+    }
+
+    @Benchmark
+    public byte[] getFileContent() throws SQLException {
+        return DatabaseManager.getFileContent(OWNER, fileName(ThreadLocalRandom.current().nextInt(fileCount)));
+    }
+
+    @Benchmark
+    public List<String> listFiles() throws SQLException {
+        return DatabaseManager.listFiles(OWNER);
+    }
+
+    @Benchmark
+    public FilePage listFilesPage() throws SQLException {
+        return DatabaseManager.listFiles(OWNER, null, null, ProtocolConstants.SORT_MTIME_DESC, 100);
+    }
+}
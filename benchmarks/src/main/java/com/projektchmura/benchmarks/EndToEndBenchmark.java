@@ -0,0 +1,83 @@
+package com.projektchmura.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projektchmura.client.ClientHandler;
+import com.projektchmura.server.ServerMain;
+
+/**
+ * Pełna ścieżka klient-serwer przez loopback: ServerMain uruchomiony w tym samym procesie,
+ * ClientHandler wysyła i pobiera plik o zadanym rozmiarze.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @Param({"65536", "4194304"})
+    public int size;
+
+    private Path workDir;
+    private Path downloadTarget;
+    private ClientHandler client;
+    private byte[] data;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        workDir = BenchmarkEnvironment.prepare("e2e");
+        int port = ServerMain.start(0);
+
+        client = new ClientHandler("127.0.0.1", port);
+        client.registerUser("bench", "bench");
+        if (!"OK".equals(client.loginUser("bench", "bench"))) {
+            throw new IllegalStateException("Logowanie nie powiodło się");
+        }
+
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+        if (!"UPLOAD_OK".equals(client.uploadFile("pobierany.bin", data))) {
+            throw new IllegalStateException("Nie udało się przygotować pliku do pobierania");
+        }
+        downloadTarget = workDir.resolve("pobrany.bin");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+        ServerMain.stop();
+        BenchmarkEnvironment.cleanup(workDir);
+    }
+
+    @Benchmark
+    public String upload() {
+        return client.uploadFile("wysylany.bin", data);
+    }
+
+    @Benchmark
+    public boolean download() throws IOException {
+        boolean ok = client.downloadFile("pobierany.bin", downloadTarget);
+        Files.deleteIfExists(downloadTarget);
+        return ok;
+    }
+}
@@ -0,0 +1,104 @@
+package com.projektchmura.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.projektchmura.common.Message;
+import com.projektchmura.common.MessageReader;
+import com.projektchmura.common.MessageWriter;
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Kodowanie i dekodowanie ramek protokołu (żądanie UPLOAD z polami i body) bez sieci.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"0", "4096", "65536"})
+    public int bodySize;
+
+    private Message request;
+    private Message decoded;
+    private MessageWriter writer;
+    private MessageReader reader;
+
+    @Setup
+    public void setup() throws IOException {
+        request = new Message();
+        request.reset(ProtocolConstants.OP_UPLOAD);
+        request.setRequestId(42);
+        request.addString(UUID.randomUUID().toString());
+        request.addString("dokumenty/raport-kwartalny.pdf");
+        request.addLong(123_456_789L);
+        request.setBody(new byte[bodySize]);
+
+        writer = new MessageWriter(OutputStream.nullOutputStream());
+
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        MessageWriter frameWriter = new MessageWriter(encoded);
+        frameWriter.send(request);
+        reader = new MessageReader(new RepeatingInputStream(encoded.toByteArray()), ProtocolConstants.MAX_BODY_SIZE);
+        decoded = new Message();
+    }
+
+    @Benchmark
+    public void encode() throws IOException {
+        writer.send(request);
+    }
+
+    @Benchmark
+    public void decode(Blackhole bh) throws IOException {
+        reader.readExpected(decoded);
+        bh.consume(decoded.getString(1));
+        bh.consume(decoded.getBodyLength());
+    }
+
+    /**
+     * Strumień podający w kółko tę samą ramkę - dekoder czyta bez końca bez alokacji.
+     */
+    private static final class RepeatingInputStream extends InputStream {
+        private final byte[] frame;
+        private int position;
+
+        RepeatingInputStream(byte[] frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public int read() {
+            int b = frame[position] & 0xFF;
+            position = (position + 1) % frame.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int n = Math.min(len, frame.length - position);
+            System.arraycopy(frame, position, b, off, n);
+            position = (position + n) % frame.length;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.projektchmura.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.projektchmura.server.FileStorageManager;
+
+/**
+ * Zapis bloba przez FileStorageManager: skrót SHA-256, zapis do tmp, fsync i przeniesienie.
+ * Każda operacja zapisuje inną treść (licznik w pierwszych bajtach), a blob jest potem
+ * usuwany, żeby katalog nie rósł w trakcie pomiaru.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageBenchmark {
+
+    @Param({"4096", "1048576"})
+    public int size;
+
+    private Path workDir;
+    private byte[] data;
+    private long counter;
+
+    @Setup
+    public void setup() throws IOException {
+        workDir = BenchmarkEnvironment.prepare("storage");
+        FileStorageManager.init();
+        data = new byte[size];
+        new Random(1).nextBytes(data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        BenchmarkEnvironment.cleanup(workDir);
+    }
+
+    @Benchmark
+    public String stageAndCommit() throws IOException {
+        ByteBuffer.wrap(data).putLong(counter++);
+        FileStorageManager.StagedBlob staged = FileStorageManager.stage(new ByteArrayInputStream(data));
+        String hash = staged.getHash();
+        synchronized (FileStorageManager.lockFor(hash)) {
+            FileStorageManager.commit(staged);
+            FileStorageManager.delete(hash);
+        }
+        return hash;
+    }
+}
@@ -1,42 +1,164 @@
 package com.projektchmura.client;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ClientHandler {
+import com.projektchmura.common.BlockSignatures;
+import com.projektchmura.common.ChunkInputStream;
+import com.projektchmura.common.ChunkOutputStream;
+import com.projektchmura.common.ClusterRing;
+import com.projektchmura.common.ContentHash;
+import com.projektchmura.common.DeltaEncoder;
+import com.projektchmura.common.FileInfo;
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.Message;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.common.StorageUsage;
+
+/**
+ * Komunikacja z serwerem. Trzyma małą pulę trwałych połączeń - każde wywołanie
+ * wypożycza jedno połączenie na wyłączność, więc metody można wołać równolegle
+ * (np. z puli wątków uploadu). Bezczynne połączenia są podtrzymywane PING-iem,
+ * a zerwane połączenie z puli jest jednorazowo zastępowane nowym.
+ *
+ * Serwer w klastrze podaje po zalogowaniu układ węzłów (OP_CLUSTER): operacje na pliku idą wtedy
+ * wprost do węzła głównego pliku (pobieranie - po kolei do węzłów z repliką), każdy węzeł przez
+ * własny ClientHandler zalogowany tymi samymi danymi. Odpowiedź REDIRECT odświeża układ i ponawia
+ * wywołanie na wskazanym węźle. Listy plików i statystyki idą przez węzeł podany w konstruktorze.
+ */
+public class ClientHandler implements AutoCloseable {
+
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
+    // Musi być krótszy niż limit bezczynności po stronie serwera
+    private static final long KEEPALIVE_INTERVAL_MS = 60_000;
+    // Ile razy wznawiamy przerwany upload i ile czekamy przed pierwszym wznowieniem (potem dwa razy dłużej)
+    private static final int MAX_UPLOAD_ATTEMPTS = 6;
+    private static final long UPLOAD_RETRY_DELAY_MS = 500;
+    // Ponawianie uploadu odrzuconego z BUSY: pierwsze opóźnienie, górna granica opóźnienia, liczba prób
+    private static final long BUSY_RETRY_DELAY_MS = 100;
+    private static final long MAX_BUSY_DELAY_MS = 5_000;
+    private static final int MAX_BUSY_ATTEMPTS = 20;
+    // Mniejsze pliki taniej wysłać jeszcze raz niż otwierać dla nich upload wznawialny
+    private static final long RESUMABLE_UPLOAD_THRESHOLD = 1024 * 1024;
+    // Od tego rozmiaru nowa wersja istniejącego pliku jest wysyłana jako delta
+    private static final long DELTA_SYNC_THRESHOLD = 256 * 1024;
+    // Delta, w której dosłownie idzie więcej niż ta część pliku, nie opłaca się - wysyłamy całość
+    private static final double MAX_DELTA_LITERAL_RATIO = 0.5;
+    // Limity jednego żądania UPLOAD_BATCH - zerwane połączenie przerywa najwyżej tyle plików
+    // (liczbę plików i rozmiar nagłówka ogranicza dodatkowo serwer, ProtocolConstants.MAX_REQUEST_*)
+    private static final long MAX_BATCH_BYTES = 64L * 1024 * 1024;
+    // Zapas nagłówka UPLOAD_BATCH na pole sessionId
+    private static final int BATCH_HEADER_RESERVE = 1024;
+
+    // Pobieranie równoległe: fragment to wielokrotność CHUNK_SIZE - skompresowane bloby idą wtedy w zapisanych rekordach
+    private static final long DOWNLOAD_RANGE_SIZE = 64L * ProtocolConstants.CHUNK_SIZE;
+    private static final int MAX_RANGE_ATTEMPTS = 3;
+
+    // Wspólny wątek podtrzymujący połączenia wszystkich instancji
+    private static final ScheduledExecutorService KEEPALIVE = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "client-keepalive");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Wątki pobierające fragmenty plików (równoległość i tak ogranicza pula połączeń)
+    private static final ExecutorService RANGE_DOWNLOADS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "client-range-download");
+        t.setDaemon(true);
+        return t;
+    });
 
     private String serverHost;
     private int serverPort;
 
+    // Czy nowe połączenia uzgadniają kompresję ramek DATA
+    private volatile boolean compression = Boolean.parseBoolean(System.getProperty("chmurka.compression", "true"));
+
     // Po zalogowaniu przechowujemy sessionId
-    private String sessionId;
+    private volatile String sessionId;
+
+    // Kolejne identyfikatory żądań (pozwalają dopasować odpowiedź do żądania)
+    private final AtomicInteger requestIds = new AtomicInteger();
+
+    // Pula połączeń: semafor ogranicza liczbę wypożyczonych, wolne czekają w kolejce
+    private final int maxConnections;
+    private final Semaphore connectionPermits;
+    private final Deque<ServerConnection> idleConnections = new ArrayDeque<>();
+    private final ScheduledFuture<?> keepaliveTask;
+    private volatile boolean closed;
+
+    // Klaster: układ węzłów (null - pojedynczy serwer) i połączenia z węzłami po adresach
+    private volatile ClusterRing cluster;
+    private final Map<String, ClientHandler> nodes = new LinkedHashMap<>();
+    // Dane logowania do kolejnych węzłów klastra
+    private volatile String username;
+    private volatile String password;
+    // Handler jednego węzła klastra (tworzony przez inny ClientHandler) - nie pyta o układ klastra
+    private boolean node;
+    // Cache pobranych plików (null - pobieramy zawsze całość)
+    private volatile DownloadCache downloadCache;
 
     public ClientHandler() {
-        this.serverHost = "192.168.0.25"; // lub inny IP serwera
-        this.serverPort = 9000;
+        this("192.168.0.25", ProtocolConstants.DEFAULT_PORT); // lub inny IP serwera
+    }
+
+    public ClientHandler(String serverHost, int serverPort) {
+        this(serverHost, serverPort, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections ile połączeń naraz może być używanych (tyle wywołań wykona się równolegle)
+     */
+    public ClientHandler(String serverHost, int serverPort, int maxConnections) {
+        this.serverHost = serverHost;
+        this.serverPort = serverPort;
+        this.maxConnections = maxConnections;
+        this.connectionPermits = new Semaphore(maxConnections, true);
+        this.keepaliveTask = KEEPALIVE.scheduleWithFixedDelay(this::keepAlive,
+                KEEPALIVE_INTERVAL_MS, KEEPALIVE_INTERVAL_MS / 2, TimeUnit.MILLISECONDS);
     }
 
     public String registerUser(String username, String password) {
-        try (Socket socket = new Socket(serverHost, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("REGISTER");
-            out.writeObject(username);
-            out.writeObject(password);
-
-            Object response = in.readObject();
-            if (response instanceof String) {
-                String respStr = (String) response;
-                if ("REGISTER_OK".equals(respStr)) {
-                    return "OK";
-                } else {
-                    return "FAIL";
-                }
-            }
+        try {
+            return execute(conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_REGISTER, nextRequestId())
+                        .addString(username)
+                        .addString(password);
+
+                Message response = conn.exchange(request);
+                return response.getStatus() == ProtocolConstants.STATUS_OK ? "OK" : "FAIL";
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -44,29 +166,28 @@ public class ClientHandler {
     }
 
     public String loginUser(String username, String password) {
-        try (Socket socket = new Socket(serverHost, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("LOGIN");
-            out.writeObject(username);
-            out.writeObject(password);
-
-            Object response = in.readObject();
-            if (response instanceof String) {
-                String respStr = (String) response;
-                if ("LOGIN_OK".equals(respStr)) {
-                    // Odczytaj kolejny obiekt: sessionId
-                    Object sessionObj = in.readObject();
-                    if (sessionObj instanceof String) {
-                        this.sessionId = (String) sessionObj;
-                        System.out.println("Otrzymano sessionId: " + this.sessionId);
-                    }
+        try {
+            String result = execute(conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_LOGIN, nextRequestId())
+                        .addString(username)
+                        .addString(password);
+
+                Message response = conn.exchange(request);
+                if (response.getStatus() == ProtocolConstants.STATUS_OK) {
+                    // Pierwsze pole odpowiedzi to sessionId
+                    this.sessionId = response.getString(0);
+                    System.out.println("Otrzymano sessionId: " + this.sessionId);
                     return "OK";
                 } else {
                     return "FAIL";
                 }
+            });
+            if ("OK".equals(result) && !node) {
+                this.username = username;
+                this.password = password;
+                refreshCluster();
             }
+            return result;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -74,84 +195,910 @@ public class ClientHandler {
     }
 
     /**
-     * Upload pliku z wczytanymi bajtami. 
+     * Wylogowanie - serwer usuwa sesję, a klient zapomina sessionId.
+     */
+    public void logout() {
+        for (ClientHandler handler : nodeHandlers()) {
+            handler.logout();
+        }
+        String session = sessionId;
+        sessionId = null;
+        password = null;
+        cluster = null;
+        if (session == null) {
+            return;
+        }
+        try {
+            execute(conn -> conn.exchange(conn.newRequest(ProtocolConstants.OP_LOGOUT, nextRequestId())
+                    .addString(session)));
+        } catch (Exception e) {
+            // Sesja i tak wygaśnie po stronie serwera
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Upload pliku z wczytanymi bajtami (wznawialny - po zerwaniu połączenia wysyłana jest tylko reszta).
      * Zwraca np. "UPLOAD_OK" lub komunikat błędu.
      */
     public String uploadFile(String fileName, byte[] fileData) {
-        if (sessionId == null) {
-            return "Brak sesji!";
+        if (cluster != null) {
+            return routed(fileName, null, (handler, redirect) -> handler.uploadResumable(fileName, fileData.length,
+                    position -> new ByteArrayInputStream(fileData, (int) position, fileData.length - (int) position),
+                    redirect));
+        }
+        return uploadResumable(fileName, fileData.length,
+                position -> new ByteArrayInputStream(fileData, (int) position, fileData.length - (int) position), null);
+    }
+
+    /**
+     * Upload pliku z dysku - plik jest czytany przyrostowo, fragment po fragmencie.
+     * Jeśli na serwerze jest już poprzednia wersja, wysyłane są tylko zmienione bloki (delta);
+     * w przeciwnym razie po zerwaniu połączenia upload jest wznawiany od miejsca zatwierdzonego przez serwer.
+     */
+    public String uploadFile(String fileName, Path file) {
+        if (cluster != null) {
+            return routed(fileName, null, (handler, redirect) -> handler.uploadPath(fileName, file, redirect));
+        }
+        return uploadPath(fileName, file, null);
+    }
+
+    private String uploadPath(String fileName, Path file, Redirect redirect) {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "UPLOAD_FAIL - " + e.getMessage();
+        }
+        if (size >= DELTA_SYNC_THRESHOLD) {
+            String result = uploadDelta(fileName, file, size, redirect);
+            if (result != null) {
+                return result;
+            }
         }
-        try (Socket socket = new Socket(serverHost, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+        return uploadResumable(fileName, size,
+                position -> Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ).position(position)),
+                redirect);
+    }
 
-            out.writeObject("UPLOAD");
-            // Wysyłamy najpierw sessionId
-            out.writeObject(sessionId);
-            // Następnie nazwę pliku i dane
-            out.writeObject(fileName);
-            out.writeObject(fileData);
+    /**
+     * Upload strumieniowy: nagłówek z rozmiarem, odpowiedź CONTINUE, potem ramki DATA.
+     * Strumienia nie da się przewinąć, więc przerwanego uploadu nie można wznowić.
+     * Odpowiedź BUSY (pełna kolejka na serwerze) przychodzi przed danymi - wtedy upload jest ponawiany
+     * po czasie sugerowanym przez serwer (potem coraz dłuższym), najwyżej MAX_BUSY_ATTEMPTS razy.
+     */
+    public String uploadFile(String fileName, InputStream content, long size) {
+        if (cluster != null) {
+            // REDIRECT przychodzi przed CONTINUE - strumień jest jeszcze nieruszony
+            return routed(fileName, null, (handler, redirect) -> handler.uploadStream(fileName, content, size, redirect));
+        }
+        return uploadStream(fileName, content, size, null);
+    }
 
-            Object response = in.readObject();
-            if (response instanceof String) {
-                return (String) response;
+    private String uploadStream(String fileName, InputStream content, long size, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            return "Brak sesji!";
+        }
+        long delay = BUSY_RETRY_DELAY_MS;
+        for (int attempt = 1; ; attempt++) {
+            long[] retryAfter = new long[1];
+            String result = uploadStream(session, fileName, content, size, retryAfter, redirect);
+            if (result != null) {
+                return result;
+            }
+            if (attempt >= MAX_BUSY_ATTEMPTS || closed) {
+                return "UPLOAD_FAIL - serwer zajęty";
+            }
+            try {
+                Thread.sleep(Math.max(delay, retryAfter[0]));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "UPLOAD_FAIL - przerwano";
             }
+            delay = Math.min(delay * 2, MAX_BUSY_DELAY_MS);
+        }
+    }
+
+    /**
+     * Jedna próba uploadu strumieniowego. Zwraca null, jeśli serwer odpowiedział BUSY
+     * (retryAfter[0] - sugerowany czas przed ponowieniem).
+     */
+    private String uploadStream(String session, String fileName, InputStream content, long size, long[] retryAfter,
+                                Redirect redirect) {
+        try {
+            return execute(redirect, conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_UPLOAD, nextRequestId())
+                        .addString(session)
+                        .addString(fileName)
+                        .addLong(size);
+
+                Message response = conn.exchange(request);
+                if (response.getStatus() == ProtocolConstants.STATUS_BUSY) {
+                    retryAfter[0] = response.getLong(1);
+                    return null;
+                }
+                if (response.getStatus() == ProtocolConstants.STATUS_CONTINUE) {
+                    // Strumień danych zużywa 'content' - takiego wywołania nie da się już powtórzyć
+                    conn.markCommitted();
+                    // Błąd odczytu lokalnego pliku zamyka połączenie bez ramki kończącej - serwer odrzuci upload
+                    try (ChunkOutputStream out = new ChunkOutputStream(conn.getWriter(), request.getRequestId())) {
+                        content.transferTo(out);
+                    }
+                    response = conn.readResponse(request);
+                }
+                if (response.getStatus() == ProtocolConstants.STATUS_OK) {
+                    return "UPLOAD_OK";
+                }
+                return "UPLOAD_FAIL - " + response.getString(0);
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
         return "UPLOAD_FAIL";
     }
 
-    public List<String> listFiles() {
-        List<String> result = new ArrayList<>();
-        if (sessionId == null) {
-            return result; // pusta lista
-        }
-        try (Socket socket = new Socket(serverHost, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
-
-            out.writeObject("LIST_FILES");
-            out.writeObject(sessionId);
-
-            Object response = in.readObject();
-            if (response instanceof List<?>) {
-                // Bezpieczne rzutowanie
-                List<?> list = (List<?>) response;
-                for (Object o : list) {
-                    if (o instanceof String) {
-                        result.add((String) o);
+    // -------------------- UPLOAD WIELU PLIKÓW ------------------------
+
+    /**
+     * Upload wielu plików z dysku. Zwraca wynik dla każdego pliku (w tej samej kolejności).
+     * Małe pliki idą razem żądaniami UPLOAD_BATCH - jedno połączenie, a w bazie grupy plików
+     * w jednej transakcji; pliki od DELTA_SYNC_THRESHOLD - pojedynczo (delta, wznawianie).
+     */
+    public List<String> uploadFiles(List<Path> files) {
+        if (cluster != null) {
+            return uploadFilesToNodes(files);
+        }
+        return uploadFiles(files, null);
+    }
+
+    private List<String> uploadFiles(List<Path> files, Redirect redirect) {
+        String[] results = new String[files.size()];
+        long[] sizes = new long[files.size()];
+        List<Integer> batch = new ArrayList<>();
+        long batchBytes = 0;
+        long batchHeader = BATCH_HEADER_RESERVE;
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            try {
+                sizes[i] = Files.size(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+                results[i] = "UPLOAD_FAIL - " + e.getMessage();
+                continue;
+            }
+            if (sizes[i] >= DELTA_SYNC_THRESHOLD) {
+                results[i] = uploadPath(file.getFileName().toString(), file, redirect);
+                continue;
+            }
+            // Para pól (nazwa, rozmiar): typy, długość tekstu, long; znak w zmodyfikowanym UTF-8 to najwyżej 3 bajty
+            long entryHeader = 1 + 2 + 3L * file.getFileName().toString().length() + 1 + 8;
+            if (!batch.isEmpty() && (batch.size() == ProtocolConstants.MAX_BATCH_FILES
+                    || batchBytes + sizes[i] > MAX_BATCH_BYTES
+                    || batchHeader + entryHeader > ProtocolConstants.MAX_REQUEST_HEADER_SIZE)) {
+                uploadBatch(files, sizes, batch, results, redirect);
+                batch.clear();
+                batchBytes = 0;
+                batchHeader = BATCH_HEADER_RESERVE;
+            }
+            batch.add(i);
+            batchBytes += sizes[i];
+            batchHeader += entryHeader;
+        }
+        if (!batch.isEmpty()) {
+            uploadBatch(files, sizes, batch, results, redirect);
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Upload wielu plików w klastrze: pliki są dzielone według węzła głównego i każda część idzie
+     * jako zwykły uploadFiles do swojego węzła. Część odrzucona z REDIRECT (nieaktualny układ)
+     * jest wysyłana jeszcze raz plik po pliku, już według odświeżonego układu.
+     */
+    private List<String> uploadFilesToNodes(List<Path> files) {
+        ClusterRing ring = cluster;
+        Map<String, List<Integer>> byNode = new LinkedHashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            String address = ring.owners(username, files.get(i).getFileName().toString()).get(0);
+            byNode.computeIfAbsent(address, a -> new ArrayList<>()).add(i);
+        }
+        String[] results = new String[files.size()];
+        for (Map.Entry<String, List<Integer>> part : byNode.entrySet()) {
+            List<Path> partFiles = new ArrayList<>();
+            for (int index : part.getValue()) {
+                partFiles.add(files.get(index));
+            }
+            ClientHandler handler = nodeHandler(part.getKey());
+            List<String> partResults = null;
+            if (handler != null) {
+                Redirect redirect = new Redirect();
+                partResults = handler.uploadFiles(partFiles, redirect);
+                if (redirect.address != null) {
+                    refreshCluster();
+                    partResults = null;
+                }
+            }
+            for (int j = 0; j < partFiles.size(); j++) {
+                Path file = partFiles.get(j);
+                results[part.getValue().get(j)] = partResults != null ? partResults.get(j)
+                        : uploadFile(file.getFileName().toString(), file);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Jedno żądanie UPLOAD_BATCH: nagłówek z nazwami i rozmiarami, po CONTINUE zawartość plików po kolei.
+     */
+    private void uploadBatch(List<Path> files, long[] sizes, List<Integer> batch, String[] results, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            for (int index : batch) {
+                results[index] = "Brak sesji!";
+            }
+            return;
+        }
+        try {
+            String[] batchResults = execute(redirect, conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_UPLOAD_BATCH, nextRequestId())
+                        .addString(session);
+                for (int index : batch) {
+                    request.addString(files.get(index).getFileName().toString())
+                            .addLong(sizes[index]);
+                }
+
+                Message response = conn.exchange(request);
+                if (response.getStatus() == ProtocolConstants.STATUS_CONTINUE) {
+                    conn.markCommitted();
+                    // Plik, który zmienił rozmiar albo nie daje się odczytać, przerywa resztę żądania (serwer zamknie połączenie)
+                    for (int index : batch) {
+                        try (InputStream content = Files.newInputStream(files.get(index));
+                             ChunkOutputStream out = new ChunkOutputStream(conn.getWriter(), request.getRequestId())) {
+                            content.transferTo(out);
+                        }
+                    }
+                    response = conn.readResponse(request);
+                }
+                String[] result = new String[batch.size()];
+                for (int j = 0; j < result.length; j++) {
+                    if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                        result[j] = "UPLOAD_FAIL - " + response.getString(0);
+                    } else {
+                        String error = response.getString(j);
+                        result[j] = error == null ? "UPLOAD_OK" : "UPLOAD_FAIL - " + error;
                     }
                 }
+                return result;
+            });
+            for (int j = 0; j < batchResults.length; j++) {
+                results[batch.get(j)] = batchResults[j];
             }
         } catch (Exception e) {
             e.printStackTrace();
+            for (int index : batch) {
+                results[index] = "UPLOAD_FAIL - " + e.getMessage();
+            }
         }
-        return result;
     }
 
-    public byte[] downloadFile(String fileName) {
-        if (sessionId == null) {
+    // -------------------- UPLOAD WZNAWIALNY ------------------------
+
+    /**
+     * Źródło danych uploadu, które da się otworzyć od dowolnego miejsca.
+     */
+    private interface UploadSource {
+        InputStream openAt(long position) throws IOException;
+    }
+
+    /**
+     * Stan uploadu wznawialnego między kolejnymi próbami.
+     */
+    private static final class ResumableUpload {
+        String uploadId;
+        long offset;
+        boolean resumed;
+        boolean done;
+        String error; // odrzucenie przez serwer - ponawianie nie ma sensu
+    }
+
+    /**
+     * Upload wznawialny (pliki od RESUMABLE_UPLOAD_THRESHOLD): OPEN daje uploadId, APPEND wysyła dane od zatwierdzonego offsetu.
+     * Po błędzie połączenia klient odczekuje, pyta serwer (STATUS) o zatwierdzony offset
+     * i dosyła resztę - najwyżej MAX_UPLOAD_ATTEMPTS razy.
+     */
+    private String uploadResumable(String fileName, long size, UploadSource source, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            return "Brak sesji!";
+        }
+        if (size < RESUMABLE_UPLOAD_THRESHOLD) {
+            try (InputStream content = source.openAt(0)) {
+                return uploadStream(fileName, content, size, redirect);
+            } catch (IOException e) {
+                e.printStackTrace();
+                return "UPLOAD_FAIL - " + e.getMessage();
+            }
+        }
+        ResumableUpload upload = new ResumableUpload();
+        long delay = UPLOAD_RETRY_DELAY_MS;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                execute(redirect, conn -> {
+                    if (upload.uploadId == null) {
+                        openUpload(conn, session, fileName, size, upload);
+                    } else if (upload.resumed) {
+                        queryUpload(conn, session, upload);
+                    }
+                    if (upload.error == null && !upload.done) {
+                        appendUpload(conn, session, size, source, upload);
+                    }
+                    return null;
+                });
+                if (upload.error != null) {
+                    return "UPLOAD_FAIL - " + upload.error;
+                }
+                return "UPLOAD_OK";
+            } catch (IOException e) {
+                if (attempt >= MAX_UPLOAD_ATTEMPTS || closed) {
+                    e.printStackTrace();
+                    return "UPLOAD_FAIL - " + e.getMessage();
+                }
+                System.out.println("Upload " + fileName + " przerwany (" + e.getMessage() + "), wznowienie za "
+                        + delay + " ms");
+                upload.resumed = true;
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                return "UPLOAD_FAIL - " + e.getMessage();
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "UPLOAD_FAIL - przerwano";
+            }
+            delay *= 2;
+        }
+    }
+
+    private void openUpload(ServerConnection conn, String session, String fileName, long size,
+                            ResumableUpload upload) throws IOException {
+        Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_UPLOAD_OPEN, nextRequestId())
+                .addString(session)
+                .addString(fileName)
+                .addLong(size));
+        if (response.getStatus() == ProtocolConstants.STATUS_OK) {
+            upload.uploadId = response.getString(0);
+        } else {
+            upload.error = response.getString(0);
+        }
+    }
+
+    private void queryUpload(ServerConnection conn, String session, ResumableUpload upload) throws IOException {
+        Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_UPLOAD_STATUS, nextRequestId())
+                .addString(session)
+                .addString(upload.uploadId));
+        if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+            // np. upload wygasł po stronie serwera - nie ma od czego wznawiać
+            upload.error = response.getString(0);
+            return;
+        }
+        upload.offset = response.getLong(0);
+        upload.done = response.getLong(2) != 0;
+        upload.resumed = false;
+    }
+
+    private void appendUpload(ServerConnection conn, String session, long size, UploadSource source,
+                              ResumableUpload upload) throws IOException {
+        Message request = conn.newRequest(ProtocolConstants.OP_UPLOAD_APPEND, nextRequestId())
+                .addString(session)
+                .addString(upload.uploadId)
+                .addLong(upload.offset);
+
+        Message response = conn.exchange(request);
+        if (response.getStatus() == ProtocolConstants.STATUS_CONTINUE) {
+            // Ponowienie tego wywołania przez execute() wysłałoby dane od złego miejsca - wznawiamy sami
+            conn.markCommitted();
+            try (InputStream content = source.openAt(upload.offset);
+                 ChunkOutputStream out = new ChunkOutputStream(conn.getWriter(), request.getRequestId())) {
+                content.transferTo(out);
+            }
+            response = conn.readResponse(request);
+        }
+        if (response.getStatus() == ProtocolConstants.STATUS_OK) {
+            upload.offset = size;
+            upload.done = true;
+        } else if (response.getStatus() == ProtocolConstants.STATUS_FAIL && response.getFieldCount() > 1) {
+            // Offset rozjechał się z serwerem (albo upload jest jeszcze dopisywany na starym połączeniu)
+            throw new IOException("Serwer odrzucił dopisanie: " + response.getString(0));
+        } else {
+            upload.error = response.getString(0);
+        }
+    }
+
+    // -------------------- SYNCHRONIZACJA DELTA ------------------------
+
+    /**
+     * Wersja pliku na serwerze, względem której liczona jest delta.
+     */
+    private static final class BaseVersion {
+        final String hash;
+        final BlockSignatures signatures;
+
+        BaseVersion(String hash, BlockSignatures signatures) {
+            this.hash = hash;
+            this.signatures = signatures;
+        }
+    }
+
+    /**
+     * Upload nowej wersji jako delta: pobiera sygnatury bloków wersji z serwera, koduje lokalny plik
+     * (do pliku tymczasowego, licząc po drodze jego SHA-256) i wysyła same instrukcje.
+     * Zwraca null, gdy delta nie ma zastosowania (brak poprzedniej wersji, za dużo zmian,
+     * serwer ją odrzucił) - wtedy trzeba wysłać cały plik.
+     */
+    private String uploadDelta(String fileName, Path file, long size, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            return null;
+        }
+        Path delta = null;
+        try {
+            BaseVersion base = execute(redirect, conn -> fetchSignatures(conn, session, fileName));
+            if (base == null) {
+                return null;
+            }
+
+            delta = Files.createTempFile("chmurka-delta", ".bin");
+            MessageDigest digest = ContentHash.newDigest();
+            DeltaEncoder encoder;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest);
+                 OutputStream out = new BufferedOutputStream(Files.newOutputStream(delta), 64 * 1024)) {
+                encoder = new DeltaEncoder(base.signatures, out);
+                encoder.encode(in);
+            }
+            if (encoder.getLiteralBytes() > size * MAX_DELTA_LITERAL_RATIO) {
+                return null;
+            }
+            String newHash = ContentHash.toHex(digest.digest());
+            System.out.println("Delta " + fileName + ": " + Files.size(delta) + " B zamiast " + size + " B");
+
+            Path instructions = delta;
+            return execute(redirect, conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_UPLOAD_DELTA, nextRequestId())
+                        .addString(session)
+                        .addString(fileName)
+                        .addString(base.hash)
+                        .addLong(base.signatures.getBlockSize())
+                        .addLong(size)
+                        .addString(newHash);
+
+                Message response = conn.exchange(request);
+                if (response.getStatus() == ProtocolConstants.STATUS_CONTINUE) {
+                    conn.markCommitted();
+                    try (ChunkOutputStream out = new ChunkOutputStream(conn.getWriter(), request.getRequestId())) {
+                        Files.copy(instructions, out);
+                    }
+                    response = conn.readResponse(request);
+                }
+                if (response.getStatus() == ProtocolConstants.STATUS_OK) {
+                    return "UPLOAD_OK";
+                }
+                if (response.getStatus() == ProtocolConstants.STATUS_FAIL) {
+                    // np. ktoś w międzyczasie nadpisał plik - wysyłamy całość
+                    System.out.println("Delta odrzucona: " + response.getString(0));
+                    return null;
+                }
+                return "UPLOAD_FAIL - " + response.getString(0);
+            });
+        } catch (IOException | RuntimeException e) {
+            // Delta to tylko optymalizacja - pełny upload poradzi sobie sam
+            e.printStackTrace();
             return null;
+        } finally {
+            if (delta != null) {
+                try {
+                    Files.deleteIfExists(delta);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
-        try (Socket socket = new Socket(serverHost, serverPort);
-             ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
-             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+    }
 
-            out.writeObject("DOWNLOAD");
-            out.writeObject(sessionId);
-            out.writeObject(fileName);
+    private BaseVersion fetchSignatures(ServerConnection conn, String session, String fileName) throws IOException {
+        Message request = conn.newRequest(ProtocolConstants.OP_FILE_SIGNATURES, nextRequestId())
+                .addString(session)
+                .addString(fileName);
 
-            Object response = in.readObject();
-            if (response instanceof byte[]) {
-                return (byte[]) response;
+        Message response = conn.exchange(request);
+        if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+            return null;
+        }
+        String hash = response.getString(0);
+        ChunkInputStream in = new ChunkInputStream(conn.getReader(), request.getRequestId(), -1);
+        BlockSignatures signatures = BlockSignatures.read(new DataInputStream(in));
+        in.skipRemaining();
+        return new BaseVersion(hash, signatures);
+    }
+
+    /**
+     * Nazwy wszystkich plików użytkownika (pobierane stronami, posortowane po nazwie).
+     */
+    public List<String> listFiles() {
+        List<String> result = new ArrayList<>();
+        String cursor = null;
+        do {
+            FilePage page = listFilesPage(cursor, null, ProtocolConstants.SORT_NAME_ASC, ProtocolConstants.MAX_PAGE_SIZE);
+            if (page == null) {
+                break;
+            }
+            for (FileInfo file : page.getFiles()) {
+                result.add(file.getName());
             }
+            cursor = page.getNextCursor();
+        } while (cursor != null);
+        return result;
+    }
+
+    /**
+     * Jedna strona listy plików z rozmiarem i czasem modyfikacji.
+     *
+     * @param cursor kursor z poprzedniej strony (null = pierwsza strona)
+     * @param prefix filtr początku nazwy (null = wszystkie)
+     * @param sort   ProtocolConstants.SORT_*
+     * @return strona lub null przy braku sesji / błędzie
+     */
+    public FilePage listFilesPage(String cursor, String prefix, int sort, int limit) {
+        String session = sessionId;
+        if (session == null) {
+            return null;
+        }
+        try {
+            return execute(conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_LIST_FILES_PAGE, nextRequestId())
+                        .addString(session)
+                        .addString(cursor)
+                        .addString(prefix)
+                        .addLong(sort)
+                        .addLong(limit);
+
+                Message response = conn.exchange(request);
+                if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                    return null;
+                }
+                List<FileInfo> files = new ArrayList<>((response.getFieldCount() - 1) / 3);
+                for (int i = 1; i + 2 < response.getFieldCount(); i += 3) {
+                    files.add(new FileInfo(response.getString(i), response.getLong(i + 1), response.getLong(i + 2)));
+                }
+                return new FilePage(files, response.getString(0));
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
         return null;
     }
 
+    /**
+     * Usuwa plik z serwera. Zwraca true, jeśli plik istniał i został usunięty.
+     */
+    public boolean deleteFile(String fileName) {
+        if (cluster != null) {
+            return routed(fileName, null, (handler, redirect) -> handler.deleteFile(fileName, redirect));
+        }
+        return deleteFile(fileName, null);
+    }
+
+    private boolean deleteFile(String fileName, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            return false;
+        }
+        try {
+            return execute(redirect, conn -> {
+                Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_DELETE, nextRequestId())
+                        .addString(session)
+                        .addString(fileName));
+                return response.getStatus() == ProtocolConstants.STATUS_OK;
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Metryki serwera (nazwa -> wartość, w kolejności podanej przez serwer) albo null przy błędzie.
+     */
+    public Map<String, Long> getServerStats() {
+        String session = sessionId;
+        if (session == null) {
+            return null;
+        }
+        try {
+            return execute(conn -> {
+                Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_STATS, nextRequestId())
+                        .addString(session));
+                if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                    return null;
+                }
+                Map<String, Long> stats = new LinkedHashMap<>();
+                for (int i = 0; i + 1 < response.getFieldCount(); i += 2) {
+                    stats.put(response.getString(i), response.getLong(i + 1));
+                }
+                return stats;
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Zajętość miejsca i limity użytkownika albo null przy błędzie. W klastrze - na węźle, z którym
+     * klient się połączył (razem z replikami plików innych węzłów).
+     */
+    public StorageUsage getUsage() {
+        String session = sessionId;
+        if (session == null) {
+            return null;
+        }
+        try {
+            return execute(conn -> {
+                Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_USAGE, nextRequestId())
+                        .addString(session));
+                if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                    return null;
+                }
+                return new StorageUsage(response.getLong(0), response.getLong(1), response.getLong(2),
+                        response.getLong(3), response.getLong(4));
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Pobiera plik strumieniowo prosto do pliku docelowego (bez trzymania całości w pamięci).
+     * Dane trafiają najpierw do pliku tymczasowego obok celu, który po udanym pobraniu
+     * zastępuje plik docelowy. Z włączonym cache pobieranie jest warunkowe - jeśli plik się nie
+     * zmienił, serwer odpowiada NOT_MODIFIED i plik jest kopiowany z cache.
+     * Zwraca true, jeśli pobieranie się powiodło.
+     */
+    public boolean downloadFile(String fileName, Path target) {
+        if (cluster != null) {
+            return routed(fileName, Boolean::booleanValue,
+                    (handler, redirect) -> handler.downloadFile(fileName, target, true, redirect));
+        }
+        return downloadFile(fileName, target, true, null);
+    }
+
+    private boolean downloadFile(String fileName, Path target, boolean conditional, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            return false;
+        }
+        String owner = username;
+        DownloadCache cache = owner != null ? downloadCache : null;
+        String cachedHash = cache != null && conditional ? cache.cachedHash(owner, fileName) : null;
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        // Skrót pobranej wersji (null - serwer go nie podał)
+        String[] versionHash = new String[1];
+        try {
+            byte status = execute(redirect, conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_DOWNLOAD, nextRequestId())
+                        .addString(session)
+                        .addString(fileName)
+                        .addString(cachedHash);
+
+                Message response = conn.exchange(request);
+                if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                    return response.getStatus();
+                }
+
+                long size = response.getLong(0);
+                versionHash[0] = response.getString(1);
+                MessageDigest digest = ContentHash.newDigest();
+                InputStream content = new DigestInputStream(
+                        new ChunkInputStream(conn.getReader(), request.getRequestId(), size), digest);
+                try (OutputStream out = Files.newOutputStream(partial)) {
+                    content.transferTo(out);
+                }
+                if (versionHash[0] != null && !versionHash[0].equals(ContentHash.toHex(digest.digest()))) {
+                    System.out.println("Niezgodny skrót pobranego pliku " + fileName);
+                    return ProtocolConstants.STATUS_FAIL;
+                }
+                return ProtocolConstants.STATUS_OK;
+            });
+            if (status == ProtocolConstants.STATUS_NOT_MODIFIED) {
+                if (cache.copyTo(owner, fileName, cachedHash, target)) {
+                    return true;
+                }
+                // Kopia z cache zniknęła albo jest uszkodzona - pobieramy całość
+                return downloadFile(fileName, target, false, redirect);
+            }
+            if (status == ProtocolConstants.STATUS_NOT_FOUND && cache != null) {
+                cache.remove(owner, fileName);
+            }
+            if (status == ProtocolConstants.STATUS_OK) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                if (cache != null && versionHash[0] != null) {
+                    cache.store(owner, fileName, versionHash[0], target);
+                }
+                return true;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            Files.deleteIfExists(partial);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Pobiera plik kilkoma połączeniami naraz (duże pliki przez łącza o dużym opóźnieniu).
+     * Plik jest dzielony na fragmenty DOWNLOAD_RANGE_SIZE, a każdy fragment trafia od razu na swoje
+     * miejsce w pliku tymczasowym. Wszystkie fragmenty pochodzą z wersji podanej w pierwszej odpowiedzi;
+     * na końcu SHA-256 całego pliku jest porównywany ze skrótem tej wersji. Zwraca true, jeśli się powiodło.
+     * Plik, który jest w cache, idzie przez warunkowe {@link #downloadFile} - zwykle wystarcza NOT_MODIFIED.
+     */
+    public boolean downloadFileParallel(String fileName, Path target) {
+        if (cluster != null) {
+            return routed(fileName, Boolean::booleanValue,
+                    (handler, redirect) -> handler.downloadFileParallel(fileName, target, redirect));
+        }
+        return downloadFileParallel(fileName, target, null);
+    }
+
+    private boolean downloadFileParallel(String fileName, Path target, Redirect redirect) {
+        String session = sessionId;
+        if (session == null) {
+            return false;
+        }
+        String owner = username;
+        DownloadCache cache = owner != null ? downloadCache : null;
+        if (cache != null && cache.cachedHash(owner, fileName) != null) {
+            return downloadFile(fileName, target, true, redirect);
+        }
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        boolean ok = false;
+        try {
+            RangeVersion version;
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                // Pierwszy fragment podaje też wersję i rozmiar pliku
+                version = readRange(session, fileName, null, 0, out, redirect);
+                if (version != null) {
+                    ok = readRemainingRanges(session, fileName, version, out, redirect);
+                }
+            }
+            if (ok) {
+                String hash = ContentHash.of(partial);
+                ok = hash.equals(version.hash);
+                if (!ok) {
+                    System.out.println("Niezgodny skrót pobranego pliku " + fileName + ": " + hash);
+                }
+            }
+            if (ok) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                if (cache != null) {
+                    cache.store(owner, fileName, version.hash, target);
+                }
+                return true;
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        try {
+            Files.deleteIfExists(partial);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /**
+     * Wersja pliku z odpowiedzi READ_RANGE.
+     */
+    private static final class RangeVersion {
+        final String hash;
+        final long size;
+
+        RangeVersion(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Fragmenty od drugiego pobierane równolegle - najwyżej tyle wątków, ile połączeń w puli.
+     * Każdy wątek bierze kolejny wolny fragment; po błędzie pozostałe kończą na bieżącym.
+     */
+    private boolean readRemainingRanges(String session, String fileName, RangeVersion version, FileChannel out,
+                                        Redirect redirect) {
+        long ranges = (version.size + DOWNLOAD_RANGE_SIZE - 1) / DOWNLOAD_RANGE_SIZE;
+        AtomicLong nextRange = new AtomicLong(1);
+        int workers = (int) Math.min(maxConnections, ranges - 1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            results.add(RANGE_DOWNLOADS.submit(() -> {
+                boolean completed = false;
+                try {
+                    long range;
+                    while ((range = nextRange.getAndIncrement()) < ranges) {
+                        if (readRange(session, fileName, version.hash, range * DOWNLOAD_RANGE_SIZE, out, redirect) == null) {
+                            return false;
+                        }
+                    }
+                    completed = true;
+                    return true;
+                } finally {
+                    if (!completed) {
+                        nextRange.set(ranges);
+                    }
+                }
+            }));
+        }
+        boolean ok = true;
+        for (Future<Boolean> result : results) {
+            try {
+                ok &= result.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    /**
+     * Pobiera fragment od offsetu i zapisuje go w pliku na tej samej pozycji. Zwraca wersję pliku
+     * albo null, jeśli serwer odmówił (brak pliku, plik zmieniony od pierwszego fragmentu).
+     * Po zerwaniu połączenia fragment jest pobierany od nowa - najwyżej MAX_RANGE_ATTEMPTS razy.
+     */
+    private RangeVersion readRange(String session, String fileName, String expectedHash, long offset,
+                                   FileChannel out, Redirect redirect) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return execute(redirect, conn -> {
+                    Message request = conn.newRequest(ProtocolConstants.OP_READ_RANGE, nextRequestId())
+                            .addString(session)
+                            .addString(fileName)
+                            .addLong(offset)
+                            .addLong(DOWNLOAD_RANGE_SIZE)
+                            .addString(expectedHash);
+
+                    Message response = conn.exchange(request);
+                    if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                        return null;
+                    }
+                    RangeVersion version = new RangeVersion(response.getString(0), response.getLong(1));
+                    long length = Math.max(0, Math.min(DOWNLOAD_RANGE_SIZE, version.size - offset));
+                    ChunkInputStream content = new ChunkInputStream(conn.getReader(), request.getRequestId(), length);
+                    byte[] buffer = new byte[ProtocolConstants.CHUNK_SIZE];
+                    long position = offset;
+                    int n;
+                    while ((n = content.read(buffer)) != -1) {
+                        ByteBuffer data = ByteBuffer.wrap(buffer, 0, n);
+                        while (data.hasRemaining()) {
+                            position += out.write(data, position);
+                        }
+                    }
+                    return version;
+                });
+            } catch (IOException e) {
+                if (attempt >= MAX_RANGE_ATTEMPTS || closed) {
+                    throw e;
+                }
+            }
+        }
+    }
+
     public String getSessionId() {
         return sessionId;
     }
@@ -159,4 +1106,307 @@ public class ClientHandler {
     public void setSessionId(String sessionId) {
         this.sessionId = sessionId;
     }
+
+    /**
+     * Zamyka wszystkie połączenia z serwerem.
+     */
+    @Override
+    public void close() {
+        for (ClientHandler handler : nodeHandlers()) {
+            handler.close();
+        }
+        closed = true;
+        keepaliveTask.cancel(false);
+        synchronized (idleConnections) {
+            for (ServerConnection conn : idleConnections) {
+                conn.close();
+            }
+            idleConnections.clear();
+        }
+    }
+
+    /**
+     * Włącza cache pobranych plików (null - wyłącza). Wpisy są rozróżniane po zalogowanym użytkowniku.
+     */
+    public void setDownloadCache(DownloadCache downloadCache) {
+        this.downloadCache = downloadCache;
+        for (ClientHandler handler : nodeHandlers()) {
+            handler.downloadCache = downloadCache;
+        }
+    }
+
+    /**
+     * Włącza/wyłącza kompresję przesyłanych danych (dotyczy nowych połączeń z puli).
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+        for (ClientHandler handler : nodeHandlers()) {
+            handler.setCompression(compression);
+        }
+    }
+
+    // -------------------- KLASTER ------------------------
+
+    /**
+     * Układ klastra albo null, jeśli serwer działa sam.
+     */
+    public ClusterRing getCluster() {
+        return cluster;
+    }
+
+    /**
+     * Pobiera układ klastra (OP_CLUSTER). Serwer bez klastra (albo starszy, bez tej komendy)
+     * - operacje idą jak dotąd przez jedno połączenie.
+     */
+    private void refreshCluster() {
+        try {
+            cluster = execute(conn -> {
+                Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_CLUSTER, nextRequestId()));
+                if (response.getStatus() != ProtocolConstants.STATUS_OK || response.getFieldCount() < 2) {
+                    return null;
+                }
+                List<String> addresses = new ArrayList<>();
+                for (int i = 1; i < response.getFieldCount(); i++) {
+                    addresses.add(response.getString(i));
+                }
+                return new ClusterRing(addresses, (int) response.getLong(0));
+            });
+        } catch (IOException | RuntimeException e) {
+            // Zostaje dotychczasowy układ
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adres węzła z odpowiedzi REDIRECT na operację wykonywaną przez {@link #routed} - wypełniany przez
+     * execute niezależnie od wątku, w którym szło żądanie (np. fragmenty pobierania równoległego).
+     */
+    private static final class Redirect {
+        volatile String address;
+    }
+
+    /**
+     * Operacja na pliku wykonywana na handlerze węzła; REDIRECT z dowolnego jej żądania trafia do redirect.
+     */
+    private interface NodeOperation<T> {
+        T apply(ClientHandler handler, Redirect redirect);
+    }
+
+    /**
+     * Wykonuje operację na pliku na węźle głównym (done == null) albo po kolei na węzłach z repliką,
+     * aż wynik spełni done. Po REDIRECT odświeża układ klastra i ponawia operację na wskazanym węźle.
+     */
+    private <T> T routed(String fileName, Predicate<T> done, NodeOperation<T> operation) {
+        List<String> owners = cluster.owners(username, fileName);
+        if (done == null) {
+            owners = owners.subList(0, 1);
+        }
+        T result = null;
+        for (String address : owners) {
+            ClientHandler handler = nodeHandler(address);
+            if (handler == null) {
+                continue;
+            }
+            Redirect redirect = new Redirect();
+            result = operation.apply(handler, redirect);
+            if (redirect.address != null) {
+                // Nasz układ klastra jest nieaktualny - węzeł wskazał właściciela pliku
+                refreshCluster();
+                handler = nodeHandler(redirect.address);
+                return handler != null ? operation.apply(handler, new Redirect()) : result;
+            }
+            if (done == null || done.test(result)) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Handler węzła klastra, zalogowany przy pierwszym użyciu; null, jeśli logowanie się nie udało.
+     */
+    private ClientHandler nodeHandler(String address) {
+        ClientHandler handler;
+        synchronized (nodes) {
+            handler = nodes.get(address);
+            if (handler == null) {
+                handler = new ClientHandler(ClusterRing.host(address), ClusterRing.port(address), maxConnections);
+                handler.node = true;
+                handler.compression = compression;
+                handler.downloadCache = downloadCache;
+                // Właściciel wpisów cache - węzeł sam nie zapamiętuje danych logowania
+                handler.username = username;
+                nodes.put(address, handler);
+            }
+        }
+        synchronized (handler) {
+            if (handler.sessionId == null && !"OK".equals(handler.loginUser(username, password))) {
+                System.out.println("Nie udało się zalogować na węźle " + address);
+                return null;
+            }
+        }
+        return handler;
+    }
+
+    private List<ClientHandler> nodeHandlers() {
+        synchronized (nodes) {
+            return new ArrayList<>(nodes.values());
+        }
+    }
+
+    private int nextRequestId() {
+        return requestIds.incrementAndGet();
+    }
+
+    // -------------------- PULA POŁĄCZEŃ ------------------------
+
+    /**
+     * Wywołanie wykonywane na wypożyczonym połączeniu.
+     */
+    private interface ConnectionCall<T> {
+        T call(ServerConnection connection) throws IOException;
+    }
+
+    /**
+     * Wykonuje wywołanie na połączeniu z puli. Jeśli połączenie z puli okazało się zerwane
+     * (np. serwer je zamknął) i wywołanie nie przekazało jeszcze danych, których nie da się
+     * powtórzyć, jest ono ponawiane raz na nowym połączeniu.
+     */
+    private <T> T execute(ConnectionCall<T> call) throws IOException {
+        return execute(null, call);
+    }
+
+    /**
+     * Jak {@link #execute(ConnectionCall)}, a adres z odpowiedzi REDIRECT (jeśli była) trafia do redirect.
+     */
+    private <T> T execute(Redirect redirect, ConnectionCall<T> call) throws IOException {
+        ServerConnection conn = borrow();
+        try {
+            T result = call.call(conn);
+            takeRedirect(conn, redirect);
+            release(conn, true);
+            return result;
+        } catch (IOException e) {
+            takeRedirect(conn, redirect);
+            release(conn, false);
+            if (!conn.isReused() || conn.isCommitted() || closed) {
+                throw e;
+            }
+            // Skoro jedno połączenie z puli było martwe, pozostałe pewnie też (np. restart serwera)
+            discardIdleConnections();
+            ServerConnection fresh = borrow();
+            try {
+                T result = call.call(fresh);
+                takeRedirect(fresh, redirect);
+                release(fresh, true);
+                return result;
+            } catch (IOException | RuntimeException retryError) {
+                takeRedirect(fresh, redirect);
+                release(fresh, false);
+                throw retryError;
+            }
+        } catch (RuntimeException e) {
+            takeRedirect(conn, redirect);
+            release(conn, false);
+            throw e;
+        }
+    }
+
+    private static void takeRedirect(ServerConnection conn, Redirect redirect) {
+        String address = conn.takeRedirect();
+        if (address != null && redirect != null) {
+            redirect.address = address;
+        }
+    }
+
+    private ServerConnection borrow() throws IOException {
+        if (closed) {
+            throw new IOException("ClientHandler został zamknięty");
+        }
+        try {
+            connectionPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Przerwano oczekiwanie na połączenie", e);
+        }
+        ServerConnection conn;
+        synchronized (idleConnections) {
+            conn = idleConnections.pollFirst();
+        }
+        if (conn != null) {
+            conn.markReused();
+            return conn;
+        }
+        ServerConnection fresh = null;
+        try {
+            fresh = new ServerConnection(serverHost, serverPort);
+            if (compression) {
+                fresh.negotiateCompression(nextRequestId());
+            }
+            return fresh;
+        } catch (IOException | RuntimeException e) {
+            if (fresh != null) {
+                fresh.close();
+            }
+            connectionPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Oddaje połączenie do puli; połączenie po błędzie jest zamykane (stan strumienia nieznany).
+     */
+    private void release(ServerConnection conn, boolean healthy) {
+        if (healthy && !closed && !conn.isClosed()) {
+            conn.touch();
+            synchronized (idleConnections) {
+                idleConnections.offerFirst(conn);
+            }
+        } else {
+            conn.close();
+        }
+        connectionPermits.release();
+    }
+
+    private void discardIdleConnections() {
+        synchronized (idleConnections) {
+            for (ServerConnection conn : idleConnections) {
+                conn.close();
+            }
+            idleConnections.clear();
+        }
+    }
+
+    /**
+     * Wysyła PING na połączeniach bezczynnych dłużej niż KEEPALIVE_INTERVAL_MS,
+     * żeby serwer ich nie zamknął; połączenia, które nie odpowiedziały, są usuwane z puli.
+     */
+    private void keepAlive() {
+        long threshold = System.currentTimeMillis() - KEEPALIVE_INTERVAL_MS;
+        List<ServerConnection> toPing = new ArrayList<>();
+        synchronized (idleConnections) {
+            Iterator<ServerConnection> it = idleConnections.iterator();
+            while (it.hasNext()) {
+                ServerConnection conn = it.next();
+                if (conn.getLastUsed() < threshold) {
+                    it.remove();
+                    toPing.add(conn);
+                }
+            }
+        }
+        for (ServerConnection conn : toPing) {
+            try {
+                conn.ping(nextRequestId());
+                synchronized (idleConnections) {
+                    if (closed) {
+                        conn.close();
+                    } else {
+                        idleConnections.offerLast(conn);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                conn.close();
+            }
+        }
+    }
 }
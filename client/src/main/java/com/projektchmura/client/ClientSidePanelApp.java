@@ -1,7 +1,7 @@
 package com.projektchmura.client;
 
 import java.io.File;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -27,6 +27,8 @@ import javafx.scene.layout.VBox;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
+import com.projektchmura.common.StorageUsage;
+
 public class ClientSidePanelApp extends Application {
 
     private Stage primaryStage;
@@ -49,6 +51,8 @@ public class ClientSidePanelApp extends Application {
         this.primaryStage = primaryStage;
         // Tworzymy ClientHandler (komunikacja z serwerem)
         this.clientHandler = new ClientHandler();
+        // Pobrane pliki zostają w cache na dysku - ponowne pobranie tej samej wersji nie przesyła danych
+        clientHandler.setDownloadCache(DownloadCache.openDefault());
 
         // Inicjujemy 3 sceny
         loginScene = buildLoginScene();
@@ -249,7 +253,8 @@ public class ClientSidePanelApp extends Application {
         List<String> files = clientHandler.listFiles();
         filesListView.getItems().setAll(files);
 
-        setStatus("Pobrano listę plików (" + files.size() + ")");
+        StorageUsage usage = clientHandler.getUsage();
+        setStatus("Pobrano listę plików (" + files.size() + ")" + (usage != null ? " - zajęte: " + usage : ""));
     }
 
     private void handleUploadMultiple() {
@@ -258,42 +263,35 @@ public class ClientSidePanelApp extends Application {
 
         List<File> files = chooser.showOpenMultipleDialog(primaryStage);
         if (files != null && !files.isEmpty()) {
-            // każdy będzie miał wynik typu String
-            List<Future<String>> futures = new ArrayList<>();
-
+            List<Path> paths = new ArrayList<>();
             for (File file : files) {
-                Callable<String> task = () -> {
-                    try {
-                        byte[] data = Files.readAllBytes(file.toPath());
-
-                        return clientHandler.uploadFile(file.getName(), data);
-                    } catch (Exception e) {
-                        return "Błąd: " + e.getMessage();
-                    }
-                };
-                // Wrzucamy zadanie do puli
-                Future<String> future = uploadExecutor.submit(task);
-                futures.add(future);
+                paths.add(file.toPath());
             }
 
-            // Teraz (opcjonalnie) czekamy na wyniki
-            // Możemy to zrobić asynchronicznie albo synchronicznie
+            // Jedno zadanie na cały wybór - małe pliki idą razem (UPLOAD_BATCH), duże pojedynczo
+            Callable<String> task = () -> {
+                List<String> uploaded = clientHandler.uploadFiles(paths);
+                StringBuilder results = new StringBuilder();
+                for (int i = 0; i < paths.size(); i++) {
+                    results.append(paths.get(i).getFileName()).append(": ").append(uploaded.get(i)).append("\n");
+                }
+                return results.toString();
+            };
+            Future<String> future = uploadExecutor.submit(task);
+
             new Thread(() -> {
                 // czekamy w osobnym wątku, by nie blokować UI
-                StringBuilder results = new StringBuilder();
-                for (Future<String> f : futures) {
-                    try {
-                        String result = f.get(); // blokuje do momentu zakończenia
-                        results.append(result).append("\n");
-                    } catch (Exception e) {
-                        results.append("Błąd uploadu: ").append(e.getMessage()).append("\n");
-                    }
+                String results;
+                try {
+                    results = future.get(); // blokuje do momentu zakończenia
+                } catch (Exception e) {
+                    results = "Błąd uploadu: " + e.getMessage() + "\n";
                 }
                 // Po zebraniu wyników -> wyświetlamy w UI:
                 // Ale w wątku javaFX musimy wywołać update przez Platform.runLater(...)
+                String summary = results;
                 Platform.runLater(() -> {
-                    setStatus("Zakończono wgrywanie wielu plików:\n" + results.toString());
-                    //! TODO: do sprawdzenia -> odśwież listę
+                    setStatus("Zakończono wgrywanie wielu plików:\n" + summary);
                     handleListFiles();
                 });
             }).start();
@@ -310,33 +308,36 @@ public class ClientSidePanelApp extends Application {
     }
 
     private void downloadFileByName(String fileName) {
+        // Najpierw wybieramy plik docelowy - dane są zapisywane do niego w trakcie pobierania
+        FileChooser saveChooser = new FileChooser();
+        saveChooser.setTitle("Zapisz pobrany plik");
+        saveChooser.setInitialFileName(fileName);
+        File outFile = saveChooser.showSaveDialog(primaryStage);
+        if (outFile == null) {
+            return;
+        }
+
         // realna logika pobierania
-        byte[] data = clientHandler.downloadFile(fileName);
-        if (data != null) {
-            FileChooser saveChooser = new FileChooser();
-            saveChooser.setTitle("Zapisz pobrany plik");
-            saveChooser.setInitialFileName(fileName);
-            File outFile = saveChooser.showSaveDialog(primaryStage);
-            if (outFile != null) {
-                try {
-                    Files.write(outFile.toPath(), data);
-                    setStatus("Pobrano i zapisano: " + outFile.getAbsolutePath());
-                } catch (Exception ex) {
-                    setStatus("Błąd zapisu: " + ex.getMessage());
-                }
-            }
+        if (clientHandler.downloadFileParallel(fileName, outFile.toPath())) {
+            setStatus("Pobrano i zapisano: " + outFile.getAbsolutePath());
         } else {
             setStatus("Błąd pobierania (plik nie istnieje?)");
         }
     }
 
     private void handleLogout() {
-        clientHandler.setSessionId(null);
+        clientHandler.logout();
         filesListView.getItems().clear();
         setStatus("Wylogowano.");
         primaryStage.setScene(loginScene);
     }
 
+    @Override
+    public void stop() {
+        // Zamykamy trwałe połączenia z serwerem
+        clientHandler.close();
+    }
+
     private void setStatus(String msg) {
         statusBarLabel.setText(msg);
     }
@@ -0,0 +1,278 @@
+package com.projektchmura.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.projektchmura.common.ContentHash;
+
+/**
+ * Trwały cache pobranych plików na dysku klienta. Wpis to ostatnio pobrana wersja pliku
+ * (właściciel, nazwa) razem ze skrótem jej zawartości - ClientHandler wysyła ten skrót
+ * w warunkowym DOWNLOAD i przy odpowiedzi NOT_MODIFIED kopiuje plik z cache.
+ *
+ * Plik wpisu nazywa się "skrót(właściciel, nazwa).skrót zawartości", więc po restarcie indeks
+ * odtwarza się z samej zawartości katalogu. Suma rozmiarów jest ograniczona - najdawniej używane
+ * wpisy są usuwane (LRU; czas ostatniego użycia to czas modyfikacji pliku). Pliki o innych nazwach
+ * nie należą do cache i nie są ruszane - katalog może być współdzielony.
+ */
+public class DownloadCache {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Nazwa pliku wpisu: skrót klucza, skrót zawartości i opcjonalnie sufiks przerwanego zapisu
+    private static final Pattern ENTRY_NAME = Pattern.compile("^([0-9a-f]{64})\\.([0-9a-f]{64})(\\.tmp)?$");
+
+    private static final class Entry {
+        final String hash;
+        final long size;
+        final Path path;
+
+        Entry(String hash, long size, Path path) {
+            this.hash = hash;
+            this.size = size;
+            this.path = path;
+        }
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    // Klucz (skrót właściciela i nazwy) -> wpis; kolejność dostępu - najdawniej używany pierwszy
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    /**
+     * Otwiera cache w katalogu (tworzy go, jeśli trzeba) i wczytuje wpisy z poprzednich uruchomień.
+     */
+    public DownloadCache(Path dir, long maxBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /**
+     * Cache z ustawień -Dchmurka.client.cacheDir (domyślnie ~/.chmurka/cache) i -Dchmurka.client.cacheBytes
+     * (domyślnie 512 MB). Null, jeśli limit to 0 albo katalogu nie da się otworzyć.
+     */
+    public static DownloadCache openDefault() {
+        long maxBytes = Long.getLong("chmurka.client.cacheBytes", 512L * 1024 * 1024);
+        if (maxBytes <= 0) {
+            return null;
+        }
+        Path dir = Paths.get(System.getProperty("chmurka.client.cacheDir",
+                Paths.get(System.getProperty("user.home"), ".chmurka", "cache").toString()));
+        try {
+            return new DownloadCache(dir, maxBytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Skrót wersji pliku w cache albo null, jeśli go nie ma.
+     */
+    public synchronized String cachedHash(String owner, String fileName) {
+        Entry entry = entries.get(key(owner, fileName));
+        return entry != null ? entry.hash : null;
+    }
+
+    /**
+     * Kopiuje wersję o podanym skrócie do pliku docelowego (przez plik tymczasowy obok celu).
+     * Zwraca false, jeśli wpisu nie ma albo zawartość nie zgadza się ze skrótem - uszkodzony wpis jest usuwany.
+     */
+    public boolean copyTo(String owner, String fileName, String hash, Path target) {
+        String key = key(owner, fileName);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry == null || !entry.hash.equals(hash)) {
+            return false;
+        }
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
+        try {
+            MessageDigest digest = ContentHash.newDigest();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(entry.path), digest);
+                 OutputStream out = Files.newOutputStream(partial)) {
+                in.transferTo(out);
+            }
+            if (ContentHash.toHex(digest.digest()).equals(hash)) {
+                Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+                // Czas użycia dla LRU po restarcie
+                Files.setLastModifiedTime(entry.path, FileTime.fromMillis(System.currentTimeMillis()));
+                return true;
+            }
+            System.out.println("Uszkodzony wpis cache dla pliku " + fileName + " - usuwam");
+        } catch (IOException e) {
+            // Wpis mógł zostać usunięty w międzyczasie
+            e.printStackTrace();
+        }
+        try {
+            Files.deleteIfExists(partial);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        remove(key, entry);
+        return false;
+    }
+
+    /**
+     * Zapamiętuje pobraną wersję pliku (kopię pliku source o podanym skrócie) w miejsce poprzedniej.
+     * Plik większy niż cały cache nie jest zapamiętywany.
+     */
+    public void store(String owner, String fileName, String hash, Path source) {
+        String key = key(owner, fileName);
+        if (!ENTRY_NAME.matcher(key + "." + hash).matches()) {
+            // Skrót spoza formatu wpisów - taki plik nie byłby rozpoznany po restarcie
+            return;
+        }
+        Path path = dir.resolve(key + "." + hash);
+        Path temp = dir.resolve(key + "." + hash + TEMP_SUFFIX);
+        try {
+            long size = Files.size(source);
+            if (size > maxBytes) {
+                remove(owner, fileName);
+                return;
+            }
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Entry previous;
+            synchronized (this) {
+                previous = entries.put(key, new Entry(hash, size, path));
+                totalBytes += size - (previous != null ? previous.size : 0);
+            }
+            if (previous != null && !previous.path.equals(path)) {
+                Files.deleteIfExists(previous.path);
+            }
+            evict();
+        } catch (IOException e) {
+            e.printStackTrace();
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Usuwa wpis pliku (np. plik zniknął z serwera).
+     */
+    public void remove(String owner, String fileName) {
+        String key = key(owner, fileName);
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null) {
+            remove(key, entry);
+        }
+    }
+
+    /**
+     * Suma rozmiarów wpisów w bajtach.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private void remove(String key, Entry entry) {
+        synchronized (this) {
+            // Tylko jeśli w międzyczasie nie zapisano nowszej wersji
+            if (!entries.remove(key, entry)) {
+                return;
+            }
+            totalBytes -= entry.size;
+        }
+        try {
+            Files.deleteIfExists(entry.path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Usuwa najdawniej używane wpisy, dopóki suma rozmiarów przekracza limit.
+     */
+    private void evict() {
+        List<Path> evicted = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> it = entries.values().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Entry entry = it.next();
+                it.remove();
+                totalBytes -= entry.size;
+                evicted.add(entry.path);
+            }
+        }
+        for (Path path : evicted) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Odtwarza indeks z plików wpisów w katalogu - od najdawniej używanego. Pozostałości przerwanych
+     * zapisów i starsze wersje tego samego pliku są usuwane, pozostałe pliki są pomijane.
+     */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                if (Files.isRegularFile(path) && ENTRY_NAME.matcher(path.getFileName().toString()).matches()) {
+                    files.add(path);
+                }
+            }
+        }
+        Map<Path, Long> used = new LinkedHashMap<>();
+        for (Path path : files) {
+            used.put(path, Files.getLastModifiedTime(path).toMillis());
+        }
+        files.sort(Comparator.comparing(used::get));
+        for (Path path : files) {
+            Matcher name = ENTRY_NAME.matcher(path.getFileName().toString());
+            name.matches();
+            if (name.group(3) != null) {
+                Files.deleteIfExists(path);
+                continue;
+            }
+            Entry entry = new Entry(name.group(2), Files.size(path), path);
+            Entry previous = entries.put(name.group(1), entry);
+            totalBytes += entry.size;
+            if (previous != null) {
+                totalBytes -= previous.size;
+                Files.deleteIfExists(previous.path);
+            }
+        }
+        evict();
+        System.out.println("Cache pobranych plików: " + entries.size() + " plików, " + totalBytes + " B w " + dir);
+    }
+
+    private static String key(String owner, String fileName) {
+        MessageDigest digest = ContentHash.newDigest();
+        digest.update(owner.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        return ContentHash.toHex(digest.digest(fileName.getBytes(StandardCharsets.UTF_8)));
+    }
+}
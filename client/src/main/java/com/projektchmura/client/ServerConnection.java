@@ -0,0 +1,155 @@
+package com.projektchmura.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import com.projektchmura.common.Message;
+import com.projektchmura.common.MessageReader;
+import com.projektchmura.common.MessageWriter;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.common.ProtocolException;
+
+/**
+ * Jedno trwałe połączenie z serwerem, używane naraz przez jedno wywołanie ClientHandler.
+ * Wiadomości żądania i odpowiedzi są używane ponownie między wywołaniami.
+ */
+class ServerConnection implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final Socket socket;
+    private final MessageReader reader;
+    private final MessageWriter writer;
+    private final Message request = new Message();
+    private final Message response = new Message();
+
+    private long lastUsed = System.currentTimeMillis();
+    // Czy połączenie było już wcześniej użyte (może być "martwe" po stronie serwera)
+    private boolean reused;
+    // Czy bieżące wywołanie przekazało już dane, których nie da się bezpiecznie wysłać ponownie
+    private boolean committed;
+    // Adres węzła z odpowiedzi REDIRECT w bieżącym wywołaniu (ClientHandler przekazuje go do wyniku wywołania)
+    private String redirect;
+
+    ServerConnection(String host, int port) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            reader = new MessageReader(socket.getInputStream());
+            writer = new MessageWriter(socket.getOutputStream());
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Przygotowuje (współdzieloną) wiadomość żądania z nowym requestId.
+     */
+    Message newRequest(byte opcode, int requestId) {
+        return request.reset(opcode).setRequestId(requestId);
+    }
+
+    /**
+     * Wysyła żądanie i czeka na odpowiedź (ważną do następnego wywołania na tym połączeniu).
+     */
+    Message exchange(Message request) throws IOException {
+        writer.send(request);
+        return readResponse(request);
+    }
+
+    Message readResponse(Message request) throws IOException {
+        reader.readExpected(response);
+        if (response.getRequestId() != request.getRequestId()) {
+            throw new ProtocolException("Odpowiedź na inne żądanie: " + response.getRequestId());
+        }
+        if (response.getStatus() == ProtocolConstants.STATUS_REDIRECT) {
+            redirect = response.getString(1);
+        }
+        return response;
+    }
+
+    /**
+     * Zwraca i zapomina adres z ostatniego REDIRECT na tym połączeniu (null - nie było przekierowania).
+     */
+    String takeRedirect() {
+        String address = redirect;
+        redirect = null;
+        return address;
+    }
+
+    MessageReader getReader() {
+        return reader;
+    }
+
+    MessageWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Uzgadnia kompresję ramek DATA (OP_HELLO). Serwer bez obsługi HELLO odpowiada
+     * UNKNOWN_COMMAND - wtedy połączenie działa bez kompresji.
+     */
+    void negotiateCompression(int requestId) throws IOException {
+        Message r = exchange(newRequest(ProtocolConstants.OP_HELLO, requestId)
+                .addString(ProtocolConstants.CODEC_DEFLATE));
+        writer.setCompression(r.getStatus() == ProtocolConstants.STATUS_OK
+                && ProtocolConstants.CODEC_DEFLATE.equals(r.getString(0)));
+    }
+
+    /**
+     * Krótkie żądanie PING - utrzymuje połączenie i sprawdza, czy serwer wciąż je obsługuje.
+     */
+    void ping(int requestId) throws IOException {
+        Message r = exchange(newRequest(ProtocolConstants.OP_PING, requestId));
+        if (r.getStatus() != ProtocolConstants.STATUS_OK) {
+            throw new ProtocolException("Niepoprawna odpowiedź na PING: " + r);
+        }
+        touch();
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    boolean isReused() {
+        return reused;
+    }
+
+    void markReused() {
+        reused = true;
+        committed = false;
+    }
+
+    /**
+     * Od tego momentu błąd nie może skutkować ponowieniem wywołania na nowym połączeniu.
+     */
+    void markCommitted() {
+        committed = true;
+    }
+
+    boolean isCommitted() {
+        return committed;
+    }
+
+    boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // zamykamy połączenie - błąd nie ma znaczenia
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.projektchmura.common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Sygnatury bloków jednej wersji pliku (synchronizacja delta): dla każdego bloku o stałym rozmiarze
+ * (ostatni może być krótszy) słaba suma krocząca i silny skrót MD5. Klient szuka tych bloków
+ * w nowej wersji pliku i wysyła tylko to, czego serwer nie ma.
+ * Wyszukiwanie (indeks budowany przy pierwszym użyciu) nie jest bezpieczne wielowątkowo.
+ */
+public final class BlockSignatures {
+
+    public static final int STRONG_LENGTH = 16;
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    private final int blockSize;
+    private final long fileSize;
+    private final int[] weak;
+    private final byte[] strong;
+
+    // Indeks słabych sum: tablica mieszająca z łańcuchami (bez obiektów na blok)
+    private int[] heads;
+    private int[] next;
+
+    private BlockSignatures(int blockSize, long fileSize, int[] weak, byte[] strong) {
+        this.blockSize = blockSize;
+        this.fileSize = fileSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * Rozmiar bloku dla pliku: około pierwiastka z rozmiaru (potęga dwójki, 2 KiB - 64 KiB),
+     * czyli mało bloków dla małych plików i rozsądna dokładność dla dużych.
+     */
+    public static int blockSizeFor(long fileSize) {
+        int root = (int) Math.min(Integer.MAX_VALUE, (long) Math.sqrt((double) fileSize));
+        int size = Integer.highestOneBit(Math.max(root, 1));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Liczy sygnatury zawartości o znanym rozmiarze.
+     */
+    public static BlockSignatures compute(InputStream content, long fileSize, int blockSize) throws IOException {
+        int count = blockCount(fileSize, blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        MessageDigest md5 = newStrongDigest();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < count; i++) {
+            int length = (int) Math.min(blockSize, fileSize - (long) i * blockSize);
+            readFully(content, block, length);
+            weak[i] = RollingChecksum.of(block, 0, length);
+            md5.update(block, 0, length);
+            digestInto(md5, strong, i * STRONG_LENGTH);
+        }
+        return new BlockSignatures(blockSize, fileSize, weak, strong);
+    }
+
+    /**
+     * Format: rozmiar bloku, rozmiar pliku, liczba bloków, potem (słaba suma, skrót) dla każdego bloku.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(blockSize);
+        out.writeLong(fileSize);
+        out.writeInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            out.writeInt(weak[i]);
+            out.write(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+    }
+
+    public static BlockSignatures read(DataInput in) throws IOException {
+        int blockSize = in.readInt();
+        long fileSize = in.readLong();
+        int count = in.readInt();
+        if (blockSize <= 0 || fileSize < 0 || count != blockCount(fileSize, blockSize)) {
+            throw new ProtocolException("Niepoprawne sygnatury bloków");
+        }
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        return new BlockSignatures(blockSize, fileSize, weak, strong);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /** Długość bloku (ostatni blok może być krótszy). */
+    public int blockLength(int index) {
+        return (int) Math.min(blockSize, fileSize - (long) index * blockSize);
+    }
+
+    /**
+     * Pierwszy blok o danej słabej sumie albo -1. Kolejne kandydaty: {@link #nextWithSameWeak(int)}.
+     */
+    public int firstWithWeak(int weakSum) {
+        if (heads == null) {
+            buildIndex();
+        }
+        int i = heads[mix(weakSum) & (heads.length - 1)];
+        while (i >= 0 && weak[i] != weakSum) {
+            i = next[i];
+        }
+        return i;
+    }
+
+    public int nextWithSameWeak(int index) {
+        int i = next[index];
+        while (i >= 0 && weak[i] != weak[index]) {
+            i = next[i];
+        }
+        return i;
+    }
+
+    /**
+     * Czy silny skrót bloku jest równy podanemu (STRONG_LENGTH bajtów od off).
+     */
+    public boolean strongEquals(int index, byte[] digest, int off) {
+        return Arrays.equals(strong, index * STRONG_LENGTH, (index + 1) * STRONG_LENGTH,
+                digest, off, off + STRONG_LENGTH);
+    }
+
+    static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void digestInto(MessageDigest md, byte[] target, int off) {
+        try {
+            md.digest(target, off, STRONG_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void buildIndex() {
+        int capacity = 2;
+        while (capacity < weak.length * 2) {
+            capacity <<= 1;
+        }
+        int[] h = new int[capacity];
+        Arrays.fill(h, -1);
+        int[] n = new int[weak.length];
+        // Od końca, żeby łańcuch zaczynał się od najwcześniejszego bloku
+        for (int i = weak.length - 1; i >= 0; i--) {
+            int slot = mix(weak[i]) & (h.length - 1);
+            n[i] = h[slot];
+            h[slot] = i;
+        }
+        next = n;
+        heads = h;
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16) ^ (h >>> 7);
+    }
+
+    private static int blockCount(long fileSize, int blockSize) {
+        return (int) ((fileSize + blockSize - 1) / blockSize);
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int read = 0;
+        while (read < len) {
+            int n = in.read(buf, read, len - read);
+            if (n == -1) {
+                throw new EOFException("Plik krótszy niż " + len + " bajtów bloku");
+            }
+            read += n;
+        }
+    }
+}
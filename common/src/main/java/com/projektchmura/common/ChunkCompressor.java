@@ -0,0 +1,69 @@
+package com.projektchmura.common;
+
+import java.util.zip.Deflater;
+
+/**
+ * Kompresja pojedynczych fragmentów (do {@link ProtocolConstants#CHUNK_SIZE}) - każdy fragment
+ * jest niezależnym strumieniem zlib, więc da się go rozpakować bez poprzednich.
+ * Fragment, który nie zmniejsza się przynajmniej o 1/8, jest zostawiany bez kompresji,
+ * a kolejne próby są wtedy pomijane (1, 2, 4... do 64 fragmentów) - dane już skompresowane
+ * (JPEG, ZIP, wideo) nie kosztują prawie nic poza pierwszą próbą.
+ */
+public final class ChunkCompressor {
+
+    private static final int MAX_SKIP = 64;
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final byte[] output = new byte[ProtocolConstants.CHUNK_SIZE];
+
+    private int skip;
+    private int backoff;
+
+    /**
+     * Kompresuje fragment. Zwraca długość wyniku w {@link #getOutput()} albo -1,
+     * jeśli fragment trzeba zapisać bez kompresji.
+     */
+    public int compress(byte[] data, int off, int len) {
+        if (len > output.length) {
+            throw new IllegalArgumentException("Fragment większy niż " + output.length + " bajtów");
+        }
+        if (skip > 0) {
+            skip--;
+            return -1;
+        }
+        int limit = len - len / 8;
+        deflater.reset();
+        deflater.setInput(data, off, len);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < limit) {
+            n += deflater.deflate(output, n, limit - n);
+        }
+        if (!deflater.finished()) {
+            backoff = backoff == 0 ? 1 : Math.min(backoff * 2, MAX_SKIP);
+            skip = backoff;
+            return -1;
+        }
+        backoff = 0;
+        return n;
+    }
+
+    /**
+     * Przygotowuje kompresor do nowego strumienia (zapomina pominięte próby poprzedniego).
+     */
+    public void reset() {
+        skip = 0;
+        backoff = 0;
+    }
+
+    public byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * Zwalnia natywną pamięć kompresora.
+     */
+    public void end() {
+        deflater.end();
+    }
+}
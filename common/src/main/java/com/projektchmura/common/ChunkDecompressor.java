@@ -0,0 +1,53 @@
+package com.projektchmura.common;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Rozpakowuje fragmenty skompresowane przez {@link ChunkCompressor}.
+ */
+public final class ChunkDecompressor {
+
+    private final Inflater inflater = new Inflater();
+    private final byte[] probe = new byte[1];
+
+    /**
+     * Rozpakowuje fragment do dst. Wynik dłuższy niż maxLength (np. spreparowana „bomba”)
+     * jest błędem protokołu. Zwraca długość rozpakowanych danych.
+     */
+    public int decompress(byte[] data, int off, int len, byte[] dst, int dstOff, int maxLength)
+            throws ProtocolException {
+        inflater.reset();
+        inflater.setInput(data, off, len);
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                if (n == maxLength) {
+                    // Bufor pełny - zostać może tylko końcówka strumienia (suma kontrolna)
+                    if (inflater.inflate(probe) > 0) {
+                        throw new ProtocolException("Skompresowany fragment większy niż " + maxLength + " bajtów");
+                    }
+                    if (!inflater.finished()) {
+                        throw new ProtocolException("Uszkodzony skompresowany fragment");
+                    }
+                    break;
+                }
+                int k = inflater.inflate(dst, dstOff + n, maxLength - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new ProtocolException("Uszkodzony skompresowany fragment");
+                }
+                n += k;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Uszkodzony skompresowany fragment: " + e.getMessage());
+        }
+        return n;
+    }
+
+    /**
+     * Zwalnia natywną pamięć dekompresora.
+     */
+    public void end() {
+        inflater.end();
+    }
+}
@@ -0,0 +1,147 @@
+package com.projektchmura.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Strumień odczytujący kolejne ramki DATA danego żądania jako ciągłe bajty.
+ * Pusta ramka DATA oznacza koniec strumienia. W pamięci trzymany jest
+ * co najwyżej jeden fragment (bufor czytnika ramek).
+ */
+public class ChunkInputStream extends InputStream {
+
+    private final MessageReader reader;
+    private final int requestId;
+    private final long expectedLength;
+    private final Message frame = new Message();
+    private byte[] inflated;
+
+    private byte[] chunk;
+    private int pos;
+    private int limit;
+    private boolean finished;
+    private long bytesRead;
+
+    /**
+     * @param expectedLength zadeklarowana długość strumienia lub -1, jeśli nie jest znana
+     */
+    public ChunkInputStream(MessageReader reader, int requestId, long expectedLength) {
+        this.reader = reader;
+        this.requestId = requestId;
+        this.expectedLength = expectedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return chunk[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(chunk, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Przepisuje resztę strumienia prosto z bufora ramek, bez kopii pośredniej.
+     */
+    @Override
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        while (ensureChunk()) {
+            int n = limit - pos;
+            out.write(chunk, pos, n);
+            pos = limit;
+            transferred += n;
+        }
+        return transferred;
+    }
+
+    @Override
+    public int available() {
+        return limit - pos;
+    }
+
+    /**
+     * Pomija pozostałe fragmenty aż do ramki kończącej (np. po błędzie zapisu),
+     * żeby połączenie pozostało zsynchronizowane.
+     */
+    public void skipRemaining() throws IOException {
+        pos = limit;
+        while (!finished) {
+            nextFrame();
+        }
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Nie zamyka połączenia - po strumieniu mogą przyjść kolejne ramki.
+     */
+    @Override
+    public void close() {
+    }
+
+    private boolean ensureChunk() throws IOException {
+        while (pos == limit) {
+            if (finished) {
+                return false;
+            }
+            nextFrame();
+        }
+        return true;
+    }
+
+    private void nextFrame() throws IOException {
+        reader.readExpected(frame);
+        if (frame.getOpcode() != ProtocolConstants.OP_DATA || frame.getRequestId() != requestId) {
+            throw new ProtocolException("Oczekiwano ramki DATA dla żądania " + requestId + ", otrzymano " + frame);
+        }
+        int length = frame.getBodyLength();
+        if (length > 0 && (frame.getFlags() & ProtocolConstants.FLAG_COMPRESSED) != 0) {
+            if (inflated == null) {
+                inflated = new byte[ProtocolConstants.CHUNK_SIZE];
+            }
+            length = reader.decompressor().decompress(frame.getBody(), frame.getBodyOffset(), frame.getBodyLength(),
+                    inflated, 0, inflated.length);
+            acceptChunk(inflated, 0, length);
+            return;
+        }
+        if (length == 0) {
+            finished = true;
+            if (expectedLength >= 0 && bytesRead != expectedLength) {
+                throw new ProtocolException("Niekompletny strumień: " + bytesRead + " z " + expectedLength + " bajtów");
+            }
+            return;
+        }
+        acceptChunk(frame.getBody(), frame.getBodyOffset(), length);
+    }
+
+    private void acceptChunk(byte[] data, int offset, int length) throws ProtocolException {
+        bytesRead += length;
+        if (expectedLength >= 0 && bytesRead > expectedLength) {
+            throw new ProtocolException("Strumień dłuższy niż zadeklarowane " + expectedLength + " bajtów");
+        }
+        chunk = data;
+        pos = offset;
+        limit = offset + length;
+    }
+}
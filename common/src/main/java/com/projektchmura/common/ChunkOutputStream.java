@@ -0,0 +1,84 @@
+package com.projektchmura.common;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Strumień dzielący zapisywane bajty na ramki DATA o rozmiarze {@link ProtocolConstants#CHUNK_SIZE}.
+ * Przy kompresji uzgodnionej na połączeniu fragmenty są kompresowane (jeśli to się opłaca).
+ * {@link #close()} wysyła ramkę kończącą, ale nie zamyka połączenia.
+ */
+public class ChunkOutputStream extends OutputStream {
+
+    private final MessageWriter writer;
+    private final int requestId;
+    private final Message frame = new Message();
+    private final byte[] buffer = new byte[ProtocolConstants.CHUNK_SIZE];
+
+    private int count;
+    private boolean closed;
+
+    public ChunkOutputStream(MessageWriter writer, int requestId) {
+        this.writer = writer;
+        this.requestId = requestId;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == buffer.length) {
+            writeChunk();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == buffer.length) {
+                writeChunk();
+            }
+            int n = Math.min(len, buffer.length - count);
+            System.arraycopy(b, off, buffer, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Wysyła zbuforowany fragment i wypycha dane do gniazda.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk();
+        }
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (count > 0) {
+            writeChunk();
+        }
+        // Pusta ramka DATA kończy strumień
+        frame.reset(ProtocolConstants.OP_DATA).setRequestId(requestId);
+        writer.send(frame);
+    }
+
+    private void writeChunk() throws IOException {
+        frame.reset(ProtocolConstants.OP_DATA).setRequestId(requestId);
+        int compressed = writer.isCompressionEnabled() ? writer.compressor().compress(buffer, 0, count) : -1;
+        if (compressed >= 0) {
+            frame.setFlags(ProtocolConstants.FLAG_COMPRESSED).setBody(writer.compressor().getOutput(), 0, compressed);
+        } else {
+            frame.setBody(buffer, 0, count);
+        }
+        writer.write(frame);
+        count = 0;
+    }
+}
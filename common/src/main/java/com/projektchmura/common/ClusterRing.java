@@ -0,0 +1,50 @@
+package com.projektchmura.common;
+
+import java.util.List;
+
+/**
+ * Podział plików między węzły klastra - ten sam po stronie serwera i klienta (klient dostaje
+ * listę węzłów komendą OP_CLUSTER). Plik (właściciel, nazwa) należy do {@link #getReplicas()} kolejnych
+ * węzłów na pierścieniu spójnego haszowania: pierwszy jest węzłem głównym, pozostałe trzymają repliki.
+ * Węzły to adresy "host:port", wszystkie z tą samą wagą.
+ */
+public final class ClusterRing {
+
+    private final List<String> nodes;
+    private final int replicas;
+    private final HashRing<String> ring = new HashRing<>();
+
+    public ClusterRing(List<String> nodes, int replicas) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Klaster bez węzłów");
+        }
+        this.nodes = List.copyOf(nodes);
+        this.replicas = Math.max(1, Math.min(replicas, nodes.size()));
+        for (String node : nodes) {
+            ring.add(node, node, 1);
+        }
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Węzły przechowujące plik: pierwszy - główny, potem repliki.
+     */
+    public List<String> owners(String owner, String fileName) {
+        return ring.get(owner + '\u0000' + fileName, replicas);
+    }
+
+    public static String host(String address) {
+        return address.substring(0, address.lastIndexOf(':'));
+    }
+
+    public static int port(String address) {
+        return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+    }
+}
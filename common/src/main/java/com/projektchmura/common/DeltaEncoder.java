@@ -0,0 +1,192 @@
+package com.projektchmura.common;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Koder delty w stylu rsync: przesuwa okno o rozmiarze bloku po nowej wersji pliku i tam,
+ * gdzie słaba suma i skrót MD5 zgadzają się z blokiem wersji bazowej, zamiast danych
+ * wysyła odwołanie do tego bloku. Format instrukcji:
+ * COPY (pierwszy blok, liczba kolejnych bloków), LITERAL (długość, bajty), END.
+ */
+public final class DeltaEncoder {
+
+    public static final byte END = 0;
+    public static final byte COPY = 1;
+    public static final byte LITERAL = 2;
+
+    // Dłuższe fragmenty bez dopasowania są wysyłane kawałkami - bufor ma stały rozmiar
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    private final BlockSignatures base;
+    private final DataOutputStream out;
+    private final MessageDigest md5 = BlockSignatures.newStrongDigest();
+    private final byte[] digest = new byte[BlockSignatures.STRONG_LENGTH];
+
+    // Oczekująca seria kolejnych bloków (łączona w jedną instrukcję COPY)
+    private int runStart;
+    private int runCount;
+
+    private long literalBytes;
+    private long copiedBytes;
+
+    public DeltaEncoder(BlockSignatures base, OutputStream out) {
+        this.base = base;
+        this.out = new DataOutputStream(out);
+    }
+
+    /**
+     * Koduje całą zawartość nowej wersji i kończy instrukcją END.
+     */
+    public void encode(InputStream content) throws IOException {
+        int blockSize = base.getBlockSize();
+        byte[] buf = new byte[MAX_LITERAL + 2 * blockSize + 64 * 1024];
+        RollingChecksum checksum = new RollingChecksum();
+        boolean checksumValid = false;
+        boolean eof = false;
+        int literalStart = 0;
+        int start = 0;
+        int end = 0;
+
+        while (true) {
+            // Okno plus jeden bajt do przesunięcia; dane przed oczekującym literałem nie są już potrzebne
+            if (!eof && end - start <= blockSize) {
+                if (literalStart > 0) {
+                    System.arraycopy(buf, literalStart, buf, 0, end - literalStart);
+                    start -= literalStart;
+                    end -= literalStart;
+                    literalStart = 0;
+                }
+                while (!eof && end < buf.length) {
+                    int n = content.read(buf, end, buf.length - end);
+                    if (n == -1) {
+                        eof = true;
+                    } else {
+                        end += n;
+                    }
+                }
+            }
+
+            int window = Math.min(blockSize, end - start);
+            if (window == 0) {
+                break;
+            }
+            if (window < blockSize) {
+                // Końcówka pliku może pasować tylko do (krótszego) ostatniego bloku bazy
+                int last = base.getBlockCount() - 1;
+                if (last >= 0 && base.blockLength(last) == window
+                        && matches(last, RollingChecksum.of(buf, start, window), buf, start, window)) {
+                    flushLiteral(buf, literalStart, start);
+                    addCopy(last);
+                    start += window;
+                    literalStart = start;
+                }
+                start = end;
+                break;
+            }
+
+            if (!checksumValid) {
+                checksum.reset(buf, start, blockSize);
+                checksumValid = true;
+            }
+            int match = findMatch(checksum.value(), buf, start, blockSize);
+            if (match >= 0) {
+                flushLiteral(buf, literalStart, start);
+                addCopy(match);
+                start += blockSize;
+                literalStart = start;
+                checksumValid = false;
+            } else if (end - start == blockSize) {
+                // Koniec danych (inaczej bufor zostałby dopełniony) - reszta idzie jako literał
+                start = end;
+            } else {
+                checksum.roll(buf[start], buf[start + blockSize]);
+                start++;
+                if (start - literalStart >= MAX_LITERAL) {
+                    flushLiteral(buf, literalStart, start);
+                    literalStart = start;
+                }
+            }
+        }
+        flushLiteral(buf, literalStart, start);
+        flushCopy();
+        out.writeByte(END);
+        out.flush();
+    }
+
+    /** Bajty wysłane dosłownie. */
+    public long getLiteralBytes() {
+        return literalBytes;
+    }
+
+    /** Bajty odtwarzane z wersji bazowej. */
+    public long getCopiedBytes() {
+        return copiedBytes;
+    }
+
+    private int findMatch(int weak, byte[] buf, int off, int len) {
+        boolean strongComputed = false;
+        for (int i = base.firstWithWeak(weak); i >= 0; i = base.nextWithSameWeak(i)) {
+            if (base.blockLength(i) != len) {
+                continue;
+            }
+            if (!strongComputed) {
+                md5.update(buf, off, len);
+                BlockSignatures.digestInto(md5, digest, 0);
+                strongComputed = true;
+            }
+            if (base.strongEquals(i, digest, 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int index, int weak, byte[] buf, int off, int len) {
+        for (int i = base.firstWithWeak(weak); i >= 0; i = base.nextWithSameWeak(i)) {
+            if (i == index) {
+                md5.update(buf, off, len);
+                BlockSignatures.digestInto(md5, digest, 0);
+                return base.strongEquals(index, digest, 0);
+            }
+        }
+        return false;
+    }
+
+    private void addCopy(int index) throws IOException {
+        if (runCount > 0 && index == runStart + runCount) {
+            runCount++;
+            return;
+        }
+        flushCopy();
+        runStart = index;
+        runCount = 1;
+    }
+
+    private void flushCopy() throws IOException {
+        if (runCount == 0) {
+            return;
+        }
+        out.writeByte(COPY);
+        out.writeInt(runStart);
+        out.writeInt(runCount);
+        for (int i = runStart; i < runStart + runCount; i++) {
+            copiedBytes += base.blockLength(i);
+        }
+        runCount = 0;
+    }
+
+    private void flushLiteral(byte[] buf, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        flushCopy();
+        out.writeByte(LITERAL);
+        out.writeInt(to - from);
+        out.write(buf, from, to - from);
+        literalBytes += to - from;
+    }
+}
@@ -0,0 +1,111 @@
+package com.projektchmura.common;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Odtwarza nową wersję pliku z instrukcji {@link DeltaEncoder} i pliku wersji bazowej:
+ * bloki COPY są czytane pozycyjnie z bazy, literały - prosto ze strumienia instrukcji.
+ * Baza może być zwykłym plikiem albo dowolnym {@link PositionalSource} (np. skompresowanym blobem).
+ */
+public class DeltaInputStream extends InputStream {
+
+    private final DataInputStream instructions;
+    private final PositionalSource base;
+    private final int blockSize;
+    private final long baseSize;
+    private final long expectedLength;
+
+    private byte mode;
+    private long copyPosition;
+    private long remaining;
+    private long produced;
+    private boolean finished;
+
+    /**
+     * @param expectedLength zadeklarowany rozmiar nowej wersji - dłuższy wynik jest błędem protokołu
+     */
+    public DeltaInputStream(InputStream instructions, FileChannel base, int blockSize, long expectedLength)
+            throws IOException {
+        this(instructions, PositionalSource.of(base), blockSize, expectedLength);
+    }
+
+    public DeltaInputStream(InputStream instructions, PositionalSource base, int blockSize, long expectedLength)
+            throws IOException {
+        this.instructions = new DataInputStream(instructions);
+        this.base = base;
+        this.blockSize = blockSize;
+        this.baseSize = base.size();
+        this.expectedLength = expectedLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (remaining == 0) {
+            if (finished) {
+                return -1;
+            }
+            nextInstruction();
+        }
+        int n = (int) Math.min(len, remaining);
+        int read;
+        if (mode == DeltaEncoder.COPY) {
+            read = base.read(copyPosition, b, off, n);
+            if (read <= 0) {
+                throw new EOFException("Wersja bazowa skrócona w trakcie odtwarzania");
+            }
+            copyPosition += read;
+        } else {
+            read = instructions.read(b, off, n);
+            if (read == -1) {
+                throw new EOFException("Niekompletny literał delty");
+            }
+        }
+        remaining -= read;
+        return read;
+    }
+
+    private void nextInstruction() throws IOException {
+        mode = instructions.readByte();
+        switch (mode) {
+            case DeltaEncoder.END:
+                finished = true;
+                return;
+            case DeltaEncoder.COPY: {
+                int first = instructions.readInt();
+                int count = instructions.readInt();
+                copyPosition = (long) first * blockSize;
+                if (first < 0 || count <= 0 || copyPosition >= baseSize) {
+                    throw new ProtocolException("Niepoprawny blok delty: " + first + " x " + count);
+                }
+                remaining = Math.min((long) count * blockSize, baseSize - copyPosition);
+                break;
+            }
+            case DeltaEncoder.LITERAL:
+                remaining = instructions.readInt();
+                if (remaining < 0) {
+                    throw new ProtocolException("Niepoprawna długość literału delty: " + remaining);
+                }
+                break;
+            default:
+                throw new ProtocolException("Nieznana instrukcja delty: " + mode);
+        }
+        produced += remaining;
+        if (produced > expectedLength) {
+            throw new ProtocolException("Delta dłuższa niż zadeklarowane " + expectedLength + " bajtów");
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.projektchmura.common;
+
+/**
+ * Metadane pliku w chmurze zwracane przez stronicowany LIST_FILES.
+ */
+public final class FileInfo {
+
+    private final String name;
+    private final long size;
+    private final long modifiedAt;
+
+    public FileInfo(String name, long size, long modifiedAt) {
+        this.name = name;
+        this.size = size;
+        this.modifiedAt = modifiedAt;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /** Czas ostatniego zapisu (ms od epoki). */
+    public long getModifiedAt() {
+        return modifiedAt;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + " B)";
+    }
+}
@@ -0,0 +1,29 @@
+package com.projektchmura.common;
+
+import java.util.List;
+
+/**
+ * Jedna strona listy plików. nextCursor == null oznacza ostatnią stronę.
+ */
+public final class FilePage {
+
+    private final List<FileInfo> files;
+    private final String nextCursor;
+
+    public FilePage(List<FileInfo> files, String nextCursor) {
+        this.files = files;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<FileInfo> getFiles() {
+        return files;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean hasMore() {
+        return nextCursor != null;
+    }
+}
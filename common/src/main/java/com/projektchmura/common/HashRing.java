@@ -0,0 +1,83 @@
+package com.projektchmura.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pierścień spójnego haszowania z wagami: każdy węzeł ma na pierścieniu waga * {@link #POINTS_PER_WEIGHT}
+ * punktów (węzłów wirtualnych), a klucz należy do pierwszego punktu za swoim skrótem.
+ * Dodanie węzła przenosi tylko klucze, które przypadły nowemu węzłowi (~ jego udział w sumie wag).
+ *
+ * Punkty zależą tylko od nazwy węzła, więc ten sam zestaw węzłów daje ten sam podział po restarcie.
+ * Obiekt nie jest synchronizowany - budować w całości, a potem tylko czytać.
+ */
+public final class HashRing<T> {
+
+    static final int POINTS_PER_WEIGHT = 128;
+
+    private final TreeMap<Long, T> points = new TreeMap<>();
+
+    /**
+     * Dodaje węzeł; waga 0 oznacza węzeł bez kluczy (np. opróżniany katalog).
+     */
+    public void add(String name, T node, int weight) {
+        for (int i = 0; i < weight * POINTS_PER_WEIGHT; i++) {
+            points.put(hash(name + '#' + i), node);
+        }
+    }
+
+    public boolean isEmpty() {
+        return points.isEmpty();
+    }
+
+    /**
+     * Węzeł, do którego należy klucz (null, gdy pierścień jest pusty).
+     */
+    public T get(String key) {
+        if (points.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, T> entry = points.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : points.firstEntry().getValue();
+    }
+
+    /**
+     * Najwyżej count różnych węzłów za skrótem klucza, w kolejności na pierścieniu
+     * (pierwszy to ten sam węzeł co {@link #get(String)}) - np. węzeł główny i repliki.
+     */
+    public List<T> get(String key, int count) {
+        List<T> nodes = new ArrayList<>(count);
+        long h = hash(key);
+        for (Map<Long, T> part : List.of(points.tailMap(h, true), points.headMap(h, false))) {
+            for (T node : part.values()) {
+                if (nodes.size() == count) {
+                    return nodes;
+                }
+                if (!nodes.contains(node)) {
+                    nodes.add(node);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * 64-bitowy FNV-1a z końcowym mieszaniem z MurmurHash3 (fmix64) - bliskie nazwy dają odległe punkty.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
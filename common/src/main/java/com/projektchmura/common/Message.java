@@ -0,0 +1,189 @@
+package com.projektchmura.common;
+
+import java.util.Arrays;
+
+/**
+ * Pojedyncza ramka protokołu: opcode, requestId, typowane pola nagłówka i body.
+ *
+ * Obiekt jest mutowalny i przeznaczony do wielokrotnego użycia (reset) w obrębie jednego
+ * połączenia, żeby nie tworzyć nowych obiektów dla każdej wiadomości.
+ * Body ustawione przez {@link MessageReader} wskazuje na bufor czytnika i jest ważne
+ * tylko do następnego odczytu.
+ */
+public final class Message {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte opcode;
+    private byte flags;
+    private byte status;
+    private int requestId;
+
+    private int fieldCount;
+    private byte[] fieldTypes = new byte[8];
+    private String[] stringFields = new String[8];
+    private long[] longFields = new long[8];
+
+    private byte[] body = EMPTY;
+    private int bodyOffset;
+    private int bodyLength;
+
+    /**
+     * Czyści wiadomość i ustawia nowy opcode.
+     */
+    public Message reset(byte opcode) {
+        Arrays.fill(stringFields, 0, fieldCount, null);
+        this.opcode = opcode;
+        this.flags = ProtocolConstants.FLAG_NONE;
+        this.status = ProtocolConstants.STATUS_OK;
+        this.requestId = 0;
+        this.fieldCount = 0;
+        this.body = EMPTY;
+        this.bodyOffset = 0;
+        this.bodyLength = 0;
+        return this;
+    }
+
+    /**
+     * Przygotowuje wiadomość jako odpowiedź na podane żądanie (ten sam opcode i requestId).
+     */
+    public Message resetAsResponseTo(Message request) {
+        reset(request.opcode);
+        this.requestId = request.requestId;
+        this.flags = ProtocolConstants.FLAG_RESPONSE;
+        return this;
+    }
+
+    public byte getOpcode() {
+        return opcode;
+    }
+
+    public byte getFlags() {
+        return flags;
+    }
+
+    public Message setFlags(byte flags) {
+        this.flags = flags;
+        return this;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public Message setStatus(byte status) {
+        this.status = status;
+        return this;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public Message setRequestId(int requestId) {
+        this.requestId = requestId;
+        return this;
+    }
+
+    // -------------------- POLA nagłówka ------------------------
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public byte getFieldType(int index) {
+        checkIndex(index);
+        return fieldTypes[index];
+    }
+
+    public Message addString(String value) {
+        int i = nextField(value == null ? ProtocolConstants.FIELD_NULL : ProtocolConstants.FIELD_STRING);
+        stringFields[i] = value;
+        return this;
+    }
+
+    public Message addLong(long value) {
+        int i = nextField(ProtocolConstants.FIELD_LONG);
+        longFields[i] = value;
+        return this;
+    }
+
+    /**
+     * Zwraca pole tekstowe (lub null, jeśli pole jest typu NULL albo go nie ma).
+     */
+    public String getString(int index) {
+        if (index >= fieldCount || fieldTypes[index] == ProtocolConstants.FIELD_NULL) {
+            return null;
+        }
+        if (fieldTypes[index] != ProtocolConstants.FIELD_STRING) {
+            throw new IllegalStateException("Pole " + index + " nie jest tekstem");
+        }
+        return stringFields[index];
+    }
+
+    public long getLong(int index) {
+        checkIndex(index);
+        if (fieldTypes[index] != ProtocolConstants.FIELD_LONG) {
+            throw new IllegalStateException("Pole " + index + " nie jest liczbą");
+        }
+        return longFields[index];
+    }
+
+    private int nextField(byte type) {
+        if (fieldCount == fieldTypes.length) {
+            int newSize = fieldTypes.length * 2;
+            fieldTypes = Arrays.copyOf(fieldTypes, newSize);
+            stringFields = Arrays.copyOf(stringFields, newSize);
+            longFields = Arrays.copyOf(longFields, newSize);
+        }
+        fieldTypes[fieldCount] = type;
+        return fieldCount++;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= fieldCount) {
+            throw new IndexOutOfBoundsException("Brak pola o indeksie " + index);
+        }
+    }
+
+    // -------------------- BODY ------------------------
+
+    /**
+     * Ustawia body bez kopiowania - tablica nie może być modyfikowana do czasu wysłania.
+     */
+    public Message setBody(byte[] data, int offset, int length) {
+        this.body = data == null ? EMPTY : data;
+        this.bodyOffset = offset;
+        this.bodyLength = data == null ? 0 : length;
+        return this;
+    }
+
+    public Message setBody(byte[] data) {
+        return setBody(data, 0, data == null ? 0 : data.length);
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public int getBodyOffset() {
+        return bodyOffset;
+    }
+
+    public int getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Kopia body jako osobna tablica (np. gdy dane mają przeżyć kolejny odczyt).
+     */
+    public byte[] copyBody() {
+        return Arrays.copyOfRange(body, bodyOffset, bodyOffset + bodyLength);
+    }
+
+    @Override
+    public String toString() {
+        return "Message[opcode=" + opcode + ", status=" + status + ", requestId=" + requestId
+                + ", fields=" + fieldCount + ", body=" + bodyLength + "]";
+    }
+}
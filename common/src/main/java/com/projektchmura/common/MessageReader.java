@@ -0,0 +1,137 @@
+package com.projektchmura.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Dekoder ramek protokołu. Jedna instancja na połączenie - bufor body jest
+ * używany ponownie dla kolejnych wiadomości (rośnie tylko, gdy przyjdzie większa ramka).
+ */
+public class MessageReader {
+
+    private final DataInputStream in;
+    private final int maxBodySize;
+    private final int maxFields;
+    private final int maxHeaderSize;
+    private byte[] bodyBuffer = new byte[ProtocolConstants.STREAM_BUFFER_SIZE];
+    private ChunkDecompressor decompressor;
+    // Bajty body odebranych ramek (do statystyk)
+    private long bodyBytesRead;
+
+    public MessageReader(InputStream in) {
+        this(in, ProtocolConstants.MAX_BODY_SIZE);
+    }
+
+    /**
+     * @param maxBodySize największe body, jakie czytnik przyjmie (ogranicza bufor na połączenie)
+     */
+    public MessageReader(InputStream in, int maxBodySize) {
+        this(in, maxBodySize, ProtocolConstants.MAX_FIELDS, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBodySize   największe body, jakie czytnik przyjmie
+     * @param maxFields     największa liczba pól nagłówka
+     * @param maxHeaderSize największy łączny rozmiar pól nagłówka w bajtach - sprawdzany przed wczytaniem
+     *                      każdego pola, więc nagłówek ponad limit nie zajmuje pamięci
+     */
+    public MessageReader(InputStream in, int maxBodySize, int maxFields, int maxHeaderSize) {
+        this.in = new DataInputStream(new BufferedInputStream(in, ProtocolConstants.STREAM_BUFFER_SIZE));
+        this.maxBodySize = maxBodySize;
+        this.maxFields = maxFields;
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Wczytuje kolejną ramkę do podanej wiadomości.
+     * Zwraca false, jeśli druga strona zamknęła połączenie na granicy ramki.
+     */
+    public boolean read(Message message) throws IOException {
+        int opcode = in.read();
+        if (opcode < 0) {
+            return false;
+        }
+        message.reset((byte) opcode);
+        message.setFlags(in.readByte());
+        message.setStatus(in.readByte());
+        message.setRequestId(in.readInt());
+
+        int count = in.readInt();
+        if (count < 0 || count > maxFields) {
+            throw new ProtocolException("Niepoprawna liczba pól: " + count);
+        }
+        long headerSize = 0;
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            headerSize++;
+            switch (type) {
+                case ProtocolConstants.FIELD_NULL:
+                    checkHeaderSize(headerSize);
+                    message.addString(null);
+                    break;
+                case ProtocolConstants.FIELD_STRING:
+                    // Długość tekstu podglądamy przed readUTF - odrzucamy, zanim powstanie String
+                    in.mark(2);
+                    headerSize += 2 + in.readUnsignedShort();
+                    in.reset();
+                    checkHeaderSize(headerSize);
+                    message.addString(in.readUTF());
+                    break;
+                case ProtocolConstants.FIELD_LONG:
+                    headerSize += 8;
+                    checkHeaderSize(headerSize);
+                    message.addLong(in.readLong());
+                    break;
+                default:
+                    throw new ProtocolException("Nieznany typ pola: " + type);
+            }
+        }
+
+        int length = in.readInt();
+        if (length < 0 || length > maxBodySize) {
+            throw new ProtocolException("Niepoprawna długość body: " + length);
+        }
+        if (length > bodyBuffer.length) {
+            bodyBuffer = new byte[length];
+        }
+        in.readFully(bodyBuffer, 0, length);
+        message.setBody(bodyBuffer, 0, length);
+        bodyBytesRead += length;
+        return true;
+    }
+
+    private void checkHeaderSize(long headerSize) throws ProtocolException {
+        if (headerSize > maxHeaderSize) {
+            throw new ProtocolException("Za duży nagłówek: ponad " + maxHeaderSize + " B");
+        }
+    }
+
+    /**
+     * Łączna liczba bajtów body odebranych ramek (dane plików przed dekompresją).
+     */
+    public long getBodyBytesRead() {
+        return bodyBytesRead;
+    }
+
+    /**
+     * Dekompresor ramek DATA z flagą FLAG_COMPRESSED (tworzony przy pierwszym użyciu).
+     */
+    ChunkDecompressor decompressor() {
+        if (decompressor == null) {
+            decompressor = new ChunkDecompressor();
+        }
+        return decompressor;
+    }
+
+    /**
+     * Jak {@link #read(Message)}, ale koniec strumienia traktuje jako błąd (oczekujemy odpowiedzi).
+     */
+    public void readExpected(Message message) throws IOException {
+        if (!read(message)) {
+            throw new EOFException("Połączenie zamknięte przed odebraniem odpowiedzi");
+        }
+    }
+}
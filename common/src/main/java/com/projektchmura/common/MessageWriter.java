@@ -0,0 +1,187 @@
+package com.projektchmura.common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Koder ramek protokołu. Jedna instancja na połączenie - bufor wyjściowy
+ * (i wewnętrzny bufor writeUTF) jest współdzielony między wiadomościami.
+ */
+public class MessageWriter {
+
+    private final DataOutputStream out;
+
+    // Kompresja ramek DATA - włączana po uzgodnieniu (OP_HELLO)
+    private boolean compression;
+    private ChunkCompressor compressor;
+    // Bajty body wysłanych ramek (do statystyk)
+    private long bodyBytesWritten;
+    // Liczba zapisanych ramek (także pustych)
+    private long framesWritten;
+
+    public MessageWriter(OutputStream out) {
+        this.out = new DataOutputStream(new BufferedOutputStream(out, ProtocolConstants.STREAM_BUFFER_SIZE));
+    }
+
+    /**
+     * Włącza kompresję fragmentów wysyłanych przez {@link ChunkOutputStream} (druga strona ją obsługuje).
+     */
+    public void setCompression(boolean enabled) {
+        this.compression = enabled;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compression;
+    }
+
+    /**
+     * Łączna liczba bajtów body wysłanych ramek (dane plików po kompresji).
+     */
+    public long getBodyBytesWritten() {
+        return bodyBytesWritten;
+    }
+
+    /**
+     * Łączna liczba zapisanych ramek - pozwala sprawdzić, czy na żądanie poszła już jakaś odpowiedź.
+     */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Kompresor połączenia (tworzony przy pierwszym użyciu).
+     */
+    ChunkCompressor compressor() {
+        if (compressor == null) {
+            compressor = new ChunkCompressor();
+        }
+        return compressor;
+    }
+
+    /**
+     * Zapisuje ramkę do bufora (bez flush).
+     */
+    public void write(Message message) throws IOException {
+        framesWritten++;
+        out.writeByte(message.getOpcode());
+        out.writeByte(message.getFlags());
+        out.writeByte(message.getStatus());
+        out.writeInt(message.getRequestId());
+
+        int count = message.getFieldCount();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            byte type = message.getFieldType(i);
+            out.writeByte(type);
+            if (type == ProtocolConstants.FIELD_STRING) {
+                out.writeUTF(message.getString(i));
+            } else if (type == ProtocolConstants.FIELD_LONG) {
+                out.writeLong(message.getLong(i));
+            }
+        }
+
+        out.writeInt(message.getBodyLength());
+        if (message.getBodyLength() > 0) {
+            out.write(message.getBody(), message.getBodyOffset(), message.getBodyLength());
+            bodyBytesWritten += message.getBodyLength();
+        }
+    }
+
+    /**
+     * Zapisuje ramkę i od razu wypycha ją do gniazda.
+     */
+    public void send(Message message) throws IOException {
+        write(message);
+        out.flush();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Wysyła fragment pliku jako ramki DATA bez kopiowania danych przez pamięć JVM:
+     * nagłówek ramki idzie przez bufor, a body przez {@link FileChannel#transferTo}
+     * bezpośrednio do kanału gniazda. Na końcu wysyłana jest pusta ramka kończąca.
+     */
+    public void transferData(int requestId, FileChannel source, long position, long count,
+                             WritableByteChannel target) throws IOException {
+        long end = position + count;
+        while (position < end) {
+            int length = (int) Math.min(ProtocolConstants.MAX_BODY_SIZE, end - position);
+            transferFrame(requestId, ProtocolConstants.FLAG_NONE, source, position, length, target);
+            position += length;
+        }
+        endData(requestId);
+    }
+
+    /**
+     * Wysyła jedną ramkę DATA z body czytanym z pliku przez transferTo (np. zapisany
+     * już skompresowany fragment - wtedy z flagą FLAG_COMPRESSED).
+     */
+    public void transferFrame(int requestId, byte flags, FileChannel source, long position, int length,
+                              WritableByteChannel target) throws IOException {
+        writeDataHeader(requestId, flags, length);
+        out.flush();
+
+        long sent = 0;
+        while (sent < length) {
+            long n = source.transferTo(position + sent, length - sent, target);
+            if (n <= 0 && position + sent >= source.size()) {
+                throw new EOFException("Plik skrócony w trakcie wysyłania");
+            }
+            sent += n;
+        }
+        bodyBytesWritten += length;
+    }
+
+    /**
+     * Jak {@link #transferData}, ale zawartość jest w buforze (np. bezpośrednim, poza stertą) -
+     * zapisywana prosto do kanału, bez kopiowania do bufora wyjściowego.
+     */
+    public void writeData(int requestId, ByteBuffer data, WritableByteChannel target) throws IOException {
+        while (data.hasRemaining()) {
+            ByteBuffer body = data.duplicate();
+            body.limit(body.position() + Math.min(ProtocolConstants.MAX_BODY_SIZE, body.remaining()));
+            data.position(body.limit());
+            writeFrame(requestId, ProtocolConstants.FLAG_NONE, body, target);
+        }
+        endData(requestId);
+    }
+
+    /**
+     * Wysyła jedną ramkę DATA z body z bufora (pozostałe bajty od position do limit).
+     */
+    public void writeFrame(int requestId, byte flags, ByteBuffer body, WritableByteChannel target) throws IOException {
+        writeDataHeader(requestId, flags, body.remaining());
+        out.flush();
+        bodyBytesWritten += body.remaining();
+        while (body.hasRemaining()) {
+            target.write(body);
+        }
+    }
+
+    /**
+     * Pusta ramka DATA kończąca strumień (z flush).
+     */
+    public void endData(int requestId) throws IOException {
+        writeDataHeader(requestId, ProtocolConstants.FLAG_NONE, 0);
+        out.flush();
+    }
+
+    private void writeDataHeader(int requestId, byte flags, int bodyLength) throws IOException {
+        framesWritten++;
+        out.writeByte(ProtocolConstants.OP_DATA);
+        out.writeByte(flags);
+        out.writeByte(ProtocolConstants.STATUS_OK);
+        out.writeInt(requestId);
+        out.writeInt(0);
+        out.writeInt(bodyLength);
+    }
+}
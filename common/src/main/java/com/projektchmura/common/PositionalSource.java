@@ -0,0 +1,35 @@
+package com.projektchmura.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Źródło danych z odczytem od dowolnej pozycji (bez wspólnego "kursora").
+ */
+public interface PositionalSource {
+
+    long size() throws IOException;
+
+    /**
+     * Czyta do len bajtów od pozycji position. Zwraca liczbę przeczytanych bajtów albo -1 za końcem danych.
+     */
+    int read(long position, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * Zwykły plik jako źródło pozycyjne.
+     */
+    static PositionalSource of(FileChannel channel) {
+        return new PositionalSource() {
+            @Override
+            public long size() throws IOException {
+                return channel.size();
+            }
+
+            @Override
+            public int read(long position, byte[] b, int off, int len) throws IOException {
+                return channel.read(ByteBuffer.wrap(b, off, len), position);
+            }
+        };
+    }
+}
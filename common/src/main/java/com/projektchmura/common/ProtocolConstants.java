@@ -0,0 +1,181 @@
+package com.projektchmura.common;
+
+/**
+ * Stałe binarnego protokołu klient-serwer.
+ *
+ * Każda ramka ma postać:
+ * <pre>
+ *   opcode:1 | flags:1 | status:1 | requestId:4 | fieldCount:4 | pola... | bodyLength:4 | body
+ * </pre>
+ * Pole zaczyna się od bajtu typu ({@link #FIELD_STRING}, {@link #FIELD_LONG}, {@link #FIELD_NULL}),
+ * po którym następuje wartość (UTF w formacie DataOutput albo 8 bajtów long).
+ */
+public final class ProtocolConstants {
+
+    private ProtocolConstants() {
+    }
+
+    public static final int DEFAULT_PORT = 9000;
+
+    // -------------------- KOMENDY (opcode) ------------------------
+    public static final byte OP_REGISTER = 1;
+    public static final byte OP_LOGIN = 2;
+    public static final byte OP_UPLOAD = 3;
+    /**
+     * Pobranie pliku. Pola: sessionId, nazwa, skrót wersji, którą klient już ma|null.
+     * Odpowiedź OK: rozmiar, skrót wersji|null, potem zawartość w ramkach DATA.
+     * {@link #STATUS_NOT_MODIFIED} - plik ma wciąż podaną wersję, zawartość nie jest wysyłana.
+     */
+    public static final byte OP_DOWNLOAD = 4;
+    public static final byte OP_LIST_FILES = 5;
+    /** Podtrzymanie połączenia - serwer odpowiada pustym OK. */
+    public static final byte OP_PING = 6;
+    /**
+     * Stronicowana lista plików. Pola: sessionId, cursor|null, prefix|null, sort, limit.
+     * Odpowiedź: nextCursor|null, potem trójki (nazwa, rozmiar, mtime).
+     */
+    public static final byte OP_LIST_FILES_PAGE = 7;
+    /** Wylogowanie - serwer usuwa sesję. Pola: sessionId. */
+    public static final byte OP_LOGOUT = 8;
+    /**
+     * Otwarcie wznawialnego uploadu. Pola: sessionId, nazwa, rozmiar. Odpowiedź: uploadId.
+     * Deklarowany rozmiar jest rezerwowany w limicie użytkownika do zakończenia uploadu.
+     */
+    public static final byte OP_UPLOAD_OPEN = 9;
+    /**
+     * Stan wznawialnego uploadu. Pola: sessionId, uploadId.
+     * Odpowiedź: zatwierdzony offset, rozmiar, 1 jeśli plik jest już zapisany (inaczej 0).
+     */
+    public static final byte OP_UPLOAD_STATUS = 10;
+    /**
+     * Dopisanie danych od zatwierdzonego offsetu. Pola: sessionId, uploadId, offset.
+     * Po CONTINUE klient wysyła ramki DATA do końca pliku; odpowiedź OK z offsetem oznacza zapisany plik.
+     * FAIL z polami (komunikat, offset) - offset nie zgadza się z zatwierdzonym. QUOTA_EXCEEDED - limity
+     * użytkownika zmieniły się od otwarcia i pliku nie zapisano (upload jest usuwany).
+     */
+    public static final byte OP_UPLOAD_APPEND = 11;
+    /**
+     * Sygnatury bloków bieżącej wersji pliku (synchronizacja delta). Pola: sessionId, nazwa.
+     * Odpowiedź: skrót wersji, potem ramki DATA z {@link BlockSignatures}.
+     */
+    public static final byte OP_FILE_SIGNATURES = 12;
+    /**
+     * Upload nowej wersji jako delta względem wersji bazowej.
+     * Pola: sessionId, nazwa, skrót wersji bazowej, rozmiar bloku, rozmiar nowej wersji, skrót nowej wersji.
+     * Po CONTINUE klient wysyła instrukcje {@link DeltaEncoder} w ramkach DATA.
+     * FAIL - wersja bazowa się zmieniła albo odtworzona zawartość się nie zgadza (trzeba wysłać całość).
+     */
+    public static final byte OP_UPLOAD_DELTA = 13;
+    /**
+     * Uzgodnienie kompresji na połączeniu. Pola: obsługiwane kodeki klienta (np. "deflate").
+     * Odpowiedź: wybrany kodek ({@link #CODEC_NONE} - bez kompresji); od tej chwili ramki DATA mogą mieć flagę FLAG_COMPRESSED.
+     * Węzeł klastra dodaje pole {@link #HELLO_PEER} + sekret klastra; przyjęty węzeł dostaje w odpowiedzi
+     * dodatkowe pole HELLO_PEER, a w jego żądaniach pole sessionId to od razu nazwa właściciela.
+     */
+    public static final byte OP_HELLO = 14;
+    /** Usunięcie pliku. Pola: sessionId, nazwa. NOT_FOUND - nie ma takiego pliku. */
+    public static final byte OP_DELETE = 15;
+    /** Statystyki serwera. Pola: sessionId. Odpowiedź: pary (nazwa metryki, wartość). */
+    public static final byte OP_STATS = 16;
+    /**
+     * Upload wielu plików jednym żądaniem. Pola: sessionId, potem pary (nazwa, rozmiar).
+     * Po CONTINUE klient wysyła kolejno zawartość plików - każdy jako ramki DATA zakończone pustą ramką.
+     * Odpowiedź OK: dla każdego pliku jedno pole - null (zapisany) albo komunikat błędu.
+     */
+    public static final byte OP_UPLOAD_BATCH = 17;
+    /**
+     * Odczyt fragmentu pliku. Pola: sessionId, nazwa, offset, długość, oczekiwany skrót wersji|null.
+     * Odpowiedź OK: skrót wersji, rozmiar całego pliku, potem ramki DATA z bajtami [offset, offset + długość)
+     * (obciętymi do końca pliku). FAIL - plik ma już inną wersję niż oczekiwana.
+     */
+    public static final byte OP_READ_RANGE = 18;
+    /**
+     * Układ klastra (bez sesji). Odpowiedź: liczba replik, potem adresy węzłów "host:port"
+     * (pusta lista - serwer działa sam). Podział plików liczy {@link ClusterRing}.
+     */
+    public static final byte OP_CLUSTER = 19;
+    /** Fragment danych strumieniowanego pliku; pusta ramka kończy strumień. */
+    public static final byte OP_DATA = 20;
+    /**
+     * Zajętość miejsca użytkownika. Pola: sessionId. Odpowiedź: liczba plików, bajty plików,
+     * bajty na dysku, limit bajtów, limit plików (limit 0 - brak) - patrz {@link StorageUsage}.
+     */
+    public static final byte OP_USAGE = 21;
+
+    // -------------------- FLAGI ramki ------------------------
+    public static final byte FLAG_NONE = 0;
+    /** Ramka jest odpowiedzią serwera na żądanie o tym samym requestId. */
+    public static final byte FLAG_RESPONSE = 0x01;
+    /** Body ramki DATA jest skompresowane (zlib) - po rozpakowaniu najwyżej CHUNK_SIZE bajtów. */
+    public static final byte FLAG_COMPRESSED = 0x02;
+
+    // -------------------- KODEKI kompresji ------------------------
+    public static final String CODEC_NONE = "none";
+    public static final String CODEC_DEFLATE = "deflate";
+
+    /** Pole OP_HELLO (z sekretem klastra) i odpowiedzi - połączenie między węzłami klastra. */
+    public static final String HELLO_PEER = "peer:";
+
+    // -------------------- STATUSY odpowiedzi ------------------------
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_FAIL = 1;
+    public static final byte STATUS_ERROR = 2;
+    public static final byte STATUS_UNAUTHORIZED = 3;
+    public static final byte STATUS_NOT_FOUND = 4;
+    public static final byte STATUS_UNKNOWN_COMMAND = 5;
+    /** Serwer przyjął nagłówek i czeka na ramki DATA (odpowiedź pośrednia). */
+    public static final byte STATUS_CONTINUE = 6;
+    /**
+     * Kolejka zadań użytkownika na serwerze jest pełna - żądanie nie zostało przyjęte.
+     * Pola: komunikat, sugerowany czas (ms) przed ponowieniem.
+     */
+    public static final byte STATUS_BUSY = 7;
+    /**
+     * Plik należy do innego węzła klastra - żądanie trzeba wysłać tam. Pola: komunikat, adres węzła "host:port".
+     */
+    public static final byte STATUS_REDIRECT = 8;
+    /**
+     * Zapis przekroczyłby limit miejsca albo liczby plików użytkownika - odrzucony przed przesłaniem danych.
+     * Pola: komunikat.
+     */
+    public static final byte STATUS_QUOTA_EXCEEDED = 9;
+    /**
+     * Odpowiedź na warunkowe DOWNLOAD: plik ma wersję o skrócie podanym przez klienta - bez ramek DATA.
+     * Pola: skrót wersji.
+     */
+    public static final byte STATUS_NOT_MODIFIED = 10;
+
+    // -------------------- TYPY pól nagłówka ------------------------
+    public static final byte FIELD_NULL = 0;
+    public static final byte FIELD_STRING = 1;
+    public static final byte FIELD_LONG = 2;
+
+    // -------------------- SORTOWANIE listy plików ------------------------
+    public static final int SORT_NAME_ASC = 0;
+    public static final int SORT_NAME_DESC = 1;
+    public static final int SORT_MTIME_ASC = 2;
+    public static final int SORT_MTIME_DESC = 3;
+
+    // -------------------- LIMITY ------------------------
+    /** Maksymalna liczba pól w jednej ramce (ochrona przed złośliwym nagłówkiem). */
+    public static final int MAX_FIELDS = 1 << 20;
+    /** Maksymalna liczba pól w żądaniu przyjmowanym przez serwer. */
+    public static final int MAX_REQUEST_FIELDS = 512;
+    /** Maksymalny rozmiar body jednej ramki (także ramek DATA wysyłanych przez transferTo). */
+    public static final int MAX_BODY_SIZE = 1024 * 1024;
+    /** Rozmiar fragmentu przy strumieniowaniu plików (ramki DATA). */
+    public static final int CHUNK_SIZE = 64 * 1024;
+    /** Limit body dla żądań przyjmowanych przez serwer - żadne żądanie nie niesie więcej niż jeden fragment. */
+    public static final int MAX_REQUEST_BODY_SIZE = CHUNK_SIZE;
+    /**
+     * Limit łącznego rozmiaru pól żądania (typ, długość i treść każdego pola) - razem z limitem body
+     * ogranicza pamięć, jaką jedno żądanie zajmuje na serwerze.
+     */
+    public static final int MAX_REQUEST_HEADER_SIZE = MAX_REQUEST_BODY_SIZE;
+    /** Maksymalna liczba plików w jednym UPLOAD_BATCH (sessionId i para pól na plik mieszczą się w MAX_REQUEST_FIELDS). */
+    public static final int MAX_BATCH_FILES = (MAX_REQUEST_FIELDS - 1) / 2;
+    /** Maksymalna liczba plików na jednej stronie listy. */
+    public static final int MAX_PAGE_SIZE = 1000;
+    /** Rozmiar buforów strumieni po obu stronach połączenia. */
+    public static final int STREAM_BUFFER_SIZE = 64 * 1024;
+}
@@ -0,0 +1,15 @@
+package com.projektchmura.common;
+
+import java.io.IOException;
+
+/**
+ * Błąd formatu ramki (np. nieznany typ pola, przekroczony limit).
+ */
+public class ProtocolException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,48 @@
+package com.projektchmura.common;
+
+/**
+ * Słaba suma kontrolna bloku w stylu rsync (dwie sumy 16-bitowe), którą można przesuwać
+ * o jeden bajt w O(1) - pozwala szukać znanych bloków na każdej pozycji pliku.
+ */
+public final class RollingChecksum {
+
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Liczy sumę od nowa dla okna buf[off, off + len).
+     */
+    public void reset(byte[] buf, int off, int len) {
+        int sa = 0;
+        int sb = 0;
+        for (int i = 0; i < len; i++) {
+            sa += buf[off + i] & 0xFF;
+            sb += (len - i) * (buf[off + i] & 0xFF);
+        }
+        a = sa & 0xFFFF;
+        b = sb & 0xFFFF;
+        length = len;
+    }
+
+    /**
+     * Przesuwa okno o jeden bajt: out wypada z początku, in dochodzi na końcu.
+     */
+    public void roll(byte out, byte in) {
+        a = (a - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        b = (b - length * (out & 0xFF) + a) & 0xFFFF;
+    }
+
+    public int value() {
+        return (b << 16) | a;
+    }
+
+    /**
+     * Suma dla pojedynczego bloku.
+     */
+    public static int of(byte[] buf, int off, int len) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(buf, off, len);
+        return checksum.value();
+    }
+}
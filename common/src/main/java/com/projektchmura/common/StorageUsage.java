@@ -0,0 +1,52 @@
+package com.projektchmura.common;
+
+/**
+ * Zajętość miejsca użytkownika zwracana przez OP_USAGE, razem z jego limitami (0 - bez limitu).
+ */
+public final class StorageUsage {
+
+    private final long files;
+    private final long logicalBytes;
+    private final long physicalBytes;
+    private final long quotaBytes;
+    private final long quotaFiles;
+
+    public StorageUsage(long files, long logicalBytes, long physicalBytes, long quotaBytes, long quotaFiles) {
+        this.files = files;
+        this.logicalBytes = logicalBytes;
+        this.physicalBytes = physicalBytes;
+        this.quotaBytes = quotaBytes;
+        this.quotaFiles = quotaFiles;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    /** Suma rozmiarów plików użytkownika. */
+    public long getLogicalBytes() {
+        return logicalBytes;
+    }
+
+    /**
+     * Miejsce na dysku (po kompresji) blobów, które użytkownik zapisał jako pierwszy -
+     * zawartość współdzielona z innymi jest liczona raz.
+     */
+    public long getPhysicalBytes() {
+        return physicalBytes;
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public long getQuotaFiles() {
+        return quotaFiles;
+    }
+
+    @Override
+    public String toString() {
+        return files + (quotaFiles > 0 ? "/" + quotaFiles : "") + " plików, "
+                + logicalBytes + (quotaBytes > 0 ? "/" + quotaBytes : "") + " B (na dysku " + physicalBytes + " B)";
+    }
+}
@@ -0,0 +1,194 @@
+package com.projektchmura.loadgen;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Ustawienia generatora obciążenia czytane z właściwości systemowych (-Dchmurka.load.xxx=...).
+ */
+public final class LoadConfig {
+
+    private LoadConfig() {
+    }
+
+    // -------------------- SERWER ------------------------
+
+    public static String host() {
+        return System.getProperty("chmurka.load.host", "127.0.0.1");
+    }
+
+    public static int port() {
+        return Integer.getInteger("chmurka.load.port", ProtocolConstants.DEFAULT_PORT);
+    }
+
+    // -------------------- UŻYTKOWNICY ------------------------
+
+    /** Liczba symulowanych użytkowników (każdy z własnym ClientHandler). */
+    public static int users() {
+        return Integer.getInteger("chmurka.load.users", 1000);
+    }
+
+    /** Początek nazw kont - konta istniejące po poprzednim przebiegu są używane ponownie. */
+    public static String userPrefix() {
+        return System.getProperty("chmurka.load.userPrefix", "load-");
+    }
+
+    /** Ile połączeń naraz może mieć jeden użytkownik (kolejne jego operacje czekają). */
+    public static int connectionsPerUser() {
+        return Integer.getInteger("chmurka.load.connectionsPerUser", 2);
+    }
+
+    /** Ile plików każdy użytkownik wysyła przed pomiarem - żeby DOWNLOAD i LIST_FILES miały co zwracać. */
+    public static int seedFiles() {
+        return Integer.getInteger("chmurka.load.seedFiles", 2);
+    }
+
+    /** Ile różnych nazw plików ma użytkownik - kolejne uploady nadpisują te same pliki. */
+    public static int filesPerUser() {
+        return Integer.getInteger("chmurka.load.filesPerUser", 20);
+    }
+
+    // -------------------- OBCIĄŻENIE ------------------------
+
+    /** Średnia liczba operacji na sekundę (wszystkich użytkowników razem), niezależna od czasów odpowiedzi. */
+    public static double rate() {
+        return Double.parseDouble(System.getProperty("chmurka.load.rate", "200"));
+    }
+
+    /** Rozkład odstępów między operacjami: "poisson" (wykładniczy) albo "uniform" (stały). */
+    public static boolean poissonArrivals() {
+        return !"uniform".equalsIgnoreCase(System.getProperty("chmurka.load.arrivals", "poisson"));
+    }
+
+    /** Czas pomiaru w sekundach. */
+    public static int durationSeconds() {
+        return Integer.getInteger("chmurka.load.durationSec", 60);
+    }
+
+    /** Rozgrzewka (sekundy) przed pomiarem - te operacje nie trafiają do raportu. */
+    public static int warmupSeconds() {
+        return Integer.getInteger("chmurka.load.warmupSec", 5);
+    }
+
+    /** Co ile sekund wypisywać bieżącą przepustowość (0 - tylko raport końcowy). */
+    public static int reportSeconds() {
+        return Integer.getInteger("chmurka.load.reportSec", 10);
+    }
+
+    /**
+     * Limit operacji w toku. Po jego osiągnięciu kolejne czekają na start, ale ich czas i tak
+     * liczy się od zaplanowanej chwili.
+     */
+    public static int maxInFlight() {
+        return Integer.getInteger("chmurka.load.maxInFlight", 10_000);
+    }
+
+    /**
+     * Czy wyciszyć System.out klienta (ClientHandler wypisuje np. każdą nową sesję) - raport idzie wtedy
+     * tylko do pierwotnego strumienia.
+     */
+    public static boolean quiet() {
+        return Boolean.parseBoolean(System.getProperty("chmurka.load.quiet", "true"));
+    }
+
+    public static long seed() {
+        return Long.getLong("chmurka.load.seed", System.nanoTime());
+    }
+
+    /**
+     * Udział komend w obciążeniu: "register=1,login=2,list=20,upload=20,download=57".
+     * Brakujące komendy mają wagę 0.
+     */
+    public static Map<Command, Integer> mix() {
+        Map<String, Integer> weights = weights("chmurka.load.mix", "register=1,login=2,list=20,upload=20,download=57");
+        Map<Command, Integer> mix = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            mix.put(Command.parse(weight.getKey()), weight.getValue());
+        }
+        return mix;
+    }
+
+    /**
+     * Rozkład rozmiarów wysyłanych plików: "rozmiar=waga,...", rozmiar w bajtach albo z przyrostkiem k/m.
+     */
+    public static Map<Long, Integer> fileSizes() {
+        Map<String, Integer> weights = weights("chmurka.load.sizes", "4k=60,64k=30,1m=9,8m=1");
+        Map<Long, Integer> sizes = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> weight : weights.entrySet()) {
+            sizes.put(parseSize(weight.getKey()), weight.getValue());
+        }
+        return sizes;
+    }
+
+    /**
+     * Komenda obciążenia - nazwa używana w chmurka.load.mix i w raporcie.
+     */
+    public enum Command {
+        REGISTER("register"),
+        LOGIN("login"),
+        LIST_FILES("list"),
+        UPLOAD("upload"),
+        DOWNLOAD("download");
+
+        private final String key;
+
+        Command(String key) {
+            this.key = key;
+        }
+
+        static Command parse(String key) {
+            for (Command command : values()) {
+                if (command.key.equalsIgnoreCase(key)) {
+                    return command;
+                }
+            }
+            throw new IllegalArgumentException("Nieznana komenda obciążenia: " + key);
+        }
+    }
+
+    private static Map<String, Integer> weights(String property, String defaults) {
+        String value = System.getProperty(property, defaults);
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int eq = item.lastIndexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Brak wagi w " + property + ": " + item);
+            }
+            int weight;
+            try {
+                weight = Integer.parseInt(item.substring(eq + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Zła waga w " + property + ": " + item);
+            }
+            if (weight < 0) {
+                throw new IllegalArgumentException("Ujemna waga w " + property + ": " + item);
+            }
+            weights.put(item.substring(0, eq).trim(), weight);
+        }
+        if (weights.values().stream().noneMatch(w -> w > 0)) {
+            throw new IllegalArgumentException("Żadna pozycja " + property + " nie ma dodatniej wagi: " + value);
+        }
+        return weights;
+    }
+
+    private static long parseSize(String value) {
+        String lower = value.toLowerCase();
+        long unit = 1;
+        if (lower.endsWith("k")) {
+            unit = 1024;
+        } else if (lower.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        try {
+            return Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Zły rozmiar pliku w chmurka.load.sizes: " + value);
+        }
+    }
+}
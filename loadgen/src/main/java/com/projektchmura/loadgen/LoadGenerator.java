@@ -0,0 +1,246 @@
+package com.projektchmura.loadgen;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generator obciążenia: tysiące symulowanych użytkowników (każdy z własnym ClientHandler) na wątkach
+ * wirtualnych (Java 21+). Operacje startują w otwartej pętli - według harmonogramu o zadanej średniej
+ * częstości (chmurka.load.rate), niezależnie od tego, jak szybko serwer odpowiada. Czas operacji jest
+ * liczony od zaplanowanego startu, więc zator po stronie serwera nie znika z percentyli.
+ * Ustawienia - {@link LoadConfig}.
+ */
+public final class LoadGenerator {
+
+    // Po końcu pomiaru czekamy najwyżej tyle na operacje w toku
+    private static final long DRAIN_TIMEOUT_SECONDS = 120;
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = System.out;
+        if (LoadConfig.quiet()) {
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+
+        long seed = LoadConfig.seed();
+        Random random = new Random(seed);
+        Weighted<LoadConfig.Command> mix = new Weighted<>(LoadConfig.mix());
+        Weighted<Long> sizes = new Weighted<>(LoadConfig.fileSizes());
+        SimulatedUser.preparePayload(Collections.max(LoadConfig.fileSizes().keySet()), random);
+
+        out.println("Serwer: " + LoadConfig.host() + ":" + LoadConfig.port() + ", użytkownicy: " + LoadConfig.users()
+                + ", " + LoadConfig.rate() + " op/s, mix: " + LoadConfig.mix() + ", rozmiary: " + LoadConfig.fileSizes()
+                + ", seed: " + seed);
+        ExecutorService executor = newExecutor(out);
+        Path downloadDir = Files.createTempDirectory("chmurka-load");
+        List<SimulatedUser> users = new ArrayList<>();
+        try {
+            users = setUp(executor, downloadDir, sizes, out);
+            if (users.isEmpty()) {
+                out.println("Żaden użytkownik nie zalogował się - koniec.");
+                return;
+            }
+            run(executor, users, mix, sizes, random, out);
+        } finally {
+            for (SimulatedUser user : users) {
+                user.close();
+            }
+            executor.shutdownNow();
+            Files.deleteIfExists(downloadDir);
+        }
+    }
+
+    /**
+     * Rejestruje (jeśli trzeba) i loguje wszystkich użytkowników, a każdy wysyła pliki startowe.
+     * Zwraca zalogowanych.
+     */
+    private static List<SimulatedUser> setUp(ExecutorService executor, Path downloadDir, Weighted<Long> sizes,
+                                             PrintStream out) throws Exception {
+        long started = System.nanoTime();
+        List<Future<SimulatedUser>> ready = new ArrayList<>();
+        for (int i = 0; i < LoadConfig.users(); i++) {
+            String name = LoadConfig.userPrefix() + i;
+            ready.add(executor.submit(() -> {
+                SimulatedUser user = new SimulatedUser(name, LoadConfig.host(), LoadConfig.port(),
+                        LoadConfig.connectionsPerUser(), downloadDir);
+                // Konto z poprzedniego przebiegu - rejestracja się nie uda, logowanie tak
+                user.register(name);
+                if (!user.login()) {
+                    user.close();
+                    return null;
+                }
+                Random random = ThreadLocalRandom.current();
+                for (int f = 0; f < LoadConfig.seedFiles(); f++) {
+                    user.upload(f % LoadConfig.filesPerUser(), sizes.pick(random));
+                }
+                return user;
+            }));
+        }
+        List<SimulatedUser> users = new ArrayList<>();
+        for (Future<SimulatedUser> user : ready) {
+            if (user.get() != null) {
+                users.add(user.get());
+            }
+        }
+        out.printf("Przygotowano użytkowników: %d (nieudane logowania: %d) w %.1f s%n",
+                users.size(), ready.size() - users.size(), (System.nanoTime() - started) / 1e9);
+        return users;
+    }
+
+    /**
+     * Pętla otwarta: kolejne operacje startują w zaplanowanych chwilach. Gdy generator nie nadąża
+     * (albo w toku jest maxInFlight operacji), operacja startuje później, ale jej czas liczy się od planu.
+     */
+    private static void run(ExecutorService executor, List<SimulatedUser> users, Weighted<LoadConfig.Command> mix,
+                            Weighted<Long> sizes, Random random, PrintStream out) throws InterruptedException {
+        int maxInFlight = Math.max(1, LoadConfig.maxInFlight());
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicLong skipped = new AtomicLong();
+        AtomicLong registrations = new AtomicLong();
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        double meanIntervalNanos = 1e9 / LoadConfig.rate();
+        boolean poisson = LoadConfig.poissonArrivals();
+
+        LoadReport warmup = new LoadReport();
+        LoadReport report = new LoadReport();
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(LoadConfig.warmupSeconds());
+        long end = measureStart + TimeUnit.SECONDS.toNanos(LoadConfig.durationSeconds());
+        long reportInterval = TimeUnit.SECONDS.toNanos(LoadConfig.reportSeconds());
+        long nextReport = reportInterval > 0 ? measureStart + reportInterval : Long.MAX_VALUE;
+        if (LoadConfig.warmupSeconds() > 0) {
+            out.println("Rozgrzewka: " + LoadConfig.warmupSeconds() + " s");
+        }
+
+        double next = start;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (now >= nextReport) {
+                report.printInterval(out, (now - measureStart) / 1_000_000_000L, LoadConfig.reportSeconds(),
+                        maxInFlight - inFlight.availablePermits());
+                nextReport += reportInterval;
+            }
+            if (next > now) {
+                LockSupport.parkNanos((long) next - now);
+                continue;
+            }
+            inFlight.acquire();
+
+            long intended = (long) next;
+            LoadReport target = intended < measureStart ? warmup : report;
+            LoadConfig.Command command = mix.pick(random);
+            SimulatedUser user = users.get(random.nextInt(users.size()));
+            int fileIndex = random.nextInt(Math.max(1, LoadConfig.filesPerUser()));
+            long size = sizes.pick(random);
+            executor.execute(() -> {
+                try {
+                    long started = System.nanoTime();
+                    Boolean ok;
+                    switch (command) {
+                        case REGISTER:
+                            ok = user.register(LoadConfig.userPrefix() + "new-" + runId + "-"
+                                    + registrations.incrementAndGet());
+                            break;
+                        case LOGIN:
+                            ok = user.login();
+                            break;
+                        case LIST_FILES:
+                            ok = user.listFiles();
+                            break;
+                        case UPLOAD:
+                            ok = user.upload(fileIndex, size);
+                            break;
+                        default:
+                            ok = user.download(ThreadLocalRandom.current());
+                    }
+                    if (ok == null) {
+                        skipped.incrementAndGet();
+                    } else {
+                        target.record(command, intended, started, System.nanoTime(), ok);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    target.record(command, intended, intended, System.nanoTime(), false);
+                } finally {
+                    inFlight.release();
+                }
+            });
+            next += poisson ? -Math.log(1 - random.nextDouble()) * meanIntervalNanos : meanIntervalNanos;
+        }
+
+        out.println("Koniec harmonogramu - czekam na operacje w toku: " + (maxInFlight - inFlight.availablePermits()));
+        if (!inFlight.tryAcquire(maxInFlight, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            out.println("Nie wszystkie operacje zakończyły się w " + DRAIN_TIMEOUT_SECONDS + " s - raport bez nich.");
+        }
+        // Przepustowość liczona do końca ostatniej operacji - przy przeciążeniu to mniej niż zadana częstość
+        report.print(out, (Math.max(end, System.nanoTime()) - measureStart) / 1e9, skipped.get());
+    }
+
+    /**
+     * Na Java 21+ wątek wirtualny na operację, w przeciwnym razie wątki platformowe tworzone na żądanie
+     * (liczbę operacji naraz i tak ogranicza maxInFlight).
+     */
+    private static ExecutorService newExecutor(PrintStream out) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            out.println("Operacje: wątki wirtualne.");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // JVM bez wątków wirtualnych - zostajemy przy wątkach platformowych
+        }
+        out.println("Operacje: wątki platformowe (JVM bez wątków wirtualnych).");
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "load-operation");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Losowanie z wagami (mix komend, rozkład rozmiarów).
+     */
+    private static final class Weighted<T> {
+        private final List<T> items = new ArrayList<>();
+        private final int[] cumulative;
+        private final int total;
+
+        Weighted(Map<T, Integer> weights) {
+            cumulative = new int[weights.size()];
+            int sum = 0;
+            for (Map.Entry<T, Integer> weight : weights.entrySet()) {
+                sum += weight.getValue();
+                cumulative[items.size()] = sum;
+                items.add(weight.getKey());
+            }
+            total = sum;
+        }
+
+        T pick(Random random) {
+            int value = random.nextInt(total);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (value < cumulative[i]) {
+                    return items.get(i);
+                }
+            }
+            return items.get(items.size() - 1);
+        }
+    }
+}
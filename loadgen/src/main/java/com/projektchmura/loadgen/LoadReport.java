@@ -0,0 +1,102 @@
+package com.projektchmura.loadgen;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.projektchmura.common.LatencyHistogram;
+
+/**
+ * Wyniki pomiaru dla każdej komendy. Czas odpowiedzi liczony jest od zaplanowanej chwili startu
+ * operacji (korekta coordinated omission - opóźnienie kolejnych operacji przez wolny serwer
+ * albo przeciążony generator też jest widoczne), czas obsługi - od faktycznego wysłania.
+ */
+final class LoadReport {
+
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private static final class CommandStats {
+        final LatencyHistogram response;
+        final LatencyHistogram service;
+        final LongAdder errors = new LongAdder();
+        // Do raportów okresowych
+        final LongAdder done = new LongAdder();
+
+        CommandStats(String name) {
+            response = new LatencyHistogram(name + ".response");
+            service = new LatencyHistogram(name + ".service");
+        }
+    }
+
+    private final Map<LoadConfig.Command, CommandStats> stats = new EnumMap<>(LoadConfig.Command.class);
+    // Ile operacji wystartowało później niż zaplanowano o ponad 1 ms (generator albo limit w toku nie nadążał)
+    private final LongAdder lateStarts = new LongAdder();
+
+    LoadReport() {
+        for (LoadConfig.Command command : LoadConfig.Command.values()) {
+            stats.put(command, new CommandStats(command.name()));
+        }
+    }
+
+    /**
+     * @param intended zaplanowany start (System.nanoTime())
+     * @param started  faktyczny start
+     */
+    void record(LoadConfig.Command command, long intended, long started, long finished, boolean ok) {
+        CommandStats s = stats.get(command);
+        s.response.record((finished - intended) / 1000);
+        s.service.record((finished - started) / 1000);
+        s.done.increment();
+        if (!ok) {
+            s.errors.increment();
+        }
+        if (started - intended > 1_000_000) {
+            lateStarts.increment();
+        }
+    }
+
+    /**
+     * Krótka linia postępu: operacje na sekundę od poprzedniego wywołania i błędy.
+     */
+    void printInterval(PrintStream out, long elapsedSeconds, double intervalSeconds, int inFlight) {
+        StringBuilder line = new StringBuilder(String.format("[%4d s] w toku: %d", elapsedSeconds, inFlight));
+        for (Map.Entry<LoadConfig.Command, CommandStats> entry : stats.entrySet()) {
+            long done = entry.getValue().done.sumThenReset();
+            if (done > 0) {
+                line.append(String.format(", %s %.1f/s", entry.getKey(), done / intervalSeconds));
+            }
+        }
+        out.println(line);
+    }
+
+    void print(PrintStream out, double seconds, long skipped) {
+        out.println();
+        out.printf("Czas pomiaru: %.1f s, operacje wystartowane z opóźnieniem > 1 ms: %d, pominięte: %d%n",
+                seconds, lateStarts.sum(), skipped);
+        out.println("Czasy w ms. Odpowiedź - od zaplanowanego startu (z korektą coordinated omission), obsługa - od wysłania.");
+        out.printf("%-11s %9s %7s %9s | %9s %9s %9s %9s %9s | %9s %9s%n",
+                "komenda", "liczba", "błędy", "op/s",
+                "p50", "p90", "p99", "p99.9", "max", "obs. p50", "obs. p99");
+        for (Map.Entry<LoadConfig.Command, CommandStats> entry : stats.entrySet()) {
+            CommandStats s = entry.getValue();
+            long count = s.response.getCount();
+            if (count == 0) {
+                continue;
+            }
+            StringBuilder line = new StringBuilder(String.format("%-11s %9d %7d %9.1f |",
+                    entry.getKey(), count, s.errors.sum(), count / seconds));
+            for (double percentile : PERCENTILES) {
+                line.append(String.format(" %9s", millis(s.response.getPercentileMicros(percentile))));
+            }
+            line.append(String.format(" %9s |", millis(s.response.getMaxMicros())));
+            line.append(String.format(" %9s %9s",
+                    millis(s.service.getPercentileMicros(0.5)), millis(s.service.getPercentileMicros(0.99))));
+            out.println(line);
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+}
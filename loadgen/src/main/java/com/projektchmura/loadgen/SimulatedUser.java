@@ -0,0 +1,129 @@
+package com.projektchmura.loadgen;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.projektchmura.client.ClientHandler;
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Jeden symulowany użytkownik: własny ClientHandler (sesja i pula połączeń) oraz pliki,
+ * które już wysłał. Operacje zwracają true, jeśli serwer je wykonał.
+ */
+final class SimulatedUser implements AutoCloseable {
+
+    static final String PASSWORD = "load";
+
+    // Wspólne losowe dane wszystkich uploadów; unikalny nagłówek sprawia, że serwer nie zdeduplikuje plików
+    private static volatile byte[] payload = new byte[0];
+    private static final int HEADER_SIZE = 16;
+    private static final AtomicLong uploads = new AtomicLong();
+
+    private final String name;
+    private final ClientHandler handler;
+    private final Path downloadDir;
+    // Nazwy plików zapisanych na serwerze (do pobierania)
+    private final List<String> files = new ArrayList<>();
+
+    SimulatedUser(String name, String host, int port, int connections, Path downloadDir) {
+        this.name = name;
+        this.handler = new ClientHandler(host, port, connections);
+        this.downloadDir = downloadDir;
+    }
+
+    /**
+     * Przygotowuje wspólne dane uploadów - tyle, ile największy plik z rozkładu.
+     */
+    static void preparePayload(long maxSize, Random random) {
+        byte[] data = new byte[(int) Math.max(HEADER_SIZE, maxSize)];
+        random.nextBytes(data);
+        payload = data;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Rejestruje konto (swoje albo nowe) przez połączenie tego użytkownika.
+     */
+    boolean register(String account) {
+        return "OK".equals(handler.registerUser(account, PASSWORD));
+    }
+
+    boolean login() {
+        return "OK".equals(handler.loginUser(name, PASSWORD));
+    }
+
+    /**
+     * Pierwsza strona listy plików (LIST_FILES_PAGE - jak listowanie w interfejsie, ale bez pobierania wszystkich stron).
+     */
+    boolean listFiles() {
+        FilePage page = handler.listFilesPage(null, null, ProtocolConstants.SORT_NAME_ASC, ProtocolConstants.MAX_PAGE_SIZE);
+        return page != null;
+    }
+
+    boolean upload(int fileIndex, long size) {
+        String fileName = "file-" + fileIndex;
+        long id = uploads.incrementAndGet();
+        byte[] header = ByteBuffer.allocate(HEADER_SIZE).putLong(id).putLong(System.nanoTime()).array();
+        int headerBytes = (int) Math.min(HEADER_SIZE, size);
+        InputStream content = new SequenceInputStream(new ByteArrayInputStream(header, 0, headerBytes),
+                new ByteArrayInputStream(payload, 0, (int) (size - headerBytes)));
+        if (!"UPLOAD_OK".equals(handler.uploadFile(fileName, content, size))) {
+            return false;
+        }
+        synchronized (files) {
+            if (!files.contains(fileName)) {
+                files.add(fileName);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pobiera losowy z wysłanych plików; bez żadnego pliku - nie ma czego mierzyć (null).
+     */
+    Boolean download(Random random) {
+        String fileName;
+        synchronized (files) {
+            if (files.isEmpty()) {
+                return null;
+            }
+            fileName = files.get(random.nextInt(files.size()));
+        }
+        // Osobny plik docelowy (i jego .part) dla każdego pobrania - równoległe pobrania nie mogą sobie przeszkadzać
+        Path target;
+        try {
+            target = Files.createTempFile(downloadDir, name + "-", ".bin");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+        try {
+            return handler.downloadFile(fileName, target);
+        } finally {
+            try {
+                Files.deleteIfExists(target);
+                Files.deleteIfExists(target.resolveSibling(target.getFileName() + ".part"));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        handler.close();
+    }
+}
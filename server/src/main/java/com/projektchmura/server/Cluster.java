@@ -0,0 +1,500 @@
+package com.projektchmura.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.projektchmura.common.ChunkOutputStream;
+import com.projektchmura.common.ClusterRing;
+import com.projektchmura.common.FileInfo;
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.LatencyHistogram;
+import com.projektchmura.common.Message;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.common.ProtocolException;
+
+/**
+ * Tryb klastra: kilka serwerów, każdy z własną bazą i magazynem (ServerConfig.clusterNodes).
+ *
+ * Plik (właściciel, nazwa) należy do kilku kolejnych węzłów na pierścieniu ({@link ClusterRing}).
+ * Zapisy i usunięcia przyjmuje tylko pierwszy z nich - węzeł główny; odczyt obsłuży każdy właściciel.
+ * Inny węzeł odpowiada REDIRECT z adresem węzła głównego. Po zmianie pliku węzeł główny przekazuje jego
+ * bieżący stan replikom - w tle, zwykłymi komendami (UPLOAD, DELETE) na uwierzytelnionym połączeniu węzła.
+ * Dla każdej repliki jest jeden wątek replikacji (kolejność zmian zachowana), a nieudane próby są ponawiane
+ * z rosnącym odstępem. Skoro zmiany idą tylko od węzła głównego, repliki nie rozjadą się trwale.
+ * Konta użytkowników są zakładane na wszystkich węzłach, a listy plików zbierane ze wszystkich węzłów
+ * (równolegle) - o obecności pliku rozstrzyga jego węzeł główny.
+ */
+public class Cluster {
+
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 60_000;
+    // Po nieudanym połączeniu węzeł jest pomijany przy listowaniu przez ten czas
+    private static final long DOWN_MS = 10_000;
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    // Jak długo rejestracja czeka na założenie konta na innych węzłach (potem kończy się w tle)
+    private static final long REGISTER_WAIT_MS = 5000;
+    // Jak długo listowanie czeka na pozostałe węzły - spóźnione są pomijane
+    private static final long LIST_WAIT_MS = 2000;
+
+    // Wątki odpytujące węzły o listy plików (wszystkie węzły naraz)
+    private static final ExecutorService LISTING = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "cluster-listing");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final LongAdder REPLICATED = Metrics.counter("cluster.replication.done");
+    private static final LongAdder REPLICATION_FAILED = Metrics.counter("cluster.replication.failed");
+    private static final LatencyHistogram REPLICATION_TIME = Metrics.histogram("cluster.replication");
+    private static final AtomicInteger PENDING = new AtomicInteger();
+
+    /**
+     * Inny węzeł klastra: kolejka replikacji i wolne połączenia.
+     */
+    private static final class Peer {
+        final String address;
+        final ScheduledExecutorService replication;
+        final Deque<PeerConnection> idle = new ArrayDeque<>();
+        // Pliki czekające w kolejce - kolejna zmiana tego samego pliku nie dodaje drugiego zadania
+        final Set<String> queued = ConcurrentHashMap.newKeySet();
+        volatile long downUntil;
+
+        Peer(String address) {
+            this.address = address;
+            this.replication = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "cluster-replication-" + address);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private interface PeerCall<T> {
+        T call(PeerConnection connection) throws IOException;
+    }
+
+    private static volatile ClusterRing ring;
+    private static String self;
+    private static String secret;
+    // Zmieniana w init/shutdown, czytana przez wątki żądań
+    private static final Map<String, Peer> peers = new ConcurrentHashMap<>();
+
+    public static synchronized void init() {
+        List<String> nodes = ServerConfig.clusterNodes();
+        if (nodes.isEmpty()) {
+            ring = null;
+            return;
+        }
+        self = ServerConfig.clusterSelf();
+        secret = ServerConfig.clusterSecret();
+        if (self == null || !nodes.contains(self)) {
+            throw new IllegalStateException("chmurka.cluster.self musi być jednym z węzłów: " + nodes);
+        }
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalStateException("Tryb klastra wymaga chmurka.cluster.secret");
+        }
+        for (String node : nodes) {
+            if (!node.equals(self)) {
+                peers.put(node, new Peer(node));
+            }
+        }
+        ring = new ClusterRing(nodes, ServerConfig.clusterReplicas());
+        System.out.println("Węzeł klastra " + self + " (węzły: " + nodes + ", repliki: " + ring.getReplicas() + ")");
+    }
+
+    public static synchronized void shutdown() {
+        for (Peer peer : peers.values()) {
+            peer.replication.shutdownNow();
+            synchronized (peer.idle) {
+                for (PeerConnection conn : peer.idle) {
+                    conn.close();
+                }
+                peer.idle.clear();
+            }
+        }
+        peers.clear();
+        PENDING.set(0);
+        ring = null;
+    }
+
+    public static boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * Układ klastra albo null, gdy serwer działa sam.
+     */
+    public static ClusterRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Liczba zmian czekających na wysłanie do innych węzłów.
+     */
+    public static int getPendingReplications() {
+        return PENDING.get();
+    }
+
+    /**
+     * Czy pole HELLO (bez prefiksu HELLO_PEER) to sekret tego klastra.
+     */
+    static boolean isPeerSecret(String value) {
+        return ring != null && MessageDigest.isEqual(
+                value.getBytes(StandardCharsets.UTF_8), secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Adres węzła głównego pliku, jeśli żądanie trzeba wysłać tam; null - obsługujemy je tutaj.
+     * Zapis (write) obsługuje tylko węzeł główny, odczyt - każdy właściciel pliku.
+     */
+    static String redirectFor(String owner, String fileName, boolean write) {
+        ClusterRing current = ring;
+        if (current == null) {
+            return null;
+        }
+        List<String> owners = current.owners(owner, fileName);
+        boolean here = write ? owners.get(0).equals(self) : owners.contains(self);
+        return here ? null : owners.get(0);
+    }
+
+    // -------------------- REPLIKACJA ------------------------
+
+    /**
+     * Plik zmienił się na tym węźle (zapis albo usunięcie) - repliki dostaną jego bieżący stan.
+     * Replikuje tylko węzeł główny pliku.
+     */
+    static void replicateFile(String owner, String fileName) {
+        ClusterRing current = ring;
+        if (current == null) {
+            return;
+        }
+        List<String> owners = current.owners(owner, fileName);
+        if (!owners.get(0).equals(self)) {
+            return;
+        }
+        for (String address : owners) {
+            Peer peer = peers.get(address);
+            if (peer != null && peer.queued.add(owner + '\u0000' + fileName)) {
+                PENDING.incrementAndGet();
+                schedule(peer, () -> syncFile(peer, owner, fileName), 1, 0);
+            }
+        }
+    }
+
+    /**
+     * Zakłada konto na pozostałych węzłach - czeka chwilę na wynik, żeby logowanie na innym węźle
+     * działało od razu; węzły niedostępne dostaną konto później (ponawianie w tle).
+     */
+    static void replicateUser(String username, String password) {
+        List<Future<?>> results = new ArrayList<>();
+        for (Peer peer : peersSnapshot()) {
+            PENDING.incrementAndGet();
+            results.add(schedule(peer, () -> registerUser(peer, username, password), 1, 0));
+        }
+        long deadline = System.currentTimeMillis() + REGISTER_WAIT_MS;
+        for (Future<?> result : results) {
+            try {
+                result.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (Exception e) {
+                // Pierwsza próba nieudana albo za długa - konto zostanie założone w tle
+            }
+        }
+    }
+
+    /**
+     * Zadanie replikacji: wykonuje je w wątku węzła, a po błędzie planuje kolejną próbę.
+     */
+    private interface ReplicationTask {
+        void run() throws IOException, SQLException;
+    }
+
+    private static Future<?> schedule(Peer peer, ReplicationTask task, int attempt, long delayMs) {
+        return peer.replication.schedule(() -> {
+            long started = System.nanoTime();
+            try {
+                task.run();
+                REPLICATED.increment();
+                PENDING.decrementAndGet();
+                REPLICATION_TIME.recordSince(started);
+            } catch (IOException | SQLException | RuntimeException e) {
+                if (attempt >= MAX_ATTEMPTS || peer.replication.isShutdown()) {
+                    System.out.println("Replikacja do " + peer.address + " nieudana: " + e.getMessage());
+                    REPLICATION_FAILED.increment();
+                    PENDING.decrementAndGet();
+                    return;
+                }
+                long delay = Math.min(RETRY_DELAY_MS << (attempt - 1), MAX_RETRY_DELAY_MS);
+                schedule(peer, task, attempt + 1, delay);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wysyła do węzła bieżący stan pliku: zawartość (UPLOAD) albo usunięcie (DELETE).
+     */
+    private static void syncFile(Peer peer, String owner, String fileName) throws IOException, SQLException {
+        // Od tej chwili nowa zmiana pliku dodaje nowe zadanie (które wyśle jeszcze nowszy stan)
+        peer.queued.remove(owner + '\u0000' + fileName);
+        try (FileContent content = DatabaseManager.openFileContent(owner, fileName)) {
+            if (content == null) {
+                call(peer, conn -> {
+                    Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_DELETE)
+                            .addString(owner)
+                            .addString(fileName));
+                    if (response.getStatus() != ProtocolConstants.STATUS_OK
+                            && response.getStatus() != ProtocolConstants.STATUS_NOT_FOUND) {
+                        throw new ProtocolException("DELETE na " + peer.address + ": " + response.getStatus());
+                    }
+                    return null;
+                });
+                return;
+            }
+            InputStream data = content.getStream();
+            call(peer, conn -> {
+                Message request = conn.newRequest(ProtocolConstants.OP_UPLOAD)
+                        .addString(owner)
+                        .addString(fileName)
+                        .addLong(content.getLength());
+                Message response = conn.exchange(request);
+                if (response.getStatus() == ProtocolConstants.STATUS_CONTINUE) {
+                    try (ChunkOutputStream out = new ChunkOutputStream(conn.getWriter(), request.getRequestId())) {
+                        data.transferTo(out);
+                    }
+                    response = conn.readResponse(request);
+                }
+                // BUSY też jest błędem - próba zostanie powtórzona później
+                if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                    throw new ProtocolException("UPLOAD na " + peer.address + ": " + response.getStatus());
+                }
+                return null;
+            });
+        }
+    }
+
+    private static void registerUser(Peer peer, String username, String password) throws IOException {
+        call(peer, conn -> {
+            // FAIL - konto już istnieje (np. powtórzona próba)
+            Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_REGISTER)
+                    .addString(username)
+                    .addString(password));
+            if (response.getStatus() != ProtocolConstants.STATUS_OK
+                    && response.getStatus() != ProtocolConstants.STATUS_FAIL) {
+                throw new ProtocolException("REGISTER na " + peer.address + ": " + response.getStatus());
+            }
+            return null;
+        });
+    }
+
+    // -------------------- LISTOWANIE ------------------------
+
+    /**
+     * Łączy stronę listy z tego węzła ze stronami pozostałych węzłów (ten sam kursor, prefiks i sortowanie).
+     * Wpis pliku bierzemy z jego węzła głównego - plik, którego tam nie ma, został usunięty, nawet jeśli
+     * replika jeszcze o tym nie wie. Gdy węzeł główny nie odpowiedział, liczy się najnowszy wpis z replik.
+     */
+    static FilePage mergePage(String owner, String cursor, String prefix, int sort, int limit, FilePage local) {
+        ClusterRing current = ring;
+        if (current == null) {
+            return local;
+        }
+        int pageSize = Math.max(1, Math.min(limit, ProtocolConstants.MAX_PAGE_SIZE));
+        boolean byMtime = sort == ProtocolConstants.SORT_MTIME_ASC || sort == ProtocolConstants.SORT_MTIME_DESC;
+        boolean desc = sort == ProtocolConstants.SORT_NAME_DESC || sort == ProtocolConstants.SORT_MTIME_DESC;
+
+        Map<String, FilePage> pages = new HashMap<>(callAll("LIST_FILES_PAGE", conn -> {
+            Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_LIST_FILES_PAGE)
+                    .addString(owner)
+                    .addString(cursor)
+                    .addString(prefix)
+                    .addLong(sort)
+                    .addLong(limit));
+            if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                throw new ProtocolException("status " + response.getStatus());
+            }
+            List<FileInfo> list = new ArrayList<>();
+            for (int i = 1; i + 2 < response.getFieldCount(); i += 3) {
+                list.add(new FileInfo(response.getString(i), response.getLong(i + 1), response.getLong(i + 2)));
+            }
+            return new FilePage(list, response.getString(0));
+        }));
+        pages.put(self, local);
+
+        Comparator<FileInfo> order = byMtime
+                ? Comparator.comparingLong(FileInfo::getModifiedAt).thenComparing(FileInfo::getName)
+                : Comparator.comparing(FileInfo::getName);
+        if (desc) {
+            order = order.reversed();
+        }
+        // Węzeł, który ma kolejną stronę, nie pokazał plików za swoim ostatnim - strona kończy się
+        // na najwcześniejszym takim pliku, żeby następna (od kursora) niczego nie pominęła
+        FileInfo bound = null;
+        Map<String, FileInfo> files = new HashMap<>();
+        for (Map.Entry<String, FilePage> entry : pages.entrySet()) {
+            FilePage page = entry.getValue();
+            for (FileInfo file : page.getFiles()) {
+                if (authoritative(current, owner, file.getName(), entry.getKey(), pages.keySet())) {
+                    files.merge(file.getName(), file, (a, b) -> a.getModifiedAt() >= b.getModifiedAt() ? a : b);
+                }
+            }
+            if (page.hasMore() && !page.getFiles().isEmpty()) {
+                FileInfo last = page.getFiles().get(page.getFiles().size() - 1);
+                if (bound == null || order.compare(last, bound) < 0) {
+                    bound = last;
+                }
+            }
+        }
+        List<FileInfo> sorted = new ArrayList<>(files.values());
+        sorted.sort(order);
+        boolean more = bound != null;
+        if (bound != null) {
+            FileInfo limitKey = bound;
+            Comparator<FileInfo> cmp = order;
+            sorted.removeIf(file -> cmp.compare(file, limitKey) > 0);
+        }
+        if (sorted.size() > pageSize) {
+            sorted = new ArrayList<>(sorted.subList(0, pageSize));
+            more = true;
+        }
+        return DatabaseManager.toPage(sorted, more, byMtime);
+    }
+
+    /**
+     * Nazwy plików ze wszystkich węzłów (OP_LIST_FILES), posortowane, bez powtórzeń - jak w {@link #mergePage}
+     * o obecności pliku rozstrzyga jego węzeł główny.
+     */
+    static List<String> mergeNames(String owner, List<String> local) {
+        ClusterRing current = ring;
+        if (current == null) {
+            return local;
+        }
+        Map<String, List<String>> lists = new HashMap<>(callAll("LIST_FILES", conn -> {
+            Message response = conn.exchange(conn.newRequest(ProtocolConstants.OP_LIST_FILES).addString(owner));
+            if (response.getStatus() != ProtocolConstants.STATUS_OK) {
+                throw new ProtocolException("status " + response.getStatus());
+            }
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < response.getFieldCount(); i++) {
+                names.add(response.getString(i));
+            }
+            return names;
+        }));
+        lists.put(self, local);
+
+        TreeSet<String> names = new TreeSet<>();
+        for (Map.Entry<String, List<String>> entry : lists.entrySet()) {
+            for (String name : entry.getValue()) {
+                if (authoritative(current, owner, name, entry.getKey(), lists.keySet())) {
+                    names.add(name);
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /**
+     * Czy wpis pliku z węzła address się liczy: węzeł główny pliku (jedyny, który przyjmuje zapisy)
+     * jest rozstrzygający; bez jego odpowiedzi - każdy węzeł, który odpowiedział.
+     */
+    private static boolean authoritative(ClusterRing current, String owner, String fileName, String address,
+                                         Set<String> answered) {
+        String primary = current.owners(owner, fileName).get(0);
+        return primary.equals(address) || !answered.contains(primary);
+    }
+
+    /**
+     * Wysyła wywołanie do wszystkich dostępnych węzłów naraz i czeka na odpowiedzi najwyżej LIST_WAIT_MS.
+     * Zwraca wyniki węzłów, które zdążyły (adres -> wynik); pozostałe są pomijane.
+     */
+    private static <T> Map<String, T> callAll(String command, PeerCall<T> call) {
+        Map<Peer, Future<T>> pending = new LinkedHashMap<>();
+        for (Peer peer : peersSnapshot()) {
+            if (System.currentTimeMillis() < peer.downUntil) {
+                continue;
+            }
+            pending.put(peer, LISTING.submit(() -> call(peer, call)));
+        }
+        long deadline = System.currentTimeMillis() + LIST_WAIT_MS;
+        Map<String, T> results = new HashMap<>();
+        for (Map.Entry<Peer, Future<T>> entry : pending.entrySet()) {
+            String address = entry.getKey().address;
+            try {
+                results.put(address, entry.getValue().get(Math.max(0, deadline - System.currentTimeMillis()),
+                        TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                // Wywołanie kończy się w tle (limit czasu odczytu połączenia) i oddaje połączenie do puli
+                System.out.println(command + " bez węzła " + address + ": brak odpowiedzi w " + LIST_WAIT_MS + " ms");
+            } catch (ExecutionException e) {
+                System.out.println(command + " bez węzła " + address + ": " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return results;
+    }
+
+    // -------------------- POŁĄCZENIA ------------------------
+
+    private static List<Peer> peersSnapshot() {
+        return new ArrayList<>(peers.values());
+    }
+
+    /**
+     * Wykonuje wywołanie na połączeniu z węzłem (z puli albo nowym). Połączenie po błędzie jest zamykane.
+     */
+    private static <T> T call(Peer peer, PeerCall<T> call) throws IOException {
+        PeerConnection conn;
+        synchronized (peer.idle) {
+            conn = peer.idle.pollFirst();
+        }
+        if (conn == null) {
+            try {
+                conn = new PeerConnection(peer.address, secret);
+            } catch (IOException e) {
+                peer.downUntil = System.currentTimeMillis() + DOWN_MS;
+                throw e;
+            }
+        }
+        try {
+            T result = call.call(conn);
+            peer.downUntil = 0;
+            synchronized (peer.idle) {
+                if (peer.idle.size() < MAX_IDLE_CONNECTIONS) {
+                    peer.idle.offerFirst(conn);
+                    conn = null;
+                }
+            }
+            if (conn != null) {
+                conn.close();
+            }
+            return result;
+        } catch (IOException | RuntimeException e) {
+            conn.close();
+            throw e;
+        }
+    }
+}
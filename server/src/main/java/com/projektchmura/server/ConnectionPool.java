@@ -0,0 +1,176 @@
+package com.projektchmura.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ograniczona pula połączeń JDBC. Liczbę wypożyczonych połączeń pilnuje semafor,
+ * wolne połączenia czekają na stosie (LIFO - najczęściej używane są "najcieplejsze").
+ * Udostępnia liczniki nasycenia: aktywne/wolne połączenia, oczekujący, czasy oczekiwania, timeouty.
+ */
+public class ConnectionPool {
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validateAfterIdleMillis;
+    private final int statementCacheSize;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed;
+
+    // -------------------- METRYKI ------------------------
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public ConnectionPool(String url, String user, String password, int maxSize,
+                          long acquireTimeoutMillis, long validateAfterIdleMillis, int statementCacheSize) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validateAfterIdleMillis = validateAfterIdleMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Wypożycza połączenie; czeka najwyżej acquireTimeout, potem rzuca SQLException.
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Pula połączeń jest zamknięta");
+        }
+        long start = System.nanoTime();
+        boolean acquired;
+        if (permits.tryAcquire()) {
+            acquired = true;
+        } else {
+            waiting.incrementAndGet();
+            try {
+                acquired = permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Przerwano oczekiwanie na połączenie", e);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        }
+        long waited = System.nanoTime() - start;
+        totalWaitNanos.addAndGet(waited);
+        maxWaitNanos.accumulateAndGet(waited, Math::max);
+        if (!acquired) {
+            timeouts.incrementAndGet();
+            throw new SQLException("Brak wolnego połączenia w puli po " + acquireTimeoutMillis + " ms (" + this + ")");
+        }
+
+        try {
+            PooledConnection pc;
+            while ((pc = idle.pollFirst()) != null) {
+                if (pc.isUsable(validateAfterIdleMillis)) {
+                    break;
+                }
+                pc.closePhysically();
+                created.decrementAndGet();
+            }
+            if (pc == null) {
+                Connection raw = DriverManager.getConnection(url, user, password);
+                pc = new PooledConnection(this, raw, statementCacheSize);
+                created.incrementAndGet();
+            }
+            active.incrementAndGet();
+            acquisitions.incrementAndGet();
+            return pc;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    void release(PooledConnection pc) {
+        active.decrementAndGet();
+        if (closed) {
+            pc.closePhysically();
+        } else {
+            idle.offerFirst(pc);
+        }
+        permits.release();
+    }
+
+    /**
+     * Zamyka wolne połączenia; wypożyczone zostaną zamknięte przy oddaniu.
+     */
+    public void close() {
+        closed = true;
+        PooledConnection pc;
+        while ((pc = idle.pollFirst()) != null) {
+            pc.closePhysically();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    public int getWaitingCount() {
+        return waiting.get();
+    }
+
+    public int getCreatedCount() {
+        return created.get();
+    }
+
+    public long getAcquisitionCount() {
+        return acquisitions.get();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /** Udział zajętych połączeń (1.0 = pula nasycona). */
+    public double getUtilization() {
+        return (double) active.get() / maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool[active=" + getActiveCount() + "/" + maxSize
+                + ", idle=" + getIdleCount()
+                + ", waiting=" + getWaitingCount()
+                + ", acquisitions=" + getAcquisitionCount()
+                + ", timeouts=" + getTimeoutCount()
+                + ", maxWaitMs=" + getMaxWaitMillis() + "]";
+    }
+}
@@ -0,0 +1,306 @@
+package com.projektchmura.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache zawartości często pobieranych plików, przed odczytem z bazy i dysku.
+ *
+ * Bloby (w zapisanej postaci, także skompresowanej) leżą w buforach bezpośrednich - poza stertą,
+ * więc nie obciążają GC - z limitem łącznej liczby bajtów. Wypieranie: segmentowany LRU
+ * (probation + protected). Nowy blob trafia do probation, dopiero drugie trafienie przenosi go
+ * do protected (80% budżetu), więc jednorazowy "przegląd" wielu plików wypiera tylko probation.
+ *
+ * Przed blobami jest indeks nazwa pliku (owner, filename) -> blob, dzięki któremu trafienie
+ * nie potrzebuje zapytania do bazy. Zapis pliku (saveFile) unieważnia jego nazwę, a usunięcie
+ * bloba - sam blob.
+ */
+public class ContentCache {
+
+    private static final double PROTECTED_RATIO = 0.8;
+    // Liczniki zmian nazw - chronią przed wstawieniem nazwy odczytanej przed równoległym zapisem
+    private static final int STAMP_STRIPES = 64;
+
+    private static final class Entry {
+        final String hash;
+        final String codec;
+        final ByteBuffer data;
+        final int size;
+        final Set<String> names = new HashSet<>();
+        boolean protectedSegment;
+
+        Entry(String hash, String codec, ByteBuffer data) {
+            this.hash = hash;
+            this.codec = codec;
+            this.data = data;
+            this.size = data.limit();
+        }
+    }
+
+    private static long capacity;
+    private static long maxEntrySize;
+    private static long protectedCapacity;
+
+    // Wszystkie pola poniżej pod blokadą LOCK; kolejność wstawienia = kolejność LRU (najstarszy pierwszy)
+    private static final Object LOCK = new Object();
+    private static final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private static final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>();
+    private static final Map<String, Entry> names = new HashMap<>();
+    private static long usedBytes;
+    private static long protectedBytes;
+
+    private static final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    public static void init() {
+        synchronized (LOCK) {
+            capacity = ServerConfig.contentCacheBytes();
+            maxEntrySize = Math.min(ServerConfig.contentCacheMaxEntryBytes(), capacity);
+            protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+            clear();
+        }
+    }
+
+    /**
+     * Zwalnia wszystkie wpisy (bufory zwolni GC, gdy przestaną być wysyłane).
+     */
+    public static void clear() {
+        synchronized (LOCK) {
+            probation.clear();
+            protectedEntries.clear();
+            names.clear();
+            usedBytes = 0;
+            protectedBytes = 0;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Znacznik zmian nazwy - pobrać przed odczytem skrótu z bazy i przekazać do {@link #load}.
+     */
+    public static long stamp(String owner, String fileName) {
+        return stamps.get(stripe(nameKey(owner, fileName)));
+    }
+
+    /**
+     * Zawartość pliku z cache albo null (wtedy trzeba zapytać bazę i wywołać {@link #load}).
+     */
+    public static StoredBlob lookup(String owner, String fileName) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry;
+        synchronized (LOCK) {
+            entry = names.get(nameKey(owner, fileName));
+            if (entry != null) {
+                touch(entry);
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        hits.increment();
+        return StoredBlob.wrap(entry.data, entry.hash, entry.codec);
+    }
+
+    /**
+     * Otwiera blob odczytany z bazy: z cache, jeśli już tam jest (np. pod inną nazwą),
+     * a w przeciwnym razie z dysku - i jeśli nie jest za duży, wczytuje go do cache.
+     * Nazwa jest zapamiętywana tylko wtedy, gdy od pobrania stamp nikt jej nie zmienił.
+     */
+    public static StoredBlob load(String owner, String fileName, long stamp, String hash, String codec)
+            throws IOException {
+        if (!isEnabled()) {
+            return FileStorageManager.openBlob(hash, codec);
+        }
+        String key = nameKey(owner, fileName);
+        Entry entry;
+        synchronized (LOCK) {
+            entry = find(hash);
+            if (entry != null) {
+                touch(entry);
+                link(key, entry, stamp);
+            }
+        }
+        if (entry != null) {
+            hits.increment();
+            return StoredBlob.wrap(entry.data, entry.hash, entry.codec);
+        }
+        misses.increment();
+
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(FileStorageManager.locate(hash, codec), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxEntrySize) {
+                return FileStorageManager.openBlob(hash, codec);
+            }
+            data = ByteBuffer.allocateDirect((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) < 0) {
+                    throw new IOException("Blob " + hash + " skrócony w trakcie odczytu");
+                }
+            }
+            data.flip();
+        } catch (NoSuchFileException e) {
+            // Przeniesiony do innego katalogu magazynu w trakcie przebudowy
+            return FileStorageManager.openBlob(hash, codec);
+        }
+        StoredBlob blob = StoredBlob.wrap(data, hash, codec);
+        synchronized (LOCK) {
+            entry = find(hash);
+            if (entry == null) {
+                entry = new Entry(hash, codec, data);
+                probation.put(hash, entry);
+                usedBytes += entry.size;
+                evictOverflow();
+            }
+            // Wpis mógł zostać od razu wyparty - wtedy nazwy nie zapamiętujemy
+            if (find(hash) == entry) {
+                link(key, entry, stamp);
+            }
+        }
+        return blob;
+    }
+
+    /**
+     * Plik został nadpisany (lub usunięty) - jego nazwa nie może już wskazywać na stary blob.
+     */
+    public static void invalidateName(String owner, String fileName) {
+        String key = nameKey(owner, fileName);
+        synchronized (LOCK) {
+            stamps.incrementAndGet(stripe(key));
+            Entry entry = names.remove(key);
+            if (entry != null) {
+                entry.names.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Blob został usunięty z magazynu.
+     */
+    public static void invalidateBlob(String hash) {
+        synchronized (LOCK) {
+            Entry entry = find(hash);
+            if (entry != null) {
+                remove(entry);
+            }
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static long getUsedBytes() {
+        synchronized (LOCK) {
+            return usedBytes;
+        }
+    }
+
+    public static String stats() {
+        synchronized (LOCK) {
+            return "ContentCache[entries=" + (probation.size() + protectedEntries.size())
+                    + ", bytes=" + usedBytes + "/" + capacity
+                    + ", hits=" + hits.sum() + ", misses=" + misses.sum() + ", evictions=" + evictions.sum() + "]";
+        }
+    }
+
+    // -------------------- WEWNĘTRZNE (pod LOCK) ------------------------
+
+    private static Entry find(String hash) {
+        Entry entry = protectedEntries.get(hash);
+        return entry != null ? entry : probation.get(hash);
+    }
+
+    /**
+     * Trafienie: wpis z probation przechodzi do protected, wpis z protected - na koniec kolejki LRU.
+     * Nadmiar protected wraca do probation (jako najświeższy).
+     */
+    private static void touch(Entry entry) {
+        if (entry.protectedSegment) {
+            protectedEntries.remove(entry.hash);
+            protectedEntries.put(entry.hash, entry);
+            return;
+        }
+        probation.remove(entry.hash);
+        protectedEntries.put(entry.hash, entry);
+        entry.protectedSegment = true;
+        protectedBytes += entry.size;
+        Iterator<Entry> it = protectedEntries.values().iterator();
+        while (protectedBytes > protectedCapacity && it.hasNext()) {
+            Entry demoted = it.next();
+            it.remove();
+            demoted.protectedSegment = false;
+            protectedBytes -= demoted.size;
+            probation.put(demoted.hash, demoted);
+        }
+    }
+
+    private static void evictOverflow() {
+        while (usedBytes > capacity) {
+            Map<String, Entry> segment = probation.isEmpty() ? protectedEntries : probation;
+            Entry victim = segment.values().iterator().next();
+            remove(victim);
+            evictions.increment();
+        }
+    }
+
+    private static void remove(Entry entry) {
+        if (entry.protectedSegment) {
+            protectedEntries.remove(entry.hash);
+            protectedBytes -= entry.size;
+        } else {
+            probation.remove(entry.hash);
+        }
+        usedBytes -= entry.size;
+        for (String name : entry.names) {
+            names.remove(name, entry);
+        }
+        entry.names.clear();
+    }
+
+    private static void link(String key, Entry entry, long stamp) {
+        if (stamps.get(stripe(key)) != stamp) {
+            return;
+        }
+        Entry previous = names.put(key, entry);
+        if (previous != null && previous != entry) {
+            previous.names.remove(key);
+        }
+        entry.names.add(key);
+    }
+
+    private static String nameKey(String owner, String fileName) {
+        return owner + '\u0000' + fileName;
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STAMP_STRIPES;
+    }
+}
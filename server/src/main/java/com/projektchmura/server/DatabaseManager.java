@@ -1,82 +1,329 @@
 package com.projektchmura.server;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+
+import com.projektchmura.common.FileInfo;
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.LatencyHistogram;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.common.StorageUsage;
 
 public class DatabaseManager {
 
-    private static Connection conn;
+    // Czasy operacji (Metrics)
+    private static final LatencyHistogram REGISTER_TIME = Metrics.histogram("db.registerUser");
+    private static final LatencyHistogram LOGIN_TIME = Metrics.histogram("db.loginUser");
+    private static final LatencyHistogram SAVE_FILE_TIME = Metrics.histogram("db.saveFile");
+    private static final LatencyHistogram SAVE_FILES_TIME = Metrics.histogram("db.saveFiles");
+    private static final LatencyHistogram DELETE_FILE_TIME = Metrics.histogram("db.deleteFile");
+    private static final LatencyHistogram LIST_FILES_TIME = Metrics.histogram("db.listFiles");
+    private static final LatencyHistogram LIST_FILES_PAGE_TIME = Metrics.histogram("db.listFilesPage");
+    private static final LatencyHistogram OPEN_FILE_TIME = Metrics.histogram("db.openFileContent");
+    private static final LatencyHistogram BLOB_HASH_TIME = Metrics.histogram("db.getBlobHash");
+    private static final LatencyHistogram USAGE_TIME = Metrics.histogram("db.usage");
+
+    // Pula połączeń - każdy wątek wypożycza własne połączenie zamiast dzielić jedno statyczne
+    private static ConnectionPool pool;
+
+    // Sprawdzenie i rejestracja użytkownika w dzienniku - bez dwóch rejestracji tej samej nazwy naraz
+    private static final Object USERS_LOCK = new Object();
+
+    // SQLState naruszenia unikalności klucza
+    private static final String DUPLICATE_KEY = "23505";
+
+    // Nowy blob albo kolejna referencja do istniejącego
+    private static final String MERGE_BLOB =
+            "MERGE INTO blobs b USING (VALUES (CAST(? AS VARCHAR(64)), CAST(? AS BIGINT), " +
+            "CAST(? AS VARCHAR(16)), CAST(? AS BIGINT))) AS v(hash, size, codec, stored_size) " +
+            "ON b.hash = v.hash " +
+            "WHEN MATCHED THEN UPDATE SET b.refcount = b.refcount + 1 " +
+            "WHEN NOT MATCHED THEN INSERT (hash, size, refcount, codec, stored_size) " +
+            "VALUES (v.hash, v.size, 1, v.codec, v.stored_size)";
+
+    // Nowy blob (jeszcze bez właściciela miejsca) zostaje policzony użytkownikowi, który go zapisał
+    private static final String CHARGE_BLOB = "UPDATE blobs SET charged_to = ? WHERE hash = ? AND charged_to IS NULL";
 
     /**
-     * Inicjalizacja połączenia z bazą danych H2.
+     * Inicjalizacja puli połączeń z bazą danych H2.
      */
     public static void init() throws SQLException {
         // Wersja w pamięci:
         // String url = "jdbc:h2:mem:chmura;DB_CLOSE_DELAY=-1";
-        Path dbPath = Paths.get(System.getProperty("user.dir"), "database", "db");
+        Path dbPath = Paths.get(ServerConfig.databasePath());
         String absolutePath = dbPath.toAbsolutePath().toString();
         String url = "jdbc:h2:file:" + absolutePath;
-        conn = DriverManager.getConnection(url, "sa", "");
+        pool = new ConnectionPool(url, "sa", "",
+                ServerConfig.dbPoolSize(),
+                ServerConfig.dbAcquireTimeoutMillis(),
+                ServerConfig.dbValidateAfterIdleMillis(),
+                ServerConfig.dbStatementCacheSize());
 
-        System.out.println("Połączono z bazą danych H2.");
+        System.out.println("Połączono z bazą danych H2 (pula: " + pool.getMaxSize() + " połączeń).");
 
         // Wykonaj skrypt schema.sql - tworzenie tabel (jeśli nie istnieją)
-        runSchemaScript();
+        try (PooledConnection c = pool.acquire()) {
+            runSchemaScript(c);
+        }
     }
 
-    private static void runSchemaScript() throws SQLException {
-        try (Statement stmt = conn.createStatement()) {
+    private static void runSchemaScript(PooledConnection c) throws SQLException {
+        try (Statement stmt = c.getConnection().createStatement()) {
             // Tabela users
             String createUsersTable = "CREATE TABLE IF NOT EXISTS users (" +
                                     "username VARCHAR(50) PRIMARY KEY, " +
                                     "password VARCHAR(255) NOT NULL)";
             stmt.execute(createUsersTable);
 
-            // Tabela files
+            // Tabela files - tylko metadane, zawartość leży w magazynie blobów (FileStorageManager)
             String createFilesTable = "CREATE TABLE IF NOT EXISTS files (" +
                                     "file_id IDENTITY PRIMARY KEY, " +
                                     "owner VARCHAR(50) NOT NULL, " +
                                     "filename VARCHAR(255) NOT NULL, " +
-                                    "content BLOB NOT NULL)";
+                                    "blob_hash VARCHAR(64), " +
+                                    "size BIGINT, " +
+                                    "modified_at BIGINT)";
             stmt.execute(createFilesTable);
+            // Starsze bazy mają kolumnę content zamiast skrótu
+            stmt.execute("ALTER TABLE files ADD COLUMN IF NOT EXISTS blob_hash VARCHAR(64)");
+            stmt.execute("ALTER TABLE files ADD COLUMN IF NOT EXISTS size BIGINT");
+            stmt.execute("ALTER TABLE files ADD COLUMN IF NOT EXISTS modified_at BIGINT");
+
+            // Tabela blobs - liczniki referencji do blobów adresowanych treścią
+            String createBlobsTable = "CREATE TABLE IF NOT EXISTS blobs (" +
+                                    "hash VARCHAR(64) PRIMARY KEY, " +
+                                    "size BIGINT NOT NULL, " +
+                                    "refcount INT NOT NULL, " +
+                                    "codec VARCHAR(16) DEFAULT 'none' NOT NULL, " +
+                                    "stored_size BIGINT)";
+            stmt.execute(createBlobsTable);
+            // Kodek i rozmiar na dysku - bloby sprzed kompresji są zapisane bez niej
+            stmt.execute("ALTER TABLE blobs ADD COLUMN IF NOT EXISTS codec VARCHAR(16) DEFAULT 'none' NOT NULL");
+            stmt.execute("ALTER TABLE blobs ADD COLUMN IF NOT EXISTS stored_size BIGINT");
+            // Użytkownik, który zapisał blob jako pierwszy - jemu liczymy miejsce na dysku
+            stmt.execute("ALTER TABLE blobs ADD COLUMN IF NOT EXISTS charged_to VARCHAR(50)");
+
+            // Tabela sessions - sesje przetrwające restart serwera
+            String createSessionsTable = "CREATE TABLE IF NOT EXISTS sessions (" +
+                                    "session_id VARCHAR(36) PRIMARY KEY, " +
+                                    "username VARCHAR(50) NOT NULL, " +
+                                    "created_at BIGINT NOT NULL, " +
+                                    "last_access BIGINT NOT NULL)";
+            stmt.execute(createSessionsTable);
+
+            // Tabela journal_state - numer ostatniego rekordu dziennika metadanych zastosowanego w bazie
+            stmt.execute("CREATE TABLE IF NOT EXISTS journal_state (" +
+                         "id INT PRIMARY KEY, " +
+                         "applied_seq BIGINT NOT NULL)");
+        }
+        migrateInlineContent(c);
+        boolean newUsageTable = createUsageTable(c);
+        createFileIndexes(c);
+        if (newUsageTable) {
+            fillUsageTable(c);
         }
     }
 
-    public static void close() {
-        try {
-            if (conn != null) {
-                conn.close();
-                System.out.println("Zamknięto połączenie z bazą danych.");
+    /**
+     * Tabela owner_usage - zajętość miejsca użytkowników, zmieniana w tych samych transakcjach
+     * co pliki i bloby. Zwraca true, jeśli tabela została właśnie założona.
+     */
+    private static boolean createUsageTable(PooledConnection c) throws SQLException {
+        try (Statement stmt = c.getConnection().createStatement()) {
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT 1 FROM INFORMATION_SCHEMA.TABLES WHERE TABLE_NAME = 'OWNER_USAGE'")) {
+                if (rs.next()) {
+                    return false;
+                }
+            }
+            stmt.execute("CREATE TABLE owner_usage (" +
+                         "owner VARCHAR(50) PRIMARY KEY, " +
+                         "file_count BIGINT NOT NULL, " +
+                         "logical_bytes BIGINT NOT NULL, " +
+                         "physical_bytes BIGINT NOT NULL)");
+            return true;
+        }
+    }
+
+    /**
+     * Liczy zajętość raz z istniejących danych (baza sprzed tabeli owner_usage).
+     * Blob jest liczony temu z właścicieli jego plików, który jest pierwszy alfabetycznie.
+     */
+    private static void fillUsageTable(PooledConnection c) throws SQLException {
+        try (Statement stmt = c.getConnection().createStatement()) {
+            stmt.executeUpdate("UPDATE blobs b SET charged_to = " +
+                               "(SELECT MIN(f.owner) FROM files f WHERE f.blob_hash = b.hash) WHERE charged_to IS NULL");
+            int owners = stmt.executeUpdate("INSERT INTO owner_usage (owner, file_count, logical_bytes, physical_bytes) " +
+                    "SELECT u.name, " +
+                    "(SELECT COUNT(*) FROM files f WHERE f.owner = u.name), " +
+                    "(SELECT COALESCE(SUM(f.size), 0) FROM files f WHERE f.owner = u.name), " +
+                    "(SELECT COALESCE(SUM(COALESCE(b.stored_size, b.size)), 0) FROM blobs b WHERE b.charged_to = u.name) " +
+                    "FROM (SELECT username AS name FROM users UNION SELECT owner FROM files) u");
+            System.out.println("Policzono zajętość miejsca użytkowników: " + owners);
+        }
+    }
+
+    /**
+     * Indeksy pod listowanie: unikalny (owner, filename) - także dla nadpisywania plików -
+     * oraz (owner, modified_at, filename) pod sortowanie po czasie modyfikacji.
+     * Duplikaty nazw ze starszych baz są usuwane przed założeniem unikalnego indeksu (zostaje najnowszy).
+     */
+    private static void createFileIndexes(PooledConnection c) throws SQLException {
+        Connection conn = c.getConnection();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE files SET modified_at = " + System.currentTimeMillis() + " WHERE modified_at IS NULL");
+
+            boolean hasUniqueIndex;
+            try (ResultSet rs = stmt.executeQuery(
+                    "SELECT 1 FROM INFORMATION_SCHEMA.INDEXES WHERE INDEX_NAME = 'FILES_OWNER_FILENAME'")) {
+                hasUniqueIndex = rs.next();
+            }
+            if (!hasUniqueIndex) {
+                List<String> releasedBlobs = new ArrayList<>();
+                try (ResultSet rs = stmt.executeQuery(
+                        "SELECT blob_hash FROM files f WHERE EXISTS (SELECT 1 FROM files g " +
+                        "WHERE g.owner = f.owner AND g.filename = f.filename AND g.file_id > f.file_id)")) {
+                    while (rs.next()) {
+                        releasedBlobs.add(rs.getString(1));
+                    }
+                }
+                if (!releasedBlobs.isEmpty()) {
+                    stmt.executeUpdate("DELETE FROM files f WHERE EXISTS (SELECT 1 FROM files g " +
+                            "WHERE g.owner = f.owner AND g.filename = f.filename AND g.file_id > f.file_id)");
+                    for (String hash : releasedBlobs) {
+                        releaseBlob(c, hash);
+                    }
+                    System.out.println("Usunięto starsze wersje plików o powtórzonych nazwach: " + releasedBlobs.size());
+                }
+                stmt.execute("CREATE UNIQUE INDEX files_owner_filename ON files(owner, filename)");
+            }
+            stmt.execute("CREATE INDEX IF NOT EXISTS files_owner_mtime ON files(owner, modified_at, filename)");
+        }
+    }
+
+    /**
+     * Przenosi zawartość z dawnej kolumny files.content do magazynu blobów i usuwa tę kolumnę.
+     */
+    private static void migrateInlineContent(PooledConnection c) throws SQLException {
+        Connection conn = c.getConnection();
+        try (ResultSet columns = conn.getMetaData().getColumns(null, null, "FILES", "CONTENT")) {
+            if (!columns.next()) {
+                return;
+            }
+        }
+        System.out.println("Migracja zawartości plików z bazy do magazynu blobów...");
+        String select = "SELECT file_id, content FROM files WHERE blob_hash IS NULL";
+        String update = "UPDATE files SET blob_hash = ?, size = ? WHERE file_id = ?";
+        int migrated = 0;
+        try (PreparedStatement ps = conn.prepareStatement(select);
+             ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                FileStorageManager.StagedBlob blob;
+                try (InputStream content = rs.getBinaryStream("content")) {
+                    blob = FileStorageManager.stage(content);
+                } catch (IOException e) {
+                    throw new SQLException("Nie udało się przenieść pliku " + rs.getLong("file_id"), e);
+                }
+                addBlobReference(c, blob);
+                PreparedStatement upd = c.prepare(update);
+                upd.setString(1, blob.getHash());
+                upd.setLong(2, blob.getSize());
+                upd.setLong(3, rs.getLong("file_id"));
+                upd.executeUpdate();
+                migrated++;
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        }
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("ALTER TABLE files DROP COLUMN content");
+            stmt.execute("ALTER TABLE files ALTER COLUMN blob_hash SET NOT NULL");
+            stmt.execute("ALTER TABLE files ALTER COLUMN size SET NOT NULL");
+        }
+        System.out.println("Przeniesiono plików: " + migrated);
+    }
+
+    public static void close() {
+        if (pool != null) {
+            System.out.println("Statystyki puli: " + pool);
+            pool.close();
+            System.out.println("Zamknięto połączenia z bazą danych.");
         }
     }
 
+    /**
+     * Pula połączeń (np. do odczytu metryk nasycenia).
+     */
+    public static ConnectionPool getPool() {
+        return pool;
+    }
+
     /**
      * Rejestracja użytkownika w bazie danych (zwraca true, jeśli się uda).
      */
     public static boolean registerUser(String username, String password) {
-        if (username == null || password == null) return false;
+        long started = System.nanoTime();
+        try {
+            if (username == null || password == null) return false;
 
-        // Sprawdź, czy użytkownik już istnieje
-        if (userExists(username)) {
-            return false;
+            if (MetadataJournal.isEnabled()) {
+                return registerUserJournaled(username, password);
+            }
+            try (PooledConnection c = pool.acquire()) {
+                // Sprawdź, czy użytkownik już istnieje
+                if (userExists(c, username)) {
+                    return false;
+                }
+
+                try {
+                    c.begin();
+                    PreparedStatement ps = c.prepare("INSERT INTO users (username, password) VALUES (?, ?)");
+                    ps.setString(1, username);
+                    ps.setString(2, password);
+                    ps.executeUpdate();
+                    insertUsage(c, username);
+                    c.commit();
+                } catch (SQLException e) {
+                    c.rollbackQuietly();
+                    throw e;
+                }
+                return true;
+            } catch (SQLException e) {
+                e.printStackTrace();
+                return false;
+            }
+        } finally {
+            REGISTER_TIME.recordSince(started);
         }
+    }
 
-        String sql = "INSERT INTO users (username, password) VALUES (?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
-            ps.setString(2, password);
-            ps.executeUpdate();
+    private static boolean registerUserJournaled(String username, String password) {
+        try {
+            MetadataJournal.Group group;
+            synchronized (USERS_LOCK) {
+                if (MetadataJournal.pendingUser(username) != null) {
+                    return false;
+                }
+                try (PooledConnection c = pool.acquire()) {
+                    if (userExists(c, username)) {
+                        return false;
+                    }
+                }
+                group = MetadataJournal.enqueue(List.of(MetadataJournal.Record.register(username, password)));
+            }
+            MetadataJournal.await(group);
             return true;
         } catch (SQLException e) {
             e.printStackTrace();
@@ -88,47 +335,817 @@ public class DatabaseManager {
      * Logowanie użytkownika (zwraca true, jeśli poprawne dane).
      */
     public static boolean loginUser(String username, String password) {
-        String sql = "SELECT password FROM users WHERE username = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
-            try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    String dbPassword = rs.getString("password");
-                    return dbPassword.equals(password);
+        long started = System.nanoTime();
+        try {
+            // Konto zarejestrowane przed chwilą może być jeszcze tylko w dzienniku
+            MetadataJournal.Record registered = MetadataJournal.pendingUser(username);
+            if (registered != null) {
+                return registered.password.equals(password);
+            }
+            try (PooledConnection c = pool.acquire()) {
+                PreparedStatement ps = c.prepare("SELECT password FROM users WHERE username = ?");
+                ps.setString(1, username);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        String dbPassword = rs.getString("password");
+                        return dbPassword.equals(password);
+                    }
                 }
+            } catch (SQLException e) {
+                e.printStackTrace();
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
+            return false;
+        } finally {
+            LOGIN_TIME.recordSince(started);
         }
-        return false;
     }
 
     /**
      * Sprawdza, czy użytkownik o podanej nazwie istnieje w bazie.
      */
-    private static boolean userExists(String username) {
-        String sql = "SELECT 1 FROM users WHERE username = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, username);
+    private static boolean userExists(PooledConnection c, String username) throws SQLException {
+        PreparedStatement ps = c.prepare("SELECT 1 FROM users WHERE username = ?");
+        ps.setString(1, username);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next(); // jeśli jest jakikolwiek wynik, to user istnieje
+        }
+    }
+
+    /**
+     * Zapisuje plik w bazie, powiązany z danym właścicielem.
+     */
+    public static void saveFile(String owner, String fileName, byte[] data) throws SQLException {
+        saveFile(owner, fileName, new ByteArrayInputStream(data), data.length);
+    }
+
+    /**
+     * Zapisuje plik strumieniowo do magazynu blobów (skrót liczony w locie),
+     * a w bazie zostawia tylko metadane i skrót. Identyczna zawartość jest przechowywana raz.
+     * Połączenie z puli jest brane dopiero po odebraniu całej zawartości.
+     */
+    public static void saveFile(String owner, String fileName, InputStream content, long length) throws SQLException {
+        saveFile(owner, fileName, stageContent(content, length, true));
+    }
+
+    /**
+     * Przepisuje zawartość pliku do magazynu (jeszcze bez wpisu w bazie) i sprawdza jej rozmiar.
+     * Bez sync zawartość jest synchronizowana na dysk dopiero w {@link #saveFiles}.
+     */
+    public static FileStorageManager.StagedBlob stageContent(InputStream content, long length, boolean sync)
+            throws SQLException {
+        FileStorageManager.StagedBlob blob;
+        try {
+            blob = FileStorageManager.stage(content, sync);
+        } catch (IOException e) {
+            throw new SQLException("Błąd zapisu zawartości pliku: " + e.getMessage(), e);
+        }
+        if (blob.getSize() != length) {
+            blob.discard();
+            throw new SQLException("Niezgodny rozmiar pliku: " + blob.getSize() + " zamiast " + length);
+        }
+        return blob;
+    }
+
+    /**
+     * Zapisuje plik, którego zawartość jest już przygotowana w magazynie (np. ukończony upload wznawialny).
+     */
+    public static void saveFile(String owner, String fileName, FileStorageManager.StagedBlob blob) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            if (MetadataJournal.isEnabled()) {
+                saveFilesJournaled(owner, List.of(fileName), List.of(blob));
+                return;
+            }
+            PooledConnection connection;
+            try {
+                connection = pool.acquire();
+            } catch (SQLException e) {
+                blob.discard();
+                throw e;
+            }
+            try (PooledConnection c = connection) {
+                String previousHash;
+                // Blokada nazwy: zmiany tej samej nazwy trafiają do MetadataCache w kolejności zatwierdzenia
+                synchronized (MetadataCache.lockFor(owner, fileName)) {
+                    long modifiedAt = System.currentTimeMillis();
+                    // Licznik referencji i wiersz pliku w jednej transakcji, pod blokadą skrótu
+                    synchronized (FileStorageManager.lockFor(blob.getHash())) {
+                        previousHash = upsertFile(c, owner, fileName, blob, modifiedAt);
+                    }
+                    MetadataCache.fileSaved(owner, new FileInfo(fileName, blob.getSize(), modifiedAt));
+                }
+                ContentCache.invalidateName(owner, fileName);
+                // Nadpisany plik zwalnia referencję do poprzedniej zawartości (osobno - inna blokada)
+                if (previousHash != null) {
+                    try {
+                        releaseBlob(c, previousHash);
+                    } catch (SQLException e) {
+                        // Plik jest już zapisany - najwyżej stara zawartość zostanie na dysku
+                        e.printStackTrace();
+                    }
+                }
+            }
+        } finally {
+            SAVE_FILE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Zapisuje grupę plików jednego właściciela w jednej transakcji (wsadowe MERGE/INSERT/UPDATE).
+     * Zawartość (przygotowana przez {@link #stageContent} bez sync) jest najpierw synchronizowana na dysk.
+     * Zwraca błędy kolejnych plików (null - plik zapisany). Jeśli transakcja grupy się nie uda,
+     * pliki są zapisywane pojedynczo, żeby błąd dotyczył tylko pliku, który go spowodował.
+     */
+    public static String[] saveFiles(String owner, List<String> fileNames,
+                                     List<FileStorageManager.StagedBlob> blobs) {
+        long started = System.nanoTime();
+        String[] errors = new String[fileNames.size()];
+        try {
+            List<Integer> synced = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            List<FileStorageManager.StagedBlob> syncedBlobs = new ArrayList<>();
+            for (int i = 0; i < fileNames.size(); i++) {
+                FileStorageManager.StagedBlob blob = blobs.get(i);
+                try {
+                    blob.sync();
+                    synced.add(i);
+                    names.add(fileNames.get(i));
+                    syncedBlobs.add(blob);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    blob.discard();
+                    errors[i] = "Błąd zapisu zawartości pliku: " + e.getMessage();
+                }
+            }
+            if (synced.isEmpty()) {
+                return errors;
+            }
+            try {
+                saveFileGroup(owner, names, syncedBlobs);
+                return errors;
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            // Bloby wycofanej grupy zostały w magazynie - zapis pojedynczy je tam znajdzie,
+            // a po jego błędzie usunie (upsertFile)
+            for (int j = 0; j < synced.size(); j++) {
+                try {
+                    saveFile(owner, names.get(j), syncedBlobs.get(j));
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    errors[synced.get(j)] = "błąd bazy: " + e.getMessage();
+                }
+            }
+            return errors;
+        } finally {
+            SAVE_FILES_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Jedna transakcja dla całej grupy. Blokady nazw i skrótów są brane w stałej kolejności
+     * (wszystkie nazwy, potem wszystkie skróty - jak w pojedynczym saveFile), więc grupy się nie zakleszczą.
+     */
+    private static void saveFileGroup(String owner, List<String> fileNames,
+                                      List<FileStorageManager.StagedBlob> blobs) throws SQLException {
+        if (MetadataJournal.isEnabled()) {
+            saveFilesJournaled(owner, fileNames, blobs);
+            return;
+        }
+        List<String> released = new ArrayList<>();
+        try (PooledConnection c = pool.acquire()) {
+            List<Object> locks = new ArrayList<>(MetadataCache.locksFor(owner, fileNames));
+            List<String> hashes = new ArrayList<>();
+            for (FileStorageManager.StagedBlob blob : blobs) {
+                hashes.add(blob.getHash());
+            }
+            locks.addAll(FileStorageManager.locksFor(hashes));
+
+            synchronizedAll(locks, 0, () -> {
+                long modifiedAt = System.currentTimeMillis();
+                try {
+                    c.begin();
+                    addBlobReferences(c, blobs);
+                    PreparedStatement charge = c.prepare(CHARGE_BLOB);
+                    for (FileStorageManager.StagedBlob blob : blobs) {
+                        charge.setString(1, owner);
+                        charge.setString(2, blob.getHash());
+                        charge.addBatch();
+                    }
+                    int[] chargedRows = charge.executeBatch();
+                    long charged = 0;
+                    for (int i = 0; i < blobs.size(); i++) {
+                        if (chargedRows[i] > 0) {
+                            charged += blobs.get(i).getStoredSize();
+                        }
+                    }
+
+                    // Bieżące skróty i rozmiary plików z grupy (nazwa może się w grupie powtórzyć - wygrywa ostatnia)
+                    Map<String, String> current = new HashMap<>();
+                    Map<String, Long> currentSizes = new HashMap<>();
+                    PreparedStatement select = c.prepare(
+                            "SELECT filename, blob_hash, size FROM files WHERE owner = ? AND filename = ANY(?) FOR UPDATE");
+                    select.setString(1, owner);
+                    select.setObject(2, new LinkedHashSet<>(fileNames).toArray(new String[0]));
+                    try (ResultSet rs = select.executeQuery()) {
+                        while (rs.next()) {
+                            current.put(rs.getString("filename"), rs.getString("blob_hash"));
+                            currentSizes.put(rs.getString("filename"), rs.getLong("size"));
+                        }
+                    }
+
+                    PreparedStatement insert = c.prepare(
+                            "INSERT INTO files (blob_hash, size, modified_at, owner, filename) VALUES (?, ?, ?, ?, ?)");
+                    PreparedStatement update = c.prepare(
+                            "UPDATE files SET blob_hash = ?, size = ?, modified_at = ? WHERE owner = ? AND filename = ?");
+                    boolean inserts = false;
+                    boolean updates = false;
+                    long addedFiles = 0;
+                    long addedBytes = 0;
+                    for (int i = 0; i < fileNames.size(); i++) {
+                        FileStorageManager.StagedBlob blob = blobs.get(i);
+                        String previousHash = current.put(fileNames.get(i), blob.getHash());
+                        Long previousSize = currentSizes.put(fileNames.get(i), blob.getSize());
+                        PreparedStatement ps = previousHash == null ? insert : update;
+                        if (previousHash == null) {
+                            inserts = true;
+                            addedFiles++;
+                            addedBytes += blob.getSize();
+                        } else {
+                            updates = true;
+                            released.add(previousHash);
+                            addedBytes += blob.getSize() - previousSize;
+                        }
+                        ps.setString(1, blob.getHash());
+                        ps.setLong(2, blob.getSize());
+                        ps.setLong(3, modifiedAt);
+                        ps.setString(4, owner);
+                        ps.setString(5, fileNames.get(i));
+                        ps.addBatch();
+                    }
+                    // Wstawienia przed nadpisaniami - nazwa wstawiona w tej grupie może być w niej nadpisana
+                    if (inserts) {
+                        insert.executeBatch();
+                    }
+                    if (updates) {
+                        update.executeBatch();
+                    }
+                    addUsage(c, owner, addedFiles, addedBytes, charged);
+                    c.commit();
+                } catch (SQLException e) {
+                    c.rollbackQuietly();
+                    released.clear();
+                    throw e;
+                }
+                for (int i = 0; i < fileNames.size(); i++) {
+                    MetadataCache.fileSaved(owner, new FileInfo(fileNames.get(i), blobs.get(i).getSize(), modifiedAt));
+                    ContentCache.invalidateName(owner, fileNames.get(i));
+                }
+            });
+
+            // Nadpisane pliki zwalniają referencje do poprzedniej zawartości (poza blokadami grupy)
+            for (String hash : released) {
+                try {
+                    releaseBlob(c, hash);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Zapis przez dziennik: pod blokadami nazw i skrótów bloby trafiają do magazynu, a rekordy do dziennika
+     * (od razu widoczne dla odczytów i w MetadataCache). Na trwałość grupy dziennika czekamy już bez blokad,
+     * razem z innymi wątkami - jeden fsync na wiele zapisów. Licznik referencji zmieni wątek aplikujący.
+     */
+    private static void saveFilesJournaled(String owner, List<String> fileNames,
+                                           List<FileStorageManager.StagedBlob> blobs) throws SQLException {
+        List<Object> locks = new ArrayList<>(MetadataCache.locksFor(owner, fileNames));
+        List<String> hashes = new ArrayList<>();
+        for (FileStorageManager.StagedBlob blob : blobs) {
+            hashes.add(blob.getHash());
+        }
+        locks.addAll(FileStorageManager.locksFor(hashes));
+
+        MetadataJournal.Group[] group = new MetadataJournal.Group[1];
+        synchronizedAll(locks, 0, () -> {
+            long modifiedAt = System.currentTimeMillis();
+            List<MetadataJournal.Record> records = new ArrayList<>();
+            for (int i = 0; i < fileNames.size(); i++) {
+                commitBlob(blobs.get(i));
+                records.add(MetadataJournal.Record.save(owner, fileNames.get(i), blobs.get(i), modifiedAt));
+            }
+            group[0] = MetadataJournal.enqueue(records);
+            for (int i = 0; i < fileNames.size(); i++) {
+                MetadataCache.fileSaved(owner, new FileInfo(fileNames.get(i), blobs.get(i).getSize(), modifiedAt));
+                ContentCache.invalidateName(owner, fileNames.get(i));
+            }
+        });
+        MetadataJournal.await(group[0]);
+    }
+
+    private interface LockedAction {
+        void run() throws SQLException;
+    }
+
+    /**
+     * Wykonuje akcję pod wszystkimi blokadami z listy (zakładanymi po kolei).
+     */
+    private static void synchronizedAll(List<Object> locks, int index, LockedAction action) throws SQLException {
+        if (index == locks.size()) {
+            action.run();
+            return;
+        }
+        synchronized (locks.get(index)) {
+            synchronizedAll(locks, index + 1, action);
+        }
+    }
+
+    /**
+     * Wstawia wiersz pliku albo nadpisuje istniejący plik o tej samej nazwie.
+     * Zwraca skrót poprzedniej zawartości (lub null dla nowego pliku).
+     * Równoległe wstawienie tej samej nazwy kończy się naruszeniem unikalnego indeksu - wtedy ponawiamy jako nadpisanie.
+     */
+    private static String upsertFile(PooledConnection c, String owner, String fileName,
+                                     FileStorageManager.StagedBlob blob, long modifiedAt) throws SQLException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                c.begin();
+                addBlobReference(c, blob);
+                long charged = chargeBlob(c, owner, blob.getHash(), blob.getStoredSize());
+
+                String previousHash = null;
+                long previousSize = 0;
+                PreparedStatement select = c.prepare("SELECT blob_hash, size FROM files WHERE owner = ? AND filename = ? FOR UPDATE");
+                select.setString(1, owner);
+                select.setString(2, fileName);
+                try (ResultSet rs = select.executeQuery()) {
+                    if (rs.next()) {
+                        previousHash = rs.getString("blob_hash");
+                        previousSize = rs.getLong("size");
+                    }
+                }
+
+                PreparedStatement ps;
+                if (previousHash == null) {
+                    ps = c.prepare("INSERT INTO files (blob_hash, size, modified_at, owner, filename) VALUES (?, ?, ?, ?, ?)");
+                } else {
+                    ps = c.prepare("UPDATE files SET blob_hash = ?, size = ?, modified_at = ? WHERE owner = ? AND filename = ?");
+                }
+                ps.setString(1, blob.getHash());
+                ps.setLong(2, blob.getSize());
+                ps.setLong(3, modifiedAt);
+                ps.setString(4, owner);
+                ps.setString(5, fileName);
+                ps.executeUpdate();
+                addUsage(c, owner, previousHash == null ? 1 : 0, blob.getSize() - previousSize, charged);
+                c.commit();
+                return previousHash;
+            } catch (SQLException e) {
+                c.rollbackQuietly();
+                if (attempt > 0 || !DUPLICATE_KEY.equals(e.getSQLState())) {
+                    // Ponowienie znalazłoby blob w magazynie - usuwamy go dopiero, gdy zapis ostatecznie się nie udał
+                    deleteIfUnreferenced(c, blob.getHash());
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Usuwa plik właściciela i zwalnia referencję do jego zawartości. Zwraca false, jeśli pliku nie było.
+     */
+    public static boolean deleteFile(String owner, String fileName) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            if (MetadataJournal.isEnabled()) {
+                MetadataJournal.Group group;
+                synchronized (MetadataCache.lockFor(owner, fileName)) {
+                    if (getBlobHash(owner, fileName) == null) {
+                        return false;
+                    }
+                    group = MetadataJournal.enqueue(List.of(MetadataJournal.Record.delete(owner, fileName)));
+                    MetadataCache.fileDeleted(owner, fileName);
+                }
+                ContentCache.invalidateName(owner, fileName);
+                MetadataJournal.await(group);
+                return true;
+            }
+            try (PooledConnection c = pool.acquire()) {
+                String hash = null;
+                synchronized (MetadataCache.lockFor(owner, fileName)) {
+                    try {
+                        c.begin();
+                        long size = 0;
+                        PreparedStatement select = c.prepare("SELECT blob_hash, size FROM files WHERE owner = ? AND filename = ? FOR UPDATE");
+                        select.setString(1, owner);
+                        select.setString(2, fileName);
+                        try (ResultSet rs = select.executeQuery()) {
+                            if (rs.next()) {
+                                hash = rs.getString("blob_hash");
+                                size = rs.getLong("size");
+                            }
+                        }
+                        if (hash != null) {
+                            PreparedStatement delete = c.prepare("DELETE FROM files WHERE owner = ? AND filename = ?");
+                            delete.setString(1, owner);
+                            delete.setString(2, fileName);
+                            delete.executeUpdate();
+                            addUsage(c, owner, -1, -size, 0);
+                        }
+                        c.commit();
+                    } catch (SQLException e) {
+                        c.rollbackQuietly();
+                        throw e;
+                    }
+                    if (hash == null) {
+                        return false;
+                    }
+                    MetadataCache.fileDeleted(owner, fileName);
+                }
+                ContentCache.invalidateName(owner, fileName);
+                try {
+                    releaseBlob(c, hash);
+                } catch (SQLException e) {
+                    // Plik jest już usunięty - najwyżej zawartość zostanie na dysku
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        } finally {
+            DELETE_FILE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Zmniejsza licznik referencji bloba; gdy spadnie do zera, usuwa wiersz i plik z dysku.
+     */
+    private static void releaseBlob(PooledConnection c, String hash) throws SQLException {
+        synchronized (FileStorageManager.lockFor(hash)) {
+            c.begin();
+            boolean unused;
+            try {
+                PreparedStatement dec = c.prepare("UPDATE blobs SET refcount = refcount - 1 WHERE hash = ?");
+                dec.setString(1, hash);
+                dec.executeUpdate();
+                unused = deleteIfUnused(c, hash);
+                c.commit();
+            } catch (SQLException e) {
+                c.rollbackQuietly();
+                throw e;
+            }
+
+            if (unused) {
+                ContentCache.invalidateBlob(hash);
+                try {
+                    FileStorageManager.delete(hash);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Usuwa wiersz bloba bez referencji i oddaje jego miejsce użytkownikowi, któremu było liczone.
+     * Zwraca true, jeśli blob został usunięty (plik z dysku usuwa wywołujący).
+     */
+    private static boolean deleteIfUnused(PooledConnection c, String hash) throws SQLException {
+        PreparedStatement select = c.prepare(
+                "SELECT charged_to, COALESCE(stored_size, size) FROM blobs WHERE hash = ? AND refcount <= 0 FOR UPDATE");
+        select.setString(1, hash);
+        String chargedTo;
+        long storedSize;
+        try (ResultSet rs = select.executeQuery()) {
+            if (!rs.next()) {
+                return false;
+            }
+            chargedTo = rs.getString(1);
+            storedSize = rs.getLong(2);
+        }
+        PreparedStatement del = c.prepare("DELETE FROM blobs WHERE hash = ?");
+        del.setString(1, hash);
+        del.executeUpdate();
+        if (chargedTo != null) {
+            addUsage(c, chargedTo, 0, 0, -storedSize);
+        }
+        return true;
+    }
+
+    /**
+     * Po wycofanej transakcji: usuwa z magazynu blob, który nie ma wiersza w tabeli blobs (trafił na dysk
+     * tylko w tej transakcji). Wołać pod {@link FileStorageManager#lockFor(String)} - wiersz i plik bloba
+     * zmieniają się tylko pod nią. Błędy są tylko logowane - wywołujący zgłasza błąd zapisu.
+     */
+    private static void deleteIfUnreferenced(PooledConnection c, String hash) {
+        try {
+            PreparedStatement ps = c.prepare("SELECT 1 FROM blobs WHERE hash = ?");
+            ps.setString(1, hash);
             try (ResultSet rs = ps.executeQuery()) {
-                return rs.next(); // jeśli jest jakikolwiek wynik, to user istnieje
+                if (rs.next()) {
+                    return;
+                }
             }
-        } catch (SQLException e) {
+            ContentCache.invalidateBlob(hash);
+            FileStorageManager.delete(hash);
+        } catch (SQLException | IOException e) {
             e.printStackTrace();
         }
-        return false;
+    }
+
+    private static long chargeBlob(PooledConnection c, String owner, String hash, long storedSize) throws SQLException {
+        PreparedStatement ps = c.prepare(CHARGE_BLOB);
+        ps.setString(1, owner);
+        ps.setString(2, hash);
+        return ps.executeUpdate() > 0 ? storedSize : 0;
     }
 
     /**
-     * Zapisuje plik w bazie, powiązany z danym właścicielem.
+     * Umieszcza blob w magazynie (jeśli jeszcze go tam nie ma) i zwiększa jego licznik referencji.
+     * Blob trafia na dysk przed zmianą licznika - po wycofaniu transakcji usuwa go
+     * {@link #deleteIfUnreferenced}, po awarii serwera najwyżej zostanie tam za długo.
+     * Wołać pod {@link FileStorageManager#lockFor(String)} (lub jednowątkowo przy starcie).
      */
-    public static void saveFile(String owner, String fileName, byte[] data) throws SQLException {
-        String sql = "INSERT INTO files (owner, filename, content) VALUES (?, ?, ?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+    private static void addBlobReference(PooledConnection c, FileStorageManager.StagedBlob blob) throws SQLException {
+        commitBlob(blob);
+        PreparedStatement ps = c.prepare(MERGE_BLOB);
+        setBlobParameters(ps, blob);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Jak {@link #addBlobReference}, dla wielu blobów naraz (jedno wsadowe MERGE).
+     * Ten sam blob może wystąpić kilka razy - każde wystąpienie to jedna referencja.
+     */
+    private static void addBlobReferences(PooledConnection c, List<FileStorageManager.StagedBlob> blobs) throws SQLException {
+        for (FileStorageManager.StagedBlob blob : blobs) {
+            commitBlob(blob);
+        }
+        PreparedStatement ps = c.prepare(MERGE_BLOB);
+        for (FileStorageManager.StagedBlob blob : blobs) {
+            setBlobParameters(ps, blob);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    private static void commitBlob(FileStorageManager.StagedBlob blob) throws SQLException {
+        try {
+            FileStorageManager.commit(blob);
+        } catch (IOException e) {
+            blob.discard();
+            throw new SQLException("Błąd zapisu bloba: " + e.getMessage(), e);
+        }
+    }
+
+    private static void setBlobParameters(PreparedStatement ps, FileStorageManager.StagedBlob blob) throws SQLException {
+        ps.setString(1, blob.getHash());
+        ps.setLong(2, blob.getSize());
+        ps.setString(3, blob.getCodec());
+        ps.setLong(4, blob.getStoredSize());
+    }
+
+    // -------------------- ZAJĘTOŚĆ MIEJSCA ------------------------
+
+    private static void insertUsage(PooledConnection c, String owner) throws SQLException {
+        PreparedStatement ps = c.prepare(
+                "INSERT INTO owner_usage (owner, file_count, logical_bytes, physical_bytes) VALUES (?, 0, 0, 0)");
+        ps.setString(1, owner);
+        ps.executeUpdate();
+    }
+
+    /**
+     * Dolicza zmianę do zajętości właściciela - wołać w transakcji, która zmienia jego pliki lub bloby.
+     */
+    private static void addUsage(PooledConnection c, String owner, long files, long logicalBytes, long physicalBytes)
+            throws SQLException {
+        if (files == 0 && logicalBytes == 0 && physicalBytes == 0) {
+            return;
+        }
+        PreparedStatement ps = c.prepare("UPDATE owner_usage SET file_count = file_count + ?, " +
+                "logical_bytes = logical_bytes + ?, physical_bytes = physical_bytes + ? WHERE owner = ?");
+        ps.setLong(1, files);
+        ps.setLong(2, logicalBytes);
+        ps.setLong(3, physicalBytes);
+        ps.setString(4, owner);
+        if (ps.executeUpdate() == 0) {
+            // Właściciel bez wiersza zajętości (pliki bez konta w users) - wiersz powstaje przy pierwszej zmianie
+            PreparedStatement insert = c.prepare(
+                    "INSERT INTO owner_usage (owner, file_count, logical_bytes, physical_bytes) VALUES (?, ?, ?, ?)");
+            insert.setString(1, owner);
+            insert.setLong(2, files);
+            insert.setLong(3, logicalBytes);
+            insert.setLong(4, physicalBytes);
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Zajętość miejsca użytkownika - jeden wiersz owner_usage, bez przeglądania plików.
+     */
+    public static StorageUsage getUsage(String owner) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            MetadataJournal.awaitApplied(owner);
+            try (PooledConnection c = pool.acquire()) {
+                PreparedStatement ps = c.prepare(
+                        "SELECT file_count, logical_bytes, physical_bytes FROM owner_usage WHERE owner = ?");
+                ps.setString(1, owner);
+                try (ResultSet rs = ps.executeQuery()) {
+                    boolean found = rs.next();
+                    return new StorageUsage(found ? rs.getLong(1) : 0, found ? rs.getLong(2) : 0, found ? rs.getLong(3) : 0,
+                            ServerConfig.quotaBytes(), ServerConfig.quotaFiles());
+                }
+            }
+        } finally {
+            USAGE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Sprawdza przed przyjęciem danych, czy zapis plików o podanych rozmiarach zmieści się w limitach
+     * użytkownika (nadpisanie liczy się jako różnica rozmiarów). Zwraca komunikat albo null.
+     * Zapisy jeszcze tylko w dzienniku i otwarte uploady wznawialne (z deklarowanym rozmiarem) liczą się
+     * jak nowe pliki. Równoległe zapisy sprawdzane są niezależnie - limit może zostać przekroczony
+     * najwyżej o to, co jest właśnie przesyłane.
+     */
+    public static String checkQuota(String owner, List<String> fileNames, List<Long> sizes) throws SQLException {
+        return checkQuota(owner, fileNames, sizes, null);
+    }
+
+    /**
+     * Jak {@link #checkQuota(String, List, List)}, bez rezerwacji uploadu o podanym id
+     * (kończony upload nie może liczyć się podwójnie).
+     */
+    public static String checkQuota(String owner, List<String> fileNames, List<Long> sizes, String exceptUploadId)
+            throws SQLException {
+        long maxBytes = ServerConfig.quotaBytes();
+        long maxFiles = ServerConfig.quotaFiles();
+        if (maxBytes <= 0 && maxFiles <= 0) {
+            return null;
+        }
+        long[] pending = MetadataJournal.pendingSaves(owner);
+        long[] reserved = ResumableUploadManager.reserved(owner, exceptUploadId);
+        long files = pending[0] + reserved[0];
+        long bytes = pending[1] + reserved[1];
+        Map<String, Long> incoming = new HashMap<>();
+        for (int i = 0; i < fileNames.size(); i++) {
+            incoming.put(fileNames.get(i), sizes.get(i));
+        }
+        Map<String, Long> previous = new HashMap<>();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare("SELECT file_count, logical_bytes FROM owner_usage WHERE owner = ?");
             ps.setString(1, owner);
-            ps.setString(2, fileName);
-            ps.setBytes(3, data);
-            ps.executeUpdate();
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    files += rs.getLong(1);
+                    bytes += rs.getLong(2);
+                }
+            }
+            PreparedStatement select = c.prepare("SELECT filename, size FROM files WHERE owner = ? AND filename = ANY(?)");
+            select.setString(1, owner);
+            select.setObject(2, incoming.keySet().toArray(new String[0]));
+            try (ResultSet rs = select.executeQuery()) {
+                while (rs.next()) {
+                    previous.put(rs.getString(1), rs.getLong(2));
+                }
+            }
+        }
+        for (Map.Entry<String, Long> file : incoming.entrySet()) {
+            Long previousSize = previous.get(file.getKey());
+            if (previousSize == null) {
+                files++;
+            } else {
+                bytes -= previousSize;
+            }
+            bytes += file.getValue();
+        }
+        if (maxFiles > 0 && files > maxFiles) {
+            return "przekroczony limit liczby plików (" + maxFiles + ")";
+        }
+        if (maxBytes > 0 && bytes > maxBytes) {
+            return "przekroczony limit miejsca (" + maxBytes + " B)";
+        }
+        return null;
+    }
+
+    // -------------------- DZIENNIK METADANYCH ------------------------
+
+    /**
+     * Stosuje rekordy dziennika w jednej transakcji, razem z numerem ostatniego z nich (journal_state).
+     * Zwraca skróty blobów, którym licznik referencji spadł do zera (wiersze już usunięte) - plik
+     * z dysku usuwa wywołujący. Woła tylko MetadataJournal, po kolei - liczniki zmienia jeden wątek.
+     */
+    static List<String> applyJournal(List<MetadataJournal.Record> records) throws SQLException {
+        List<String> unused = new ArrayList<>();
+        try (PooledConnection c = pool.acquire()) {
+            try {
+                c.begin();
+                LinkedHashSet<String> released = new LinkedHashSet<>();
+                // Zmiany zajętości właścicieli: {pliki, bajty, bajty na dysku}
+                Map<String, long[]> usage = new HashMap<>();
+                for (MetadataJournal.Record record : records) {
+                    if (record.type == MetadataJournal.REGISTER) {
+                        if (!userExists(c, record.owner)) {
+                            PreparedStatement ps = c.prepare("INSERT INTO users (username, password) VALUES (?, ?)");
+                            ps.setString(1, record.owner);
+                            ps.setString(2, record.password);
+                            ps.executeUpdate();
+                            insertUsage(c, record.owner);
+                        }
+                        continue;
+                    }
+                    PreparedStatement select = c.prepare("SELECT blob_hash, size FROM files WHERE owner = ? AND filename = ? FOR UPDATE");
+                    select.setString(1, record.owner);
+                    select.setString(2, record.fileName);
+                    String previousHash = null;
+                    long previousSize = 0;
+                    try (ResultSet rs = select.executeQuery()) {
+                        if (rs.next()) {
+                            previousHash = rs.getString("blob_hash");
+                            previousSize = rs.getLong("size");
+                        }
+                    }
+                    long[] delta = usage.computeIfAbsent(record.owner, k -> new long[3]);
+                    if (previousHash != null) {
+                        delta[0]--;
+                        delta[1] -= previousSize;
+                    }
+                    if (record.type == MetadataJournal.SAVE) {
+                        PreparedStatement merge = c.prepare(MERGE_BLOB);
+                        merge.setString(1, record.hash);
+                        merge.setLong(2, record.size);
+                        merge.setString(3, record.codec);
+                        merge.setLong(4, record.storedSize);
+                        merge.executeUpdate();
+                        delta[0]++;
+                        delta[1] += record.size;
+                        delta[2] += chargeBlob(c, record.owner, record.hash, record.storedSize);
+
+                        PreparedStatement ps = c.prepare(previousHash == null
+                                ? "INSERT INTO files (blob_hash, size, modified_at, owner, filename) VALUES (?, ?, ?, ?, ?)"
+                                : "UPDATE files SET blob_hash = ?, size = ?, modified_at = ? WHERE owner = ? AND filename = ?");
+                        ps.setString(1, record.hash);
+                        ps.setLong(2, record.size);
+                        ps.setLong(3, record.modifiedAt);
+                        ps.setString(4, record.owner);
+                        ps.setString(5, record.fileName);
+                        ps.executeUpdate();
+                    } else if (previousHash != null) {
+                        PreparedStatement delete = c.prepare("DELETE FROM files WHERE owner = ? AND filename = ?");
+                        delete.setString(1, record.owner);
+                        delete.setString(2, record.fileName);
+                        delete.executeUpdate();
+                    }
+                    if (previousHash != null) {
+                        PreparedStatement dec = c.prepare("UPDATE blobs SET refcount = refcount - 1 WHERE hash = ?");
+                        dec.setString(1, previousHash);
+                        dec.executeUpdate();
+                        released.add(previousHash);
+                    }
+                }
+                for (Map.Entry<String, long[]> entry : usage.entrySet()) {
+                    long[] delta = entry.getValue();
+                    addUsage(c, entry.getKey(), delta[0], delta[1], delta[2]);
+                }
+                // Dopiero po całej grupie - zawartość zwolniona w grupie mogła zostać w niej użyta ponownie
+                for (String hash : released) {
+                    if (deleteIfUnused(c, hash)) {
+                        unused.add(hash);
+                    }
+                }
+                PreparedStatement state = c.prepare("MERGE INTO journal_state KEY (id) VALUES (1, ?)");
+                state.setLong(1, records.get(records.size() - 1).seq);
+                state.executeUpdate();
+                c.commit();
+            } catch (SQLException e) {
+                c.rollbackQuietly();
+                throw e;
+            }
+        }
+        return unused;
+    }
+
+    /**
+     * Numer ostatniego rekordu dziennika zastosowanego w bazie (0 - żadnego).
+     */
+    static long journalAppliedSeq() throws SQLException {
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare("SELECT applied_seq FROM journal_state WHERE id = 1");
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Zapisuje bazę na dysk (CHECKPOINT SYNC) - potem można obciąć zastosowany dziennik.
+     */
+    static void checkpoint() throws SQLException {
+        try (PooledConnection c = pool.acquire();
+             Statement stmt = c.getConnection().createStatement()) {
+            stmt.execute("CHECKPOINT SYNC");
         }
     }
 
@@ -136,17 +1153,170 @@ public class DatabaseManager {
      * Zwraca listę nazw plików należących do danego właściciela.
      */
     public static List<String> listFiles(String owner) throws SQLException {
-        List<String> result = new ArrayList<>();
-        String sql = "SELECT filename FROM files WHERE owner = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+        long started = System.nanoTime();
+        try {
+            MetadataCache.OwnerIndex index = ownerIndex(owner);
+            if (index != null) {
+                return index.names();
+            }
+            List<String> result = new ArrayList<>();
+            MetadataJournal.awaitApplied(owner);
+            try (PooledConnection c = pool.acquire()) {
+                PreparedStatement ps = c.prepare("SELECT filename FROM files WHERE owner = ? ORDER BY filename");
+                ps.setString(1, owner);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        result.add(rs.getString("filename"));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            LIST_FILES_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Zwraca jedną stronę plików właściciela (paginacja kursorem, bez OFFSET - każda strona to
+     * krótki przebieg po indeksie). Kursor to nazwa ostatniego pliku poprzedniej strony,
+     * a przy sortowaniu po czasie "mtime:nazwa".
+     *
+     * @param prefix filtr początku nazwy (lub null)
+     * @param sort   jedna ze stałych ProtocolConstants.SORT_*
+     */
+    public static FilePage listFiles(String owner, String cursor, String prefix, int sort, int limit) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            MetadataCache.OwnerIndex index = ownerIndex(owner);
+            if (index != null) {
+                return index.page(cursor, prefix, sort, limit);
+            }
+            int pageSize = Math.max(1, Math.min(limit, ProtocolConstants.MAX_PAGE_SIZE));
+            boolean byMtime = sort == ProtocolConstants.SORT_MTIME_ASC || sort == ProtocolConstants.SORT_MTIME_DESC;
+            boolean desc = sort == ProtocolConstants.SORT_NAME_DESC || sort == ProtocolConstants.SORT_MTIME_DESC;
+            String cmp = desc ? " < ?" : " > ?";
+            String dir = desc ? " DESC" : "";
+
+            FileInfo cursorKey = parseCursor(cursor, byMtime);
+            long cursorMtime = cursorKey != null ? cursorKey.getModifiedAt() : 0;
+            String cursorName = cursorKey != null ? cursorKey.getName() : null;
+            boolean hasPrefix = prefix != null && !prefix.isEmpty();
+
+            StringBuilder sql = new StringBuilder("SELECT filename, size, modified_at FROM files WHERE owner = ?");
+            if (hasPrefix) {
+                sql.append(" AND filename LIKE ? ESCAPE '\\'");
+            }
+            if (cursorName != null) {
+                if (byMtime) {
+                    sql.append(" AND (modified_at").append(cmp).append(" OR (modified_at = ? AND filename").append(cmp).append("))");
+                } else {
+                    sql.append(" AND filename").append(cmp);
+                }
+            }
+            if (byMtime) {
+                sql.append(" ORDER BY modified_at").append(dir).append(", filename").append(dir);
+            } else {
+                sql.append(" ORDER BY filename").append(dir);
+            }
+            sql.append(" LIMIT ?");
+
+            List<FileInfo> files = new ArrayList<>(pageSize);
+            boolean more = false;
+            MetadataJournal.awaitApplied(owner);
+            try (PooledConnection c = pool.acquire()) {
+                PreparedStatement ps = c.prepare(sql.toString());
+                int i = 1;
+                ps.setString(i++, owner);
+                if (hasPrefix) {
+                    ps.setString(i++, escapeLike(prefix) + "%");
+                }
+                if (cursorName != null) {
+                    if (byMtime) {
+                        ps.setLong(i++, cursorMtime);
+                        ps.setLong(i++, cursorMtime);
+                    }
+                    ps.setString(i++, cursorName);
+                }
+                // Jeden wiersz więcej mówi, czy istnieje następna strona
+                ps.setInt(i, pageSize + 1);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        if (files.size() == pageSize) {
+                            more = true;
+                            break;
+                        }
+                        files.add(new FileInfo(rs.getString("filename"), rs.getLong("size"), rs.getLong("modified_at")));
+                    }
+                }
+            }
+
+            return toPage(files, more, byMtime);
+        } finally {
+            LIST_FILES_PAGE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Kursor strony jako klucz (nazwa, mtime) albo null. Niepoprawny kursor - IllegalArgumentException.
+     */
+    static FileInfo parseCursor(String cursor, boolean byMtime) {
+        if (cursor == null) {
+            return null;
+        }
+        if (!byMtime) {
+            return new FileInfo(cursor, 0, 0);
+        }
+        int sep = cursor.indexOf(':');
+        if (sep < 0) {
+            throw new IllegalArgumentException("Niepoprawny kursor: " + cursor);
+        }
+        return new FileInfo(cursor.substring(sep + 1), 0, Long.parseLong(cursor.substring(0, sep)));
+    }
+
+    static FilePage toPage(List<FileInfo> files, boolean more, boolean byMtime) {
+        String nextCursor = null;
+        if (more) {
+            FileInfo last = files.get(files.size() - 1);
+            nextCursor = byMtime ? last.getModifiedAt() + ":" + last.getName() : last.getName();
+        }
+        return new FilePage(files, nextCursor);
+    }
+
+    /**
+     * Indeks metadanych właściciela z MetadataCache - ładowany z bazy przy pierwszym użyciu.
+     * Null, jeśli cache jest wyłączony albo właściciel ma za dużo plików, żeby trzymać je w pamięci.
+     */
+    private static MetadataCache.OwnerIndex ownerIndex(String owner) throws SQLException {
+        if (!MetadataCache.isEnabled()) {
+            return null;
+        }
+        MetadataCache.OwnerIndex index = MetadataCache.get(owner);
+        if (index != null) {
+            return index;
+        }
+        // Zmiany z dziennika są już w MetadataCache, ale jeszcze nie w bazie, z której ładujemy indeks
+        MetadataJournal.awaitApplied(owner);
+        long stamp = MetadataCache.stamp(owner);
+        long max = MetadataCache.maxEntriesPerOwner();
+        List<FileInfo> files = new ArrayList<>();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare("SELECT filename, size, modified_at FROM files WHERE owner = ? LIMIT ?");
             ps.setString(1, owner);
+            ps.setLong(2, max + 1);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
-                    result.add(rs.getString("filename"));
+                    files.add(new FileInfo(rs.getString("filename"), rs.getLong("size"), rs.getLong("modified_at")));
                 }
             }
         }
-        return result;
+        if (files.size() > max) {
+            return null;
+        }
+        return MetadataCache.install(owner, stamp, files);
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
     /**
@@ -154,16 +1324,149 @@ public class DatabaseManager {
      * Jeśli nie ma takiego pliku, zwraca null.
      */
     public static byte[] getFileContent(String owner, String fileName) throws SQLException {
-        String sql = "SELECT content FROM files WHERE owner = ? AND filename = ?";
-        try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setString(1, owner);
-            ps.setString(2, fileName);
+        try (FileContent content = openFileContent(owner, fileName)) {
+            return content == null ? null : content.getStream().readAllBytes();
+        } catch (IOException e) {
+            throw new SQLException("Błąd odczytu pliku " + fileName, e);
+        }
+    }
+
+    /**
+     * Otwiera zawartość pliku z magazynu blobów (w kodeku zapisanym w tabeli blobs) - wysyłaną potem
+     * bez kopiowania (transferTo). Często pobierane pliki są brane z {@link ContentCache} bez zapytania do bazy.
+     * Jeśli nie ma takiego pliku, zwraca null. Wynik trzeba zamknąć.
+     */
+    public static FileContent openFileContent(String owner, String fileName) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            long stamp = ContentCache.stamp(owner, fileName);
+            try {
+                StoredBlob cached = ContentCache.lookup(owner, fileName);
+                if (cached != null) {
+                    return FileContent.ofBlob(cached);
+                }
+            } catch (IOException e) {
+                throw new SQLException("Uszkodzony wpis cache dla pliku " + fileName, e);
+            }
+            String hash;
+            String codec;
+            MetadataJournal.Record pending = MetadataJournal.pendingFile(owner, fileName);
+            if (pending != null) {
+                if (pending.type == MetadataJournal.DELETE) {
+                    return null;
+                }
+                hash = pending.hash;
+                codec = pending.codec;
+            } else try (PooledConnection c = pool.acquire()) {
+                PreparedStatement ps = c.prepare("SELECT f.blob_hash, b.codec FROM files f JOIN blobs b ON b.hash = f.blob_hash " +
+                                                 "WHERE f.owner = ? AND f.filename = ?");
+                ps.setString(1, owner);
+                ps.setString(2, fileName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    hash = rs.getString(1);
+                    codec = rs.getString(2);
+                }
+            }
+            try {
+                return FileContent.ofBlob(ContentCache.load(owner, fileName, stamp, hash, codec));
+            } catch (IOException e) {
+                throw new SQLException("Brak bloba " + hash + " dla pliku " + fileName, e);
+            }
+        } finally {
+            OPEN_FILE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Skrót zawartości pliku lub null, jeśli plik nie istnieje.
+     */
+    public static String getBlobHash(String owner, String fileName) throws SQLException {
+        long started = System.nanoTime();
+        try {
+            MetadataJournal.Record pending = MetadataJournal.pendingFile(owner, fileName);
+            if (pending != null) {
+                return pending.type == MetadataJournal.SAVE ? pending.hash : null;
+            }
+            try (PooledConnection c = pool.acquire()) {
+                PreparedStatement ps = c.prepare("SELECT blob_hash FROM files WHERE owner = ? AND filename = ?");
+                ps.setString(1, owner);
+                ps.setString(2, fileName);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getString("blob_hash");
+                    }
+                }
+            }
+            return null;
+        } finally {
+            BLOB_HASH_TIME.recordSince(started);
+        }
+    }
+
+    // -------------------- SESJE ------------------------
+
+    public static void insertSession(String sessionId, String username, long createdAt, long lastAccess) throws SQLException {
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare("INSERT INTO sessions (session_id, username, created_at, last_access) VALUES (?, ?, ?, ?)");
+            ps.setString(1, sessionId);
+            ps.setString(2, username);
+            ps.setLong(3, createdAt);
+            ps.setLong(4, lastAccess);
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Wsadowo aktualizuje czas ostatniego dostępu sesji.
+     */
+    public static void touchSessions(Map<String, Long> lastAccess) throws SQLException {
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare("UPDATE sessions SET last_access = ? WHERE session_id = ?");
+            for (Map.Entry<String, Long> e : lastAccess.entrySet()) {
+                ps.setLong(1, e.getValue());
+                ps.setString(2, e.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Wsadowo usuwa sesje (wylogowane, wygasłe lub wyparte limitem).
+     */
+    public static void deleteSessions(Collection<String> sessionIds) throws SQLException {
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement ps = c.prepare("DELETE FROM sessions WHERE session_id = ?");
+            for (String id : sessionIds) {
+                ps.setString(1, id);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+
+    /**
+     * Wczytuje sesje, które jeszcze nie wygasły; wygasłe od razu usuwa z tabeli.
+     */
+    static List<SessionStore.Session> loadSessions(long idleCutoff, long absoluteCutoff) throws SQLException {
+        List<SessionStore.Session> result = new ArrayList<>();
+        try (PooledConnection c = pool.acquire()) {
+            PreparedStatement del = c.prepare("DELETE FROM sessions WHERE last_access <= ? OR created_at <= ?");
+            del.setLong(1, idleCutoff);
+            del.setLong(2, absoluteCutoff);
+            del.executeUpdate();
+
+            PreparedStatement ps = c.prepare("SELECT session_id, username, created_at, last_access FROM sessions ORDER BY created_at");
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return rs.getBytes("content");
+                while (rs.next()) {
+                    result.add(new SessionStore.Session(rs.getString("session_id"), rs.getString("username"),
+                            rs.getLong("created_at"), rs.getLong("last_access")));
                 }
             }
         }
-        return null;
+        return result;
     }
 }
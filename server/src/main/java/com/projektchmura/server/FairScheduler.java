@@ -0,0 +1,297 @@
+package com.projektchmura.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.projektchmura.common.LatencyHistogram;
+
+/**
+ * Pula wątków do zapisu plików, sprawiedliwa między użytkownikami.
+ *
+ * Każdy użytkownik ma własną ograniczoną kolejkę zadań, a wolny wątek wybiera zadanie metodą
+ * deficit round-robin: użytkownicy z zadaniami są obsługiwani po kolei, każdy w swojej turze dostaje
+ * kwant bajtów (ServerConfig.schedulerQuantumBytes) i wykonuje zadania, dopóki starcza mu deficytu.
+ * Koszt zadania to liczba bajtów plus stały narzut (fsync, transakcja), więc użytkownik wysyłający
+ * tysiące plików dostaje tyle samo przepustowości co ten, który wysyła jeden - a nie całą kolejkę.
+ *
+ * Pełna kolejka użytkownika: {@link #trySubmit} od razu odmawia (serwer odpowiada BUSY),
+ * a {@link #submit} czeka na miejsce (połączenie przestaje odbierać dane - backpressure przez TCP).
+ *
+ * Przez pulę przechodzą wszystkie zapisy plików (UPLOAD, UPLOAD_BATCH, UPLOAD_APPEND, UPLOAD_DELTA),
+ * w dwóch krokach: dopuszczenie - pusty żeton o koszcie przesyłanych bajtów, po którym klient dostaje
+ * CONTINUE - i zatwierdzenie (sync i baza, koszt samego narzutu). Dane z gniazda odbiera wątek połączenia,
+ * więc wątki puli nigdy nie czekają na sieć. DELETE nie przesyła danych i nie przechodzi przez pulę.
+ */
+public class FairScheduler {
+
+    // Stały narzut zadania w bajtach - mały plik też kosztuje sync i zapis w bazie
+    static final long TASK_OVERHEAD = 64 * 1024;
+
+    private final int threads;
+    private final int maxQueuedPerUser;
+    private final long quantum;
+
+    private final LatencyHistogram waitTime = Metrics.histogram("scheduler.wait");
+    private final LongAdder rejected = Metrics.counter("scheduler.rejected");
+
+    private static final class Task<T> extends FutureTask<T> {
+        final UserQueue queue;
+        final long cost;
+        final long queuedAt = System.nanoTime();
+
+        Task(UserQueue queue, long cost, Callable<T> callable) {
+            super(callable);
+            this.queue = queue;
+            this.cost = cost;
+        }
+    }
+
+    /**
+     * Kolejka jednego użytkownika - istnieje, dopóki ma zadania czekające albo wykonywane.
+     */
+    private static final class UserQueue {
+        final String user;
+        final ArrayDeque<Task<?>> tasks = new ArrayDeque<>();
+        long deficit;
+        // Kwant tej tury już dodany
+        boolean inTurn;
+        int running;
+
+        UserQueue(String user) {
+            this.user = user;
+        }
+    }
+
+    // Wszystkie pola poniżej pod blokadą this
+    private final Map<String, UserQueue> users = new HashMap<>();
+    // Użytkownicy z czekającymi zadaniami, w kolejności tur
+    private final ArrayDeque<UserQueue> round = new ArrayDeque<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private int queued;
+    private int running;
+    private boolean stopped = true;
+
+    public FairScheduler(int threads, int maxQueuedPerUser, long quantumBytes) {
+        this.threads = Math.max(1, threads);
+        this.maxQueuedPerUser = Math.max(1, maxQueuedPerUser);
+        this.quantum = Math.max(1, quantumBytes);
+    }
+
+    public synchronized void start() {
+        if (!stopped) {
+            return;
+        }
+        stopped = false;
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(this::work, "scheduler-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+    }
+
+    /**
+     * Przerywa wątki i anuluje czekające zadania (ich Future rzuci CancellationException).
+     */
+    public synchronized void stop() {
+        stopped = true;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+        workers.clear();
+        for (UserQueue queue : round) {
+            for (Task<?> task : queue.tasks) {
+                task.cancel(false);
+            }
+            queue.tasks.clear();
+        }
+        round.clear();
+        for (UserQueue queue : new ArrayList<>(users.values())) {
+            release(queue);
+        }
+        queued = 0;
+        notifyAll();
+    }
+
+    /**
+     * Dodaje zadanie do kolejki użytkownika albo zwraca null, gdy kolejka jest pełna.
+     * bytes - ile danych zadanie zapisze (koszt w kolejności obsługi).
+     */
+    public synchronized <T> Future<T> trySubmit(String user, long bytes, Callable<T> callable) {
+        if (stopped) {
+            throw new RejectedExecutionException("Pula zadań jest zatrzymana");
+        }
+        UserQueue queue = users.get(user);
+        if (queue != null && queue.tasks.size() >= maxQueuedPerUser) {
+            rejected.increment();
+            return null;
+        }
+        return enqueue(user, bytes, callable);
+    }
+
+    /**
+     * Dodaje zadanie do kolejki użytkownika, czekając, aż będzie w niej miejsce.
+     */
+    public synchronized <T> Future<T> submit(String user, long bytes, Callable<T> callable) throws InterruptedException {
+        while (true) {
+            if (stopped) {
+                throw new RejectedExecutionException("Pula zadań jest zatrzymana");
+            }
+            UserQueue queue = users.get(user);
+            if (queue == null || queue.tasks.size() < maxQueuedPerUser) {
+                return enqueue(user, bytes, callable);
+            }
+            wait();
+        }
+    }
+
+    public synchronized int getQueuedCount() {
+        return queued;
+    }
+
+    public synchronized int getActiveCount() {
+        return running;
+    }
+
+    /**
+     * Liczba użytkowników z zadaniami czekającymi albo wykonywanymi.
+     */
+    public synchronized int getUserCount() {
+        return users.size();
+    }
+
+    /**
+     * Długość kolejki użytkownika (zadania czekające, bez wykonywanych).
+     */
+    public synchronized int getQueueDepth(String user) {
+        UserQueue queue = users.get(user);
+        return queue != null ? queue.tasks.size() : 0;
+    }
+
+    // -------------------- WEWNĘTRZNE ------------------------
+
+    private <T> Future<T> enqueue(String user, long bytes, Callable<T> callable) {
+        UserQueue queue = users.get(user);
+        if (queue == null) {
+            queue = new UserQueue(user);
+            users.put(user, queue);
+            Metrics.gauge(depthGauge(user), () -> getQueueDepth(user));
+        }
+        Task<T> task = new Task<>(queue, Math.max(0, bytes) + TASK_OVERHEAD, callable);
+        if (queue.tasks.isEmpty()) {
+            round.addLast(queue);
+        }
+        queue.tasks.addLast(task);
+        queued++;
+        notifyAll();
+        return task;
+    }
+
+    private void work() {
+        while (true) {
+            Task<?> task = null;
+            synchronized (this) {
+                // Wątek z poprzedniego start() po stop() kończy się, nawet jeśli pula już ruszyła ponownie
+                while (workers.contains(Thread.currentThread()) && (task = next()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (task == null) {
+                    return;
+                }
+                task.queue.running++;
+                running++;
+            }
+            waitTime.recordSince(task.queuedAt);
+            // FutureTask przechwytuje wyjątki zadania - trafią do czekającego na Future
+            task.run();
+            synchronized (this) {
+                task.queue.running--;
+                running--;
+                release(task.queue);
+            }
+            // Przerwanie z stop() sprawdza pętla wyżej - nie może przenieść się na następne zadanie
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Deficit round-robin: użytkownik na początku tury dostaje kwant i wykonuje zadania, na które go stać;
+     * potem przechodzi na koniec kolejki tur. Pod blokadą this.
+     */
+    private Task<?> next() {
+        int idle = 0;
+        while (!round.isEmpty()) {
+            UserQueue queue = round.peekFirst();
+            if (!queue.inTurn) {
+                queue.deficit += quantum;
+                queue.inTurn = true;
+            }
+            Task<?> task = queue.tasks.peekFirst();
+            if (task.cost <= queue.deficit) {
+                queue.tasks.pollFirst();
+                queue.deficit -= task.cost;
+                queued--;
+                if (queue.tasks.isEmpty()) {
+                    // Pusty użytkownik nie gromadzi deficytu na później
+                    round.pollFirst();
+                    queue.deficit = 0;
+                    queue.inTurn = false;
+                }
+                // Zwolniło się miejsce w kolejce - budzimy czekających w submit
+                notifyAll();
+                return task;
+            }
+            queue.inTurn = false;
+            round.addLast(round.pollFirst());
+            if (++idle == round.size()) {
+                // Całe okrążenie bez zadania (same duże pliki) - od razu dodajemy tyle kwantów,
+                // ile brakuje najbliższemu użytkownikowi, zamiast kręcić się po kolejce
+                skipRounds();
+                idle = 0;
+            }
+        }
+        return null;
+    }
+
+    private void skipRounds() {
+        long rounds = Long.MAX_VALUE;
+        for (UserQueue queue : round) {
+            long missing = queue.tasks.peekFirst().cost - queue.deficit;
+            rounds = Math.min(rounds, (missing + quantum - 1) / quantum - 1);
+        }
+        if (rounds > 0) {
+            for (UserQueue queue : round) {
+                queue.deficit += rounds * quantum;
+            }
+        }
+    }
+
+    private void release(UserQueue queue) {
+        if (queue.running == 0 && queue.tasks.isEmpty() && users.get(queue.user) == queue) {
+            users.remove(queue.user);
+            Metrics.removeGauge(depthGauge(queue.user));
+        }
+    }
+
+    private static String depthGauge(String user) {
+        return "scheduler.queue." + user;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FairScheduler[threads=" + threads + ", active=" + running + ", queued=" + queued
+                + ", users=" + users.size() + ", rejected=" + rejected.sum() + "]";
+    }
+}
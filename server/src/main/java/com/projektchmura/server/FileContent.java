@@ -0,0 +1,53 @@
+package com.projektchmura.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Otwarta zawartość pliku do pobrania - blob z magazynu (z pliku lub z cache zawartości)
+ * razem ze strumieniem do czytania go w całości.
+ */
+public class FileContent implements Closeable {
+
+    private final long length;
+    private final InputStream stream;
+    private final StoredBlob blob;
+
+    private FileContent(long length, InputStream stream, StoredBlob blob) {
+        this.length = length;
+        this.stream = stream;
+        this.blob = blob;
+    }
+
+    /**
+     * Blob z magazynu (z pliku albo z cache) - wysyłany przez {@link StoredBlob#send}.
+     */
+    public static FileContent ofBlob(StoredBlob blob) {
+        return new FileContent(blob.size(), blob.openStream(), blob);
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public InputStream getStream() {
+        return stream;
+    }
+
+    /**
+     * Blob z magazynu - wysyłany przez {@link StoredBlob#send}.
+     */
+    public StoredBlob getBlob() {
+        return blob;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stream.close();
+        } finally {
+            blob.close();
+        }
+    }
+}
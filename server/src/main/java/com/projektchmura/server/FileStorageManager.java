@@ -1,37 +1,797 @@
 package com.projektchmura.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.projektchmura.common.BlockSignatures;
+import com.projektchmura.common.ChunkCompressor;
+import com.projektchmura.common.ContentHash;
+import com.projektchmura.common.HashRing;
+import com.projektchmura.common.LatencyHistogram;
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Magazyn blobów adresowanych treścią: każdy blob leży pod nazwą równą SHA-256 swojej zawartości
+ * w katalogach rozgałęzionych po dwóch pierwszych bajtach skrótu (uploads/blobs/ab/cd/abcd...).
+ * Identyczna zawartość jest przechowywana tylko raz; liczniki referencji trzyma baza (tabela blobs).
+ *
+ * Bloby, których pierwszy fragment daje się skompresować, są zapisywane w formacie {@link StoredBlob}
+ * (kodek "deflate", plik z rozszerzeniem .z); pozostałe (zdjęcia, archiwa) - bez zmian.
+ * Kodek bloba jest zapisany w tabeli blobs.
+ *
+ * Bloby mogą leżeć w kilku katalogach (np. na różnych dyskach, {@link ServerConfig#storageDirs()}):
+ * katalog bloba wybiera pierścień spójnego haszowania z wagami katalogów. Po zmianie katalogów
+ * (przy starcie albo w trakcie pracy, przez JMX com.projektchmura:type=Storage) wątek w tle przenosi
+ * bloby na właściwe miejsca; do tego czasu blob jest szukany także w pozostałych katalogach,
+ * więc odczyt działa przez cały czas przebudowy.
+ */
 public class FileStorageManager {
 
-    private static final String STORAGE_DIR = "uploads";
+    private static final String BLOBS_DIR = "blobs";
+    private static final String TMP_DIR = "tmp";
+    private static final String PARTIAL_DIR = "partial";
+    private static final String SIGNATURES_DIR = "signatures";
+    private static final String COMPRESSED_SUFFIX = ".z";
+    // Mniejszy blob i tak zajmuje cały blok systemu plików - kompresja nic by nie dała
+    private static final int MIN_COMPRESSED_SIZE = 4096;
+
+    // Czasy operacji (Metrics)
+    private static final LatencyHistogram STAGE_TIME = Metrics.histogram("storage.stage");
+    private static final LatencyHistogram STAGE_FILE_TIME = Metrics.histogram("storage.stageFile");
+    private static final LatencyHistogram COMMIT_TIME = Metrics.histogram("storage.commit");
+    private static final LatencyHistogram SIGNATURES_TIME = Metrics.histogram("storage.signatures");
+
+    // Kompresory do ponownego użycia - inicjalizacja Deflatera kosztuje więcej niż kompresja małego pliku
+    private static final BlockingQueue<ChunkCompressor> COMPRESSORS = new ArrayBlockingQueue<>(16);
+
+    private static final LongAdder REBALANCE_MOVED = Metrics.counter("storage.rebalance.moved");
+    private static final String JMX_NAME = "com.projektchmura:type=Storage";
+
+    // Pierwszy katalog magazynu - pliki tymczasowe, uploady wznawialne i sygnatury
+    private static Path storageRoot = Paths.get("uploads");
+
+    /**
+     * Katalog magazynu z wagą na pierścieniu (0 = opróżniany).
+     */
+    private static final class Shard {
+        final String name;
+        final Path root;
+        final int weight;
+
+        Shard(String name, int weight) {
+            this.name = name;
+            this.root = Paths.get(name);
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Niezmienny układ katalogów - przy zmianie podmieniany w całości.
+     */
+    private static final class Layout {
+        final List<Shard> shards;
+        final HashRing<Shard> ring = new HashRing<>();
+
+        Layout(List<Shard> shards) {
+            this.shards = List.copyOf(shards);
+            for (Shard shard : shards) {
+                ring.add(shard.name, shard, shard.weight);
+            }
+        }
+
+        Shard owner(String hash) {
+            return ring.get(hash);
+        }
+    }
+
+    private static volatile Layout layout = new Layout(List.of(new Shard("uploads", 1)));
+
+    // Przebudowa w tle: jeden wątek, kolejne żądanie w trakcie przebiegu zleca jeszcze jeden przebieg
+    private static ExecutorService rebalancer;
+    private static final AtomicBoolean REBALANCE_REQUESTED = new AtomicBoolean();
+
+    /**
+     * Zarządzanie katalogami przez JMX. Zmiana obowiązuje do restartu - trzeba ją też wpisać
+     * do chmurka.storage.dirs.
+     */
+    public interface StorageControl {
+        /** Katalogi z wagami, w formacie chmurka.storage.dirs. */
+        String getDirectories();
+
+        /** Dodaje katalog albo zmienia jego wagę (0 = opróżnij) i uruchamia przebudowę. */
+        void setDirectory(String dir, int weight) throws IOException;
+    }
+
+    // Blokady na skrót - zapis/usuwanie bloba i zmiana licznika referencji muszą być atomowe względem siebie
+    private static final Object[] LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCKS.length; i++) {
+            LOCKS[i] = new Object();
+        }
+    }
+
+    public static synchronized void init() {
+        List<Shard> shards = new ArrayList<>();
+        for (Map.Entry<String, Integer> dir : ServerConfig.storageDirs().entrySet()) {
+            Shard shard = new Shard(dir.getKey(), dir.getValue());
+            createDirectories(shard.root);
+            shards.add(shard);
+        }
+        storageRoot = shards.get(0).root;
+        new File(storageRoot.toFile(), PARTIAL_DIR).mkdirs();
+        new File(storageRoot.toFile(), SIGNATURES_DIR).mkdirs();
+        layout = new Layout(shards);
+
+        rebalancer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "storage-rebalance");
+            t.setDaemon(true);
+            return t;
+        });
+        registerJmx();
+        if (shards.size() > 1) {
+            System.out.println("Katalogi magazynu: " + directories());
+            requestRebalance();
+        }
+    }
+
+    public static synchronized void shutdown() {
+        if (rebalancer != null) {
+            rebalancer.shutdownNow();
+            rebalancer = null;
+        }
+        unregisterJmx();
+    }
 
-    public static void init() {
+    private static void createDirectories(Path root) {
         // Tworzymy katalog do przechowywania plików (jeśli nie istnieje)
-        File dir = new File(STORAGE_DIR);
+        File dir = root.toFile();
         if (!dir.exists()) {
             boolean created = dir.mkdirs();
             if (created) {
                 System.out.println("Utworzono katalog: " + dir.getAbsolutePath());
             }
         }
+        new File(dir, BLOBS_DIR).mkdirs();
+        new File(dir, TMP_DIR).mkdirs();
+    }
+
+    /**
+     * Katalogi z wagami, w formacie chmurka.storage.dirs.
+     */
+    public static String directories() {
+        StringBuilder sb = new StringBuilder();
+        for (Shard shard : layout.shards) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(shard.name).append('=').append(shard.weight);
+        }
+        return sb.toString();
+    }
+
+    public static int getDirectoryCount() {
+        return layout.shards.size();
+    }
+
+    /**
+     * Dodaje katalog magazynu albo zmienia jego wagę (0 = opróżnij) i zleca przenoszenie blobów w tle.
+     * Odczyt i zapis działają w trakcie przenoszenia.
+     */
+    public static synchronized void setDirectory(String dir, int weight) throws IOException {
+        if (weight < 0) {
+            throw new IllegalArgumentException("Waga katalogu nie może być ujemna: " + weight);
+        }
+        List<Shard> shards = new ArrayList<>(layout.shards);
+        Shard shard = new Shard(dir, weight);
+        int index = indexOf(shards, dir);
+        if (index >= 0) {
+            shards.set(index, shard);
+        } else {
+            Files.createDirectories(shard.root.resolve(BLOBS_DIR));
+            Files.createDirectories(shard.root.resolve(TMP_DIR));
+            shards.add(shard);
+        }
+        if (shards.stream().noneMatch(s -> s.weight > 0)) {
+            throw new IllegalArgumentException("Żaden katalog magazynu nie miałby dodatniej wagi");
+        }
+        layout = new Layout(shards);
+        System.out.println("Katalogi magazynu: " + directories());
+        requestRebalance();
+    }
+
+    private static int indexOf(List<Shard> shards, String dir) {
+        for (int i = 0; i < shards.size(); i++) {
+            if (shards.get(i).name.equals(dir)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Katalog częściowych uploadów wznawialnych (uploads/partial).
+     */
+    public static Path partialDir() {
+        return storageRoot.resolve(PARTIAL_DIR);
+    }
+
+    /**
+     * Blob zapisany w katalogu tymczasowym, jeszcze nie widoczny w magazynie.
+     */
+    public static class StagedBlob {
+        private final Path tempFile;
+        private final String hash;
+        private final long size;
+        // Jeśli blob już był w magazynie, commit ustawia kodek i rozmiar tamtej kopii
+        private String codec;
+        private long storedSize;
+
+        StagedBlob(Path tempFile, String hash, long size, String codec, long storedSize) {
+            this.tempFile = tempFile;
+            this.hash = hash;
+            this.size = size;
+            this.codec = codec;
+            this.storedSize = storedSize;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+
+        /**
+         * Rozmiar na dysku (po kompresji).
+         */
+        public long getStoredSize() {
+            return storedSize;
+        }
+
+        /**
+         * Synchronizuje plik tymczasowy na dysk (gdy stage był bez sync).
+         */
+        public void sync() throws IOException {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+        }
+
+        /**
+         * Usuwa plik tymczasowy (jeśli nie został przeniesiony do magazynu).
+         */
+        public void discard() {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Przepisuje strumień do pliku tymczasowego, licząc po drodze SHA-256.
+     * Jeśli pierwszy fragment daje się skompresować, blob jest zapisywany skompresowany (format {@link StoredBlob}).
+     * W pamięci jest tylko jeden bufor; plik jest synchronizowany na dysk przed zwróceniem.
+     */
+    public static StagedBlob stage(InputStream content) throws IOException {
+        return stage(content, true);
+    }
+
+    /**
+     * Jak {@link #stage(InputStream)}; bez sync plik trzeba zsynchronizować ({@link StagedBlob#sync()})
+     * przed commit - np. całą grupę plików naraz, poza wątkiem odbierającym dane.
+     */
+    public static StagedBlob stage(InputStream content, boolean sync) throws IOException {
+        long started = System.nanoTime();
+        try {
+            MessageDigest digest = newDigest();
+            Path temp = Files.createTempFile(storageRoot.resolve(TMP_DIR), "blob", ".tmp");
+            ChunkCompressor compressor = ServerConfig.storageCompression() ? borrowCompressor() : null;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                byte[] buffer = new byte[ProtocolConstants.CHUNK_SIZE];
+                int n = content.readNBytes(buffer, 0, buffer.length);
+                digest.update(buffer, 0, n);
+                int sample = compressor != null && n >= MIN_COMPRESSED_SIZE ? compressor.compress(buffer, 0, n) : -1;
+
+                StagedBlob blob;
+                if (sample < 0) {
+                    long size = n;
+                    writeFully(out, ByteBuffer.wrap(buffer, 0, n));
+                    while ((n = content.read(buffer)) != -1) {
+                        digest.update(buffer, 0, n);
+                        writeFully(out, ByteBuffer.wrap(buffer, 0, n));
+                        size += n;
+                    }
+                    blob = new StagedBlob(temp, toHex(digest.digest()), size, ProtocolConstants.CODEC_NONE, size);
+                } else {
+                    ByteBuffer header = ByteBuffer.allocate(StoredBlob.HEADER_LENGTH);
+                    header.putInt(StoredBlob.MAGIC).put(StoredBlob.VERSION).putInt(buffer.length).putLong(0).flip();
+                    writeFully(out, header);
+                    long size = n;
+                    writeRecord(out, StoredBlob.RECORD_DEFLATE, compressor.getOutput(), sample);
+                    // Rekord to zawsze pełny fragment (poza ostatnim) - stąd readNBytes
+                    while ((n = content.readNBytes(buffer, 0, buffer.length)) > 0) {
+                        digest.update(buffer, 0, n);
+                        int compressed = compressor.compress(buffer, 0, n);
+                        if (compressed >= 0) {
+                            writeRecord(out, StoredBlob.RECORD_DEFLATE, compressor.getOutput(), compressed);
+                        } else {
+                            writeRecord(out, StoredBlob.RECORD_RAW, buffer, n);
+                        }
+                        size += n;
+                    }
+                    ByteBuffer rawSize = ByteBuffer.allocate(8).putLong(size).flip();
+                    while (rawSize.hasRemaining()) {
+                        out.write(rawSize, StoredBlob.HEADER_LENGTH - 8 + rawSize.position());
+                    }
+                    blob = new StagedBlob(temp, toHex(digest.digest()), size, ProtocolConstants.CODEC_DEFLATE, out.size());
+                }
+                if (sync) {
+                    out.force(true);
+                }
+                return blob;
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temp);
+                throw e;
+            } finally {
+                if (compressor != null) {
+                    releaseCompressor(compressor);
+                }
+            }
+        } finally {
+            STAGE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Przygotowuje jako blob plik, który już leży na dysku (np. ukończony upload wznawialny):
+     * liczy jego SHA-256 i przenosi go do katalogu tymczasowego, bez kopiowania danych.
+     * Plik dający się skompresować jest zamiast tego przepisywany przez {@link #stage(InputStream)}.
+     * Plik powinien być już zsynchronizowany na dysk.
+     */
+    public static StagedBlob stageFile(Path file) throws IOException {
+        long started = System.nanoTime();
+        try {
+            if (ServerConfig.storageCompression() && isCompressible(file)) {
+                StagedBlob blob;
+                try (InputStream in = Files.newInputStream(file)) {
+                    blob = stage(in);
+                }
+                Files.delete(file);
+                return blob;
+            }
+            MessageDigest digest = newDigest();
+            long size = 0;
+            try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    digest.update(buffer.array(), 0, n);
+                    buffer.clear();
+                    size += n;
+                }
+            }
+            Path temp = storageRoot.resolve(TMP_DIR).resolve(file.getFileName() + ".blob");
+            Files.move(file, temp, StandardCopyOption.REPLACE_EXISTING);
+            return new StagedBlob(temp, toHex(digest.digest()), size, ProtocolConstants.CODEC_NONE, size);
+        } finally {
+            STAGE_FILE_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Czy pierwszy fragment pliku daje się skompresować.
+     */
+    private static boolean isCompressible(Path file) throws IOException {
+        byte[] sample = new byte[ProtocolConstants.CHUNK_SIZE];
+        int n;
+        try (InputStream in = Files.newInputStream(file)) {
+            n = in.readNBytes(sample, 0, sample.length);
+        }
+        if (n == 0) {
+            return false;
+        }
+        ChunkCompressor compressor = borrowCompressor();
+        try {
+            return compressor.compress(sample, 0, n) >= 0;
+        } finally {
+            releaseCompressor(compressor);
+        }
+    }
+
+    private static ChunkCompressor borrowCompressor() {
+        ChunkCompressor compressor = COMPRESSORS.poll();
+        return compressor != null ? compressor : new ChunkCompressor();
+    }
+
+    private static void releaseCompressor(ChunkCompressor compressor) {
+        compressor.reset();
+        if (!COMPRESSORS.offer(compressor)) {
+            compressor.end();
+        }
+    }
+
+    private static void writeRecord(FileChannel out, byte type, byte[] data, int length) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(StoredBlob.RECORD_HEADER_LENGTH);
+        header.put(type).putInt(length).flip();
+        writeFully(out, header);
+        writeFully(out, ByteBuffer.wrap(data, 0, length));
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    /**
+     * Przenosi blob do magazynu. Jeśli identyczna zawartość już istnieje (w dowolnym kodeku),
+     * plik tymczasowy jest usuwany, a blob przejmuje kodek i rozmiar istniejącej kopii.
+     * Wołać pod {@link #lockFor(String)}.
+     */
+    public static void commit(StagedBlob blob) throws IOException {
+        long started = System.nanoTime();
+        try {
+            for (String codec : new String[] {ProtocolConstants.CODEC_NONE, ProtocolConstants.CODEC_DEFLATE}) {
+                Path existing = locate(blob.getHash(), codec);
+                if (Files.exists(existing)) {
+                    blob.discard();
+                    blob.codec = codec;
+                    blob.storedSize = Files.size(existing);
+                    return;
+                }
+            }
+            Shard owner = layout.owner(blob.getHash());
+            Path target = blobPath(owner.root, blob.getHash(), blob.getCodec());
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(blob.tempFile, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                blob.discard();
+            } catch (AtomicMoveNotSupportedException e) {
+                // Katalog na innym dysku - kopia przez jego katalog tymczasowy, żeby blob pojawił się w całości
+                Path temp = copyToTmp(blob.tempFile, owner.root);
+                moveTmp(temp, target);
+                blob.discard();
+            }
+        } finally {
+            COMMIT_TIME.recordSince(started);
+        }
+    }
+
+    /**
+     * Usuwa blob z dysku (gdy licznik referencji spadł do zera). Wołać pod {@link #lockFor(String)}.
+     */
+    public static void delete(String hash) throws IOException {
+        for (Shard shard : layout.shards) {
+            Files.deleteIfExists(blobPath(shard.root, hash, ProtocolConstants.CODEC_NONE));
+            Files.deleteIfExists(blobPath(shard.root, hash, ProtocolConstants.CODEC_DEFLATE));
+        }
+        Files.deleteIfExists(signaturePath(hash));
+    }
+
+    /**
+     * Ścieżka bloba w danym kodeku w katalogu magazynu: root/blobs/ab/cd/abcd... (skompresowany ma rozszerzenie .z).
+     */
+    private static Path blobPath(Path root, String hash, String codec) {
+        Path dir = root.resolve(BLOBS_DIR).resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4));
+        return dir.resolve(ProtocolConstants.CODEC_DEFLATE.equals(codec) ? hash + COMPRESSED_SUFFIX : hash);
+    }
+
+    /**
+     * Ścieżka bloba w danym kodeku: w katalogu wskazanym przez pierścień, a w trakcie przebudowy -
+     * tam, gdzie jeszcze leży. Jeśli nie ma go nigdzie, ścieżka w katalogu z pierścienia.
+     */
+    static Path locate(String hash, String codec) {
+        Layout current = layout;
+        Shard owner = current.owner(hash);
+        Path path = blobPath(owner.root, hash, codec);
+        if (current.shards.size() == 1 || Files.exists(path)) {
+            return path;
+        }
+        for (Shard shard : current.shards) {
+            if (shard != owner) {
+                Path other = blobPath(shard.root, hash, codec);
+                if (Files.exists(other)) {
+                    return other;
+                }
+            }
+        }
+        return path;
+    }
+
+    /**
+     * Otwiera blob zapisany w podanym kodeku (z tabeli blobs). Wynik trzeba zamknąć.
+     */
+    public static StoredBlob openBlob(String hash, String codec) throws IOException {
+        try {
+            return StoredBlob.open(locate(hash, codec), hash, codec);
+        } catch (NoSuchFileException e) {
+            // Przeniesiony przez przebudowę między locate a otwarciem - szukamy jeszcze raz
+            return StoredBlob.open(locate(hash, codec), hash, codec);
+        }
     }
 
     /**
-     * Zapis pliku na dysku
+     * Otwiera blob, sprawdzając na dysku, w jakim kodeku jest zapisany.
      */
-    public static void saveFile(String fileName, byte[] data) throws IOException {
-        Files.write(Paths.get(STORAGE_DIR, fileName), data);
-        System.out.println("Zapisano plik: " + fileName);
+    public static StoredBlob openBlob(String hash) throws IOException {
+        if (Files.exists(locate(hash, ProtocolConstants.CODEC_DEFLATE))) {
+            return openBlob(hash, ProtocolConstants.CODEC_DEFLATE);
+        }
+        return openBlob(hash, ProtocolConstants.CODEC_NONE);
     }
 
     /**
-     * Odczyt pliku z dysku
+     * Sygnatury bloków bloba (synchronizacja delta). Blob jest niezmienny, więc sygnatury liczone są
+     * raz i trzymane obok magazynu (uploads/signatures/ab/abcd....sig); usuwane razem z blobem.
      */
-    public static byte[] readFile(String fileName) throws IOException {
-        return Files.readAllBytes(Paths.get(STORAGE_DIR, fileName));
+    public static BlockSignatures signatures(String hash) throws IOException {
+        long started = System.nanoTime();
+        try {
+            Path file = signaturePath(hash);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                return BlockSignatures.read(in);
+            } catch (NoSuchFileException e) {
+                // jeszcze nie liczone
+            }
+
+            BlockSignatures signatures;
+            try (StoredBlob blob = openBlob(hash)) {
+                InputStream in = new BufferedInputStream(blob.openStream(), 64 * 1024);
+                signatures = BlockSignatures.compute(in, blob.size(), BlockSignatures.blockSizeFor(blob.size()));
+            }
+            Files.createDirectories(file.getParent());
+            Path temp = Files.createTempFile(storageRoot.resolve(TMP_DIR), "sig", ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                    signatures.write(out);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                // Sygnatury i tak mamy - najwyżej zostaną policzone ponownie
+                Files.deleteIfExists(temp);
+                e.printStackTrace();
+            }
+            return signatures;
+        } finally {
+            SIGNATURES_TIME.recordSince(started);
+        }
+    }
+
+    private static Path signaturePath(String hash) {
+        return storageRoot.resolve(SIGNATURES_DIR).resolve(hash.substring(0, 2)).resolve(hash + ".sig");
+    }
+
+    // -------------------- PRZEBUDOWA ------------------------
+
+    private static void requestRebalance() {
+        if (rebalancer != null && REBALANCE_REQUESTED.compareAndSet(false, true)) {
+            rebalancer.execute(FileStorageManager::rebalance);
+        }
+    }
+
+    /**
+     * Jeden przebieg przebudowy: przenosi każdy blob leżący poza katalogiem wskazanym przez pierścień.
+     * Zmiana układu w trakcie przebiegu zleca następny przebieg.
+     */
+    private static void rebalance() {
+        REBALANCE_REQUESTED.set(false);
+        long pause = ServerConfig.storageRebalancePauseMillis();
+        long moved = 0;
+        for (Shard shard : layout.shards) {
+            long remaining = 0;
+            try (Stream<Path> files = Files.walk(shard.root.resolve(BLOBS_DIR))) {
+                Iterator<Path> it = files.filter(Files::isRegularFile).iterator();
+                while (it.hasNext()) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    Path file = it.next();
+                    String name = file.getFileName().toString();
+                    boolean compressed = name.endsWith(COMPRESSED_SUFFIX);
+                    String hash = compressed ? name.substring(0, name.length() - COMPRESSED_SUFFIX.length()) : name;
+                    Shard owner = layout.owner(hash);
+                    if (owner.name.equals(shard.name)) {
+                        remaining++;
+                        continue;
+                    }
+                    try {
+                        if (relocate(file, hash, compressed ? ProtocolConstants.CODEC_DEFLATE : ProtocolConstants.CODEC_NONE, owner)) {
+                            moved++;
+                            REBALANCE_MOVED.increment();
+                        }
+                    } catch (IOException e) {
+                        // Blob zostaje na miejscu (i dalej jest czytelny) - następny przebieg spróbuje ponownie
+                        remaining++;
+                        e.printStackTrace();
+                    }
+                    if (pause > 0) {
+                        Thread.sleep(pause);
+                    }
+                }
+            } catch (IOException | UncheckedIOException e) {
+                e.printStackTrace();
+                continue;
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (shard.weight == 0 && remaining == 0) {
+                System.out.println("Katalog magazynu " + shard.name + " opróżniony - można go usunąć z chmurka.storage.dirs");
+            }
+        }
+        System.out.println("Przebudowa magazynu zakończona, przeniesiono blobów: " + moved);
+    }
+
+    /**
+     * Przenosi blob do katalogu docelowego: kopiuje go (bez blokady) do katalogu tymczasowego celu,
+     * a pod blokadą skrótu wstawia kopię i usuwa oryginał. Zwraca false, jeśli blob w międzyczasie usunięto.
+     */
+    private static boolean relocate(Path file, String hash, String codec, Shard owner) throws IOException {
+        Path target = blobPath(owner.root, hash, codec);
+        Path temp;
+        try {
+            temp = copyToTmp(file, owner.root);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        try {
+            synchronized (lockFor(hash)) {
+                if (!Files.exists(file)) {
+                    return false;
+                }
+                if (!Files.exists(target)) {
+                    Files.createDirectories(target.getParent());
+                    moveTmp(temp, target);
+                }
+                // Od tej chwili locate znajduje blob w nowym katalogu
+                Files.delete(file);
+                return true;
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Kopiuje plik do katalogu tmp podanego katalogu magazynu i synchronizuje kopię na dysk.
+     */
+    private static Path copyToTmp(Path source, Path root) throws IOException {
+        Path temp = Files.createTempFile(root.resolve(TMP_DIR), "move", ".tmp");
+        try {
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+                out.force(true);
+            }
+            return temp;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * Atomowo wstawia plik z katalogu tmp do magazynu (ten sam system plików).
+     */
+    private static void moveTmp(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException e) {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    // -------------------- JMX ------------------------
+
+    private static void registerJmx() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if (!server.isRegistered(name)) {
+                StorageControl control = new StorageControl() {
+                    @Override
+                    public String getDirectories() {
+                        return directories();
+                    }
+
+                    @Override
+                    public void setDirectory(String dir, int weight) throws IOException {
+                        FileStorageManager.setDirectory(dir, weight);
+                    }
+                };
+                server.registerMBean(new StandardMBean(control, StorageControl.class), name);
+            }
+        } catch (JMException e) {
+            // Bez JMX katalogi zmienia się przez chmurka.storage.dirs i restart
+            e.printStackTrace();
+        }
+    }
+
+    private static void unregisterJmx() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static Object lockFor(String hash) {
+        return LOCKS[(hash.hashCode() & 0x7fffffff) % LOCKS.length];
+    }
+
+    /**
+     * Blokady wielu skrótów (bez powtórzeń), w stałej kolejności - do zakładania po kolei.
+     */
+    public static List<Object> locksFor(Collection<String> hashes) {
+        boolean[] used = new boolean[LOCKS.length];
+        for (String hash : hashes) {
+            used[(hash.hashCode() & 0x7fffffff) % LOCKS.length] = true;
+        }
+        List<Object> locks = new ArrayList<>();
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                locks.add(LOCKS[i]);
+            }
+        }
+        return locks;
+    }
+
+    private static MessageDigest newDigest() {
+        return ContentHash.newDigest();
+    }
+
+    private static String toHex(byte[] bytes) {
+        return ContentHash.toHex(bytes);
     }
 }
@@ -0,0 +1,347 @@
+package com.projektchmura.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.projektchmura.common.FileInfo;
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Indeks metadanych plików w pamięci, osobno dla każdego właściciela - listowanie bez zapytań do bazy.
+ *
+ * Indeks użytkownika jest ładowany z bazy przy pierwszym listowaniu, a potem aktualizowany przez
+ * zapis i usuwanie plików na tym serwerze (po zatwierdzeniu transakcji, pod blokadą nazwy pliku,
+ * więc zmiany tej samej nazwy trafiają do indeksu w kolejności zatwierdzenia). Łączna liczba
+ * wpisów jest ograniczona - po przekroczeniu limitu wypadają indeksy najdawniej używanych użytkowników.
+ */
+public class MetadataCache {
+
+    // Liczniki zmian właścicieli - indeks załadowany przed równoległym zapisem nie jest instalowany
+    private static final int STAMP_STRIPES = 64;
+    private static final Object[] NAME_LOCKS = new Object[64];
+
+    static {
+        for (int i = 0; i < NAME_LOCKS.length; i++) {
+            NAME_LOCKS[i] = new Object();
+        }
+    }
+
+    private static final Comparator<FileInfo> MTIME_ORDER =
+            Comparator.comparingLong(FileInfo::getModifiedAt).thenComparing(FileInfo::getName);
+
+    /**
+     * Pliki jednego właściciela: po nazwie i po (mtime, nazwa) - jak indeksy tabeli files.
+     */
+    static final class OwnerIndex {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final TreeMap<String, FileInfo> byName = new TreeMap<>();
+        private final TreeSet<FileInfo> byMtime = new TreeSet<>(MTIME_ORDER);
+
+        OwnerIndex(List<FileInfo> files) {
+            for (FileInfo file : files) {
+                put(file);
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return byName.size();
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Wstawia lub podmienia plik. Zwraca zmianę liczby wpisów.
+         */
+        int put(FileInfo file) {
+            lock.writeLock().lock();
+            try {
+                FileInfo previous = byName.put(file.getName(), file);
+                if (previous != null) {
+                    byMtime.remove(previous);
+                }
+                byMtime.add(file);
+                return previous == null ? 1 : 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        int remove(String name) {
+            lock.writeLock().lock();
+            try {
+                FileInfo previous = byName.remove(name);
+                if (previous == null) {
+                    return 0;
+                }
+                byMtime.remove(previous);
+                return -1;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<String> names() {
+            lock.readLock().lock();
+            try {
+                return new ArrayList<>(byName.keySet());
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Strona listy z tą samą semantyką kursora, prefiksu i sortowania co zapytanie w DatabaseManager.
+         */
+        FilePage page(String cursor, String prefix, int sort, int limit) {
+            int pageSize = Math.max(1, Math.min(limit, ProtocolConstants.MAX_PAGE_SIZE));
+            boolean byMtimeSort = sort == ProtocolConstants.SORT_MTIME_ASC || sort == ProtocolConstants.SORT_MTIME_DESC;
+            boolean desc = sort == ProtocolConstants.SORT_NAME_DESC || sort == ProtocolConstants.SORT_MTIME_DESC;
+            boolean hasPrefix = prefix != null && !prefix.isEmpty();
+            FileInfo cursorKey = DatabaseManager.parseCursor(cursor, byMtimeSort);
+
+            List<FileInfo> files = new ArrayList<>(Math.min(pageSize, 64));
+            boolean more = false;
+            lock.readLock().lock();
+            try {
+                Iterable<FileInfo> view;
+                if (byMtimeSort) {
+                    NavigableSet<FileInfo> set = desc ? byMtime.descendingSet() : byMtime;
+                    view = cursorKey != null ? set.tailSet(cursorKey, false) : set;
+                } else {
+                    NavigableMap<String, FileInfo> map = desc ? byName.descendingMap() : byName;
+                    if (cursorKey != null) {
+                        map = map.tailMap(cursorKey.getName(), false);
+                    } else if (hasPrefix && !desc) {
+                        map = map.tailMap(prefix, true);
+                    }
+                    view = map.values();
+                }
+                for (FileInfo file : view) {
+                    if (hasPrefix && !file.getName().startsWith(prefix)) {
+                        // Po nazwie pliki z prefiksem leżą obok siebie - za nimi nie ma już czego szukać
+                        int cmp = file.getName().compareTo(prefix);
+                        if (!byMtimeSort && (desc ? cmp < 0 : cmp > 0)) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (files.size() == pageSize) {
+                        more = true;
+                        break;
+                    }
+                    files.add(file);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            return DatabaseManager.toPage(files, more, byMtimeSort);
+        }
+    }
+
+    private static long maxEntries;
+
+    // Pod blokadą LOCK; kolejność dostępu - najdawniej używany właściciel pierwszy
+    private static final Object LOCK = new Object();
+    private static final LinkedHashMap<String, OwnerIndex> owners = new LinkedHashMap<>(16, 0.75f, true);
+    private static long totalEntries;
+
+    private static final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+
+    public static void init() {
+        synchronized (LOCK) {
+            maxEntries = ServerConfig.metadataCacheEntries();
+            clear();
+        }
+    }
+
+    public static void clear() {
+        synchronized (LOCK) {
+            owners.clear();
+            totalEntries = 0;
+        }
+    }
+
+    public static boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * Ile najwięcej plików może mieć właściciel, żeby jego indeks trafił do cache.
+     */
+    static long maxEntriesPerOwner() {
+        return maxEntries;
+    }
+
+    /**
+     * Blokada nazwy pliku - zapis/usunięcie w bazie i aktualizacja indeksu muszą być pod nią razem.
+     */
+    static Object lockFor(String owner, String fileName) {
+        return NAME_LOCKS[nameStripe(owner, fileName)];
+    }
+
+    /**
+     * Blokady wielu nazw (bez powtórzeń), w stałej kolejności - do zakładania po kolei.
+     */
+    static List<Object> locksFor(String owner, Collection<String> fileNames) {
+        boolean[] used = new boolean[NAME_LOCKS.length];
+        for (String fileName : fileNames) {
+            used[nameStripe(owner, fileName)] = true;
+        }
+        List<Object> locks = new ArrayList<>();
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                locks.add(NAME_LOCKS[i]);
+            }
+        }
+        return locks;
+    }
+
+    private static int nameStripe(String owner, String fileName) {
+        int h = owner.hashCode() * 31 + fileName.hashCode();
+        return (h & 0x7fffffff) % NAME_LOCKS.length;
+    }
+
+    /**
+     * Znacznik zmian właściciela - pobrać przed odczytem plików z bazy i przekazać do {@link #install}.
+     */
+    static long stamp(String owner) {
+        return stamps.get(stripe(owner));
+    }
+
+    /**
+     * Indeks właściciela albo null (trzeba go załadować z bazy).
+     */
+    static OwnerIndex get(String owner) {
+        if (!isEnabled()) {
+            return null;
+        }
+        OwnerIndex index;
+        synchronized (LOCK) {
+            index = owners.get(owner);
+        }
+        if (index != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return index;
+    }
+
+    /**
+     * Buduje indeks z plików odczytanych z bazy i zapamiętuje go, jeśli od pobrania stamp
+     * żaden plik właściciela się nie zmienił. Zwrócony indeks można użyć do bieżącego listowania.
+     */
+    static OwnerIndex install(String owner, long stamp, List<FileInfo> files) {
+        OwnerIndex index = new OwnerIndex(files);
+        synchronized (LOCK) {
+            if (stamps.get(stripe(owner)) == stamp && !owners.containsKey(owner)) {
+                owners.put(owner, index);
+                totalEntries += files.size();
+                evictOverflow(owner);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Plik został zapisany (zatwierdzony w bazie). Wołać pod {@link #lockFor}.
+     */
+    static void fileSaved(String owner, FileInfo file) {
+        synchronized (LOCK) {
+            stamps.incrementAndGet(stripe(owner));
+            OwnerIndex index = owners.get(owner);
+            if (index != null) {
+                totalEntries += index.put(file);
+                evictOverflow(owner);
+            }
+        }
+    }
+
+    /**
+     * Plik został usunięty (zatwierdzone w bazie). Wołać pod {@link #lockFor}.
+     */
+    static void fileDeleted(String owner, String fileName) {
+        synchronized (LOCK) {
+            stamps.incrementAndGet(stripe(owner));
+            OwnerIndex index = owners.get(owner);
+            if (index != null) {
+                totalEntries += index.remove(fileName);
+            }
+        }
+    }
+
+    /**
+     * Zapomina indeks właściciela - zostanie załadowany z bazy przy następnym listowaniu.
+     */
+    static void invalidate(String owner) {
+        synchronized (LOCK) {
+            stamps.incrementAndGet(stripe(owner));
+            OwnerIndex index = owners.remove(owner);
+            if (index != null) {
+                totalEntries -= index.size();
+            }
+        }
+    }
+
+    public static long getHits() {
+        return hits.sum();
+    }
+
+    public static long getMisses() {
+        return misses.sum();
+    }
+
+    public static long getEvictions() {
+        return evictions.sum();
+    }
+
+    public static String stats() {
+        synchronized (LOCK) {
+            return "MetadataCache[owners=" + owners.size() + ", entries=" + totalEntries + "/" + maxEntries
+                    + ", hits=" + hits.sum() + ", misses=" + misses.sum() + ", evictions=" + evictions.sum() + "]";
+        }
+    }
+
+    // -------------------- WEWNĘTRZNE (pod LOCK) ------------------------
+
+    /**
+     * Usuwa indeksy najdawniej używanych właścicieli, aż łączna liczba wpisów zmieści się w limicie.
+     * Indeks właściciela, który właśnie się zmienił, zostaje (chyba że sam przekracza limit).
+     */
+    private static void evictOverflow(String current) {
+        Iterator<Map.Entry<String, OwnerIndex>> it = owners.entrySet().iterator();
+        while (totalEntries > maxEntries && it.hasNext()) {
+            Map.Entry<String, OwnerIndex> eldest = it.next();
+            if (eldest.getKey().equals(current) && owners.size() > 1) {
+                continue;
+            }
+            it.remove();
+            totalEntries -= eldest.getValue().size();
+            evictions.increment();
+        }
+    }
+
+    private static int stripe(String owner) {
+        return (owner.hashCode() & 0x7fffffff) % STAMP_STRIPES;
+    }
+}
@@ -0,0 +1,739 @@
+package com.projektchmura.server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import com.projektchmura.common.LatencyHistogram;
+
+/**
+ * Dziennik zmian metadanych (write-ahead log) przed bazą H2.
+ *
+ * Zapis pliku, usunięcie pliku i rejestracja trafiają najpierw do dziennika: rekordy z wielu wątków
+ * są zbierane w grupę i zapisywane jednym fsync (group commit), a wywołujący czeka tylko na trwałość
+ * swojej grupy. Wątek aplikujący przenosi rekordy do bazy w tle - wiele naraz w jednej transakcji,
+ * razem z numerem ostatniego zastosowanego rekordu (tabela journal_state). Do tego czasu odczyty widzą
+ * zmiany z dziennika ({@link #pendingFile}, {@link #pendingUser}), a odczyt listy plików z bazy czeka
+ * na zmiany właściciela ({@link #awaitApplied}). Po awarii rekordy nowsze niż zapisany w bazie numer
+ * są stosowane przy starcie. Zastosowany dziennik jest obcinany po CHECKPOINT SYNC bazy.
+ *
+ * Kolejność blokad: nazwa pliku (MetadataCache), skrót (FileStorageManager), WRITE_LOCK, LOCK.
+ */
+public class MetadataJournal {
+
+    static final byte SAVE = 1;
+    static final byte DELETE = 2;
+    static final byte REGISTER = 3;
+
+    // Dłużej odczyt listy nie czeka na wątek aplikujący (np. baza chwilowo niedostępna)
+    private static final long AWAIT_APPLIED_MS = 10_000;
+    private static final long APPLY_RETRY_DELAY_MS = 1000;
+    private static final long SHUTDOWN_WAIT_MS = 30_000;
+
+    private static final LongAdder RECORDS = Metrics.counter("journal.records");
+    private static final LongAdder GROUPS = Metrics.counter("journal.groups");
+    private static final LatencyHistogram COMMIT_TIME = Metrics.histogram("journal.commit");
+    private static final LatencyHistogram APPLY_TIME = Metrics.histogram("journal.apply");
+
+    /**
+     * Jedna zmiana metadanych.
+     */
+    static final class Record {
+        long seq;
+        final byte type;
+        // Właściciel pliku albo rejestrowany użytkownik
+        final String owner;
+        final String fileName;
+        final String password;
+        final String hash;
+        final long size;
+        final String codec;
+        final long storedSize;
+        final long modifiedAt;
+
+        private Record(byte type, String owner, String fileName, String password,
+                       String hash, long size, String codec, long storedSize, long modifiedAt) {
+            this.type = type;
+            this.owner = owner;
+            this.fileName = fileName;
+            this.password = password;
+            this.hash = hash;
+            this.size = size;
+            this.codec = codec;
+            this.storedSize = storedSize;
+            this.modifiedAt = modifiedAt;
+        }
+
+        /** Zapis pliku, którego blob jest już w magazynie (po FileStorageManager.commit). */
+        static Record save(String owner, String fileName, FileStorageManager.StagedBlob blob, long modifiedAt) {
+            return new Record(SAVE, owner, fileName, null, blob.getHash(), blob.getSize(),
+                    blob.getCodec(), blob.getStoredSize(), modifiedAt);
+        }
+
+        static Record delete(String owner, String fileName) {
+            return new Record(DELETE, owner, fileName, null, null, 0, null, 0, 0);
+        }
+
+        static Record register(String username, String password) {
+            return new Record(REGISTER, username, null, password, null, 0, null, 0, 0);
+        }
+
+        private String fileKey() {
+            return owner + '\u0000' + fileName;
+        }
+    }
+
+    /**
+     * Rekordy zapisywane jednym fsync.
+     */
+    static final class Group {
+        private final List<Record> records = new ArrayList<>();
+        private boolean done;
+        private String error;
+    }
+
+    private static volatile boolean enabled;
+    private static Path path;
+    private static FileChannel channel;
+    private static int applyBatchSize;
+    private static long checkpointBytes;
+    private static Thread writer;
+    private static Thread applier;
+
+    // Zapis do pliku dziennika i jego obcinanie
+    private static final Object WRITE_LOCK = new Object();
+    // Wszystkie pola poniżej pod blokadą LOCK
+    private static final Object LOCK = new Object();
+    private static Group open = new Group();
+    private static long nextSeq;
+    private static long writtenSeq;
+    private static long appliedSeq;
+    private static boolean stopping;
+    private static boolean writerDone;
+    // Rekordy trwałe w dzienniku, jeszcze nie w bazie (w kolejności)
+    private static final ArrayDeque<Record> toApply = new ArrayDeque<>();
+    // Zmiany niewidoczne jeszcze w bazie: ostatnia zmiana pliku / użytkownika, liczniki właścicieli i skrótów
+    private static final Map<String, Record> pendingFiles = new HashMap<>();
+    private static final Map<String, Record> pendingUsers = new HashMap<>();
+    private static final Map<String, Integer> pendingOwners = new HashMap<>();
+    private static final Map<String, Integer> pendingHashes = new HashMap<>();
+    // Zapisy właściciela jeszcze poza bazą: liczba i suma rozmiarów (pod limity miejsca)
+    private static final Map<String, long[]> pendingSaves = new HashMap<>();
+    private static int pendingCount;
+
+    // Jedna grupa rekordów stosowana naraz (wątek aplikujący albo zapis awaryjny)
+    private static final Object APPLY_LOCK = new Object();
+
+    /**
+     * Otwiera dziennik, stosuje w bazie rekordy, których tam jeszcze nie ma, i uruchamia wątki.
+     * Wołać po DatabaseManager.init().
+     */
+    public static synchronized void init() throws SQLException {
+        enabled = ServerConfig.journalEnabled();
+        if (!enabled) {
+            return;
+        }
+        applyBatchSize = Math.max(1, ServerConfig.journalApplyBatchSize());
+        checkpointBytes = ServerConfig.journalCheckpointBytes();
+        path = Paths.get(ServerConfig.journalPath());
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            replay();
+        } catch (IOException e) {
+            enabled = false;
+            throw new SQLException("Nie udało się otworzyć dziennika metadanych " + path, e);
+        }
+
+        synchronized (LOCK) {
+            stopping = false;
+            writerDone = false;
+            open = new Group();
+        }
+        writer = new Thread(MetadataJournal::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        applier = new Thread(MetadataJournal::applyLoop, "journal-applier");
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Zapisuje czekające grupy, stosuje dziennik w bazie i obcina go. Wołać przed DatabaseManager.close().
+     */
+    public static synchronized void shutdown() {
+        if (channel == null) {
+            return;
+        }
+        synchronized (LOCK) {
+            stopping = true;
+            LOCK.notifyAll();
+        }
+        join(writer);
+        join(applier);
+        try {
+            checkpoint(true);
+        } catch (IOException | SQLException e) {
+            // Niezastosowane rekordy zostają w dzienniku - baza dostanie je przy następnym starcie
+            e.printStackTrace();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+        enabled = false;
+        synchronized (LOCK) {
+            toApply.clear();
+            pendingFiles.clear();
+            pendingUsers.clear();
+            pendingOwners.clear();
+            pendingHashes.clear();
+            pendingSaves.clear();
+            pendingCount = 0;
+        }
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join(SHUTDOWN_WAIT_MS);
+            if (thread.isAlive()) {
+                thread.interrupt();
+                thread.join(SHUTDOWN_WAIT_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Liczba zmian zapisanych w dzienniku (albo czekających na zapis), których nie ma jeszcze w bazie.
+     */
+    public static int getPendingCount() {
+        synchronized (LOCK) {
+            return pendingCount;
+        }
+    }
+
+    // -------------------- ZAPIS ------------------------
+
+    /**
+     * Dodaje rekordy do otwartej grupy - od tej chwili są widoczne dla odczytów. Nie czeka na zapis,
+     * więc można wołać pod blokadami nazw i skrótów; trwałość daje dopiero {@link #await}.
+     */
+    static Group enqueue(List<Record> records) throws SQLException {
+        synchronized (LOCK) {
+            if (stopping || !enabled) {
+                throw new SQLException("Dziennik metadanych jest zamknięty");
+            }
+            for (Record record : records) {
+                record.seq = nextSeq++;
+                open.records.add(record);
+                addPending(record);
+            }
+            LOCK.notifyAll();
+            return open;
+        }
+    }
+
+    /**
+     * Czeka, aż grupa będzie trwała (w dzienniku albo, gdy zapis dziennika zawiódł, w bazie).
+     */
+    static void await(Group group) throws SQLException {
+        synchronized (LOCK) {
+            while (!group.done) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Przerwano oczekiwanie na zapis dziennika");
+                }
+            }
+        }
+        if (group.error != null) {
+            throw new SQLException(group.error);
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            Group group;
+            synchronized (LOCK) {
+                while (open.records.isEmpty() && !stopping) {
+                    try {
+                        LOCK.wait();
+                    } catch (InterruptedException e) {
+                        // shutdown() przerywa dopiero po czasie - czekające grupy i tak muszą zostać zapisane
+                    }
+                }
+                if (open.records.isEmpty()) {
+                    writerDone = true;
+                    LOCK.notifyAll();
+                    return;
+                }
+                group = open;
+                open = new Group();
+            }
+            String error = null;
+            try {
+                write(group.records);
+            } catch (IOException e) {
+                e.printStackTrace();
+                error = applyDirectly(group.records, e);
+            }
+            synchronized (LOCK) {
+                group.done = true;
+                group.error = error;
+                LOCK.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Dopisuje grupę na koniec pliku jednym write i jednym fsync. Rekord: długość, CRC32, treść.
+     */
+    private static void write(List<Record> records) throws IOException {
+        long started = System.nanoTime();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 160);
+        DataOutputStream out = new DataOutputStream(bytes);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(160);
+        for (Record record : records) {
+            body.reset();
+            encode(record, new DataOutputStream(body));
+            CRC32 crc = new CRC32();
+            crc.update(body.toByteArray());
+            out.writeInt(body.size());
+            out.writeInt((int) crc.getValue());
+            body.writeTo(out);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        synchronized (WRITE_LOCK) {
+            long start = channel.size();
+            try {
+                long position = start;
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                // Urwana grupa nie może zostać przed następnymi - odtwarzanie zatrzymałoby się na niej
+                try {
+                    channel.truncate(start);
+                } catch (IOException ignored) {
+                    // plik i tak jest niedostępny
+                }
+                throw e;
+            }
+            synchronized (LOCK) {
+                writtenSeq = records.get(records.size() - 1).seq;
+                toApply.addAll(records);
+                LOCK.notifyAll();
+            }
+        }
+        RECORDS.add(records.size());
+        GROUPS.increment();
+        COMMIT_TIME.recordSince(started);
+    }
+
+    /**
+     * Zapis dziennika się nie udał - grupa trafia od razu do bazy (po wcześniejszych rekordach,
+     * żeby zachować kolejność). Zwraca komunikat błędu albo null.
+     */
+    private static String applyDirectly(List<Record> records, IOException cause) {
+        synchronized (LOCK) {
+            while (!toApply.isEmpty() && !applierGone()) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    // jak wyżej - grupa musi się zakończyć
+                }
+            }
+        }
+        try {
+            apply(records);
+            synchronized (LOCK) {
+                writtenSeq = Math.max(writtenSeq, records.get(records.size() - 1).seq);
+            }
+            return null;
+        } catch (SQLException e) {
+            e.printStackTrace();
+            discardPending(records);
+            return "Błąd zapisu dziennika: " + cause.getMessage();
+        }
+    }
+
+    private static boolean applierGone() {
+        return applier == null || !applier.isAlive();
+    }
+
+    // -------------------- STOSOWANIE W BAZIE ------------------------
+
+    private static void applyLoop() {
+        while (true) {
+            List<Record> batch = new ArrayList<>();
+            synchronized (LOCK) {
+                while (toApply.isEmpty() && !(stopping && writerDone)) {
+                    try {
+                        LOCK.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (toApply.isEmpty()) {
+                    return;
+                }
+                for (Record record : toApply) {
+                    batch.add(record);
+                    if (batch.size() == applyBatchSize) {
+                        break;
+                    }
+                }
+            }
+            try {
+                apply(batch);
+                checkpoint(false);
+            } catch (SQLException | IOException e) {
+                // Rekordy są trwałe w dzienniku - ponawiamy, aż baza je przyjmie
+                e.printStackTrace();
+                try {
+                    Thread.sleep(APPLY_RETRY_DELAY_MS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stosuje rekordy w bazie jedną transakcją i usuwa je z oczekujących; bloby bez referencji
+     * (także w rekordach czekających w dzienniku) są usuwane z dysku.
+     */
+    private static void apply(List<Record> records) throws SQLException {
+        long started = System.nanoTime();
+        List<String> unused;
+        synchronized (APPLY_LOCK) {
+            unused = DatabaseManager.applyJournal(records);
+            synchronized (LOCK) {
+                for (Record record : records) {
+                    if (toApply.peekFirst() == record) {
+                        toApply.pollFirst();
+                    }
+                    removePending(record);
+                }
+                appliedSeq = Math.max(appliedSeq, records.get(records.size() - 1).seq);
+                LOCK.notifyAll();
+            }
+        }
+        deleteUnused(unused);
+        APPLY_TIME.recordSince(started);
+    }
+
+    private static void deleteUnused(List<String> hashes) {
+        for (String hash : hashes) {
+            synchronized (FileStorageManager.lockFor(hash)) {
+                // Nowy zapis tej zawartości mógł ją przejąć, zanim trafił do bazy
+                if (isReferenced(hash)) {
+                    continue;
+                }
+                ContentCache.invalidateBlob(hash);
+                try {
+                    FileStorageManager.delete(hash);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Obcina dziennik, gdy wszystko z niego jest w bazie (a baza na dysku); bez force - dopiero
+     * powyżej ServerConfig.journalCheckpointBytes.
+     */
+    private static void checkpoint(boolean force) throws IOException, SQLException {
+        long seq;
+        synchronized (LOCK) {
+            if (appliedSeq != writtenSeq || !toApply.isEmpty()) {
+                return;
+            }
+            seq = appliedSeq;
+        }
+        if (!force && channel.size() < checkpointBytes) {
+            return;
+        }
+        DatabaseManager.checkpoint();
+        synchronized (WRITE_LOCK) {
+            synchronized (LOCK) {
+                if (writtenSeq != seq) {
+                    return;
+                }
+            }
+            channel.truncate(0);
+            channel.force(true);
+        }
+    }
+
+    // -------------------- ODTWARZANIE ------------------------
+
+    /**
+     * Czyta dziennik od początku i stosuje rekordy nowsze niż zapisany w bazie numer. Niepełny
+     * albo uszkodzony rekord na końcu (awaria w trakcie zapisu) kończy dziennik - nie był potwierdzony.
+     */
+    private static void replay() throws IOException, SQLException {
+        long applied = DatabaseManager.journalAppliedSeq();
+        long lastSeq = applied;
+        long validEnd = 0;
+        int replayed = 0;
+        List<Record> batch = new ArrayList<>();
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        while (true) {
+            Record record;
+            int length;
+            try {
+                length = in.readInt();
+                int crc = in.readInt();
+                if (length <= 0 || length > 1024 * 1024) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                CRC32 check = new CRC32();
+                check.update(body);
+                if ((int) check.getValue() != crc) {
+                    break;
+                }
+                record = decode(new DataInputStream(new ByteArrayInputStream(body)));
+            } catch (EOFException e) {
+                break;
+            }
+            validEnd += 8 + length;
+            lastSeq = Math.max(lastSeq, record.seq);
+            if (record.seq <= applied) {
+                continue;
+            }
+            if (record.type == SAVE && !Files.exists(FileStorageManager.locate(record.hash, record.codec))) {
+                System.out.println("Dziennik: brak bloba " + record.hash + " dla pliku " + record.fileName + " - pomijam");
+                continue;
+            }
+            batch.add(record);
+            replayed++;
+            if (batch.size() == applyBatchSize) {
+                deleteUnused(DatabaseManager.applyJournal(batch));
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            deleteUnused(DatabaseManager.applyJournal(batch));
+        }
+        if (validEnd < channel.size()) {
+            System.out.println("Dziennik: odcięto niepełny koniec (" + (channel.size() - validEnd) + " B)");
+        }
+        DatabaseManager.checkpoint();
+        channel.truncate(0);
+        channel.force(true);
+        synchronized (LOCK) {
+            nextSeq = lastSeq + 1;
+            writtenSeq = lastSeq;
+            appliedSeq = lastSeq;
+        }
+        if (replayed > 0) {
+            System.out.println("Dziennik: zastosowano zmian po awarii: " + replayed);
+        }
+    }
+
+    private static void encode(Record record, DataOutputStream out) throws IOException {
+        out.writeLong(record.seq);
+        out.writeByte(record.type);
+        out.writeUTF(record.owner);
+        switch (record.type) {
+            case SAVE:
+                out.writeUTF(record.fileName);
+                out.writeUTF(record.hash);
+                out.writeLong(record.size);
+                out.writeUTF(record.codec);
+                out.writeLong(record.storedSize);
+                out.writeLong(record.modifiedAt);
+                break;
+            case DELETE:
+                out.writeUTF(record.fileName);
+                break;
+            default:
+                out.writeUTF(record.password);
+        }
+    }
+
+    private static Record decode(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        byte type = in.readByte();
+        String owner = in.readUTF();
+        Record record;
+        switch (type) {
+            case SAVE:
+                record = new Record(SAVE, owner, in.readUTF(), null, in.readUTF(), in.readLong(),
+                        in.readUTF(), in.readLong(), in.readLong());
+                break;
+            case DELETE:
+                record = Record.delete(owner, in.readUTF());
+                break;
+            case REGISTER:
+                record = Record.register(owner, in.readUTF());
+                break;
+            default:
+                throw new EOFException("Nieznany typ rekordu dziennika: " + type);
+        }
+        record.seq = seq;
+        return record;
+    }
+
+    // -------------------- ODCZYT ZMIAN Z DZIENNIKA ------------------------
+
+    /**
+     * Ostatnia zmiana pliku (SAVE albo DELETE), której nie ma jeszcze w bazie, albo null.
+     */
+    static Record pendingFile(String owner, String fileName) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (LOCK) {
+            return pendingFiles.get(owner + '\u0000' + fileName);
+        }
+    }
+
+    /**
+     * Rejestracja użytkownika, której nie ma jeszcze w bazie, albo null.
+     */
+    static Record pendingUser(String username) {
+        if (!enabled) {
+            return null;
+        }
+        synchronized (LOCK) {
+            return pendingUsers.get(username);
+        }
+    }
+
+    /**
+     * Czeka (najwyżej AWAIT_APPLIED_MS), aż wszystkie zmiany plików właściciela trafią do bazy -
+     * przed odczytem jego listy plików z bazy.
+     */
+    static void awaitApplied(String owner) {
+        if (!enabled) {
+            return;
+        }
+        long deadline = System.currentTimeMillis() + AWAIT_APPLIED_MS;
+        synchronized (LOCK) {
+            while (pendingOwners.containsKey(owner)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return;
+                }
+                try {
+                    LOCK.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Zapisy właściciela, których nie ma jeszcze w bazie: {liczba, suma rozmiarów}. Każdy liczony
+     * jak nowy plik (także nadpisanie) - do sprawdzania limitów z zapasem, bez czekania na bazę.
+     */
+    static long[] pendingSaves(String owner) {
+        if (!enabled) {
+            return new long[2];
+        }
+        synchronized (LOCK) {
+            long[] saves = pendingSaves.get(owner);
+            return saves == null ? new long[2] : saves.clone();
+        }
+    }
+
+    private static boolean isReferenced(String hash) {
+        synchronized (LOCK) {
+            return pendingHashes.containsKey(hash);
+        }
+    }
+
+    // Pod blokadą LOCK
+    private static void addPending(Record record) {
+        pendingCount++;
+        if (record.type == REGISTER) {
+            pendingUsers.put(record.owner, record);
+            return;
+        }
+        pendingFiles.put(record.fileKey(), record);
+        pendingOwners.merge(record.owner, 1, Integer::sum);
+        if (record.type == SAVE) {
+            pendingHashes.merge(record.hash, 1, Integer::sum);
+            long[] saves = pendingSaves.computeIfAbsent(record.owner, k -> new long[2]);
+            saves[0]++;
+            saves[1] += record.size;
+        }
+    }
+
+    // Pod blokadą LOCK
+    private static void removePending(Record record) {
+        pendingCount--;
+        if (record.type == REGISTER) {
+            pendingUsers.remove(record.owner, record);
+            return;
+        }
+        pendingFiles.remove(record.fileKey(), record);
+        pendingOwners.computeIfPresent(record.owner, (k, n) -> n > 1 ? n - 1 : null);
+        if (record.type == SAVE) {
+            pendingHashes.computeIfPresent(record.hash, (k, n) -> n > 1 ? n - 1 : null);
+            long[] saves = pendingSaves.get(record.owner);
+            if (--saves[0] == 0) {
+                pendingSaves.remove(record.owner);
+            } else {
+                saves[1] -= record.size;
+            }
+        }
+    }
+
+    /**
+     * Grupa nie trafiła ani do dziennika, ani do bazy - odczyty przestają widzieć jej zmiany.
+     */
+    private static void discardPending(List<Record> records) {
+        synchronized (LOCK) {
+            for (Record record : records) {
+                removePending(record);
+            }
+            LOCK.notifyAll();
+        }
+        for (Record record : records) {
+            if (record.type != REGISTER) {
+                MetadataCache.invalidate(record.owner);
+                ContentCache.invalidateName(record.owner, record.fileName);
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.projektchmura.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import com.projektchmura.common.LatencyHistogram;
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Metryki serwera: histogramy czasów (komendy, baza, magazyn), liczniki i wskaźniki (gauges).
+ *
+ * Metryki są rejestrowane raz (w polach statycznych klas, które je mierzą), więc zapis
+ * na ścieżce żądania to tylko operacje atomowe - bez blokad i bez alokacji.
+ * Odczyt: {@link #snapshot()} - przez komendę STATS i przez JMX (com.projektchmura:type=ServerMetrics).
+ */
+public class Metrics {
+
+    private static final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private static final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    // Histogram czasu obsługi dla każdej komendy (indeks = opcode); nieznane komendy - "cmd.OTHER"
+    private static final LatencyHistogram[] COMMAND_TIMES = new LatencyHistogram[128];
+
+    public static final LongAdder BYTES_RECEIVED = counter("net.bytesReceived");
+    public static final LongAdder BYTES_SENT = counter("net.bytesSent");
+    public static final LongAdder CONNECTION_ERRORS = counter("net.connectionErrors");
+
+    private static final String JMX_NAME = "com.projektchmura:type=ServerMetrics";
+
+    static {
+        LatencyHistogram other = histogram("cmd.OTHER");
+        for (int i = 0; i < COMMAND_TIMES.length; i++) {
+            COMMAND_TIMES[i] = other;
+        }
+        command(ProtocolConstants.OP_REGISTER, "REGISTER");
+        command(ProtocolConstants.OP_LOGIN, "LOGIN");
+        command(ProtocolConstants.OP_UPLOAD, "UPLOAD");
+        command(ProtocolConstants.OP_DOWNLOAD, "DOWNLOAD");
+        command(ProtocolConstants.OP_LIST_FILES, "LIST_FILES");
+        command(ProtocolConstants.OP_PING, "PING");
+        command(ProtocolConstants.OP_LIST_FILES_PAGE, "LIST_FILES_PAGE");
+        command(ProtocolConstants.OP_LOGOUT, "LOGOUT");
+        command(ProtocolConstants.OP_UPLOAD_OPEN, "UPLOAD_OPEN");
+        command(ProtocolConstants.OP_UPLOAD_STATUS, "UPLOAD_STATUS");
+        command(ProtocolConstants.OP_UPLOAD_APPEND, "UPLOAD_APPEND");
+        command(ProtocolConstants.OP_FILE_SIGNATURES, "FILE_SIGNATURES");
+        command(ProtocolConstants.OP_UPLOAD_DELTA, "UPLOAD_DELTA");
+        command(ProtocolConstants.OP_HELLO, "HELLO");
+        command(ProtocolConstants.OP_DELETE, "DELETE");
+        command(ProtocolConstants.OP_STATS, "STATS");
+        command(ProtocolConstants.OP_UPLOAD_BATCH, "UPLOAD_BATCH");
+        command(ProtocolConstants.OP_READ_RANGE, "READ_RANGE");
+        command(ProtocolConstants.OP_CLUSTER, "CLUSTER");
+        command(ProtocolConstants.OP_USAGE, "USAGE");
+    }
+
+    private static void command(byte opcode, String name) {
+        COMMAND_TIMES[opcode] = histogram("cmd." + name);
+    }
+
+    /**
+     * Histogram o danej nazwie (tworzony przy pierwszym wywołaniu) - pobierać raz, do pola statycznego.
+     */
+    public static LatencyHistogram histogram(String name) {
+        return histograms.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Wskaźnik odczytywany dopiero przy pobieraniu statystyk (np. głębokość kolejki).
+     */
+    public static void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Usuwa wskaźnik, którego obiekt przestał istnieć (np. kolejka użytkownika bez zadań).
+     */
+    public static void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Zapisuje czas obsługi komendy.
+     */
+    public static void recordCommand(byte opcode, long startNanos) {
+        COMMAND_TIMES[opcode & 0x7f].recordSince(startNanos);
+    }
+
+    /**
+     * Wszystkie metryki jako nazwa -> wartość; histogram daje count, mean, p50, p90, p99 i max (µs).
+     * Pomijane są histogramy bez pomiarów.
+     */
+    public static Map<String, Long> snapshot() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            long value;
+            try {
+                value = e.getValue().getAsLong();
+            } catch (RuntimeException ex) {
+                value = -1;
+            }
+            result.put(e.getKey(), value);
+        }
+        for (Map.Entry<String, LongAdder> e : counters.entrySet()) {
+            result.put(e.getKey(), e.getValue().sum());
+        }
+        for (LatencyHistogram h : histograms.values()) {
+            long count = h.getCount();
+            if (count == 0) {
+                continue;
+            }
+            String name = h.getName();
+            result.put(name + ".count", count);
+            result.put(name + ".meanMicros", h.getMeanMicros());
+            result.put(name + ".p50Micros", h.getPercentileMicros(0.50));
+            result.put(name + ".p90Micros", h.getPercentileMicros(0.90));
+            result.put(name + ".p99Micros", h.getPercentileMicros(0.99));
+            result.put(name + ".maxMicros", h.getMaxMicros());
+        }
+        return result;
+    }
+
+    // -------------------- JMX ------------------------
+
+    public static void registerJmx() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new MetricsMBean(), name);
+            }
+        } catch (JMException e) {
+            // Serwer działa dalej - statystyki są też dostępne przez STATS
+            e.printStackTrace();
+        }
+    }
+
+    public static void unregisterJmx() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(JMX_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Metryki jako atrybuty MBean (tylko do odczytu) - zbiór atrybutów rośnie razem z metrykami.
+     */
+    private static final class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Long value = snapshot().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Long> snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                Long value = snapshot.get(attribute);
+                if (value != null) {
+                    list.add(new Attribute(attribute, value));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metryki są tylko do odczytu: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // MBean nie ma operacji - tylko atrybuty
+            throw new ReflectionException(new NoSuchMethodException(actionName), "Brak operacji: " + actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            Map<String, Long> snapshot = snapshot();
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+            int i = 0;
+            for (String name : snapshot.keySet()) {
+                attributes[i++] = new MBeanAttributeInfo(name, "long", name, true, false, false);
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Metryki serwera projekt-chmurka",
+                    attributes, null, null, null);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.projektchmura.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import com.projektchmura.common.ClusterRing;
+import com.projektchmura.common.Message;
+import com.projektchmura.common.MessageReader;
+import com.projektchmura.common.MessageWriter;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.common.ProtocolException;
+
+/**
+ * Połączenie z innym węzłem klastra - zwykły protokół klienta, uwierzytelniony sekretem klastra w OP_HELLO.
+ * Używane naraz przez jedno wywołanie (pula w {@link Cluster}).
+ */
+class PeerConnection implements Closeable {
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    // Węzeł, który przestał odpowiadać, nie blokuje replikacji ani listowania w nieskończoność
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    private final Socket socket;
+    private final MessageReader reader;
+    private final MessageWriter writer;
+    private final Message request = new Message();
+    private final Message response = new Message();
+    private int requestIds;
+
+    PeerConnection(String address, String secret) throws IOException {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ClusterRing.host(address), ClusterRing.port(address)), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            reader = new MessageReader(socket.getInputStream());
+            writer = new MessageWriter(socket.getOutputStream());
+
+            Message r = exchange(newRequest(ProtocolConstants.OP_HELLO)
+                    .addString(ProtocolConstants.CODEC_DEFLATE)
+                    .addString(ProtocolConstants.HELLO_PEER + secret));
+            if (r.getStatus() != ProtocolConstants.STATUS_OK || r.getFieldCount() < 2
+                    || !ProtocolConstants.HELLO_PEER.equals(r.getString(1))) {
+                throw new ProtocolException("Węzeł " + address + " nie przyjął połączenia klastra");
+            }
+            writer.setCompression(ProtocolConstants.CODEC_DEFLATE.equals(r.getString(0)));
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    Message newRequest(byte opcode) {
+        return request.reset(opcode).setRequestId(++requestIds);
+    }
+
+    Message exchange(Message request) throws IOException {
+        writer.send(request);
+        return readResponse(request);
+    }
+
+    Message readResponse(Message request) throws IOException {
+        reader.readExpected(response);
+        if (response.getRequestId() != request.getRequestId()) {
+            throw new ProtocolException("Odpowiedź na inne żądanie: " + response.getRequestId());
+        }
+        return response;
+    }
+
+    MessageReader getReader() {
+        return reader;
+    }
+
+    MessageWriter getWriter() {
+        return writer;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // zamykamy połączenie - błąd nie ma znaczenia
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.projektchmura.server;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Połączenie wypożyczone z {@link ConnectionPool}. close() oddaje je do puli.
+ * PreparedStatement z {@link #prepare(String)} są cache'owane na połączeniu -
+ * wywołujący nie może ich zamykać.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements;
+
+    private long lastUsed = System.currentTimeMillis();
+
+    PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize) {
+        this.pool = pool;
+        this.connection = connection;
+        // LRU - najdawniej używane zapytanie jest zamykane po przekroczeniu limitu
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > statementCacheSize) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Zwraca przygotowane zapytanie z cache (albo przygotowuje je przy pierwszym użyciu).
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement ps = statements.get(sql);
+        if (ps == null || ps.isClosed()) {
+            ps = connection.prepareStatement(sql);
+            statements.put(sql, ps);
+        } else {
+            ps.clearParameters();
+        }
+        return ps;
+    }
+
+    /**
+     * Surowe połączenie - do zapytań jednorazowych (DDL, metadane) i sterowania transakcją.
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public void begin() throws SQLException {
+        connection.setAutoCommit(false);
+    }
+
+    public void commit() throws SQLException {
+        connection.commit();
+        connection.setAutoCommit(true);
+    }
+
+    public void rollbackQuietly() {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * Sprawdza, czy połączenie nadaje się do ponownego użycia.
+     */
+    boolean isUsable(long validateAfterIdleMillis) {
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (System.currentTimeMillis() - lastUsed > validateAfterIdleMillis) {
+                return connection.isValid(2);
+            }
+            return true;
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Oddaje połączenie do puli (niezatwierdzona transakcja jest wycofywana).
+     */
+    @Override
+    public void close() {
+        rollbackQuietly();
+        lastUsed = System.currentTimeMillis();
+        pool.release(this);
+    }
+
+    void closePhysically() {
+        for (PreparedStatement ps : statements.values()) {
+            closeQuietly(ps);
+        }
+        statements.clear();
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            // zamykamy tylko z cache - błąd nie ma znaczenia
+        }
+    }
+}
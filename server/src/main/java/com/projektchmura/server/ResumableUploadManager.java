@@ -0,0 +1,420 @@
+package com.projektchmura.server;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Uploady wznawialne. Dane częściowe leżą w uploads/partial/&lt;id&gt;.part, a zatwierdzony offset
+ * w &lt;id&gt;.meta - zapisywanym atomowo dopiero po synchronizacji danych na dysk, więc offset
+ * nigdy nie wyprzedza danych. Po zerwaniu połączenia klient pyta o offset i dosyła resztę.
+ * Porzucone uploady są usuwane po {@link ServerConfig#uploadExpiryMillis()}.
+ *
+ * Otwarty upload rezerwuje w limicie użytkownika deklarowany rozmiar (DatabaseManager.checkQuota),
+ * a liczba otwartych uploadów jednego użytkownika jest ograniczona.
+ */
+public class ResumableUploadManager {
+
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".meta";
+
+    // Co ile bajtów dane są synchronizowane na dysk i zapisywany jest offset
+    private static final long CHECKPOINT_BYTES = 4L * 1024 * 1024;
+    private static final long CLEANUP_INTERVAL_MS = 60_000;
+    // Ukończony upload wystarczy pamiętać chwilę - na wypadek zgubionej odpowiedzi
+    private static final long COMPLETED_RETENTION_MS = 10 * 60_000;
+
+    private static final Map<String, Upload> UPLOADS = new ConcurrentHashMap<>();
+    // Niedokończone uploady każdego właściciela (rezerwacje w limicie) - pod blokadą samej mapy
+    private static final Map<String, List<Upload>> OPEN_BY_OWNER = new HashMap<>();
+    private static ScheduledExecutorService cleaner;
+
+    /**
+     * Stan jednego uploadu. Dopisywać może naraz tylko jedno połączenie (tryAcquire/release).
+     */
+    public static class Upload {
+        private final String id;
+        private final String owner;
+        private final String fileName;
+        private final long size;
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private volatile long offset;
+        private volatile boolean completed;
+        private volatile long lastActivity;
+        private boolean removed;
+
+        Upload(String id, String owner, String fileName, long size, long offset, boolean completed, long lastActivity) {
+            this.id = id;
+            this.owner = owner;
+            this.fileName = fileName;
+            this.size = size;
+            this.offset = offset;
+            this.completed = completed;
+            this.lastActivity = lastActivity;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** Liczba bajtów zapisanych trwale na dysku. */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** Czy plik został już zapisany u użytkownika. */
+        public boolean isCompleted() {
+            return completed;
+        }
+    }
+
+    /**
+     * Wczytuje uploady przerwane przed restartem i uruchamia sprzątanie porzuconych.
+     * Wołać po {@link FileStorageManager#init()}.
+     */
+    public static synchronized void init() {
+        UPLOADS.clear();
+        synchronized (OPEN_BY_OWNER) {
+            OPEN_BY_OWNER.clear();
+        }
+        Path dir = FileStorageManager.partialDir();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + META_SUFFIX)) {
+            for (Path meta : files) {
+                Upload upload = readMeta(meta);
+                if (upload != null) {
+                    UPLOADS.put(upload.id, upload);
+                    if (!upload.completed) {
+                        synchronized (OPEN_BY_OWNER) {
+                            OPEN_BY_OWNER.computeIfAbsent(upload.owner, o -> new ArrayList<>()).add(upload);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        // Dane bez metadanych (awaria w trakcie otwierania) i niedokończone zapisy metadanych są bezużyteczne
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*{" + PART_SUFFIX + ",.tmp}")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")
+                        || !UPLOADS.containsKey(name.substring(0, name.length() - PART_SUFFIX.length()))) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!UPLOADS.isEmpty()) {
+            System.out.println("Przerwane uploady do wznowienia: " + UPLOADS.size());
+        }
+
+        cleaner = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "upload-cleaner");
+            t.setDaemon(true);
+            return t;
+        });
+        cleaner.scheduleWithFixedDelay(ResumableUploadManager::removeExpired,
+                CLEANUP_INTERVAL_MS, CLEANUP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void shutdown() {
+        if (cleaner != null) {
+            cleaner.shutdownNow();
+            cleaner = null;
+        }
+    }
+
+    /**
+     * Zakłada nowy upload z pustym plikiem częściowym. Zwraca null, jeśli właściciel ma już
+     * {@link ServerConfig#maxOpenUploadsPerUser()} niedokończonych uploadów.
+     */
+    public static Upload open(String owner, String fileName, long size) throws IOException {
+        Upload upload = new Upload(UUID.randomUUID().toString(), owner, fileName, size, 0, false,
+                System.currentTimeMillis());
+        synchronized (OPEN_BY_OWNER) {
+            List<Upload> open = OPEN_BY_OWNER.computeIfAbsent(owner, o -> new ArrayList<>());
+            if (open.size() >= ServerConfig.maxOpenUploadsPerUser()) {
+                return null;
+            }
+            open.add(upload);
+        }
+        try {
+            Files.createFile(partPath(upload.id));
+            writeMeta(upload);
+        } catch (IOException e) {
+            unreserve(upload);
+            Files.deleteIfExists(partPath(upload.id));
+            throw e;
+        }
+        UPLOADS.put(upload.id, upload);
+        return upload;
+    }
+
+    /**
+     * Liczba niedokończonych uploadów właściciela i suma ich deklarowanych rozmiarów (bez uploadu
+     * o podanym id) - miejsce zarezerwowane w limicie.
+     */
+    public static long[] reserved(String owner, String exceptUploadId) {
+        long files = 0;
+        long bytes = 0;
+        synchronized (OPEN_BY_OWNER) {
+            for (Upload upload : OPEN_BY_OWNER.getOrDefault(owner, List.of())) {
+                if (!upload.id.equals(exceptUploadId)) {
+                    files++;
+                    bytes += upload.size;
+                }
+            }
+        }
+        return new long[] {files, bytes};
+    }
+
+    /**
+     * Upload danego właściciela albo null (nieznany, wygasły lub należący do kogoś innego).
+     */
+    public static Upload get(String owner, String uploadId) {
+        Upload upload = uploadId == null ? null : UPLOADS.get(uploadId);
+        if (upload == null || !upload.owner.equals(owner)) {
+            return null;
+        }
+        return upload;
+    }
+
+    /**
+     * Liczba otwartych (niedokończonych) uploadów.
+     */
+    public static int getOpenCount() {
+        return UPLOADS.size();
+    }
+
+    /**
+     * Zajmuje upload na czas dopisywania. Zwraca false, jeśli dopisuje do niego inne połączenie
+     * (np. stare, jeszcze nie zamknięte po zerwaniu) albo upload został już usunięty.
+     */
+    public static boolean tryAcquire(Upload upload) {
+        if (!upload.lock.tryLock()) {
+            return false;
+        }
+        if (upload.removed) {
+            upload.lock.unlock();
+            return false;
+        }
+        return true;
+    }
+
+    public static void release(Upload upload) {
+        upload.lastActivity = System.currentTimeMillis();
+        upload.lock.unlock();
+    }
+
+    /**
+     * Dopisuje dane od zatwierdzonego offsetu. Co CHECKPOINT_BYTES i na końcu dane są synchronizowane
+     * na dysk, a offset zapisywany. Po błędzie strumienia (zerwane połączenie) zatwierdzane jest to,
+     * co zdążyło dotrzeć. Wołać po {@link #tryAcquire(Upload)}.
+     */
+    public static void append(Upload upload, InputStream data) throws IOException {
+        try (FileChannel out = FileChannel.open(partPath(upload.id), StandardOpenOption.WRITE)) {
+            // Za zatwierdzonym offsetem mogą być dane sprzed awarii - nie wiadomo, czy są kompletne
+            out.truncate(upload.offset);
+            long position = upload.offset;
+            long nextCheckpoint = position + CHECKPOINT_BYTES;
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = data.read(buffer)) != -1) {
+                    ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+                    while (bb.hasRemaining()) {
+                        position += out.write(bb, position);
+                    }
+                    if (position >= nextCheckpoint) {
+                        checkpoint(out, upload, position);
+                        nextCheckpoint = position + CHECKPOINT_BYTES;
+                    }
+                }
+            } finally {
+                checkpoint(out, upload, position);
+            }
+        }
+    }
+
+    /**
+     * Zapisuje ukończony upload (offset == rozmiar) jako plik użytkownika - plik częściowy staje się
+     * blobem bez kopiowania. Metadane zostają do wygaśnięcia, żeby klient, który nie dostał odpowiedzi,
+     * mógł sprawdzić, że plik jest zapisany. Wołać po {@link #tryAcquire(Upload)}.
+     * Limity użytkownika są sprawdzane ponownie (mogły się zmienić od otwarcia) - po przekroczeniu
+     * upload jest usuwany, a metoda zwraca komunikat; null - plik zapisany.
+     */
+    public static String complete(Upload upload) throws IOException, SQLException {
+        if (upload.offset != upload.size) {
+            throw new IllegalStateException("Upload niekompletny: " + upload.offset + " z " + upload.size);
+        }
+        String quotaError = DatabaseManager.checkQuota(upload.owner, List.of(upload.fileName),
+                List.of(upload.size), upload.id);
+        if (quotaError != null) {
+            remove(upload);
+            return quotaError;
+        }
+        FileStorageManager.StagedBlob blob;
+        try {
+            blob = FileStorageManager.stageFile(partPath(upload.id));
+        } catch (IOException e) {
+            remove(upload);
+            throw e;
+        }
+        try {
+            DatabaseManager.saveFile(upload.owner, upload.fileName, blob);
+        } catch (SQLException e) {
+            // Plik częściowy został już przeniesiony - tego uploadu nie da się dokończyć
+            remove(upload);
+            throw e;
+        }
+        upload.completed = true;
+        unreserve(upload);
+        writeMeta(upload);
+        return null;
+    }
+
+    /**
+     * Usuwa uploady bez aktywności dłuższej niż ServerConfig.uploadExpiryMillis
+     * (ukończone - po COMPLETED_RETENTION_MS).
+     */
+    static void removeExpired() {
+        long now = System.currentTimeMillis();
+        long cutoff = now - ServerConfig.uploadExpiryMillis();
+        long completedCutoff = now - Math.min(COMPLETED_RETENTION_MS, ServerConfig.uploadExpiryMillis());
+        int removed = 0;
+        for (Upload upload : UPLOADS.values()) {
+            long limit = upload.completed ? completedCutoff : cutoff;
+            if (upload.lastActivity < limit && upload.lock.tryLock()) {
+                try {
+                    remove(upload);
+                    removed++;
+                } finally {
+                    upload.lock.unlock();
+                }
+            }
+        }
+        if (removed > 0) {
+            System.out.println("Usunięto porzucone uploady: " + removed);
+        }
+    }
+
+    private static void remove(Upload upload) {
+        upload.removed = true;
+        UPLOADS.remove(upload.id);
+        unreserve(upload);
+        try {
+            Files.deleteIfExists(partPath(upload.id));
+            Files.deleteIfExists(metaPath(upload.id));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void unreserve(Upload upload) {
+        synchronized (OPEN_BY_OWNER) {
+            List<Upload> open = OPEN_BY_OWNER.get(upload.owner);
+            if (open != null && open.remove(upload) && open.isEmpty()) {
+                OPEN_BY_OWNER.remove(upload.owner);
+            }
+        }
+    }
+
+    private static void checkpoint(FileChannel out, Upload upload, long position) throws IOException {
+        if (position == upload.offset) {
+            return;
+        }
+        out.force(false);
+        upload.offset = position;
+        writeMeta(upload);
+    }
+
+    private static Path partPath(String id) {
+        return FileStorageManager.partialDir().resolve(id + PART_SUFFIX);
+    }
+
+    private static Path metaPath(String id) {
+        return FileStorageManager.partialDir().resolve(id + META_SUFFIX);
+    }
+
+    /**
+     * Zapis metadanych: plik tymczasowy, fsync i atomowa podmiana.
+     */
+    private static void writeMeta(Upload upload) throws IOException {
+        Properties meta = new Properties();
+        meta.setProperty("owner", upload.owner);
+        meta.setProperty("fileName", upload.fileName);
+        meta.setProperty("size", Long.toString(upload.size));
+        meta.setProperty("offset", Long.toString(upload.offset));
+        meta.setProperty("completed", Boolean.toString(upload.completed));
+        meta.setProperty("lastActivity", Long.toString(System.currentTimeMillis()));
+
+        Path target = metaPath(upload.id);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            meta.store(out, null);
+            out.getFD().sync();
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Upload readMeta(Path file) {
+        String name = file.getFileName().toString();
+        String id = name.substring(0, name.length() - META_SUFFIX.length());
+        Properties meta = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            meta.load(in);
+            long offset = Long.parseLong(meta.getProperty("offset"));
+            boolean completed = Boolean.parseBoolean(meta.getProperty("completed"));
+            Path part = partPath(id);
+            if (!completed) {
+                if (!Files.exists(part)) {
+                    // Awaria w trakcie zapisywania ukończonego uploadu
+                    Files.delete(file);
+                    return null;
+                }
+                offset = Math.min(offset, Files.size(part));
+            }
+            return new Upload(id, meta.getProperty("owner"), meta.getProperty("fileName"),
+                    Long.parseLong(meta.getProperty("size")), offset, completed,
+                    Long.parseLong(meta.getProperty("lastActivity")));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Pominięto uszkodzone metadane uploadu: " + file);
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
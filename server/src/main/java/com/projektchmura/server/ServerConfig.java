@@ -0,0 +1,268 @@
+package com.projektchmura.server;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Ustawienia serwera czytane z właściwości systemowych (-Dchmurka.xxx=...),
+ * z wartościami domyślnymi dla uruchomienia bez parametrów.
+ */
+public final class ServerConfig {
+
+    private ServerConfig() {
+    }
+
+    // -------------------- POŁĄCZENIA ------------------------
+
+    /** Port, na którym serwer nasłuchuje. */
+    public static int serverPort() {
+        return Integer.getInteger("chmurka.server.port", ProtocolConstants.DEFAULT_PORT);
+    }
+
+    /** Maksymalna liczba jednocześnie obsługiwanych połączeń - nadmiarowe są od razu zamykane. */
+    public static int maxConnections() {
+        return Integer.getInteger("chmurka.server.maxConnections", 10_000);
+    }
+
+    /** Po tylu milisekundach bez żadnej ramki od klienta połączenie jest zamykane (0 = bez limitu). */
+    public static int idleTimeoutMillis() {
+        return Integer.getInteger("chmurka.server.idleTimeoutMs", 300_000);
+    }
+
+    /** Używaj wątków wirtualnych (jeden na połączenie), jeśli JVM je obsługuje (Java 21+). */
+    public static boolean useVirtualThreads() {
+        return Boolean.parseBoolean(System.getProperty("chmurka.server.virtualThreads", "true"));
+    }
+
+    // -------------------- KLASTER ------------------------
+
+    /**
+     * Węzły klastra "host:port,host:port,..." - ten sam zestaw na każdym węźle (kolejność bez znaczenia).
+     * Puste - serwer działa sam.
+     */
+    public static List<String> clusterNodes() {
+        String value = System.getProperty("chmurka.cluster.nodes", "");
+        List<String> nodes = new ArrayList<>();
+        for (String node : value.split(",")) {
+            if (!node.isBlank()) {
+                nodes.add(node.trim());
+            }
+        }
+        return nodes;
+    }
+
+    /** Adres tego węzła - jeden z {@link #clusterNodes()}. */
+    public static String clusterSelf() {
+        return System.getProperty("chmurka.cluster.self");
+    }
+
+    /** Na ilu węzłach (razem z głównym) leży każdy plik. */
+    public static int clusterReplicas() {
+        return Integer.getInteger("chmurka.cluster.replicas", 2);
+    }
+
+    /** Wspólny sekret węzłów - uwierzytelnia połączenia między nimi (wymagany w klastrze). */
+    public static String clusterSecret() {
+        return System.getProperty("chmurka.cluster.secret");
+    }
+
+    // -------------------- PULA ZADAŃ ------------------------
+
+    /** Liczba wątków zapisujących przesłane pliki (FairScheduler). */
+    public static int schedulerThreads() {
+        return Integer.getInteger("chmurka.scheduler.threads", 10);
+    }
+
+    /** Ile zadań może czekać w kolejce jednego użytkownika - kolejne UPLOAD dostaje BUSY. */
+    public static int schedulerMaxQueuedPerUser() {
+        return Integer.getInteger("chmurka.scheduler.maxQueuedPerUser", 32);
+    }
+
+    /** Kwant bajtów, który użytkownik dostaje w każdej turze deficit round-robin. */
+    public static long schedulerQuantumBytes() {
+        return Long.getLong("chmurka.scheduler.quantumBytes", 1024 * 1024);
+    }
+
+    // -------------------- SESJE ------------------------
+
+    /** Sesja nieużywana przez tyle milisekund wygasa. */
+    public static long sessionIdleTtlMillis() {
+        return Long.getLong("chmurka.sessions.idleTtlMs", 30 * 60 * 1000L);
+    }
+
+    /** Maksymalny czas życia sesji niezależnie od aktywności. */
+    public static long sessionAbsoluteTtlMillis() {
+        return Long.getLong("chmurka.sessions.absoluteTtlMs", 24 * 60 * 60 * 1000L);
+    }
+
+    /** Ile sesji naraz może mieć jeden użytkownik (nadmiarowa najstarsza jest usuwana). */
+    public static int maxSessionsPerUser() {
+        return Integer.getInteger("chmurka.sessions.maxPerUser", 16);
+    }
+
+    /** Czy zapisywać sesje w bazie, żeby przetrwały restart serwera. */
+    public static boolean persistSessions() {
+        return Boolean.parseBoolean(System.getProperty("chmurka.sessions.persist", "true"));
+    }
+
+    // -------------------- LIMITY ------------------------
+
+    /** Limit sumy rozmiarów plików jednego użytkownika (0 = bez limitu). */
+    public static long quotaBytes() {
+        return Long.getLong("chmurka.quota.bytes", 0);
+    }
+
+    /** Limit liczby plików jednego użytkownika (0 = bez limitu). */
+    public static long quotaFiles() {
+        return Long.getLong("chmurka.quota.files", 0);
+    }
+
+    // -------------------- DANE ------------------------
+
+    /** Katalog magazynu blobów. */
+    public static String storageDir() {
+        return System.getProperty("chmurka.storage.dir", "uploads");
+    }
+
+    /**
+     * Katalogi magazynu z wagami: "uploads=2,/mnt/b/uploads=1" (bez wagi = 1). Bloby są rozkładane
+     * między nie spójnym haszowaniem; pierwszy katalog trzyma też pliki tymczasowe, uploady wznawialne
+     * i sygnatury. Waga 0 opróżnia katalog - dopiero pusty można usunąć z listy.
+     * Domyślnie jeden katalog {@link #storageDir()}.
+     */
+    public static Map<String, Integer> storageDirs() {
+        String value = System.getProperty("chmurka.storage.dirs");
+        Map<String, Integer> dirs = new LinkedHashMap<>();
+        if (value == null || value.isBlank()) {
+            dirs.put(storageDir(), 1);
+            return dirs;
+        }
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int eq = item.lastIndexOf('=');
+            int weight = 1;
+            if (eq >= 0) {
+                try {
+                    weight = Integer.parseInt(item.substring(eq + 1).trim());
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Zła waga katalogu magazynu: " + item);
+                }
+                item = item.substring(0, eq).trim();
+            }
+            if (weight < 0 || item.isEmpty()) {
+                throw new IllegalArgumentException("Zły katalog magazynu: " + item + "=" + weight);
+            }
+            dirs.put(item, weight);
+        }
+        if (dirs.values().stream().noneMatch(w -> w > 0)) {
+            throw new IllegalArgumentException("Żaden katalog magazynu nie ma dodatniej wagi: " + value);
+        }
+        return dirs;
+    }
+
+    /** Przerwa (ms) między przenoszonymi blobami przy przebudowie magazynu - żeby nie zagłodzić zwykłego ruchu. */
+    public static long storageRebalancePauseMillis() {
+        return Long.getLong("chmurka.storage.rebalancePauseMs", 0);
+    }
+
+    /** Ścieżka pliku bazy H2 (bez rozszerzenia). */
+    public static String databasePath() {
+        return System.getProperty("chmurka.db.path",
+                Paths.get(System.getProperty("user.dir"), "database", "db").toString());
+    }
+
+    /** Po jakim czasie bez aktywności porzucony upload wznawialny jest usuwany. */
+    public static long uploadExpiryMillis() {
+        return Long.getLong("chmurka.upload.expiry.ms", 24 * 60 * 60 * 1000L);
+    }
+
+    /** Ile niedokończonych uploadów wznawialnych może mieć naraz jeden użytkownik. */
+    public static int maxOpenUploadsPerUser() {
+        return Integer.getInteger("chmurka.upload.maxOpenPerUser", 16);
+    }
+
+    /**
+     * Budżet cache zawartości (bajty, poza stertą - mieści się w -XX:MaxDirectMemorySize); 0 wyłącza cache.
+     */
+    public static long contentCacheBytes() {
+        return Long.getLong("chmurka.cache.bytes", 64L * 1024 * 1024);
+    }
+
+    /** Większe bloby (w zapisanej postaci) nie trafiają do cache zawartości. */
+    public static long contentCacheMaxEntryBytes() {
+        return Long.getLong("chmurka.cache.maxEntryBytes", 4L * 1024 * 1024);
+    }
+
+    /** Limit wpisów (plików wszystkich użytkowników) w indeksie metadanych w pamięci; 0 wyłącza indeks. */
+    public static long metadataCacheEntries() {
+        return Long.getLong("chmurka.metadata.maxEntries", 200_000);
+    }
+
+    /** Czy kompresować bloby w magazynie (te, które dają się skompresować). */
+    public static boolean storageCompression() {
+        return Boolean.parseBoolean(System.getProperty("chmurka.storage.compression", "true"));
+    }
+
+    /** Czy zgadzać się na kompresję ramek DATA uzgadnianą przez klienta (OP_HELLO). */
+    public static boolean wireCompression() {
+        return Boolean.parseBoolean(System.getProperty("chmurka.compression", "true"));
+    }
+
+    // -------------------- BAZA DANYCH ------------------------
+
+    /** Maksymalna liczba połączeń w puli JDBC. */
+    public static int dbPoolSize() {
+        return Integer.getInteger("chmurka.db.poolSize", 10);
+    }
+
+    /** Jak długo wątek może czekać na wolne połączenie z puli, zanim dostanie błąd. */
+    public static long dbAcquireTimeoutMillis() {
+        return Long.getLong("chmurka.db.acquireTimeoutMs", 5000);
+    }
+
+    /** Po jakim czasie bezczynności połączenie jest sprawdzane (isValid) przed ponownym użyciem. */
+    public static long dbValidateAfterIdleMillis() {
+        return Long.getLong("chmurka.db.validateAfterIdleMs", 30_000);
+    }
+
+    /** Ile plików z jednego UPLOAD_BATCH trafia do bazy w jednej transakcji. */
+    public static int dbBatchCommitSize() {
+        return Integer.getInteger("chmurka.db.batchCommitSize", 500);
+    }
+
+    /**
+     * Czy zmiany metadanych (zapis, usunięcie, rejestracja) idą przez dziennik z group commit
+     * (MetadataJournal) i trafiają do bazy w tle.
+     */
+    public static boolean journalEnabled() {
+        return Boolean.parseBoolean(System.getProperty("chmurka.journal.enabled", "true"));
+    }
+
+    /** Plik dziennika metadanych - domyślnie obok pliku bazy. */
+    public static String journalPath() {
+        return System.getProperty("chmurka.journal.path", databasePath() + ".journal");
+    }
+
+    /** Ile rekordów dziennika trafia do bazy w jednej transakcji. */
+    public static int journalApplyBatchSize() {
+        return Integer.getInteger("chmurka.journal.applyBatch", 500);
+    }
+
+    /** Od tego rozmiaru w pełni zastosowany dziennik jest obcinany (po CHECKPOINT SYNC bazy). */
+    public static long journalCheckpointBytes() {
+        return Long.getLong("chmurka.journal.checkpointBytes", 16L * 1024 * 1024);
+    }
+
+    /** Limit cache'owanych PreparedStatement na jedno połączenie. */
+    public static int dbStatementCacheSize() {
+        return Integer.getInteger("chmurka.db.statementCacheSize", 32);
+    }
+}
@@ -1,70 +1,270 @@
 package com.projektchmura.server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ServerMain {
-    private static final int PORT = 9000;
 
-    // Mapa: sessionId -> username
-    // Używam ConcurrentHashMap, bo może być wielu klientów naraz
-    public static final Map<String, String> SESSIONS = new ConcurrentHashMap<>();
+    // Sesje: sessionId -> username, z wygasaniem (idle/absolute TTL) i limitem na użytkownika
+    public static final SessionStore SESSIONS = new SessionStore(
+            ServerConfig.sessionIdleTtlMillis(),
+            ServerConfig.sessionAbsoluteTtlMillis(),
+            ServerConfig.maxSessionsPerUser(),
+            ServerConfig.persistSessions());
 
-    // Dodajemy pule wątków do obsługi zadań zwracających wartość (Callable)
-    public static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(10);
+    // Pula wątków zapisujących pliki - z osobną kolejką dla każdego użytkownika (deficit round-robin)
+    public static final FairScheduler SCHEDULER = new FairScheduler(
+            ServerConfig.schedulerThreads(),
+            ServerConfig.schedulerMaxQueuedPerUser(),
+            ServerConfig.schedulerQuantumBytes());
+
+    // Liczba aktualnie obsługiwanych połączeń (limit: ServerConfig.maxConnections)
+    private static final AtomicInteger ACTIVE_CONNECTIONS = new AtomicInteger();
+
+    // Stan uruchomionego serwera (start/stop - także w procesie, np. w benchmarkach)
+    private static ServerSocketChannel serverChannel;
+    private static ExecutorService connectionExecutor;
+    private static Thread acceptThread;
+    private static boolean started;
 
     public static void main(String[] args) {
         System.out.println("Start serwera...");
         try {
-            DatabaseManager.init();
-            System.out.println("Baza zainicjalizowana.");
-
-            try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-                System.out.println("Serwer nasłuchuje na porcie: " + PORT);
-
-                while (true) {
-                    Socket clientSocket = serverSocket.accept();
-                    System.out.println("Nowe połączenie od " + clientSocket.getInetAddress());
-                    // Tworzymy nowy wątek do obsługi klienta
-                    ServerWorker worker = new ServerWorker(clientSocket);
-                    worker.start();
-                }
-            }
+            start(ServerConfig.serverPort());
+            acceptThread.join();
         } catch (IOException e) {
             e.printStackTrace();
         } catch (SQLException e) {
             System.out.println("Błąd SQL podczas inicjalizacji bazy danych.");
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } finally {
-            // Zamykamy bazę
-            DatabaseManager.close();
-            // Zamykamy pula wątków
-            EXECUTOR.shutdown();
+            stop();
+        }
+    }
+
+    /**
+     * Inicjalizuje magazyn, bazę i sesje, otwiera gniazdo na podanym porcie (0 = dowolny wolny)
+     * i uruchamia wątek przyjmujący połączenia. Zwraca port, na którym serwer nasłuchuje.
+     */
+    public static synchronized int start(int port) throws IOException, SQLException {
+        if (started) {
+            throw new IllegalStateException("Serwer już działa");
+        }
+        started = true;
+        int maxConnections = ServerConfig.maxConnections();
+        FileStorageManager.init();
+        ResumableUploadManager.init();
+        ContentCache.init();
+        MetadataCache.init();
+        DatabaseManager.init();
+        MetadataJournal.init();
+        System.out.println("Baza zainicjalizowana.");
+        Cluster.init();
+        SESSIONS.start();
+        SCHEDULER.start();
+        registerGauges();
+        Metrics.registerJmx();
+
+        // Gniazda z kanałem (blokującym) - pozwalają wysyłać pliki przez FileChannel.transferTo
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(port), 1024);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        int boundPort = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        System.out.println("Serwer nasłuchuje na porcie: " + boundPort + " (limit połączeń: " + maxConnections + ")");
+
+        ExecutorService executor = newConnectionExecutor(maxConnections);
+        serverChannel = channel;
+        connectionExecutor = executor;
+        acceptThread = new Thread(() -> acceptLoop(channel, executor, maxConnections), "server-accept");
+        acceptThread.start();
+        return boundPort;
+    }
+
+    /**
+     * Zamyka gniazdo nasłuchujące, połączenia, sesje i bazę.
+     */
+    public static synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        Metrics.unregisterJmx();
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            serverChannel = null;
+        }
+        if (connectionExecutor != null) {
+            connectionExecutor.shutdownNow();
+            connectionExecutor = null;
+        }
+        // Niewysłane repliki przepadają - węzeł po restarcie dostanie nowe zmiany, stare zostają na pozostałych
+        Cluster.shutdown();
+        // Zatrzymujemy pulę zapisu przed bazą - czekające zadania są anulowane
+        System.out.println("Pula zadań: " + SCHEDULER);
+        SCHEDULER.stop();
+        ResumableUploadManager.shutdown();
+        // Dziennik trafia do bazy przed jej zamknięciem
+        MetadataJournal.shutdown();
+        FileStorageManager.shutdown();
+        System.out.println("Statystyki cache: " + ContentCache.stats());
+        ContentCache.clear();
+        System.out.println("Statystyki indeksu metadanych: " + MetadataCache.stats());
+        MetadataCache.clear();
+        SESSIONS.stop();
+        // Zamykamy bazę
+        DatabaseManager.close();
+    }
+
+    /**
+     * Wskaźniki nasycenia serwera - odczytywane dopiero przy pobieraniu statystyk.
+     */
+    private static void registerGauges() {
+        Metrics.gauge("connections.active", ACTIVE_CONNECTIONS::get);
+        Metrics.gauge("scheduler.active", SCHEDULER::getActiveCount);
+        Metrics.gauge("scheduler.queued", SCHEDULER::getQueuedCount);
+        Metrics.gauge("scheduler.users", SCHEDULER::getUserCount);
+        Metrics.gauge("sessions.active", SESSIONS::size);
+        Metrics.gauge("db.pool.active", () -> DatabaseManager.getPool().getActiveCount());
+        Metrics.gauge("db.pool.waiting", () -> DatabaseManager.getPool().getWaitingCount());
+        Metrics.gauge("uploads.open", ResumableUploadManager::getOpenCount);
+        Metrics.gauge("storage.dirs", FileStorageManager::getDirectoryCount);
+        Metrics.gauge("cluster.replication.pending", Cluster::getPendingReplications);
+        Metrics.gauge("journal.pending", MetadataJournal::getPendingCount);
+        Metrics.gauge("cache.content.bytes", ContentCache::getUsedBytes);
+        Metrics.gauge("cache.content.hits", ContentCache::getHits);
+        Metrics.gauge("cache.content.misses", ContentCache::getMisses);
+        Metrics.gauge("cache.content.evictions", ContentCache::getEvictions);
+        Metrics.gauge("cache.metadata.hits", MetadataCache::getHits);
+        Metrics.gauge("cache.metadata.misses", MetadataCache::getMisses);
+        Metrics.gauge("cache.metadata.evictions", MetadataCache::getEvictions);
+    }
+
+    private static void acceptLoop(ServerSocketChannel channel, ExecutorService executor, int maxConnections) {
+        try {
+            while (true) {
+                Socket clientSocket = channel.accept().socket();
+                acceptConnection(clientSocket, executor, maxConnections);
+            }
+        } catch (ClosedChannelException e) {
+            // stop() - koniec nasłuchiwania
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Przekazuje połączenie do obsługi albo od razu je zamyka, gdy osiągnięto limit połączeń
+     * (ochrona przed zalewem połączeń - nadmiar nie zajmuje wątków ani pamięci).
+     */
+    private static void acceptConnection(Socket clientSocket, ExecutorService connectionExecutor, int maxConnections) {
+        if (ACTIVE_CONNECTIONS.incrementAndGet() > maxConnections) {
+            ACTIVE_CONNECTIONS.decrementAndGet();
+            System.out.println("Odrzucono połączenie od " + clientSocket.getInetAddress() + " - limit połączeń");
+            closeQuietly(clientSocket);
+            return;
+        }
+        try {
+            // Bezczynny klient (brak ramek przez idleTimeout) zostanie rozłączony
+            clientSocket.setSoTimeout(ServerConfig.idleTimeoutMillis());
+            clientSocket.setTcpNoDelay(true);
+
+            ServerWorker worker = new ServerWorker(clientSocket);
+            connectionExecutor.execute(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    ACTIVE_CONNECTIONS.decrementAndGet();
+                }
+            });
+        } catch (IOException | RuntimeException e) {
+            ACTIVE_CONNECTIONS.decrementAndGet();
+            e.printStackTrace();
+            closeQuietly(clientSocket);
         }
     }
 
     /**
-     * Generuje nowy sessionId i zapisuje do mapy SESSIONS,
+     * Wykonawca obsługi połączeń: na Java 21+ wątek wirtualny na połączenie,
+     * w przeciwnym razie pula wątków platformowych ograniczona limitem połączeń
+     * (wątki są tworzone na żądanie i wygasają po minucie bezczynności).
+     */
+    private static ExecutorService newConnectionExecutor(int maxConnections) {
+        if (ServerConfig.useVirtualThreads()) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("Obsługa połączeń: wątki wirtualne.");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                // JVM bez wątków wirtualnych - zostajemy przy puli
+            }
+        }
+        System.out.println("Obsługa połączeń: pula wątków (max " + maxConnections + ").");
+        AtomicInteger threadIds = new AtomicInteger();
+        ThreadFactory threadFactory = r -> {
+            Thread t = new Thread(r, "server-worker-" + threadIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), threadFactory);
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // połączenie i tak odrzucamy
+        }
+    }
+
+    /**
+     * Liczba aktualnie obsługiwanych połączeń.
+     */
+    public static int getActiveConnections() {
+        return ACTIVE_CONNECTIONS.get();
+    }
+
+    /**
+     * Generuje nowy sessionId i zapisuje go w SESSIONS,
      * łącząc go z danym username.
      */
     public static String createSessionForUser(String username) {
-        // np. losowy UUID
-        String sessionId = UUID.randomUUID().toString();
-        SESSIONS.put(sessionId, username);
-        return sessionId;
+        return SESSIONS.create(username);
     }
 
     /**
-     * Sprawdza, do kogo należy sessionId (lub zwraca null, jeśli nie ma go w mapie).
+     * Sprawdza, do kogo należy sessionId (lub zwraca null, jeśli sesja nie istnieje albo wygasła).
      */
     public static String getUserForSession(String sessionId) {
-        return SESSIONS.get(sessionId);
+        return SESSIONS.getUser(sessionId);
+    }
+
+    /**
+     * Kończy sesję (wylogowanie). Zwraca true, jeśli sesja istniała.
+     */
+    public static boolean invalidateSession(String sessionId) {
+        return SESSIONS.invalidate(sessionId);
     }
 }
@@ -1,58 +1,176 @@
 package com.projektchmura.server;
 
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.InterruptedIOException;
 import java.net.Socket;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 
-public class ServerWorker extends Thread {
+import com.projektchmura.common.BlockSignatures;
+import com.projektchmura.common.ChunkInputStream;
+import com.projektchmura.common.ChunkOutputStream;
+import com.projektchmura.common.ClusterRing;
+import com.projektchmura.common.DeltaInputStream;
+import com.projektchmura.common.FileInfo;
+import com.projektchmura.common.FilePage;
+import com.projektchmura.common.Message;
+import com.projektchmura.common.MessageReader;
+import com.projektchmura.common.MessageWriter;
+import com.projektchmura.common.ProtocolConstants;
+import com.projektchmura.common.ProtocolException;
+import com.projektchmura.common.StorageUsage;
+
+/**
+ * Obsługa jednego połączenia klienta - wykonywana przez wykonawcę połączeń z ServerMain.
+ */
+public class ServerWorker implements Runnable {
+
+    // Po ilu ms klient może ponowić upload odrzucony z BUSY
+    private static final long BUSY_RETRY_AFTER_MS = 200;
+    // Warunkowe DOWNLOAD, na które wystarczyło NOT_MODIFIED
+    private static final LongAdder NOT_MODIFIED = Metrics.counter("download.notModified");
+    // Żądania z poprawną ramką, ale brakującymi polami albo polami złego typu
+    private static final LongAdder MALFORMED = Metrics.counter("net.malformedRequests");
 
     private Socket clientSocket;
 
+    // Koder i dekoder ramek tego połączenia
+    private MessageReader reader;
+    private MessageWriter writer;
+    // Ile bajtów połączenia już doliczono do metryk
+    private long countedReceived;
+    private long countedSent;
+    // Połączenie od innego węzła klastra (uwierzytelnione w OP_HELLO) - sessionId to nazwa właściciela
+    private boolean peer;
+
     public ServerWorker(Socket clientSocket) {
         this.clientSocket = clientSocket;
     }
 
     @Override
     public void run() {
-        try (
-            ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-            ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream())
-        ) {
-            while (true) {
-                Object request = in.readObject();
-                if (request instanceof String) {
-                    String command = (String) request;
-
-                    switch (command) {
-                        case "REGISTER":
-                            handleRegister(in, out);
-                            break;
-                        case "LOGIN":
-                            handleLogin(in, out);
-                            break;
-                        case "UPLOAD":
+        try {
+            // Żądania nie niosą więcej niż jeden fragment, a nagłówek ma własny limit - pamięć połączenia jest ograniczona
+            reader = new MessageReader(clientSocket.getInputStream(), ProtocolConstants.MAX_REQUEST_BODY_SIZE,
+                    ProtocolConstants.MAX_REQUEST_FIELDS, ProtocolConstants.MAX_REQUEST_HEADER_SIZE);
+            writer = new MessageWriter(clientSocket.getOutputStream());
+
+            // Obie wiadomości są używane ponownie dla każdego żądania na tym połączeniu
+            Message request = new Message();
+            Message response = new Message();
+
+            while (reader.read(request)) {
+                long started = System.nanoTime();
+                byte opcode = request.getOpcode();
+                long framesBefore = writer.getFramesWritten();
+                boolean respond = true;
+                response.resetAsResponseTo(request);
+
+                try {
+                    switch (opcode) {
+                        case ProtocolConstants.OP_REGISTER:
+                            handleRegister(request, response);
+                            break;
+                        case ProtocolConstants.OP_LOGIN:
+                            handleLogin(request, response);
+                            break;
+                        case ProtocolConstants.OP_UPLOAD:
                             // obsługa upload przez Callable
-                            handleUploadCallable(in, out);
+                            handleUploadCallable(request, response);
+                            break;
+                        case ProtocolConstants.OP_UPLOAD_BATCH:
+                            handleUploadBatch(request, response);
+                            break;
+                        case ProtocolConstants.OP_UPLOAD_OPEN:
+                            handleUploadOpen(request, response);
+                            break;
+                        case ProtocolConstants.OP_UPLOAD_STATUS:
+                            handleUploadStatus(request, response);
+                            break;
+                        case ProtocolConstants.OP_UPLOAD_APPEND:
+                            handleUploadAppend(request, response);
+                            break;
+                        case ProtocolConstants.OP_FILE_SIGNATURES:
+                            // odpowiedź i ramki DATA wysyła sam handler
+                            handleFileSignatures(request, response);
+                            respond = false;
+                            break;
+                        case ProtocolConstants.OP_UPLOAD_DELTA:
+                            handleUploadDelta(request, response);
+                            break;
+                        case ProtocolConstants.OP_DOWNLOAD:
+                            // odpowiedź i ramki DATA wysyła sam handler
+                            handleDownload(request, response);
+                            respond = false;
+                            break;
+                        case ProtocolConstants.OP_READ_RANGE:
+                            // odpowiedź i ramki DATA wysyła sam handler
+                            handleReadRange(request, response);
+                            respond = false;
+                            break;
+                        case ProtocolConstants.OP_DELETE:
+                            handleDelete(request, response);
+                            break;
+                        case ProtocolConstants.OP_LIST_FILES:
+                            handleListFiles(request, response);
+                            break;
+                        case ProtocolConstants.OP_LIST_FILES_PAGE:
+                            handleListFilesPage(request, response);
+                            break;
+                        case ProtocolConstants.OP_LOGOUT:
+                            handleLogout(request, response);
                             break;
-                        case "DOWNLOAD":
-                            handleDownload(in, out);
+                        case ProtocolConstants.OP_HELLO:
+                            handleHello(request, response);
                             break;
-                        case "LIST_FILES":
-                            handleListFiles(in, out);
+                        case ProtocolConstants.OP_STATS:
+                            handleStats(request, response);
+                            break;
+                        case ProtocolConstants.OP_CLUSTER:
+                            handleCluster(response);
+                            break;
+                        case ProtocolConstants.OP_USAGE:
+                            handleUsage(request, response);
+                            break;
+                        case ProtocolConstants.OP_PING:
+                            // keepalive - wystarczy puste OK
                             break;
                         default:
-                            out.writeObject("Nieznana komenda: " + command);
+                            response.setStatus(ProtocolConstants.STATUS_UNKNOWN_COMMAND)
+                                    .addString("Nieznana komenda: " + request.getOpcode());
                     }
+                } catch (RuntimeException e) {
+                    // Brak pola albo pole złego typu (Message.getLong/getString). Jeśli handler zdążył już
+                    // coś wysłać, strumień ramek jest w nieznanym stanie - zostaje tylko zamknąć połączenie.
+                    if (writer.getFramesWritten() != framesBefore) {
+                        throw new ProtocolException("Błąd obsługi żądania " + opcode + ": " + e);
+                    }
+                    MALFORMED.increment();
+                    response.resetAsResponseTo(request);
+                    response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niepoprawne żądanie");
+                    respond = true;
+                }
+                if (respond) {
+                    writer.send(response);
                 }
+                Metrics.recordCommand(opcode, started);
+                countBytes();
             }
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException e) {
             // e.printStackTrace(); // Nie zaśmiecamy logów
+            Metrics.CONNECTION_ERRORS.increment();
         } finally {
+            if (reader != null && writer != null) {
+                countBytes();
+            }
             try {
                 clientSocket.close();
             } catch (IOException e) {
@@ -62,117 +180,866 @@ public class ServerWorker extends Thread {
     }
 
     // -------------------- REJESTRACJA ------------------------
-    private void handleRegister(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        String username = (String) in.readObject();
-        String password = (String) in.readObject();
+    private void handleRegister(Message request, Message response) {
+        String username = request.getString(0);
+        String password = request.getString(1);
 
         boolean success = DatabaseManager.registerUser(username, password);
-        if (success) {
-            out.writeObject("REGISTER_OK");
-        } else {
-            out.writeObject("REGISTER_FAIL");
+        response.setStatus(success ? ProtocolConstants.STATUS_OK : ProtocolConstants.STATUS_FAIL);
+        if (success && !peer) {
+            // Konto musi istnieć na każdym węźle - klient loguje się tam, gdzie leżą jego pliki
+            Cluster.replicateUser(username, password);
         }
     }
 
     // -------------------- LOGOWANIE ------------------------
-    private void handleLogin(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        String username = (String) in.readObject();
-        String password = (String) in.readObject();
+    private void handleLogin(Message request, Message response) {
+        String username = request.getString(0);
+        String password = request.getString(1);
 
         boolean success = DatabaseManager.loginUser(username, password);
         if (success) {
-            out.writeObject("LOGIN_OK");
-
-            // Tworzymy sessionId
+            // Tworzymy sessionId i odsyłamy do klienta (będzie pamiętać sessionId)
             String sessionId = ServerMain.createSessionForUser(username);
-            // Odsyłamy do klienta (będzie pamiętać sessionId)
-            out.writeObject(sessionId);
+            response.addString(sessionId);
         } else {
-            out.writeObject("LOGIN_FAIL");
+            response.setStatus(ProtocolConstants.STATUS_FAIL);
         }
     }
 
+    // -------------------- WYLOGOWANIE ------------------------
+    private void handleLogout(Message request, Message response) {
+        boolean existed = ServerMain.invalidateSession(request.getString(0));
+        response.setStatus(existed ? ProtocolConstants.STATUS_OK : ProtocolConstants.STATUS_UNAUTHORIZED);
+    }
+
     // -------------------- UPLOAD (Callable) ------------------------
     /**
-     * Metoda obsługuje upload pliku w osobnym wątku (Callable), zwracając wynik do klienta.
+     * Metoda obsługuje upload pliku: dane odbiera wątek połączenia, a zatwierdzenie (sync i baza)
+     * wykonuje zadanie Callable w puli ServerMain.SCHEDULER. Pola: sessionId, nazwa pliku, rozmiar.
+     * Po odpowiedzi CONTINUE klient wysyła ramki DATA, które są przepisywane do pliku tymczasowego
+     * strumieniowo (w pamięci jest najwyżej jeden fragment). CONTINUE idzie dopiero po dopuszczeniu
+     * w kolejce użytkownika (admit); przy pełnej kolejce klient od razu dostaje BUSY.
      */
-    private void handleUploadCallable(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        // Odbieramy sessionId, nazwę pliku, potem bajty
-        String sessionId = (String) in.readObject();
-        String fileName = (String) in.readObject();
-        byte[] fileData = (byte[]) in.readObject();
+    private void handleUploadCallable(Message request, Message response) throws IOException {
+        String sessionId = request.getString(0);
+        String fileName = request.getString(1);
+        long size = request.getLong(2);
 
         // Sprawdzamy, do jakiego usera należy sesja
-        String user = ServerMain.getUserForSession(sessionId);
+        String user = userFor(sessionId);
         if (user == null) {
-            out.writeObject("UPLOAD_FAIL - niepoprawna sesja!");
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        if (fileName == null || size < 0) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niepoprawny nagłówek uploadu");
+            return;
+        }
+        if (redirected(user, fileName, true, response) || overQuota(user, List.of(fileName), List.of(size), response)) {
+            return;
+        }
+
+        if (!admit(user, size, false)) {
+            response.setStatus(ProtocolConstants.STATUS_BUSY)
+                    .addString("serwer zajęty - za dużo oczekujących uploadów")
+                    .addLong(BUSY_RETRY_AFTER_MS);
+            return;
+        }
+
+        // Potwierdzamy nagłówek - dopiero teraz klient zaczyna wysyłać dane
+        response.setStatus(ProtocolConstants.STATUS_CONTINUE);
+        writer.send(response);
+        response.resetAsResponseTo(request);
+
+        ChunkInputStream content = new ChunkInputStream(reader, request.getRequestId(), size);
+        FileStorageManager.StagedBlob blob;
+        try {
+            // Synchronizacja na dysk - dopiero w zadaniu zatwierdzenia
+            blob = DatabaseManager.stageContent(content, size, false);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
+            blob = null;
+        }
+        // Po błędzie zapisu doczytujemy pozostałe fragmenty, żeby połączenie było gotowe na kolejne żądanie
+        content.skipRemaining();
+        if (blob == null) {
             return;
         }
 
-        // Tworzymy zadanie Callable, które zapisze plik i zwróci "UPLOAD_OK" lub komunikat błędu
-        Callable<String> uploadTask = () -> {
+        // Zadanie Callable zapisze plik; czekamy na wynik (blokująco)
+        try {
+            commit(user, saveTask(user, fileName, blob));
+            if (!peer) {
+                Cluster.replicateFile(user, fileName);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            blob.discard();
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
+        }
+    }
+
+    // -------------------- KOLEJKA ZAPISÓW ------------------------
+    /**
+     * Dopuszczenie zapisu w ServerMain.SCHEDULER: pusty żeton o koszcie bytes czeka na turę użytkownika
+     * i od razu zwalnia wątek puli. Dane odbiera potem wątek połączenia - wątki puli nie czekają na sieć,
+     * więc wolny klient nie blokuje zapisów innych. Bez wait przy pełnej kolejce użytkownika zwraca false
+     * (odpowiedź BUSY), z wait czeka na miejsce (połączenie nie odbiera danych - backpressure przez TCP).
+     */
+    private static boolean admit(String user, long bytes, boolean wait) throws IOException {
+        Future<Object> token;
+        try {
+            token = wait ? ServerMain.SCHEDULER.submit(user, bytes, () -> null)
+                    : ServerMain.SCHEDULER.trySubmit(user, bytes, () -> null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("przerwano oczekiwanie na kolejkę zapisów");
+        }
+        if (token == null) {
+            return false;
+        }
+        try {
+            await(token);
+        } catch (SQLException e) {
+            // Pusty żeton może tylko zostać anulowany (zatrzymanie serwera)
+            throw new IOException(e.getMessage(), e);
+        }
+        return true;
+    }
+
+    /**
+     * Zatwierdzenie zapisu (sync danych i baza) w wątku ServerMain.SCHEDULER - bajty policzyło już
+     * dopuszczenie, więc zadanie kosztuje tylko stały narzut. Czeka na wynik.
+     */
+    private static <T> T commit(String user, Callable<T> task) throws IOException, SQLException {
+        try {
+            return await(ServerMain.SCHEDULER.submit(user, 0, task));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("przerwano oczekiwanie na kolejkę zapisów");
+        }
+    }
+
+    /**
+     * Wynik zadania z puli - wyjątki zadania przechodzą bez opakowania.
+     */
+    private static <T> T await(Future<T> future) throws IOException, SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("przerwano oczekiwanie na zapis");
+        } catch (CancellationException e) {
+            throw new SQLException("zapis anulowany - serwer jest zatrzymywany", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    /**
+     * Zadanie zatwierdzenia odebranego pliku: synchronizuje blob na dysk i zapisuje plik w bazie.
+     */
+    private static Callable<Void> saveTask(String user, String fileName, FileStorageManager.StagedBlob blob) {
+        return () -> {
             try {
-                DatabaseManager.saveFile(user, fileName, fileData);
-                return "UPLOAD_OK";
-            } catch (SQLException e) {
-                e.printStackTrace();
-                return "UPLOAD_FAIL - błąd bazy: " + e.getMessage();
+                blob.sync();
+            } catch (IOException e) {
+                blob.discard();
+                throw new SQLException("Błąd zapisu zawartości pliku: " + e.getMessage(), e);
             }
+            DatabaseManager.saveFile(user, fileName, blob);
+            return null;
         };
+    }
+
+    // -------------------- UPLOAD_BATCH ------------------------
+    /**
+     * Pola: sessionId, potem pary (nazwa, rozmiar). Po CONTINUE zawartość plików przychodzi kolejno,
+     * każdy plik zakończony pustą ramką DATA. Pliki trafiają do bazy grupami (ServerConfig.dbBatchCommitSize),
+     * po jednej transakcji na grupę - grupa jest zapisywana w puli ServerMain.SCHEDULER, a połączenie
+     * w tym czasie odbiera już następną. CONTINUE idzie po dopuszczeniu całej paczki w kolejce użytkownika.
+     * Odpowiedź: dla każdego pliku null albo komunikat błędu.
+     */
+    private void handleUploadBatch(Message request, Message response) throws IOException {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        int count = (request.getFieldCount() - 1) / 2;
+        String[] names = new String[count];
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = request.getString(1 + 2 * i);
+            sizes[i] = request.getLong(2 + 2 * i);
+            if (names[i] == null || sizes[i] < 0) {
+                count = 0;
+                break;
+            }
+        }
+        if (count == 0 || request.getFieldCount() % 2 == 0) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niepoprawny nagłówek uploadu");
+            return;
+        }
+        // Cała paczka idzie na jeden węzeł - klient dzieli pliki według węzła głównego
+        for (String name : names) {
+            if (redirected(user, name, true, response)) {
+                return;
+            }
+        }
+        List<Long> sizeList = new ArrayList<>(count);
+        for (long size : sizes) {
+            sizeList.add(size);
+        }
+        if (overQuota(user, List.of(names), sizeList, response)) {
+            return;
+        }
+        long totalBytes = 0;
+        for (long size : sizes) {
+            totalBytes += size;
+        }
+        admit(user, totalBytes, true);
+
+        response.setStatus(ProtocolConstants.STATUS_CONTINUE);
+        writer.send(response);
+        response.resetAsResponseTo(request);
+
+        int groupSize = Math.max(1, ServerConfig.dbBatchCommitSize());
+        String[] errors = new String[count];
+        List<Integer> group = new ArrayList<>();
+        List<String> groupNames = new ArrayList<>();
+        List<FileStorageManager.StagedBlob> groupBlobs = new ArrayList<>();
+        // Grupa zapisywana w tle (najwyżej jedna naraz)
+        List<Integer> pending = null;
+        Future<String[]> pendingResult = null;
+        try {
+            for (int i = 0; i < count; i++) {
+                ChunkInputStream content = new ChunkInputStream(reader, request.getRequestId(), sizes[i]);
+                try {
+                    // Synchronizacja na dysk - dla całej grupy, w puli wątków (DatabaseManager.saveFiles)
+                    groupBlobs.add(DatabaseManager.stageContent(content, sizes[i], false));
+                    groupNames.add(names[i]);
+                    group.add(i);
+                } catch (SQLException e) {
+                    e.printStackTrace();
+                    errors[i] = e.getMessage();
+                }
+                // Po błędzie zapisu doczytujemy resztę pliku - następny zaczyna się od kolejnej ramki
+                content.skipRemaining();
 
-        // Zgłaszamy zadanie do puli wątków w ServerMain
-        Future<String> future = ServerMain.EXECUTOR.submit(uploadTask);
+                if (!group.isEmpty() && (group.size() == groupSize || i == count - 1)) {
+                    if (pendingResult != null) {
+                        awaitGroup(pending, pendingResult, errors);
+                    }
+                    List<String> saveNames = groupNames;
+                    List<FileStorageManager.StagedBlob> saveBlobs = groupBlobs;
+                    pending = group;
+                    // Pełna kolejka użytkownika wstrzymuje odbiór kolejnych plików (backpressure przez TCP);
+                    // bajty policzyło już dopuszczenie paczki
+                    try {
+                        pendingResult = ServerMain.SCHEDULER.submit(user, 0,
+                                () -> DatabaseManager.saveFiles(user, saveNames, saveBlobs));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("przerwano zapis grupy plików");
+                    }
+                    group = new ArrayList<>();
+                    groupNames = new ArrayList<>();
+                    groupBlobs = new ArrayList<>();
+                }
+            }
+        } finally {
+            // Zerwane połączenie - pliki z niewysłanej grupy nie trafią do bazy
+            for (FileStorageManager.StagedBlob blob : groupBlobs) {
+                blob.discard();
+            }
+        }
+        if (pendingResult != null) {
+            awaitGroup(pending, pendingResult, errors);
+        }
+        for (int i = 0; i < count; i++) {
+            response.addString(errors[i]);
+            if (errors[i] == null && !peer) {
+                Cluster.replicateFile(user, names[i]);
+            }
+        }
+    }
 
-        // Oczekujemy na wynik (blokująco)
+    private static void awaitGroup(List<Integer> group, Future<String[]> result, String[] errors) {
         try {
-            String result = future.get();
-            out.writeObject(result);
+            String[] groupErrors = result.get();
+            for (int j = 0; j < group.size(); j++) {
+                errors[group.get(j)] = groupErrors[j];
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            out.writeObject("UPLOAD_FAIL - " + e.getMessage());
+            for (int index : group) {
+                errors[index] = String.valueOf(e.getMessage());
+            }
+        }
+    }
+
+    // -------------------- UPLOAD WZNAWIALNY ------------------------
+    /**
+     * Pola: sessionId, nazwa pliku, rozmiar. Odpowiedź: uploadId.
+     */
+    private void handleUploadOpen(Message request, Message response) {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        String fileName = request.getString(1);
+        long size = request.getLong(2);
+        if (fileName == null || size < 0) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niepoprawny nagłówek uploadu");
+            return;
+        }
+        if (redirected(user, fileName, true, response) || overQuota(user, List.of(fileName), List.of(size), response)) {
+            return;
+        }
+
+        try {
+            ResumableUploadManager.Upload upload = ResumableUploadManager.open(user, fileName, size);
+            if (upload == null) {
+                response.setStatus(ProtocolConstants.STATUS_FAIL).addString("za dużo otwartych uploadów (limit "
+                        + ServerConfig.maxOpenUploadsPerUser() + ")");
+                return;
+            }
+            response.addString(upload.getId());
+        } catch (IOException e) {
+            e.printStackTrace();
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd zapisu: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Pola: sessionId, uploadId. Odpowiedź: zatwierdzony offset, rozmiar, 1/0 (plik zapisany).
+     */
+    private void handleUploadStatus(Message request, Message response) {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        ResumableUploadManager.Upload upload = ResumableUploadManager.get(user, request.getString(1));
+        if (upload == null) {
+            response.setStatus(ProtocolConstants.STATUS_NOT_FOUND).addString("nieznany upload");
+            return;
+        }
+        response.addLong(upload.getOffset())
+                .addLong(upload.getSize())
+                .addLong(upload.isCompleted() ? 1 : 0);
+    }
+
+    /**
+     * Pola: sessionId, uploadId, offset. Offset musi być równy zatwierdzonemu; po dopuszczeniu
+     * w kolejce użytkownika i CONTINUE dane do końca pliku są dopisywane na dysk z punktami kontrolnymi.
+     * Zerwanie połączenia zostawia zatwierdzone to, co dotarło - klient wznowi od tego miejsca.
+     * Zapis pliku w bazie (complete) idzie przez ServerMain.SCHEDULER.
+     */
+    private void handleUploadAppend(Message request, Message response) throws IOException {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        ResumableUploadManager.Upload upload = ResumableUploadManager.get(user, request.getString(1));
+        if (upload == null) {
+            response.setStatus(ProtocolConstants.STATUS_NOT_FOUND).addString("nieznany upload");
+            return;
+        }
+        if (!ResumableUploadManager.tryAcquire(upload)) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("upload jest w toku na innym połączeniu")
+                    .addLong(upload.getOffset());
+            return;
+        }
+        try {
+            if (upload.isCompleted()) {
+                response.addLong(upload.getSize());
+                return;
+            }
+            long offset = request.getLong(2);
+            if (offset != upload.getOffset()) {
+                response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niezgodny offset")
+                        .addLong(upload.getOffset());
+                return;
+            }
+
+            if (offset < upload.getSize()) {
+                admit(user, upload.getSize() - offset, true);
+                response.setStatus(ProtocolConstants.STATUS_CONTINUE);
+                writer.send(response);
+                response.resetAsResponseTo(request);
+
+                ChunkInputStream content = new ChunkInputStream(reader, request.getRequestId(), upload.getSize() - offset);
+                ResumableUploadManager.append(upload, content);
+            }
+
+            try {
+                String quotaError = commit(user, () -> ResumableUploadManager.complete(upload));
+                if (quotaError != null) {
+                    response.setStatus(ProtocolConstants.STATUS_QUOTA_EXCEEDED).addString(quotaError);
+                    return;
+                }
+                response.addLong(upload.getSize());
+                if (!peer) {
+                    Cluster.replicateFile(user, upload.getFileName());
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
+            }
+        } finally {
+            ResumableUploadManager.release(upload);
+        }
+    }
+
+    // -------------------- SYNCHRONIZACJA DELTA ------------------------
+    /**
+     * Pola: sessionId, nazwa. Odpowiedź OK ze skrótem bieżącej wersji, potem sygnatury bloków w ramkach DATA
+     * (liczone raz na blob i trzymane w magazynie).
+     */
+    private void handleFileSignatures(Message request, Message response) throws IOException {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            writer.send(response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED));
+            return;
+        }
+        // Wersja bazowa delty musi pochodzić z węzła głównego - tylko on przyjmie UPLOAD_DELTA
+        if (redirected(user, request.getString(1), true, response)) {
+            writer.send(response);
+            return;
+        }
+
+        String hash;
+        BlockSignatures signatures;
+        try {
+            hash = DatabaseManager.getBlobHash(user, request.getString(1));
+            if (hash == null) {
+                writer.send(response.setStatus(ProtocolConstants.STATUS_NOT_FOUND));
+                return;
+            }
+            signatures = FileStorageManager.signatures(hash);
+        } catch (SQLException | IOException e) {
+            e.printStackTrace();
+            writer.send(response.setStatus(ProtocolConstants.STATUS_ERROR));
+            return;
+        }
+
+        writer.write(response.addString(hash));
+        try (DataOutputStream out = new DataOutputStream(new ChunkOutputStream(writer, request.getRequestId()))) {
+            signatures.write(out);
+        }
+    }
+
+    /**
+     * Pola: sessionId, nazwa, skrót wersji bazowej, rozmiar bloku, rozmiar, skrót nowej wersji.
+     * Nowa wersja jest odtwarzana strumieniowo (bloki z bazy + literały) prosto do magazynu blobów
+     * i zapisywana tylko, jeśli jej skrót zgadza się z deklarowanym. Jak UPLOAD: dopuszczenie i zapis
+     * w bazie przez ServerMain.SCHEDULER, odbiór danych w wątku połączenia.
+     */
+    private void handleUploadDelta(Message request, Message response) throws IOException {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        String fileName = request.getString(1);
+        String baseHash = request.getString(2);
+        long blockSize = request.getLong(3);
+        long size = request.getLong(4);
+        String newHash = request.getString(5);
+        if (fileName == null || baseHash == null || newHash == null
+                || blockSize <= 0 || blockSize > Integer.MAX_VALUE || size < 0) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niepoprawny nagłówek delty");
+            return;
+        }
+        if (redirected(user, fileName, true, response) || overQuota(user, List.of(fileName), List.of(size), response)) {
+            return;
+        }
+
+        try {
+            if (!baseHash.equals(DatabaseManager.getBlobHash(user, fileName))) {
+                response.setStatus(ProtocolConstants.STATUS_FAIL).addString("wersja bazowa nieaktualna");
+                return;
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
+            return;
+        }
+
+        // Otwarty blob utrzymuje wersję bazową, nawet gdy ktoś ją w międzyczasie nadpisze
+        StoredBlob base;
+        try {
+            base = FileStorageManager.openBlob(baseHash);
+        } catch (IOException e) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("brak wersji bazowej");
+            return;
+        }
+
+        try (base) {
+            admit(user, size, true);
+            response.setStatus(ProtocolConstants.STATUS_CONTINUE);
+            writer.send(response);
+            response.resetAsResponseTo(request);
+
+            ChunkInputStream delta = new ChunkInputStream(reader, request.getRequestId(), -1);
+            // Synchronizacja na dysk - dopiero w zadaniu zatwierdzenia
+            FileStorageManager.StagedBlob blob = FileStorageManager.stage(
+                    new DeltaInputStream(delta, base, (int) blockSize, size), false);
+            delta.skipRemaining();
+
+            if (blob.getSize() != size || !blob.getHash().equals(newHash)) {
+                blob.discard();
+                response.setStatus(ProtocolConstants.STATUS_FAIL).addString("odtworzona zawartość się nie zgadza");
+                return;
+            }
+            try {
+                commit(user, saveTask(user, fileName, blob));
+                if (!peer) {
+                    Cluster.replicateFile(user, fileName);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+                blob.discard();
+                response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
+            }
+        }
+    }
+
+    private void countBytes() {
+        long received = reader.getBodyBytesRead();
+        long sent = writer.getBodyBytesWritten();
+        Metrics.BYTES_RECEIVED.add(received - countedReceived);
+        Metrics.BYTES_SENT.add(sent - countedSent);
+        countedReceived = received;
+        countedSent = sent;
+    }
+
+    // -------------------- STATS ------------------------
+    /**
+     * Pola: sessionId. Odpowiedź: pary (nazwa, wartość) ze wszystkich metryk serwera.
+     */
+    private void handleStats(Message request, Message response) {
+        if (userFor(request.getString(0)) == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        for (Map.Entry<String, Long> metric : Metrics.snapshot().entrySet()) {
+            response.addString(metric.getKey()).addLong(metric.getValue());
+        }
+    }
+
+    // -------------------- USAGE ------------------------
+    /**
+     * Pola: sessionId. Odpowiedź: liczba plików, bajty plików, bajty na dysku, limit bajtów, limit plików.
+     * W klastrze - zajętość na tym węźle (razem z replikami).
+     */
+    private void handleUsage(Message request, Message response) {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        try {
+            StorageUsage usage = DatabaseManager.getUsage(user);
+            response.addLong(usage.getFiles())
+                    .addLong(usage.getLogicalBytes())
+                    .addLong(usage.getPhysicalBytes())
+                    .addLong(usage.getQuotaBytes())
+                    .addLong(usage.getQuotaFiles());
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
+        }
+    }
+
+    // -------------------- HELLO ------------------------
+    /**
+     * Pola: kodeki obsługiwane przez klienta (i ewentualnie HELLO_PEER + sekret klastra).
+     * Odpowiedź: wybrany kodek (CODEC_NONE - bez kompresji), a dla węzła klastra dodatkowo HELLO_PEER.
+     */
+    private void handleHello(Message request, Message response) {
+        String codec = ProtocolConstants.CODEC_NONE;
+        for (int i = 0; i < request.getFieldCount(); i++) {
+            String field = request.getString(i);
+            if (ServerConfig.wireCompression() && ProtocolConstants.CODEC_DEFLATE.equals(field)) {
+                codec = ProtocolConstants.CODEC_DEFLATE;
+            } else if (field != null && field.startsWith(ProtocolConstants.HELLO_PEER)) {
+                peer = Cluster.isPeerSecret(field.substring(ProtocolConstants.HELLO_PEER.length()));
+            }
+        }
+        // Dotyczy tylko ramek DATA - sama odpowiedź idzie bez zmian
+        writer.setCompression(ProtocolConstants.CODEC_DEFLATE.equals(codec));
+        response.addString(codec);
+        if (peer) {
+            response.addString(ProtocolConstants.HELLO_PEER);
+        }
+    }
+
+    // -------------------- KLASTER ------------------------
+    /**
+     * Odpowiedź: liczba replik i adresy węzłów (pusta - serwer działa sam).
+     */
+    private void handleCluster(Message response) {
+        ClusterRing ring = Cluster.getRing();
+        if (ring == null) {
+            response.addLong(1);
+            return;
+        }
+        response.addLong(ring.getReplicas());
+        for (String node : ring.getNodes()) {
+            response.addString(node);
+        }
+    }
+
+    /**
+     * Użytkownik żądania: z sesji, a na połączeniu węzła klastra - wprost z pola sessionId.
+     */
+    private String userFor(String sessionId) {
+        if (peer) {
+            return sessionId;
+        }
+        return ServerMain.getUserForSession(sessionId);
+    }
+
+    /**
+     * Żądanie, którego ten węzeł nie obsłuży (odczyt pliku, którego nie przechowuje, albo zapis pliku,
+     * którego nie jest węzłem głównym): ustawia REDIRECT z adresem węzła głównego i zwraca true.
+     * Żądania innych węzłów nie są przekierowywane.
+     */
+    private boolean redirected(String user, String fileName, boolean write, Message response) {
+        if (peer || fileName == null) {
+            return false;
+        }
+        String address = Cluster.redirectFor(user, fileName, write);
+        if (address == null) {
+            return false;
+        }
+        response.setStatus(ProtocolConstants.STATUS_REDIRECT)
+                .addString("plik należy do innego węzła")
+                .addString(address);
+        return true;
+    }
+
+    /**
+     * Zapis przekraczający limity użytkownika: ustawia QUOTA_EXCEEDED i zwraca true - zanim klient wyśle dane.
+     * Repliki od innych węzłów nie są sprawdzane (limit sprawdził węzeł główny).
+     */
+    private boolean overQuota(String user, List<String> fileNames, List<Long> sizes, Message response) {
+        if (peer) {
+            return false;
+        }
+        try {
+            String error = DatabaseManager.checkQuota(user, fileNames, sizes);
+            if (error == null) {
+                return false;
+            }
+            response.setStatus(ProtocolConstants.STATUS_QUOTA_EXCEEDED).addString(error);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
         }
+        return true;
     }
 
     // -------------------- DOWNLOAD ------------------------
-    private void handleDownload(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        String sessionId = (String) in.readObject();
-        String fileName = (String) in.readObject();
+    /**
+     * Odpowiedź OK z rozmiarem i skrótem pliku, a po niej zawartość w ramkach DATA.
+     * Blob z magazynu wysyła {@link StoredBlob#send} (skompresowany - w zapisanych rekordach,
+     * jeśli klient uzgodnił kompresję); często pobierane bloby idą z cache zawartości.
+     * Klient z kopią pliku podaje jej skrót - jeśli wersja się nie zmieniła, dostaje samo NOT_MODIFIED.
+     */
+    private void handleDownload(Message request, Message response) throws IOException {
+        String sessionId = request.getString(0);
+        String fileName = request.getString(1);
+        String cachedHash = request.getString(2);
+
+        String user = userFor(sessionId);
+        if (user == null) {
+            writer.send(response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED)); // sygnalizujemy brak sesji
+            return;
+        }
+        if (redirected(user, fileName, false, response)) {
+            writer.send(response);
+            return;
+        }
+
+        FileContent content;
+        try {
+            // Sam skrót z metadanych - bez otwierania bloba
+            if (cachedHash != null && cachedHash.equals(DatabaseManager.getBlobHash(user, fileName))) {
+                NOT_MODIFIED.increment();
+                writer.send(response.setStatus(ProtocolConstants.STATUS_NOT_MODIFIED).addString(cachedHash));
+                return;
+            }
+            content = DatabaseManager.openFileContent(user, fileName);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            writer.send(response.setStatus(ProtocolConstants.STATUS_ERROR));
+            return;
+        }
+        if (content == null) {
+            writer.send(response.setStatus(ProtocolConstants.STATUS_NOT_FOUND));
+            return;
+        }
+
+        try (content) {
+            StoredBlob blob = content.getBlob();
+            writer.write(response.addLong(content.getLength()).addString(blob.getHash()));
+            blob.send(writer, request.getRequestId(), clientSocket.getChannel());
+        }
+    }
 
-        String user = ServerMain.getUserForSession(sessionId);
+    // -------------------- READ_RANGE ------------------------
+    /**
+     * Pola: sessionId, nazwa, offset, długość, oczekiwany skrót|null. Odpowiedź: skrót wersji i rozmiar pliku,
+     * potem fragment w ramkach DATA. Klient pobierający plik kilkoma połączeniami podaje skrót z pierwszej
+     * odpowiedzi - jeśli plik został w międzyczasie nadpisany, dostaje FAIL zamiast fragmentu innej wersji.
+     */
+    private void handleReadRange(Message request, Message response) throws IOException {
+        String user = userFor(request.getString(0));
         if (user == null) {
-            out.writeObject(null); // sygnalizujemy brak sesji
+            writer.send(response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!"));
+            return;
+        }
+        String fileName = request.getString(1);
+        long offset = request.getLong(2);
+        long length = request.getLong(3);
+        String expectedHash = request.getString(4);
+        if (fileName == null || offset < 0 || length < 0) {
+            writer.send(response.setStatus(ProtocolConstants.STATUS_FAIL).addString("niepoprawny zakres"));
+            return;
+        }
+        if (redirected(user, fileName, false, response)) {
+            writer.send(response);
             return;
         }
 
+        FileContent content;
+        try {
+            content = DatabaseManager.openFileContent(user, fileName);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            writer.send(response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage()));
+            return;
+        }
+        if (content == null) {
+            writer.send(response.setStatus(ProtocolConstants.STATUS_NOT_FOUND).addString("nie ma takiego pliku"));
+            return;
+        }
+
+        try (content) {
+            StoredBlob blob = content.getBlob();
+            if (expectedHash != null && !expectedHash.equals(blob.getHash())) {
+                writer.send(response.setStatus(ProtocolConstants.STATUS_FAIL).addString("plik został zmieniony"));
+                return;
+            }
+            writer.write(response.addString(blob.getHash()).addLong(blob.size()));
+            blob.send(writer, request.getRequestId(), offset, length, clientSocket.getChannel());
+        }
+    }
+
+    // -------------------- DELETE ------------------------
+    private void handleDelete(Message request, Message response) {
+        String user = userFor(request.getString(0));
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED).addString("niepoprawna sesja!");
+            return;
+        }
+        String fileName = request.getString(1);
+        if (fileName == null) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString("brak nazwy pliku");
+            return;
+        }
+        if (redirected(user, fileName, true, response)) {
+            return;
+        }
         try {
-            byte[] data = DatabaseManager.getFileContent(user, fileName);
-            if (data == null) {
-                out.writeObject(null);
-            } else {
-                out.writeObject(data);
+            if (!DatabaseManager.deleteFile(user, fileName)) {
+                response.setStatus(ProtocolConstants.STATUS_NOT_FOUND);
+            } else if (!peer) {
+                Cluster.replicateFile(user, fileName);
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            out.writeObject(null);
+            response.setStatus(ProtocolConstants.STATUS_ERROR).addString("błąd bazy: " + e.getMessage());
         }
     }
 
     // -------------------- LIST_FILES ------------------------
-    private void handleListFiles(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-        String sessionId = (String) in.readObject();
+    private void handleListFiles(Message request, Message response) {
+        String sessionId = request.getString(0);
 
-        String user = ServerMain.getUserForSession(sessionId);
+        String user = userFor(sessionId);
         if (user == null) {
-            out.writeObject(null); // brak sesji
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED); // brak sesji
             return;
         }
 
         try {
             List<String> files = DatabaseManager.listFiles(user);
-            out.writeObject(files);
+            if (!peer && Cluster.isEnabled()) {
+                files = Cluster.mergeNames(user, files);
+            }
+            for (String file : files) {
+                response.addString(file);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            response.setStatus(ProtocolConstants.STATUS_ERROR);
+        }
+    }
+
+    // -------------------- LIST_FILES_PAGE ------------------------
+    /**
+     * Pola: sessionId, cursor, prefix, sort, limit. Odpowiedź: nextCursor, potem (nazwa, rozmiar, mtime).
+     */
+    private void handleListFilesPage(Message request, Message response) {
+        String sessionId = request.getString(0);
+
+        String user = userFor(sessionId);
+        if (user == null) {
+            response.setStatus(ProtocolConstants.STATUS_UNAUTHORIZED); // brak sesji
+            return;
+        }
+
+        try {
+            FilePage page = DatabaseManager.listFiles(user, request.getString(1), request.getString(2),
+                    (int) request.getLong(3), (int) request.getLong(4));
+            if (!peer && Cluster.isEnabled()) {
+                // Pliki użytkownika są rozłożone na węzły - strona zbiera je ze wszystkich
+                page = Cluster.mergePage(user, request.getString(1), request.getString(2),
+                        (int) request.getLong(3), (int) request.getLong(4), page);
+            }
+            response.addString(page.getNextCursor());
+            for (FileInfo file : page.getFiles()) {
+                response.addString(file.getName())
+                        .addLong(file.getSize())
+                        .addLong(file.getModifiedAt());
+            }
+        } catch (IllegalArgumentException e) {
+            response.setStatus(ProtocolConstants.STATUS_FAIL).addString(e.getMessage());
         } catch (SQLException e) {
             e.printStackTrace();
-            out.writeObject(null);
+            response.setStatus(ProtocolConstants.STATUS_ERROR);
         }
     }
 }
@@ -0,0 +1,298 @@
+package com.projektchmura.server;
+
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Sesje zalogowanych użytkowników: sessionId -> username, z limitem bezczynności (idle TTL),
+ * limitem absolutnym (absolute TTL) i limitem sesji na użytkownika.
+ *
+ * Wygasanie obsługuje koło czasowe (timer wheel): sesja trafia do slotu odpowiadającego jej
+ * terminowi, a wątek zegara co tick przegląda tylko jeden slot. Dostęp do sesji nie przenosi
+ * jej między slotami - prawdziwy termin jest sprawdzany leniwie, gdy slot "wybije",
+ * więc koszt utrzymania jest stały na sesję (amortyzowany).
+ *
+ * Opcjonalnie sesje są zapisywane w bazie (tabela sessions), żeby restart serwera
+ * nie wylogowywał wszystkich klientów naraz.
+ */
+public class SessionStore {
+
+    private static final long TICK_MS = 1000;
+    private static final int WHEEL_SLOTS = 512;
+    // Co ile ticków zapisujemy do bazy zmiany czasu ostatniego dostępu
+    private static final int PERSIST_EVERY_TICKS = 30;
+
+    /**
+     * Pojedyncza sesja. lastAccess zmienia się przy każdym użyciu (bez blokad).
+     */
+    static class Session {
+        final String id;
+        final String username;
+        final long createdAt;
+        volatile long lastAccess;
+        // Ustawiane dokładnie raz - tylko pierwsze usunięcie sprząta sesję
+        final AtomicBoolean removed = new AtomicBoolean();
+
+        Session(String id, String username, long createdAt, long lastAccess) {
+            this.id = id;
+            this.username = username;
+            this.createdAt = createdAt;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final long idleTtlMillis;
+    private final long absoluteTtlMillis;
+    private final int maxSessionsPerUser;
+    private final boolean persistent;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    // Sesje danego użytkownika w kolejności utworzenia (do limitu na użytkownika)
+    private final Map<String, Deque<Session>> sessionsByUser = new ConcurrentHashMap<>();
+
+    private final AtomicReferenceArray<ConcurrentLinkedQueue<Session>> wheel = new AtomicReferenceArray<>(WHEEL_SLOTS);
+    // Ostatni tick, którego slot został już przejrzany
+    private volatile long processedTick;
+
+    // Zmiany czekające na zapis do bazy
+    private final Set<Session> touched = ConcurrentHashMap.newKeySet();
+    private final Set<String> removedIds = ConcurrentHashMap.newKeySet();
+
+    // Tworzony przy każdym start() - po stop() magazyn można uruchomić ponownie
+    private ScheduledExecutorService clock;
+
+    public SessionStore(long idleTtlMillis, long absoluteTtlMillis, int maxSessionsPerUser, boolean persistent) {
+        this.idleTtlMillis = idleTtlMillis;
+        this.absoluteTtlMillis = absoluteTtlMillis;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.persistent = persistent;
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel.set(i, new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Wczytuje zapisane sesje (jeśli trwałość jest włączona) i uruchamia zegar wygasania.
+     */
+    public synchronized void start() {
+        long now = System.currentTimeMillis();
+        processedTick = now / TICK_MS;
+        if (persistent) {
+            try {
+                List<Session> restored = DatabaseManager.loadSessions(now - idleTtlMillis, now - absoluteTtlMillis);
+                for (Session s : restored) {
+                    register(s);
+                }
+                System.out.println("Przywrócono sesji: " + restored.size());
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+        clock = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "session-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        clock.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Zatrzymuje zegar i zapisuje oczekujące zmiany.
+     */
+    public synchronized void stop() {
+        if (clock != null) {
+            clock.shutdownNow();
+            clock = null;
+        }
+        flush();
+    }
+
+    /**
+     * Tworzy sesję dla użytkownika. Po przekroczeniu limitu sesji na użytkownika
+     * najstarsza sesja tego użytkownika jest usuwana.
+     */
+    public String create(String username) {
+        long now = System.currentTimeMillis();
+        Session session = new Session(UUID.randomUUID().toString(), username, now, now);
+        register(session);
+        if (persistent) {
+            try {
+                DatabaseManager.insertSession(session.id, session.username, session.createdAt, session.lastAccess);
+            } catch (SQLException e) {
+                // Sesja działa dalej w pamięci - po restarcie trzeba będzie się zalogować
+                e.printStackTrace();
+            }
+        }
+        return session.id;
+    }
+
+    /**
+     * Zwraca właściciela sesji (i odświeża czas dostępu) albo null, jeśli sesji nie ma lub wygasła.
+     */
+    public String getUser(String sessionId) {
+        if (sessionId == null) {
+            return null;
+        }
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (deadline(session) <= now) {
+            remove(session);
+            return null;
+        }
+        session.lastAccess = now;
+        if (persistent) {
+            touched.add(session);
+        }
+        return session.username;
+    }
+
+    /**
+     * Usuwa sesję (LOGOUT). Zwraca true, jeśli istniała.
+     */
+    public boolean invalidate(String sessionId) {
+        Session session = sessionId == null ? null : sessions.get(sessionId);
+        if (session == null) {
+            return false;
+        }
+        remove(session);
+        return true;
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    // -------------------- WEWNĘTRZNE ------------------------
+
+    private void register(Session session) {
+        sessions.put(session.id, session);
+        Session evicted = null;
+        while (true) {
+            Deque<Session> userSessions = sessionsByUser.computeIfAbsent(session.username, u -> new ArrayDeque<>());
+            synchronized (userSessions) {
+                // Równoległe remove() mogło właśnie odpiąć opróżnioną kolejkę - bierzemy aktualną
+                if (sessionsByUser.get(session.username) != userSessions) {
+                    continue;
+                }
+                userSessions.addLast(session);
+                if (userSessions.size() > maxSessionsPerUser) {
+                    evicted = userSessions.pollFirst();
+                }
+                break;
+            }
+        }
+        if (evicted != null) {
+            remove(evicted);
+        }
+        schedule(session, deadline(session));
+    }
+
+    private void remove(Session session) {
+        if (!session.removed.compareAndSet(false, true)) {
+            return;
+        }
+        sessions.remove(session.id, session);
+        Deque<Session> userSessions = sessionsByUser.get(session.username);
+        if (userSessions != null) {
+            synchronized (userSessions) {
+                userSessions.remove(session);
+                if (userSessions.isEmpty()) {
+                    sessionsByUser.remove(session.username, userSessions);
+                }
+            }
+        }
+        if (persistent) {
+            touched.remove(session);
+            removedIds.add(session.id);
+        }
+    }
+
+    private long deadline(Session session) {
+        return Math.min(session.lastAccess + idleTtlMillis, session.createdAt + absoluteTtlMillis);
+    }
+
+    private void schedule(Session session, long deadline) {
+        // Slot już przejrzany "wybiłby" dopiero po pełnym obrocie - bierzemy najbliższy przyszły
+        long tick = Math.max(deadline / TICK_MS, processedTick + 1);
+        int slot = (int) (tick % WHEEL_SLOTS);
+        wheel.get(slot).add(session);
+    }
+
+    /**
+     * Jeden tick zegara: przegląda sloty, które "wybiły" od poprzedniego ticku.
+     * Sesje, których termin się przesunął (były używane), trafiają do nowego slotu.
+     */
+    private void tick() {
+        try {
+            long now = System.currentTimeMillis();
+            long currentTick = now / TICK_MS;
+            // Po dłuższej przerwie wystarczy jeden pełny obrót koła
+            long from = Math.max(processedTick + 1, currentTick - WHEEL_SLOTS + 1);
+            for (long t = from; t <= currentTick; t++) {
+                processedTick = t;
+                int slot = (int) (t % WHEEL_SLOTS);
+                ConcurrentLinkedQueue<Session> due = wheel.getAndSet(slot, new ConcurrentLinkedQueue<>());
+                Session session;
+                while ((session = due.poll()) != null) {
+                    if (session.removed.get()) {
+                        continue;
+                    }
+                    long deadline = deadline(session);
+                    if (deadline <= now) {
+                        remove(session);
+                    } else {
+                        schedule(session, deadline);
+                    }
+                }
+            }
+            if (persistent && currentTick % PERSIST_EVERY_TICKS == 0) {
+                flush();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Zapisuje do bazy zebrane zmiany: czasy dostępu i usunięte sesje (wsadowo).
+     */
+    private void flush() {
+        if (!persistent) {
+            return;
+        }
+        try {
+            if (!removedIds.isEmpty()) {
+                List<String> ids = new ArrayList<>(removedIds);
+                removedIds.removeAll(ids);
+                DatabaseManager.deleteSessions(ids);
+            }
+            if (!touched.isEmpty()) {
+                Map<String, Long> access = new HashMap<>();
+                for (Session s : touched) {
+                    touched.remove(s);
+                    access.put(s.id, s.lastAccess);
+                }
+                DatabaseManager.touchSessions(access);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
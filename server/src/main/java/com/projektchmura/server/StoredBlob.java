@@ -0,0 +1,336 @@
+package com.projektchmura.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.projektchmura.common.ChunkDecompressor;
+import com.projektchmura.common.ChunkOutputStream;
+import com.projektchmura.common.MessageWriter;
+import com.projektchmura.common.PositionalSource;
+import com.projektchmura.common.ProtocolConstants;
+
+/**
+ * Otwarty blob z magazynu - zwykły plik albo plik skompresowany (kodek "deflate").
+ * Zawartość pliku może też leżeć w pamięci (kopia z {@link ContentCache}).
+ *
+ * Format skompresowany: nagłówek (MAGIC, wersja, rozmiar fragmentu, rozmiar po rozpakowaniu),
+ * a po nim rekordy: [typ 1B][długość 4B][dane]. Każdy rekord to jeden fragment
+ * (ostatni może być krótszy) zapisany bez kompresji albo jako niezależny strumień zlib -
+ * dokładnie taki, jaki idzie w ramce DATA z flagą FLAG_COMPRESSED, więc przy pobieraniu
+ * rekordy są wysyłane prosto z pliku, bez rozpakowywania i ponownej kompresji.
+ */
+public class StoredBlob implements PositionalSource, Closeable {
+
+    static final int MAGIC = 0x43484d5a; // "CHMZ"
+    static final byte VERSION = 1;
+    static final int HEADER_LENGTH = 4 + 1 + 4 + 8;
+    static final int RECORD_HEADER_LENGTH = 1 + 4;
+    static final byte RECORD_RAW = 0;
+    static final byte RECORD_DEFLATE = 1;
+
+    // Dokładnie jedno z dwóch: plik albo jego kopia w pamięci
+    private final FileChannel channel;
+    private final ByteBuffer memory;
+    private final String hash;
+    private String codec;
+    private long size;
+    private int chunkSize;
+
+    // Pozycje rekordów w pliku - liczone przy pierwszym odczycie pozycyjnym
+    private long[] recordOffsets;
+    private ChunkDecompressor decompressor;
+    private byte[] stored;
+    private byte[] chunk;
+    private int chunkIndex = -1;
+    private int chunkLength;
+
+    private StoredBlob(FileChannel channel, ByteBuffer memory, String hash) {
+        this.channel = channel;
+        this.memory = memory;
+        this.hash = hash;
+    }
+
+    static StoredBlob open(Path path, String hash, String codec) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            StoredBlob blob = new StoredBlob(channel, null, hash);
+            blob.readHeader(codec);
+            return blob;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Blob, którego zapisana postać (cały plik) leży w buforze.
+     */
+    static StoredBlob wrap(ByteBuffer data, String hash, String codec) throws IOException {
+        StoredBlob blob = new StoredBlob(null, data.duplicate(), hash);
+        blob.readHeader(codec);
+        return blob;
+    }
+
+    private void readHeader(String codec) throws IOException {
+        if (!ProtocolConstants.CODEC_DEFLATE.equals(codec)) {
+            this.codec = ProtocolConstants.CODEC_NONE;
+            this.size = storedSize();
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(header, 0);
+        header.flip();
+        int chunkSize;
+        if (header.getInt() != MAGIC || header.get() != VERSION
+                || (chunkSize = header.getInt()) <= 0 || chunkSize > ProtocolConstants.CHUNK_SIZE) {
+            throw new IOException("Uszkodzony nagłówek bloba");
+        }
+        this.codec = codec;
+        this.chunkSize = chunkSize;
+        this.size = header.getLong();
+    }
+
+    /**
+     * SHA-256 zawartości (po rozpakowaniu) - nazwa bloba w magazynie.
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    public boolean isCompressed() {
+        return chunkSize > 0;
+    }
+
+    /**
+     * Rozmiar zawartości (po rozpakowaniu).
+     */
+    @Override
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Rozmiar zapisanej postaci (pliku).
+     */
+    public long storedSize() throws IOException {
+        return channel != null ? channel.size() : memory.limit();
+    }
+
+    @Override
+    public int read(long position, byte[] b, int off, int len) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        if (!isCompressed()) {
+            return readAt(ByteBuffer.wrap(b, off, len), position);
+        }
+        int index = (int) (position / chunkSize);
+        loadChunk(index);
+        int from = (int) (position - (long) index * chunkSize);
+        int n = Math.min(len, chunkLength - from);
+        System.arraycopy(chunk, from, b, off, n);
+        return n;
+    }
+
+    /**
+     * Strumień całej zawartości (rozpakowywanej po drodze). Nie trzeba go zamykać osobno.
+     */
+    public InputStream openStream() {
+        return openStream(0, size);
+    }
+
+    /**
+     * Strumień fragmentu zawartości [from, to).
+     */
+    public InputStream openStream(long from, long to) {
+        return new InputStream() {
+            private long position = from;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (position >= to) {
+                    return -1;
+                }
+                int n = StoredBlob.this.read(position, b, off, (int) Math.min(len, to - position));
+                if (n > 0) {
+                    position += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Wysyła zawartość jako ramki DATA (z ramką kończącą). Blob bez kompresji idzie bez kopiowania
+     * (transferTo albo prosto z bufora); skompresowany - w zapisanych rekordach, jeśli połączenie
+     * ma uzgodnioną kompresję, a w przeciwnym razie rozpakowywany po drodze.
+     */
+    public void send(MessageWriter writer, int requestId, WritableByteChannel target) throws IOException {
+        send(writer, requestId, 0, size, target);
+    }
+
+    /**
+     * Jak {@link #send(MessageWriter, int, WritableByteChannel)}, dla fragmentu [offset, offset + length)
+     * obciętego do końca zawartości. Fragment skompresowanego bloba wyrównany do rekordów
+     * (zaczyna się na granicy rekordu i kończy na granicy albo na końcu) też idzie w zapisanych rekordach.
+     */
+    public void send(MessageWriter writer, int requestId, long offset, long length, WritableByteChannel target)
+            throws IOException {
+        long from = Math.min(offset, size);
+        long to = Math.min(size, from + length);
+        if (!isCompressed()) {
+            if (channel != null) {
+                writer.transferData(requestId, channel, from, to - from, target);
+            } else {
+                ByteBuffer data = memory.duplicate();
+                data.limit((int) to).position((int) from);
+                writer.writeData(requestId, data, target);
+            }
+        } else if (writer.isCompressionEnabled() && from % chunkSize == 0 && (to % chunkSize == 0 || to == size)) {
+            transferFrames(writer, requestId, (int) (from / chunkSize), (int) ((to + chunkSize - 1) / chunkSize), target);
+        } else {
+            try (ChunkOutputStream out = new ChunkOutputStream(writer, requestId)) {
+                openStream(from, to).transferTo(out);
+            }
+        }
+    }
+
+    /**
+     * Wysyła rekordy [first, last) skompresowanego bloba jako ramki DATA (skompresowane z flagą FLAG_COMPRESSED).
+     */
+    private void transferFrames(MessageWriter writer, int requestId, int first, int last, WritableByteChannel target)
+            throws IOException {
+        long[] offsets = recordOffsets();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        for (int i = first; i < last; i++) {
+            long offset = offsets[i];
+            header.clear();
+            readFully(header, offset);
+            header.flip();
+            byte type = header.get();
+            int length = header.getInt();
+            byte flags = type == RECORD_DEFLATE ? ProtocolConstants.FLAG_COMPRESSED : ProtocolConstants.FLAG_NONE;
+            long position = offset + RECORD_HEADER_LENGTH;
+            if (channel != null) {
+                writer.transferFrame(requestId, flags, channel, position, length, target);
+            } else {
+                ByteBuffer body = memory.duplicate();
+                body.limit((int) position + length).position((int) position);
+                writer.writeFrame(requestId, flags, body, target);
+            }
+        }
+        writer.endData(requestId);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (decompressor != null) {
+            decompressor.end();
+            decompressor = null;
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    // -------------------- WEWNĘTRZNE ------------------------
+
+    private long[] recordOffsets() throws IOException {
+        if (recordOffsets == null) {
+            int count = (int) ((size + chunkSize - 1) / chunkSize);
+            long[] offsets = new long[count];
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            long offset = HEADER_LENGTH;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = offset;
+                header.clear();
+                readFully(header, offset);
+                header.flip();
+                header.get();
+                offset += RECORD_HEADER_LENGTH + header.getInt();
+            }
+            recordOffsets = offsets;
+        }
+        return recordOffsets;
+    }
+
+    private void loadChunk(int index) throws IOException {
+        if (index == chunkIndex) {
+            return;
+        }
+        long offset = recordOffsets()[index];
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+        readFully(header, offset);
+        header.flip();
+        byte type = header.get();
+        int length = header.getInt();
+        int expected = (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        if (length < 0 || length > chunkSize) {
+            throw new IOException("Uszkodzony rekord bloba: " + length + " bajtów");
+        }
+        if (chunk == null) {
+            chunk = new byte[chunkSize];
+            stored = new byte[chunkSize];
+        }
+        chunkIndex = -1;
+        if (type == RECORD_DEFLATE) {
+            readFully(ByteBuffer.wrap(stored, 0, length), offset + RECORD_HEADER_LENGTH);
+            if (decompressor == null) {
+                decompressor = new ChunkDecompressor();
+            }
+            chunkLength = decompressor.decompress(stored, 0, length, chunk, 0, chunkSize);
+        } else {
+            readFully(ByteBuffer.wrap(chunk, 0, length), offset + RECORD_HEADER_LENGTH);
+            chunkLength = length;
+        }
+        if (chunkLength != expected) {
+            throw new IOException("Rekord bloba ma " + chunkLength + " zamiast " + expected + " bajtów");
+        }
+        chunkIndex = index;
+    }
+
+    private int readAt(ByteBuffer dst, long position) throws IOException {
+        if (channel != null) {
+            return channel.read(dst, position);
+        }
+        if (position >= memory.limit()) {
+            return -1;
+        }
+        int n = (int) Math.min(dst.remaining(), memory.limit() - position);
+        ByteBuffer src = memory.duplicate();
+        src.limit((int) position + n).position((int) position);
+        dst.put(src);
+        return n;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = readAt(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Blob skrócony");
+            }
+            position += n;
+        }
+    }
+}
@@ -2,3 +2,51 @@ CREATE TABLE IF NOT EXISTS users (
     username VARCHAR(50) PRIMARY KEY,
     password VARCHAR(255) NOT NULL
 );
+
+-- Metadane plików; zawartość leży w magazynie blobów (uploads/blobs/ab/cd/<sha256>)
+CREATE TABLE IF NOT EXISTS files (
+    file_id IDENTITY PRIMARY KEY,
+    owner VARCHAR(50) NOT NULL,
+    filename VARCHAR(255) NOT NULL,
+    blob_hash VARCHAR(64) NOT NULL,
+    size BIGINT NOT NULL,
+    modified_at BIGINT
+);
+
+-- Jedna nazwa pliku na właściciela (zapis pod istniejącą nazwą nadpisuje plik)
+CREATE UNIQUE INDEX IF NOT EXISTS files_owner_filename ON files(owner, filename);
+-- Listowanie posortowane po czasie modyfikacji
+CREATE INDEX IF NOT EXISTS files_owner_mtime ON files(owner, modified_at, filename);
+
+-- Liczniki referencji blobów adresowanych treścią (SHA-256); codec - sposób zapisu na dysku
+CREATE TABLE IF NOT EXISTS blobs (
+    hash VARCHAR(64) PRIMARY KEY,
+    size BIGINT NOT NULL,
+    refcount INT NOT NULL,
+    codec VARCHAR(16) DEFAULT 'none' NOT NULL,
+    stored_size BIGINT,
+    -- Użytkownik, który zapisał blob jako pierwszy - jemu liczymy miejsce na dysku
+    charged_to VARCHAR(50)
+);
+
+-- Zajętość miejsca użytkowników (limity) - zmieniana w tych samych transakcjach co pliki i bloby
+CREATE TABLE IF NOT EXISTS owner_usage (
+    owner VARCHAR(50) PRIMARY KEY,
+    file_count BIGINT NOT NULL,
+    logical_bytes BIGINT NOT NULL,
+    physical_bytes BIGINT NOT NULL
+);
+
+-- Sesje zalogowanych użytkowników (przetrwają restart serwera)
+CREATE TABLE IF NOT EXISTS sessions (
+    session_id VARCHAR(36) PRIMARY KEY,
+    username VARCHAR(50) NOT NULL,
+    created_at BIGINT NOT NULL,
+    last_access BIGINT NOT NULL
+);
+
+-- Numer ostatniego rekordu dziennika metadanych (MetadataJournal) zastosowanego w bazie - jeden wiersz, id = 1
+CREATE TABLE IF NOT EXISTS journal_state (
+    id INT PRIMARY KEY,
+    applied_seq BIGINT NOT NULL
+);